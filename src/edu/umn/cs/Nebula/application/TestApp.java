@@ -6,11 +6,12 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.LinkedList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import edu.umn.cs.Nebula.job.ApplicationBase;
 import edu.umn.cs.Nebula.job.TaskStatus;
+import edu.umn.cs.Nebula.net.ExecutorStrategy;
 import edu.umn.cs.Nebula.util.Grid;
 
 public class TestApp extends ApplicationBase {
@@ -33,7 +34,7 @@ public class TestApp extends ApplicationBase {
 	 */
 	private static void waitForRequest(int port, int poolSize) {
 		// Listening for client requests
-		ExecutorService requestPool = Executors.newFixedThreadPool(poolSize);
+		ExecutorService requestPool = ExecutorStrategy.getDefault().newRequestPool(poolSize);
 		ServerSocket serverSocket = null;
 
 		try {
@@ -71,16 +72,19 @@ public class TestApp extends ApplicationBase {
 				in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
 				out = new PrintWriter(clientSocket.getOutputStream());
 				String[] message = in.readLine().split("::");
-				String latitude = message[0].split(",")[0];
-				String longitude = message[0].split(",")[1];
+				double latitude = Double.parseDouble(message[0].split(",")[0]);
+				double longitude = Double.parseDouble(message[0].split(",")[1]);
 
+				// the item nearest to the request among the ones sent before it, none if the index is empty
+				LinkedList<String> nearest;
+				// the index takes one writer at a time, readers need no lock
 				synchronized (mapLock) {
+					nearest = index.getNearestItems(latitude, longitude, 1);
 					for (int i = 1; i < message.length; i++) {
-						index.insertItem(message[i], Double.parseDouble(latitude), Double.parseDouble(longitude));
+						index.insertItem(message[i], latitude, longitude);
 					}
-					out.println(index.getItems(
-							index.getGridLocation(Double.parseDouble(latitude), Double.parseDouble(longitude))).getFirst());
 				}
+				out.println(nearest.isEmpty() ? "" : nearest.getFirst());
 				out.flush();
 
 				out.close();
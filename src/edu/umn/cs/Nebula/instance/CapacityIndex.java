@@ -0,0 +1,208 @@
+package edu.umn.cs.Nebula.instance;
+
+import java.util.LinkedList;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiFunction;
+
+import edu.umn.cs.Nebula.request.RegionCapacity;
+import edu.umn.cs.Nebula.util.Grid;
+
+/**
+ * Running totals of the online nodes in every cell of a grid: nodes, CPUs, free CPUs and leased
+ * nodes. Every join, leave, resource or lease change moves the totals of the cell of the node by
+ * the difference in what the node counts for, so the schedulers look for a region with enough
+ * free CPUs over the cells rather than over the nodes.
+ *
+ * A node is refreshed from its current state, read from a {@link NodeState} while what it counts
+ * for is locked, so that updates racing on the same node always end with its last state. Each
+ * total is exact, but a summary read during updates may mix totals from before and after one.
+ *
+ * @author albert
+ */
+public class CapacityIndex {
+	private final Grid grid;
+	private final NodeState state;
+	// what every node counts for in the totals of its cell
+	private final ConcurrentHashMap<String, Contribution> contributions = new ConcurrentHashMap<String, Contribution>();
+	private final AtomicLongArray numNodes;
+	private final AtomicLongArray numCPUs;
+	private final AtomicLongArray freeCPUs;
+	private final AtomicLongArray numLeased;
+
+	/**
+	 * The current state of the nodes, read when a node is refreshed.
+	 */
+	public interface NodeState {
+		/**
+		 * @return the CPUs of the node, or -1 if it is not online
+		 */
+		int getNumCPUs(String nodeId);
+
+		int getFreeCPUs(String nodeId);
+
+		boolean isLeased(String nodeId);
+	}
+
+	/**
+	 * @param grid	the cells, only their layout is used
+	 */
+	public CapacityIndex(Grid grid, NodeState state) {
+		this.grid = grid;
+		this.state = state;
+		int size = grid.getNumRegions();
+		numNodes = new AtomicLongArray(size);
+		numCPUs = new AtomicLongArray(size);
+		freeCPUs = new AtomicLongArray(size);
+		numLeased = new AtomicLongArray(size);
+	}
+
+	/**
+	 * Count a node that joins, in the cell of its location. A node with no valid location is
+	 * not counted.
+	 */
+	public void add(String nodeId, double latitude, double longitude) {
+		final int cell = grid.getCellIndex(latitude, longitude);
+		if (cell < 0) {
+			return;
+		}
+		contributions.compute(nodeId, new BiFunction<String, Contribution, Contribution>() {
+			@Override
+			public Contribution apply(String key, Contribution current) {
+				if (current != null) {
+					count(current, -1);
+				}
+				Contribution added = new Contribution(cell);
+				added.read(key, state);
+				count(added, 1);
+				return added;
+			}
+		});
+	}
+
+	/**
+	 * Count the current resources and lease of a node again.
+	 */
+	public void refresh(String nodeId) {
+		contributions.computeIfPresent(nodeId, new BiFunction<String, Contribution, Contribution>() {
+			@Override
+			public Contribution apply(String key, Contribution current) {
+				if (state.getNumCPUs(key) < 0) {
+					// leaving, remove takes it out
+					return current;
+				}
+				count(current, -1);
+				current.read(key, state);
+				count(current, 1);
+				return current;
+			}
+		});
+	}
+
+	/**
+	 * Stop counting a node that leaves.
+	 */
+	public void remove(String nodeId) {
+		Contribution removed = contributions.remove(nodeId);
+		if (removed != null) {
+			count(removed, -1);
+		}
+	}
+
+	private void count(Contribution contribution, int sign) {
+		numNodes.addAndGet(contribution.cell, sign);
+		numCPUs.addAndGet(contribution.cell, sign * contribution.numCPUs);
+		freeCPUs.addAndGet(contribution.cell, sign * contribution.freeCPUs);
+		numLeased.addAndGet(contribution.cell, contribution.leased ? sign : 0);
+	}
+
+	/**
+	 * @return the totals of the cell containing the location, or null if the location is not valid
+	 */
+	public RegionCapacity getRegion(double latitude, double longitude) {
+		int cell = grid.getCellIndex(latitude, longitude);
+		return cell < 0 ? null : getRegion(cell);
+	}
+
+	private RegionCapacity getRegion(int cell) {
+		double[] bounds = grid.getCellBounds(cell);
+		return new RegionCapacity(grid.getCellId(cell), bounds[0], bounds[1], bounds[2], bounds[3],
+				(int) numNodes.get(cell), (int) numCPUs.get(cell), (int) freeCPUs.get(cell), (int) numLeased.get(cell));
+	}
+
+	/**
+	 * @return the totals of every cell with nodes
+	 */
+	public LinkedList<RegionCapacity> getRegions() {
+		return findRegions(0, 0);
+	}
+
+	/**
+	 * Find the cells with the most free CPUs, going over the totals of every cell.
+	 *
+	 * @param minFreeCPUs	fewest free CPUs of a cell returned
+	 * @param count			most cells returned, 0 for no limit
+	 * @return the cells with nodes and enough free CPUs, the most free CPUs first
+	 */
+	public LinkedList<RegionCapacity> findRegions(int minFreeCPUs, int count) {
+		int limit = count > 0 ? count : Integer.MAX_VALUE;
+		// the cell with the fewest free CPUs kept is on top
+		PriorityQueue<Candidate> kept = new PriorityQueue<Candidate>();
+		for (int cell = 0; cell < numNodes.length(); cell++) {
+			long free = freeCPUs.get(cell);
+			if (numNodes.get(cell) <= 0 || free < minFreeCPUs) {
+				continue;
+			}
+			if (kept.size() < limit) {
+				kept.add(new Candidate(cell, free));
+			} else if (free > kept.peek().freeCPUs) {
+				kept.poll();
+				kept.add(new Candidate(cell, free));
+			}
+		}
+		LinkedList<RegionCapacity> regions = new LinkedList<RegionCapacity>();
+		while (!kept.isEmpty()) {
+			regions.addFirst(getRegion(kept.poll().cell));
+		}
+		return regions;
+	}
+
+	/**
+	 * What a node counts for in the totals of its cell.
+	 */
+	private static class Contribution {
+		private final int cell;
+		private int numCPUs;
+		private int freeCPUs;
+		private boolean leased;
+
+		public Contribution(int cell) {
+			this.cell = cell;
+		}
+
+		public void read(String nodeId, NodeState state) {
+			numCPUs = Math.max(0, state.getNumCPUs(nodeId));
+			freeCPUs = Math.max(0, state.getFreeCPUs(nodeId));
+			leased = state.isLeased(nodeId);
+		}
+	}
+
+	/**
+	 * A cell found, the fewest free CPUs first.
+	 */
+	private static class Candidate implements Comparable<Candidate> {
+		private final int cell;
+		private final long freeCPUs;
+
+		public Candidate(int cell, long freeCPUs) {
+			this.cell = cell;
+			this.freeCPUs = freeCPUs;
+		}
+
+		@Override
+		public int compareTo(Candidate other) {
+			return Long.compare(freeCPUs, other.freeCPUs);
+		}
+	}
+}
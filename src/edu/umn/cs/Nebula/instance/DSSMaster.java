@@ -1,20 +1,12 @@
 package edu.umn.cs.Nebula.instance;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import redis.clients.jedis.Jedis;
 
-import com.google.gson.Gson;
-
+import edu.umn.cs.Nebula.net.RequestDispatcher;
+import edu.umn.cs.Nebula.net.RequestServer;
 import edu.umn.cs.Nebula.node.NodeInfo;
 import edu.umn.cs.Nebula.node.NodeType;
 import edu.umn.cs.Nebula.request.DSSRequest;
@@ -26,9 +18,10 @@ public class DSSMaster {
 	private static final String jedisServer = "localhost";
 	private static final int jedisPort = 6379;
 	private static final Jedis jedis = new Jedis(jedisServer, jedisPort);
-	private static final Gson gson = new Gson();
 
 	private static NodeManager nodeManager;
+	// the nodes of the node manager, or of all the node manager shards
+	private static NodeDirectory nodes;
 	
 	/** 
 	 * INITIALIZATION
@@ -59,10 +52,19 @@ public class DSSMaster {
 			nodeDatabasePort = Integer.parseInt(args[7]);
 		}
 
-		nodeManager = new NodeManager(nodeManagerPort, nodeManagerMaxInactive, nodeManagerPoolSize, NodeType.STORAGE);
-		nodeManager.connectDB(nodeDatabaseUsername, nodeDatabasePassword, nodeDatabaseServerName, nodeDatabaseName,
-				nodeDatabasePort);
-		nodeManager.run();
+		ShardedNodeDirectory shards = ShardedNodeDirectory.fromProperties(nodeManagerMaxInactive);
+		if (shards != null) {
+			// the nodes are managed by node manager shards, each with its own database connection
+			System.out.println("[DSSMASTER] Routing the node manager shards");
+			shards.start();
+			nodes = shards;
+		} else {
+			nodeManager = new NodeManager(nodeManagerPort, nodeManagerMaxInactive, nodeManagerPoolSize, NodeType.STORAGE);
+			nodeManager.connectDB(nodeDatabaseUsername, nodeDatabasePassword, nodeDatabaseServerName, nodeDatabaseName,
+					nodeDatabasePort);
+			nodeManager.run();
+			nodes = nodeManager.getRegistry();
+		}
 
 		// connect to redis
 		System.out.print("[DSSMASTER] Initizalizing Redis connection ");
@@ -76,99 +78,49 @@ public class DSSMaster {
 	 */
 	private static void start() {
 		// listening for client requests
-		ExecutorService requestPool = Executors.newFixedThreadPool(poolSize);
-		ServerSocket serverSock = null;
-		try {
-			serverSock = new ServerSocket(dssPort);
-			System.out.println("[DSSMASTER] Listening for DSS requests on port " + dssPort);
-			while (true) {
-				requestPool.submit(new DSSHandler(serverSock.accept()));
-			}
-		} catch (IOException e) {
-			System.err.println("[DSSMASTER] Failed to establish listening socket: " + e);
-		} finally {
-			requestPool.shutdown();
-			if (serverSock != null) {
-				try {
-					serverSock.close();
-				} catch (IOException e) {
-					System.err.println("[DSSMASTER] Failed to close listening socket");
-				}
-			}
-		}
+		RequestServer server = RequestServer.create("DSSMASTER", dssPort, poolSize, new DSSDispatcher());
+		System.out.println("[DSSMASTER] Listening for DSS requests on port " + dssPort);
+		server.run();
 	}
 	
 	/** 
 	 * SUBCLASSES
 	 * ======================================================================================================== */
 
-	private static class DSSHandler implements Runnable {
-		private final Socket clientSocket;
+	private static class DSSDispatcher extends RequestDispatcher<DSSRequest> {
 
-		public DSSHandler(Socket socket) {
-			clientSocket = socket;
+		public DSSDispatcher() {
+			super(DSSRequest.class);
 		}
 
 		@Override
-		public void run() {
-			BufferedReader in = null;
-			PrintWriter out = null;
-			DSSRequest dssRequest = null;
-			HashMap<String, NodeInfo> result = null;
+		public Object dispatch(DSSRequest dssRequest) {
 			boolean success = false;
 
-			try {
-				in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-				out = new PrintWriter(clientSocket.getOutputStream());
-
-				dssRequest = gson.fromJson(in.readLine(), DSSRequest.class);
-			} catch (IOException e) {
-				System.err.println("[DSSMASTER] Failed parsing DSS request: " + e.getMessage());
-				if (out != null) {
-					out.println(gson.toJson(false));
-					out.flush();
-					out.close();
-				}
-				return;
+			if (dssRequest == null || dssRequest.getType() == null) {
+				return success;
 			}
-
-			if (dssRequest != null) {
-				switch (dssRequest.getType()) {
-				case GETNODES:
-					result = nodeManager.getNodes();
-					break;
-				case GETNODESWITHFILE: // get a list of nodes storing the file
-					if (dssRequest.getNamespace() != null && dssRequest.getFilename() != null) {
-						result = getStorageNodesWithFile(dssRequest.getNamespace(), dssRequest.getFilename());
-						out.println(gson.toJson(result));
-					}
-					break;
-				case NEW: // notification indicating a new file is stored on the node
-					if (dssRequest.getNamespace() != null && dssRequest.getFilename() != null && dssRequest.getNodeId() != null) {
-						success = newFile(dssRequest.getNamespace(), dssRequest.getFilename(), dssRequest.getNodeId());
-					}
-					out.println(gson.toJson(success));
-					break;
-				case DELETE: // notification indicating the file has been removed from the node
-					if (dssRequest.getNamespace() != null && dssRequest.getFilename() != null && dssRequest.getNodeId() != null) {
-						success = deleteFile(dssRequest.getNamespace(), dssRequest.getFilename(), dssRequest.getNodeId());
-					}
-					out.println(gson.toJson(success));
-					break;
-				default:
-					System.out.println("[DSSMASTER] Invalid DSS request: " + dssRequest.getType());
-					out.println(gson.toJson(success));
+			switch (dssRequest.getType()) {
+			case GETNODES:
+				return nodes.getNodes();
+			case GETNODESWITHFILE: // get a list of nodes storing the file
+				if (dssRequest.getNamespace() != null && dssRequest.getFilename() != null) {
+					return getStorageNodesWithFile(dssRequest.getNamespace(), dssRequest.getFilename());
 				}
-			} else {
-				out.println(gson.toJson(success));
-			}
-			out.flush();
-			try {
-				if (in != null) in.close();
-				if (out != null) out.close();
-				if (clientSocket != null) clientSocket.close();
-			} catch (IOException e) {
-				System.err.println("[DSSMASTER] Failed to close streams or socket: " + e.getMessage());
+				return null;
+			case NEW: // notification indicating a new file is stored on the node
+				if (dssRequest.getNamespace() != null && dssRequest.getFilename() != null && dssRequest.getNodeId() != null) {
+					success = newFile(dssRequest.getNamespace(), dssRequest.getFilename(), dssRequest.getNodeId());
+				}
+				return success;
+			case DELETE: // notification indicating the file has been removed from the node
+				if (dssRequest.getNamespace() != null && dssRequest.getFilename() != null && dssRequest.getNodeId() != null) {
+					success = deleteFile(dssRequest.getNamespace(), dssRequest.getFilename(), dssRequest.getNodeId());
+				}
+				return success;
+			default:
+				System.out.println("[DSSMASTER] Invalid DSS request: " + dssRequest.getType());
+				return success;
 			}
 		}
 	}
@@ -189,10 +141,8 @@ public class DSSMaster {
 		List<String> nodeIds = jedis.lrange(fileId, 0, -1);
 		HashMap<String, NodeInfo> result = new HashMap<String, NodeInfo>();
 
-		synchronized (nodeManager.nodesLock) {
-			for (String nodeId : nodeIds) {
-				result.put(nodeId, nodeManager.getNodes().get(nodeId));
-			}
+		for (String nodeId : nodeIds) {
+			result.put(nodeId, nodes.getNode(nodeId));
 		}
 		return result;
 	}
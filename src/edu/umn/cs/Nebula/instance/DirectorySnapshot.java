@@ -0,0 +1,232 @@
+package edu.umn.cs.Nebula.instance;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+import edu.umn.cs.Nebula.net.BinaryCodec;
+import edu.umn.cs.Nebula.node.NodeInfo;
+import edu.umn.cs.Nebula.schedule.Lease;
+import edu.umn.cs.Nebula.util.ChangeTracker;
+import edu.umn.cs.Nebula.util.SnapshotLog;
+
+/**
+ * Saves the nodes and leases of a directory on local disk, so that a restarted master serves
+ * them at once instead of waiting for every node to send a heartbeat again.
+ *
+ * Every second, the nodes changed since the last save are appended to the journal of a
+ * {@link SnapshotLog}, one record [id, node, lease] per node, with null for both once the node
+ * is gone. The whole directory is written as a checkpoint when the journal is full, when the
+ * changes since the last save are no longer known, and every few minutes to keep restarts
+ * short. Records are encoded with the {@link BinaryCodec}, with a new codec for every
+ * checkpoint and journal since the codec interns the strings it has already written.
+ *
+ * Every save also records [version], the last version the directory handed out. Versions run
+ * ahead of the clock under a burst of changes, so a restarted directory is started after the
+ * last version saved plus the most changes made between two saves, and the versions the nodes
+ * and schedulers still hold from before the restart get the whole neighborhood or node table.
+ *
+ * @author albert
+ */
+public class DirectorySnapshot implements Runnable {
+	private static final long defaultInterval = 1000; // in milliseconds
+	private static final long checkpointInterval = 300000; // in milliseconds
+	private static final int defaultCapacity = 64 << 20; // in bytes
+	// more versions than a directory hands out between two saves
+	private static final long versionMargin = 10000000;
+
+	private final NodeDirectory directory;
+	private final SnapshotLog log;
+	private final long interval;
+
+	// the directory is saved up to version
+	private long version = -1;
+	private long lastCheckpoint = 0;
+	private BinaryCodec codec = new BinaryCodec();
+	private volatile boolean running = true;
+
+	/**
+	 * @param dir		directory of the snapshot files
+	 * @param name		prefix of the snapshot files, unique per master in the directory
+	 * @param interval	time between two saves, in milliseconds
+	 */
+	public DirectorySnapshot(NodeDirectory directory, File dir, String name, long interval) {
+		this.directory = directory;
+		this.log = new SnapshotLog(dir, name, defaultCapacity);
+		this.interval = interval;
+	}
+
+	/**
+	 * Restore a directory from its snapshot in the folder given with
+	 * {@code -Dnebula.snapshot.dir=path}, and keep saving it in a background thread.
+	 *
+	 * @param name	prefix of the snapshot files, unique per master in the folder
+	 * @return the running snapshot, or null if snapshots are not enabled
+	 */
+	public static DirectorySnapshot startFromProperties(NodeDirectory directory, String name) {
+		String dir = System.getProperty("nebula.snapshot.dir");
+		if (dir == null) {
+			return null;
+		}
+		DirectorySnapshot snapshot = new DirectorySnapshot(directory, new File(dir), name, defaultInterval);
+		try {
+			int restored = snapshot.restore();
+			System.out.println("[SNAPSHOT] Restored " + restored + " nodes and leases from " + dir + "/" + name);
+		} catch (IOException e) {
+			System.out.println("[SNAPSHOT] Failed restoring " + name + ", starting empty: " + e.getMessage());
+		}
+		Thread thread = new Thread(snapshot, "snapshot-" + name);
+		thread.setDaemon(true);
+		thread.start();
+		return snapshot;
+	}
+
+	/**
+	 * Put the saved nodes and leases back into the directory, then save the directory as a new
+	 * checkpoint. Must be called before the directory serves requests.
+	 *
+	 * @return the number of nodes and leases restored
+	 */
+	public int restore() throws IOException {
+		LinkedList<byte[]> checkpoint = new LinkedList<byte[]>();
+		LinkedList<byte[]> journal = new LinkedList<byte[]>();
+		log.load(checkpoint, journal);
+
+		// only the last record of every node counts
+		LinkedHashMap<String, List<?>> saved = new LinkedHashMap<String, List<?>>();
+		long lastVersion = Math.max(decode(checkpoint, saved), decode(journal, saved));
+		if (lastVersion >= 0) {
+			directory.startAfter(lastVersion + versionMargin);
+		}
+
+		int restored = 0;
+		long now = System.currentTimeMillis();
+		for (List<?> record : saved.values()) {
+			NodeInfo node = (NodeInfo) record.get(1);
+			Lease lease = (Lease) record.get(2);
+			if (lease != null && lease.getExpiredTime() <= now) {
+				lease = null;
+			}
+			if (node != null || lease != null) {
+				directory.restore((String) record.get(0), node, lease);
+				restored++;
+			}
+		}
+		checkpoint();
+		return restored;
+	}
+
+	/**
+	 * @return the last version saved in the records, -1 if none
+	 */
+	private static long decode(List<byte[]> records, LinkedHashMap<String, List<?>> saved) {
+		long lastVersion = -1;
+		BinaryCodec decoder = new BinaryCodec();
+		for (byte[] record : records) {
+			try {
+				List<?> fields = (List<?>) decoder.decode(record, List.class);
+				if (fields != null && fields.size() == 1 && fields.get(0) instanceof Number) {
+					lastVersion = Math.max(lastVersion, ((Number) fields.get(0)).longValue());
+					continue;
+				}
+				if (fields == null || fields.size() < 3 || !(fields.get(0) instanceof String)) {
+					continue;
+				}
+				saved.remove(fields.get(0));
+				saved.put((String) fields.get(0), fields);
+			} catch (IOException | ClassCastException e) {
+				// the strings interned by the rest of the records are unknown now
+				System.out.println("[SNAPSHOT] Skipping unreadable records: " + e.getMessage());
+				break;
+			}
+		}
+		return lastVersion;
+	}
+
+	public void stop() {
+		running = false;
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				break;
+			}
+			try {
+				save();
+			} catch (IOException e) {
+				System.out.println("[SNAPSHOT] Failed saving the directory: " + e.getMessage());
+			}
+		}
+		try {
+			save();
+			log.close();
+		} catch (IOException e) {
+			System.out.println("[SNAPSHOT] Failed closing the snapshot: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Append the changes since the last save to the journal, or write a checkpoint.
+	 */
+	public synchronized void save() throws IOException {
+		ChangeTracker.Changes changes = version < 0 ? null : directory.getChanges().getChangesSince(version);
+		if (changes == null || System.currentTimeMillis() - lastCheckpoint > checkpointInterval) {
+			checkpoint();
+			return;
+		}
+		if (changes.isEmpty()) {
+			return;
+		}
+		ArrayList<String> nodeIds = new ArrayList<String>(changes.getChanged());
+		nodeIds.addAll(changes.getRemoved());
+		for (String nodeId : nodeIds) {
+			if (!log.append(codec.encode(record(nodeId)))) {
+				checkpoint();
+				return;
+			}
+		}
+		if (!log.append(codec.encode(versionRecord()))) {
+			checkpoint();
+			return;
+		}
+		log.force();
+		version = changes.getVersion();
+	}
+
+	/**
+	 * Save the whole directory and start a new journal.
+	 */
+	private void checkpoint() throws IOException {
+		// changes made while the nodes are read are saved again with the next journal
+		long current = directory.getVersion();
+		BinaryCodec writer = new BinaryCodec();
+		LinkedList<byte[]> records = new LinkedList<byte[]>();
+		records.add(writer.encode(versionRecord()));
+		for (String nodeId : directory.getNodeIds()) {
+			List<Object> record = record(nodeId);
+			if (record.get(1) != null || record.get(2) != null) {
+				records.add(writer.encode(record));
+			}
+		}
+		log.checkpoint(records);
+		codec = new BinaryCodec();
+		version = current;
+		lastCheckpoint = System.currentTimeMillis();
+	}
+
+	private List<Object> versionRecord() {
+		return Arrays.<Object> asList(directory.getLastVersion());
+	}
+
+	private List<Object> record(String nodeId) {
+		return Arrays.<Object> asList(nodeId, directory.getNode(nodeId), directory.getLease(nodeId));
+	}
+}
@@ -0,0 +1,62 @@
+package edu.umn.cs.Nebula.instance;
+
+import edu.umn.cs.Nebula.net.LoadMeter;
+
+/**
+ * Recommends the heartbeat interval of the nodes from the load of their node manager.
+ *
+ * While the requests wait too long for a thread, the node manager is saturated and the rate it
+ * serves is about its capacity: the interval grows so that the heartbeats of all the nodes come
+ * in below that rate. Once the queue is short again, the interval comes back down by steps to
+ * the configured one. The failure detector judges every node against the interval it was
+ * asked for, so the nodes are not suspected while they move to a longer one.
+ *
+ * @author albert
+ */
+public class HeartbeatPolicy {
+	private static final double targetUtilization = 0.7;
+	private static final double maxQueueDelay = 50; // in milliseconds
+
+	private final long minInterval;
+	private final long maxInterval;
+
+	private volatile long interval;
+
+	/**
+	 * @param minInterval	interval when the node manager is not loaded, in milliseconds
+	 * @param maxInterval	longest interval ever recommended, in milliseconds
+	 */
+	public HeartbeatPolicy(long minInterval, long maxInterval) {
+		this.minInterval = minInterval;
+		this.maxInterval = maxInterval;
+		this.interval = minInterval;
+	}
+
+	/**
+	 * Adapt the interval to the current load.
+	 *
+	 * @param load		load of the server receiving the heartbeats
+	 * @param numNodes	number of nodes sending heartbeats
+	 * @return the new interval, in milliseconds
+	 */
+	public synchronized long update(LoadMeter load, int numNodes) {
+		double rate = load.getRequestRate();
+		double delay = load.getQueueDelay();
+		long next = interval;
+		if (delay > maxQueueDelay && rate > 0) {
+			// at least a step up, in case the delay does not come from the heartbeats
+			next = Math.max(interval * 5 / 4, (long) (numNodes * 1000 / (rate * targetUtilization)));
+		} else if (delay < maxQueueDelay / 4) {
+			next = interval * 9 / 10;
+		}
+		interval = Math.max(minInterval, Math.min(maxInterval, next));
+		return interval;
+	}
+
+	/**
+	 * @return the recommended heartbeat interval, in milliseconds
+	 */
+	public long getInterval() {
+		return interval;
+	}
+}
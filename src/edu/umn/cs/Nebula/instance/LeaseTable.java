@@ -0,0 +1,117 @@
+package edu.umn.cs.Nebula.instance;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+import edu.umn.cs.Nebula.schedule.Lease;
+import edu.umn.cs.Nebula.util.ChangeTracker;
+
+/**
+ * Leases of the nodes by the schedulers. Every lease, release and expiry is recorded as a
+ * change of the node. Safe for concurrent use.
+ *
+ * @author albert
+ */
+public class LeaseTable {
+	private final ConcurrentHashMap<String, Lease> leases = new ConcurrentHashMap<String, Lease>();
+	private final ChangeTracker changes;
+
+	/**
+	 * @param changes where the changes of the leased nodes are recorded
+	 */
+	public LeaseTable(ChangeTracker changes) {
+		this.changes = changes;
+	}
+
+	/**
+	 * @return the lease on the node, or null if it is available
+	 */
+	public Lease get(String nodeId) {
+		return leases.get(nodeId);
+	}
+
+	/**
+	 * Atomically lease a node, unless another scheduler holds it. A scheduler that already
+	 * holds the node renews its lease.
+	 *
+	 * @return whether the node is leased by the scheduler of the lease
+	 */
+	public boolean lease(String nodeId, Lease lease) {
+		return lease(nodeId, lease, false);
+	}
+
+	/**
+	 * @param renewOnly	only let a scheduler that already holds the node renew its lease
+	 */
+	public boolean lease(String nodeId, final Lease lease, final boolean renewOnly) {
+		final boolean[] granted = { false, false };
+		leases.compute(nodeId, new BiFunction<String, Lease, Lease>() {
+			@Override
+			public Lease apply(String key, Lease current) {
+				if (current != null && current.getScheduler() != null && !current.getScheduler().equals(lease.getScheduler())) {
+					// do not let a scheduler acquire a node that has already been claimed by another scheduler
+					return current;
+				}
+				if (renewOnly && current == null) {
+					return null;
+				}
+				granted[0] = true;
+				granted[1] = current == null;
+				return lease;
+			}
+		});
+		if (granted[1]) {
+			changes.changed(nodeId);
+		}
+		return granted[0];
+	}
+
+	/**
+	 * Free a node, only if it is leased by the scheduler.
+	 *
+	 * @return whether the node was freed
+	 */
+	public boolean release(String nodeId, String scheduler) {
+		Lease current = leases.get(nodeId);
+		if (current == null || current.getScheduler() == null || !current.getScheduler().equals(scheduler)) {
+			return false;
+		}
+		if (!leases.remove(nodeId, current)) {
+			return false;
+		}
+		changes.changed(nodeId);
+		return true;
+	}
+
+	/**
+	 * Free the nodes whose lease is over.
+	 *
+	 * @return the expired leases by node
+	 */
+	public HashMap<String, Lease> expire(long now) {
+		HashMap<String, Lease> expired = new HashMap<String, Lease>();
+		Iterator<Map.Entry<String, Lease>> entries = leases.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<String, Lease> entry = entries.next();
+			if (entry.getValue().getExpiredTime() <= now && leases.remove(entry.getKey(), entry.getValue())) {
+				expired.put(entry.getKey(), entry.getValue());
+				changes.changed(entry.getKey());
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * @return the time the next lease expires, or the given default if there is no lease
+	 */
+	public long getNextExpiry(long defaultTime) {
+		long next = defaultTime;
+		for (Lease lease : leases.values()) {
+			next = Math.min(next, lease.getExpiredTime());
+		}
+		return next;
+	}
+}
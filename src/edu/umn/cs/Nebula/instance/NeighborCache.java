@@ -0,0 +1,144 @@
+package edu.umn.cs.Nebula.instance;
+
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import edu.umn.cs.Nebula.net.CachedReply;
+import edu.umn.cs.Nebula.util.SpatialIndex;
+
+/**
+ * The neighbor lists of the regions of a location index. All the nodes of a region get the
+ * same list, so the list is built, and serialized, once per epoch of the region: the neighbor
+ * version, which every join or leave nearby moves forward. Until then the nodes of the region
+ * are served the same {@link CachedReply}.
+ *
+ * The lists are kept in an open-addressing table keyed by the number of the region, so that
+ * a hit on the heartbeat path allocates nothing. Regions merged or split away keep their
+ * slot until the table fills up and is started over, larger if there are more regions.
+ * Safe for concurrent use, with the index read without locks as {@link SpatialIndex} allows.
+ *
+ * @author albert
+ */
+public class NeighborCache {
+	private final SpatialIndex index;
+	private volatile Table table;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public NeighborCache(SpatialIndex index) {
+		this.index = index;
+		this.table = new Table(index.getNumRegions());
+	}
+
+	/**
+	 * @return the neighbor list of the location, shared and not to be changed, or null if the
+	 * location is not valid
+	 */
+	public CachedReply<LinkedList<String>> get(double latitude, double longitude) {
+		long region = index.getRegionKey(latitude, longitude);
+		if (region < 0) {
+			return null;
+		}
+		// the epoch is read before the list, a change meanwhile is after it and makes the next request miss
+		long epoch = index.getNeighborVersion(latitude, longitude);
+		Table current = table;
+		int slot = current.find(region);
+		Entry entry = slot < 0 ? null : current.entries.get(slot);
+		if (entry != null && entry.epoch == epoch) {
+			hits.incrementAndGet();
+			return entry.reply;
+		}
+		misses.incrementAndGet();
+		entry = new Entry(region, epoch, new CachedReply<LinkedList<String>>(index.getNeighborItems(latitude, longitude)));
+		if (slot >= 0) {
+			current.entries.set(slot, entry);
+		} else if (!current.add(entry)) {
+			table = new Table(Math.max(index.getNumRegions(), current.size.get()));
+		}
+		return entry.reply;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Entries by region, found by linear probing. Entries are replaced but never removed.
+	 */
+	private static class Table {
+		private final AtomicReferenceArray<Entry> entries;
+		private final AtomicInteger size = new AtomicInteger();
+		private final int mask;
+
+		/**
+		 * @param numRegions	regions expected, the table holds up to twice as many
+		 */
+		public Table(int numRegions) {
+			int capacity = Integer.highestOneBit(Math.max(1, numRegions) * 4 - 1) << 1;
+			entries = new AtomicReferenceArray<Entry>(capacity);
+			mask = capacity - 1;
+		}
+
+		private int home(long region) {
+			return (int) ((region * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+		}
+
+		/**
+		 * @return the slot of the region, -1 if it has none
+		 */
+		public int find(long region) {
+			for (int i = home(region), probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+				Entry entry = entries.get(i);
+				if (entry == null) {
+					return -1;
+				}
+				if (entry.region == region) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Add the entry of a region that has no slot yet.
+		 *
+		 * @return false if the table is full and should be started over
+		 */
+		public boolean add(Entry entry) {
+			if (2 * size.get() >= entries.length()) {
+				return false;
+			}
+			for (int i = home(entry.region), probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+				Entry current = entries.get(i);
+				if (current == null && entries.compareAndSet(i, null, entry)) {
+					size.incrementAndGet();
+					return true;
+				}
+				if (current != null && current.region == entry.region) {
+					// added meanwhile by another thread
+					entries.set(i, entry);
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static class Entry {
+		private final long region;
+		private final long epoch;
+		private final CachedReply<LinkedList<String>> reply;
+
+		public Entry(long region, long epoch, CachedReply<LinkedList<String>> reply) {
+			this.region = region;
+			this.epoch = epoch;
+			this.reply = reply;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package edu.umn.cs.Nebula.instance;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Estimated network cost of reaching a node, to rank neighbors by how fast they can be reached
+ * rather than by distance alone. The cost of a candidate is the round trip over the distance to
+ * it, plus its access latency and the time to send it a reference payload of 1 MB over its
+ * bandwidth, in milliseconds. Latencies are in milliseconds and bandwidths in Mbit/s, as the
+ * nodes report them.
+ *
+ * The latency and bandwidth of every node are moving averages updated with every sample it
+ * reports, so ranking only reads them. A node without samples is taken at the average of all
+ * the samples, so that among such nodes the ranking is by distance.
+ * Safe for concurrent use; the samples of a node must be added by one thread at a time.
+ *
+ * @author albert
+ */
+public class NetworkRanking {
+	private static final double weight = 0.2; // of a new sample in the average of a node
+	private static final double averageWeight = 0.01; // of a new sample in the average of all nodes
+	private static final double kilometersPerMillisecond = 100; // round trip in fiber, 200 km/ms each way
+	private static final double payloadMegabits = 8;
+
+	private final ConcurrentHashMap<String, Estimate> estimates = new ConcurrentHashMap<String, Estimate>();
+	private final Estimate average = new Estimate();
+	// samples in the average of all nodes, which is a plain mean until it has enough of them
+	private long numLatencies;
+	private long numBandwidths;
+
+	/**
+	 * Latency and bandwidth of a node, or of all nodes, 0 until measured.
+	 */
+	private static class Estimate {
+		private volatile double latency;
+		private volatile double bandwidth;
+	}
+
+	private Estimate get(String nodeId) {
+		Estimate estimate = estimates.get(nodeId);
+		if (estimate == null) {
+			Estimate created = new Estimate();
+			estimate = estimates.putIfAbsent(nodeId, created);
+			if (estimate == null) {
+				estimate = created;
+			}
+		}
+		return estimate;
+	}
+
+	private static double update(double average, double sample, double weight) {
+		return average <= 0 ? sample : average + weight * (sample - average);
+	}
+
+	/**
+	 * @param latency	a round trip measured by the node, in milliseconds
+	 */
+	public void addLatency(String nodeId, double latency) {
+		if (latency <= 0) {
+			return;
+		}
+		Estimate estimate = get(nodeId);
+		estimate.latency = update(estimate.latency, latency, weight);
+		synchronized (average) {
+			numLatencies++;
+			average.latency = update(average.latency, latency, Math.max(averageWeight, 1.0 / numLatencies));
+		}
+	}
+
+	/**
+	 * @param bandwidth	a bandwidth measured by the node, in Mbit/s
+	 */
+	public void addBandwidth(String nodeId, double bandwidth) {
+		if (bandwidth <= 0) {
+			return;
+		}
+		Estimate estimate = get(nodeId);
+		estimate.bandwidth = update(estimate.bandwidth, bandwidth, weight);
+		synchronized (average) {
+			numBandwidths++;
+			average.bandwidth = update(average.bandwidth, bandwidth, Math.max(averageWeight, 1.0 / numBandwidths));
+		}
+	}
+
+	public void remove(String nodeId) {
+		estimates.remove(nodeId);
+	}
+
+	/**
+	 * @param distance	from the node asking to the candidate, in kilometers
+	 * @return the estimated time to reach the candidate and send it the reference payload, in milliseconds
+	 */
+	public double getCost(String nodeId, double distance) {
+		Estimate estimate = estimates.get(nodeId);
+		double latency = estimate != null && estimate.latency > 0 ? estimate.latency : average.latency;
+		double bandwidth = estimate != null && estimate.bandwidth > 0 ? estimate.bandwidth : average.bandwidth;
+		double cost = distance / kilometersPerMillisecond + latency;
+		if (bandwidth > 0) {
+			cost += payloadMegabits / bandwidth * 1000;
+		}
+		return cost;
+	}
+}
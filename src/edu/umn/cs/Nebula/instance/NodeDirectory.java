@@ -0,0 +1,101 @@
+package edu.umn.cs.Nebula.instance;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Set;
+
+import edu.umn.cs.Nebula.node.NodeInfo;
+import edu.umn.cs.Nebula.schedule.Lease;
+import edu.umn.cs.Nebula.util.ChangeTracker;
+
+/**
+ * The online nodes as seen by the masters (ResourceManager, DSSMaster): either the registry
+ * of a single node manager, or the union of the registries of sharded node managers.
+ * Implementations are safe for concurrent use and return copies of the nodes.
+ *
+ * @author albert
+ */
+public interface NodeDirectory {
+
+	boolean contains(String nodeId);
+
+	int size();
+
+	/**
+	 * @return a live view of the ids of the online nodes
+	 */
+	Set<String> getNodeIds();
+
+	/**
+	 * @return a copy of the node, or null if it is not online
+	 */
+	NodeInfo getNode(String nodeId);
+
+	/**
+	 * @return copies of every online node
+	 */
+	HashMap<String, NodeInfo> getNodes();
+
+	/**
+	 * @return copies of the nodes that are online
+	 */
+	HashMap<String, NodeInfo> getNodes(Collection<String> nodeIds);
+
+	/**
+	 * @return the joins, leaves, resource and lease changes of the nodes
+	 */
+	ChangeTracker getChanges();
+
+	long getVersion();
+
+	/**
+	 * @return the highest version handed out by the directory, including the versions of its
+	 *         location index if it has one
+	 */
+	long getLastVersion();
+
+	/**
+	 * Hand out versions after the given one only, so that a version handed out before a restart
+	 * is never taken for a later one. Called before the nodes are restored.
+	 */
+	void startAfter(long version);
+
+	/**
+	 * @return the lease on the node, or null if it is available
+	 */
+	Lease getLease(String nodeId);
+
+	/**
+	 * Atomically lease an online node, unless another scheduler holds it.
+	 *
+	 * @return whether the node is leased by the scheduler of the lease
+	 */
+	boolean lease(String nodeId, Lease lease);
+
+	/**
+	 * Free a node, only if it is leased by the scheduler.
+	 *
+	 * @return whether the node was freed
+	 */
+	boolean release(String nodeId, String scheduler);
+
+	/**
+	 * Free the nodes whose lease is over.
+	 *
+	 * @return the expired leases by node
+	 */
+	HashMap<String, Lease> expireLeases(long now);
+
+	/**
+	 * @return the time the next lease expires, or the given default if there is no lease
+	 */
+	long getNextLeaseExpiry(long defaultTime);
+
+	/**
+	 * Put back a node and its lease saved before a restart. Called before serving requests.
+	 *
+	 * @param node	the saved node, or null if only the lease was saved
+	 * @param lease	the saved lease, or null if the node was available
+	 */
+	void restore(String nodeId, NodeInfo node, Lease lease);
+}
@@ -1,29 +1,56 @@
 package edu.umn.cs.Nebula.instance;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.HashSet;
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.EnumMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
-import com.google.gson.Gson;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
+import edu.umn.cs.Nebula.net.RequestDispatcher;
+import edu.umn.cs.Nebula.net.RequestServer;
 import edu.umn.cs.Nebula.node.NodeInfo;
+import edu.umn.cs.Nebula.request.NodeReply;
+import edu.umn.cs.Nebula.request.NodeReplyType;
 import edu.umn.cs.Nebula.request.NodeRequest;
+import edu.umn.cs.Nebula.request.NodeRequestType;
+import edu.umn.cs.Nebula.request.RegionCapacity;
 import edu.umn.cs.Nebula.node.NodeType;
 import edu.umn.cs.Nebula.util.DatabaseConnector;
 import edu.umn.cs.Nebula.util.Grid;
+import edu.umn.cs.Nebula.util.HashRing;
+import edu.umn.cs.Nebula.util.LatencyHistogram;
+import edu.umn.cs.Nebula.util.Metrics;
+import edu.umn.cs.Nebula.util.PhiAccrualDetector;
+import edu.umn.cs.Nebula.util.QuadTree;
+import edu.umn.cs.Nebula.util.SpatialIndex;
 
-
+/**
+ * Keeps track of the online nodes of one type: their heartbeats, locations and neighbors.
+ * 
+ * A node manager can run as one shard of many. The nodes are then assigned to the shards by
+ * consistent hashing of their id; a shard redirects the delta heartbeats of the nodes it does
+ * not own to their owner, and follows the other shards to keep every node in its location
+ * index, so that the neighbor lists span all the shards. The shards learn the list of shards
+ * from the master that routes them (see {@link ShardedNodeDirectory}).
+ * 
+ * The location index is a fixed grid or a quadtree, selected with the {@code nebula.index}
+ * system property ("grid", the default, or "quadtree") or given to the constructor.
+ * 
+ * @author albert
+ */
 public class NodeManager {
-	private final Gson gson = new Gson();
+	public static final String INDEX_PROPERTY = "nebula.index";
+
 	private final int updateInterval = 3000; // in milliseconds
+	private final long minHeartbeatInterval = 3000; // in milliseconds
+	private final long maxHeartbeatInterval = 60000; // in milliseconds
+	private final int maxPendingWrites = 100000;
+	private final long writeInterval = 200; // in milliseconds
+	private final long peerPollInterval = 1000; // in milliseconds
+	private final int defaultRanked = 10; // nodes returned by GET_RANKED
 
 	private NodeType nodeType;
 	private int maxInactive;
@@ -31,15 +58,27 @@ public class NodeManager {
 	private int port;
 	private Thread nodeMonitor;
 	private Thread nodeServerThread;
+	private volatile RequestServer nodeServer;
+	private final HeartbeatPolicy heartbeats;
 
 	private DatabaseConnector dbConn;
 	private boolean useDatabase = false;
+	private NodeStateWriter dbWriter;
 
-	private LinkedHashMap<String, NodeInfo> nodes;
-	private LinkedHashMap<String, Integer> availableResources;
 	// private Grid index = new Grid(12, 25, 49, -125, -65);
-	private Grid index = new Grid(12, -90, 90, -180, -180);
-	public final Object nodesLock = new Object();
+	private NodeRegistry registry;
+
+	// sharding: host:port of this shard, the shards and the followers of the other shards
+	private String shardAddress;
+	private volatile HashRing shards;
+	private final ConcurrentHashMap<String, ShardFollower> peers = new ConcurrentHashMap<String, ShardFollower>();
+	private final Object shardsLock = new Object();
+
+	// time spent per request type and in the stages of a heartbeat, read with GET_METRICS
+	private final Metrics metrics = new Metrics();
+	private final EnumMap<NodeRequestType, LatencyHistogram> requestTimes = new EnumMap<NodeRequestType, LatencyHistogram>(NodeRequestType.class);
+	private final LatencyHistogram applyTimes = metrics.histogram("heartbeat.apply");
+	private final LatencyHistogram neighborTimes = metrics.histogram("heartbeat.neighbors");
 	
 	private static final boolean DEBUG = true;
 
@@ -48,13 +87,101 @@ public class NodeManager {
 	 * ======================================================================================================== */
 	
 	public NodeManager(int port, int maxInactive, int poolSize, NodeType nodeType) {
+		this(port, maxInactive, poolSize, nodeType, createIndex());
+	}
+
+	/**
+	 * @param index	location index of the nodes, covering the whole earth
+	 */
+	public NodeManager(int port, int maxInactive, int poolSize, NodeType nodeType, SpatialIndex index) {
 		this.port = port;
 		this.maxInactive = maxInactive;
 		this.poolSize = poolSize;
 		this.nodeType = nodeType;
 
-		nodes = new LinkedHashMap<String, NodeInfo>();
-		availableResources = new LinkedHashMap<String, Integer>();
+		registry = new NodeRegistry(maxInactive, minHeartbeatInterval, PhiAccrualDetector.fromProperties(), index);
+		heartbeats = new HeartbeatPolicy(minHeartbeatInterval, maxHeartbeatInterval);
+
+		for (NodeRequestType type : NodeRequestType.values()) {
+			requestTimes.put(type, metrics.histogram("request." + type));
+		}
+		metrics.register("lock.stripe", registry.getStripeWaits());
+		metrics.register("lock.index", registry.getIndexWaits());
+		metrics.gauge("nodes", new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return registry.size();
+			}
+		});
+		metrics.gauge("index.regions", new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return registry.getIndexRegions();
+			}
+		});
+		metrics.gauge("neighbors.cache_hits", new Callable<Long>() {
+			@Override
+			public Long call() {
+				return registry.getNeighborCache().getHits();
+			}
+		});
+		metrics.gauge("neighbors.cache_misses", new Callable<Long>() {
+			@Override
+			public Long call() {
+				return registry.getNeighborCache().getMisses();
+			}
+		});
+		metrics.gauge("nodes.suspect", new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return registry.getNumSuspects();
+			}
+		});
+		metrics.gauge("heartbeat.interval_ms", new Callable<Long>() {
+			@Override
+			public Long call() {
+				return heartbeats.getInterval();
+			}
+		});
+	}
+
+	/**
+	 * Create the location index selected by the {@code nebula.index} system property.
+	 */
+	public static SpatialIndex createIndex() {
+		if ("quadtree".equalsIgnoreCase(System.getProperty(INDEX_PROPERTY))) {
+			return new QuadTree(-90, 90, -180, 180);
+		}
+		return new Grid(12, -90, 90, -180, 180);
+	}
+
+	/**
+	 * Run a node manager shard.
+	 * 
+	 * Usage: NodeManager host:port maxInactive poolSize COMPUTE|STORAGE [dbUsername dbPassword dbServerName dbName dbPort]
+	 * 
+	 * host:port is the address of the shard as listed to the master, the shard listens on its port.
+	 */
+	public static void main(String[] args) {
+		if (args.length != 4 && args.length != 9) {
+			System.out.println("Usage: NodeManager host:port maxInactive poolSize COMPUTE|STORAGE"
+					+ " [dbUsername dbPassword dbServerName dbName dbPort]");
+			return;
+		}
+		String address = args[0];
+		InetSocketAddress parsed = ShardedNodeDirectory.parseShard(address);
+		if (parsed == null) {
+			System.out.println("Invalid shard address " + address + ", expected host:port");
+			return;
+		}
+		int port = parsed.getPort();
+		NodeManager nodeManager = new NodeManager(port, Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+				NodeType.valueOf(args[3]));
+		nodeManager.setShardAddress(address);
+		if (args.length == 9) {
+			nodeManager.connectDB(args[4], args[5], args[6], args[7], Integer.parseInt(args[8]));
+		}
+		nodeManager.run();
 	}
 
 	/** 
@@ -62,34 +189,122 @@ public class NodeManager {
 	 * ======================================================================================================== */
 	
 	public void run() {
+		// serve the nodes saved before a restart until they send a heartbeat again
+		DirectorySnapshot.startFromProperties(registry, "nm-" + port);
+
 		if (DEBUG) System.out.println("[NM] Start nodes monitor");
 		nodeMonitor = new Thread(new NodeMonitorThread());
 		nodeMonitor.start();
 
 		if (DEBUG) System.out.println("[NM] Start listening for nodes");
-		nodeServerThread = new Thread(new NodeServerThread());
+		NodeRequestDispatcher dispatcher = new NodeRequestDispatcher();
+		dispatcher.setMetrics(metrics);
+		nodeServer = RequestServer.create("NM", port, poolSize, dispatcher);
+		metrics.register("server.queue", nodeServer.getLoad().getQueueTimes());
+		metrics.gauge("server.shed", new Callable<Long>() {
+			@Override
+			public Long call() {
+				return nodeServer.getAdmission().getShed();
+			}
+		});
+		metrics.gauge("server.queue_depth", new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return nodeServer.getLoad().getQueueDepth();
+			}
+		});
+		nodeServerThread = new Thread(nodeServer);
 		nodeServerThread.start();
 	}
 
-	public LinkedHashMap<String, NodeInfo> getNodes() {
-		return nodes;
-	}
-	
-	public LinkedHashMap<String, Integer> getAvailableResources() {
-		return availableResources;
+	/**
+	 * @return the online nodes, safe to use from any thread
+	 */
+	public NodeRegistry getRegistry() {
+		return registry;
 	}
-	
-	public int getAvailableResources(String nodeId) {
-		return availableResources.get(nodeId);
+
+	/**
+	 * Run as a shard. The shard owns every node until it learns the other shards.
+	 * 
+	 * @param address	host:port of this shard as listed to the master
+	 */
+	public void setShardAddress(String address) {
+		shardAddress = address;
 	}
 
-	public void setAvailableResources(String nodeId, int newValue) {		
-		synchronized (nodesLock) {
-			if (!availableResources.containsKey(nodeId))
+	/**
+	 * Update the shards. The nodes this shard no longer owns are redirected at their next
+	 * heartbeat, the other shards are followed for the neighbor lists.
+	 * 
+	 * @param addresses	host:port of every shard, the ones that are not are left out
+	 */
+	public void setShards(Collection<String> addresses) {
+		if (shardAddress == null) {
+			return;
+		}
+		TreeMap<String, InetSocketAddress> parsed = ShardedNodeDirectory.parseShards(addresses);
+		addresses = parsed.keySet();
+		synchronized (shardsLock) {
+			HashRing current = shards;
+			if (current != null && current.getMembers().size() == addresses.size()
+					&& current.getMembers().containsAll(addresses)) {
 				return;
-			availableResources.put(nodeId, newValue);
+			}
+			shards = new HashRing(addresses);
+			if (DEBUG) System.out.println("[NM] Shards: " + shards.getMembers());
+
+			for (String peer : new LinkedList<String>(peers.keySet())) {
+				if (!shards.contains(peer)) {
+					peers.remove(peer).stop();
+					registry.removePeers(peer);
+				}
+			}
+			for (String peer : shards.getMembers()) {
+				if (peer.equals(shardAddress) || peers.containsKey(peer)) {
+					continue;
+				}
+				ShardFollower follower = new ShardFollower(peer, parsed.get(peer), peerPollInterval, 2L * maxInactive, new ShardFollower.Listener() {
+					@Override
+					public void changed(String shard, Collection<NodeInfo> nodes) {
+						for (NodeInfo node : nodes) {
+							registry.putPeer(shard, node);
+						}
+					}
+
+					@Override
+					public void removed(String shard, Collection<String> nodeIds) {
+						for (String nodeId : nodeIds) {
+							registry.removePeer(shard, nodeId);
+						}
+					}
+				});
+				peers.put(peer, follower);
+				Thread thread = new Thread(follower, "NM-peer-" + peer);
+				thread.setDaemon(true);
+				thread.start();
+			}
 		}
 	}
+
+	/**
+	 * @return host:port of the shard owning the node, or null if this node manager owns it
+	 */
+	private String getOwner(String nodeId) {
+		HashRing current = shards;
+		if (current == null || current.size() == 0) {
+			return null;
+		}
+		String owner = current.get(nodeId);
+		return owner.equals(shardAddress) ? null : owner;
+	}
+
+	/**
+	 * @return the writer of the node database, or null if the database is not used
+	 */
+	public NodeStateWriter getDatabaseWriter() {
+		return dbWriter;
+	}
 	
 	/**
 	 * Connect to the node database. This is used if the handler needs to store the node information to the database.
@@ -105,6 +320,10 @@ public class NodeManager {
 		useDatabase = dbConn.connect();
 		if (useDatabase) {
 			System.out.println("[NM] Saving node information to " + dbName + " database.");
+			dbWriter = new NodeStateWriter(dbConn, maxPendingWrites, writeInterval);
+			Thread dbWriterThread = new Thread(dbWriter, "NM-db-writer");
+			dbWriterThread.setDaemon(true);
+			dbWriterThread.start();
 		} else {
 			System.out.println("[NM] Failed connecting to " + dbName + " database.");
 		}
@@ -117,45 +336,28 @@ public class NodeManager {
 	/**
 	 * This thread periodically monitors the health of every nodes.
 	 * Any node that has been inactive (no heartbeat received) for >= @maxInactive 
-	 * will be removed for the list.
+	 * is checked by the failure detector: suspected if it is later than usual, removed
+	 * from the list once it has most likely failed. Inactive nodes are found with the
+	 * liveness index, without going through the active ones.
 	 * 
 	 * @author albert
 	 */
 	private class NodeMonitorThread implements Runnable {
-		private long now;
-		private NodeInfo nodeInfo = null;
-		private String sqlStatement;
-		private HashSet<String> removedNodes = new HashSet<String>();
+		private LinkedList<NodeInfo> removedNodes;
 
 		@Override
 		public void run() {
 			while (true) {
-				now = System.currentTimeMillis();
-				synchronized (nodesLock) {
-					// find inactive nodes
-					for (String nodeId: nodes.keySet()) {
-						nodeInfo = nodes.get(nodeId);
-						if (now - nodeInfo.getLastOnline() > maxInactive) {
-							// remove nodes that have been inactive for more than maxInactive
-							removedNodes.add(nodeId);
-						}
-					}
-					for (String nodeId: removedNodes) {
-						nodeInfo = nodes.remove(nodeId);
-						availableResources.remove(nodeId);
-						index.removeItem(nodeId, nodeInfo.getLatitude(), nodeInfo.getLongitude());
-						if (useDatabase) {
-							sqlStatement = "UPDATE node SET online = " + nodeInfo.getLastOnline()
-							+ ", latitude = " + nodeInfo.getLatitude()
-							+ ", longitude = " + nodeInfo.getLongitude()
-							+ " WHERE id = '" + nodeInfo.getId() + "'"
-							+ " AND type = '" + nodeInfo.getNodeType() + "';";
-							dbConn.updateQuery(sqlStatement);
-						}
+				adaptHeartbeats();
+				// remove nodes that have been inactive for more than maxInactive, only those are visited
+				removedNodes = registry.removeExpired(System.currentTimeMillis());
+				if (useDatabase) {
+					for (NodeInfo removedNode: removedNodes) {
+						dbWriter.left(removedNode, removedNode.getLastOnline());
 					}
 				}
-				removedNodes.clear();
-				if (DEBUG) System.out.println("[NM] Number of active nodes: " + nodes.size());
+				if (DEBUG) System.out.println("[NM] Number of active nodes: " + registry.size() + ", suspect: " + registry.getNumSuspects());
+				if (DEBUG && useDatabase) System.out.println("[NM] Database writer: " + dbWriter);
 				try {
 					Thread.sleep(updateInterval);
 				} catch (InterruptedException e) {
@@ -164,34 +366,19 @@ public class NodeManager {
 			}
 
 		}
-	}
 
-	/**
-	 * This thread waits and accepts connections from nodes at @port 
-	 * and launch a handler upon receiving requests. 
-	 * 
-	 * @author albert
-	 */
-	private class NodeServerThread implements Runnable {
-		@Override
-		public void run() {
-			// listening for client requests
-			ExecutorService requestPool = Executors.newFixedThreadPool(poolSize);
-			ServerSocket serverSock = null;
-			try {
-				serverSock = new ServerSocket(port);
-				while (true) {
-					requestPool.submit(new NodeRequestHandler(serverSock.accept()));
-				}
-			} catch (IOException e) {
-				System.err.println("[NM] Failed to establish listening socket: " + e);
-			} finally {
-				requestPool.shutdown();
-				if (serverSock != null) {
-					try {
-						serverSock.close();
-					} catch (IOException e) {}
-				}
+		/**
+		 * Recommend a heartbeat interval for the current load, and judge the nodes against it.
+		 */
+		private void adaptHeartbeats() {
+			if (nodeServer == null) {
+				return;
+			}
+			long previousInterval = heartbeats.getInterval();
+			long interval = heartbeats.update(nodeServer.getLoad(), registry.size());
+			if (interval != previousInterval) {
+				registry.setExpectedInterval(interval);
+				if (DEBUG) System.out.println("[NM] Heartbeat interval " + interval + " ms (" + nodeServer.getLoad() + ")");
 			}
 		}
 	}
@@ -201,159 +388,237 @@ public class NodeManager {
 	 * ======================================================================================================== */
 	
 	/**
-	 * Worker thread that handles node requests and heartbeats.
+	 * Dispatches node requests and heartbeats received by the node server.
 	 * 
 	 * @author albert
 	 */
-	private class NodeRequestHandler implements Runnable {
-		private final Socket clientSock;
-
-		public NodeRequestHandler(Socket sock) {
-			clientSock = sock;
+	private class NodeRequestDispatcher extends RequestDispatcher<NodeRequest> {
+		public NodeRequestDispatcher() {
+			super(NodeRequest.class);
 		}
 
+		/**
+		 * Heartbeats go before the bulk reads, a late heartbeat gets its node suspected.
+		 */
 		@Override
-		public void run() {
-			BufferedReader in = null;
-			PrintWriter out = null;
-			NodeRequest nodeRequest;
-
-			try {
-				in = new BufferedReader(new InputStreamReader (clientSock.getInputStream()));
-				out = new PrintWriter(clientSock.getOutputStream(), true);
-				// read the input message and parse it as a node request
-				nodeRequest = gson.fromJson(in.readLine(), NodeRequest.class);
-			} catch (IOException e) {
-				System.out.println("[NM] Failed parsing node request: " + e.getMessage());
-				if (out != null) {
-					out.println(gson.toJson(false));
-					out.flush();
-					out.close();
-				}
-				return;
-			}
-
-			boolean success = false;
-			LinkedList<String> neighboringNodes;
-			if (nodeRequest != null) {
-				switch (nodeRequest.getType()) {
-				case ONLINE:
-				case OFFLINE:	// handle online/offline message from a node
-					success = handleHeartbeat(nodeRequest);
-					if (success) {
-						neighboringNodes = index.getNeighborItems(index.getGridLocation(nodeRequest.getNode().getLatitude(), nodeRequest.getNode().getLongitude()));
-						out.println(gson.toJson(neighboringNodes));
-					} else {
-						out.println(gson.toJson(null));
-					}
-					break;
-				case GET:
-					LinkedHashMap<String, NodeInfo> result = new LinkedHashMap<String, NodeInfo>();
-					result.putAll(nodes);
-					out.println(gson.toJson(result));
-					break;
-				case GET_NEIGHBORS:
-					neighboringNodes = index.getNeighborItems(index.getGridLocation(nodeRequest.getNode().getLatitude(), nodeRequest.getNode().getLongitude()));
-					out.println(gson.toJson(neighboringNodes));
-					break;
-				case GET_NODES:
-					neighboringNodes = new LinkedList<String>();
-					neighboringNodes.addAll(nodes.keySet());
-					out.println(gson.toJson(neighboringNodes));
-					break;
-				default:
-					System.out.println("[NM] Receive an invalid request of type: " + nodeRequest.getType());
-					out.print(gson.toJson(success));
-				}
-			} else {
-				out.println(gson.toJson(success));
+		public int getPriority(NodeRequest request) {
+			if (request == null || request.getType() == null) {
+				return 0;
 			}
-			out.flush();
-
-			try {
-				if (in != null) in.close();
-				if (out != null) out.close();
-				if (clientSock != null) clientSock.close();
-			} catch (IOException e) {
-				System.err.println(e);
+			switch (request.getType()) {
+			case ONLINE:
+			case OFFLINE:
+			case HEARTBEAT:
+			case GET_METRICS:	// to see what is going on while overloaded
+				return 1;
+			default:
+				return 0;
 			}
 		}
 
 		/**
-		 * Handle an online/offline message from a node.
-		 * 
-		 * @param request
-		 * @return is success?
+		 * Delta heartbeats are told when to retry, within one heartbeat interval so that the
+		 * node is not suspected meanwhile. The other requests are dropped, their clients see a
+		 * failed request as before.
 		 */
-		private boolean handleHeartbeat(NodeRequest request) {
-			NodeInfo node = null;
-			boolean success = false;
-			boolean isNewNode = false;
-			String sqlStatement;
-
-			if (request != null)
-				node = request.getNode();
-			if (node == null || node.getNodeType() == null || !node.getNodeType().equals(nodeType)) {
-				return false;
+		@Override
+		public Object overloaded(NodeRequest request, long retryAfter) {
+			if (request != null && request.getType() == NodeRequestType.HEARTBEAT) {
+				NodeReply reply = NodeReply.retry(Math.min(retryAfter, heartbeats.getInterval()));
+				reply.setHeartbeatInterval(heartbeats.getInterval());
+				return reply;
 			}
+			return null;
+		}
 
-			switch (request.getType()) {
-			case ONLINE:
-				// a request indicating that the node is online/active
-				synchronized (nodesLock) {
-					if (nodes.containsKey(node.getId())) {
-						// we have seen this node before, so simply update its last online
-						nodes.get(node.getId()).updateLastOnline();
-						if (node.getBandwidth() > 0) {
-							nodes.get(node.getId()).addBandwidth(node.getBandwidth());
-						}
-					} else {
-						// new node is online
-						isNewNode = true;
-						node.updateLastOnline();
-						nodes.put(node.getId(), node);
-						availableResources.put(node.getId(), node.getResources().getNumCPUs());
-						index.insertItem(node.getId(), node.getLatitude(), node.getLongitude());
-					}
-				}
-				success = true;
-				
-				// save the information about a new node to the DB
-				if (useDatabase && isNewNode) {
-					sqlStatement = "INSERT INTO node (id, ip, latitude, longitude, type, online)"
-							+ " VALUES ('" + node.getId() + "', '" + node.getIp() + "', '" + node.getLatitude()
-							+ "', '" + node.getLongitude() + "', '" + node.getNodeType() + "', " + System.currentTimeMillis() + ")"
-							+ " ON DUPLICATE KEY UPDATE online="  + System.currentTimeMillis() + ";";
-					dbConn.updateQuery(sqlStatement);
-				}
-				
-				break;
-			case OFFLINE:
-				// a request indicating that the node is going to be offline/inactive
-				NodeInfo leavingNode = null;
-				
-				synchronized (nodesLock) {
-					leavingNode = nodes.remove(node.getId());
-					availableResources.remove(node.getId());
-					index.removeItem(node.getId(), node.getLatitude(), node.getLongitude());
-				}
-				success = true;
-				
-				// save the information about a leaving node to the DB
-				if (useDatabase && leavingNode != null) {
-					sqlStatement = "UPDATE node SET online = " + System.currentTimeMillis()
-					+ ", latitude = " + node.getLatitude()
-					+ ", longitude = " + node.getLongitude()
-					+ " WHERE id = '" + leavingNode.getId() + "'"
-					+ " AND type = '" + node.getNodeType() + "';";
-					dbConn.updateQuery(sqlStatement);
+		@Override
+		public Object dispatch(NodeRequest request) {
+			if (request == null || request.getType() == null) {
+				return handleRequest(request);
+			}
+			long start = System.nanoTime();
+			Object reply = handleRequest(request);
+			requestTimes.get(request.getType()).recordSince(start);
+			return reply;
+		}
+	}
+
+	/**
+	 * Handle a node request.
+	 * 
+	 * @param nodeRequest
+	 * @return the reply to be serialized back to the node
+	 */
+	private Object handleRequest(NodeRequest nodeRequest) {
+		boolean success = false;
+		LinkedList<String> neighboringNodes;
+		NodeReply reply;
+
+		if (nodeRequest == null || nodeRequest.getType() == null) {
+			return success;
+		}
+		switch (nodeRequest.getType()) {
+		case ONLINE:
+		case OFFLINE:	// handle online/offline message from a node
+			success = handleHeartbeat(nodeRequest);
+			if (success) {
+				return getNeighbors(nodeRequest.getNode());
+			}
+			return null;
+		case HEARTBEAT:
+			reply = handleDeltaHeartbeat(nodeRequest);
+			if (reply != null) {
+				reply.setHeartbeatInterval(heartbeats.getInterval());
+			}
+			return reply;
+		case GET:
+			LinkedHashMap<String, NodeInfo> result = new LinkedHashMap<String, NodeInfo>();
+			result.putAll(registry.getNodes());
+			return result;
+		case GET_NEIGHBORS:
+			return getNeighbors(nodeRequest.getNode());
+		case GET_NODES:
+			neighboringNodes = new LinkedList<String>();
+			neighboringNodes.addAll(registry.getNodeIds());
+			return neighboringNodes;
+		case GET_CHANGES:
+			// a master or another shard following this node manager
+			if (nodeRequest.getShards() != null) {
+				setShards(nodeRequest.getShards());
+			}
+			return registry.getChangesReply(nodeRequest.getNeighborsVersion());
+		case GET_METRICS:
+			return metrics.snapshot();
+		case GET_NEAREST:	// the nodes closest to the location of the node given
+			if (nodeRequest.getNode() == null) {
+				return new LinkedList<String>();
+			}
+			return registry.getNearest(nodeRequest.getNode().getLatitude(), nodeRequest.getNode().getLongitude(),
+					nodeRequest.getCount(), nodeRequest.getRadius());
+		case GET_RANKED:	// the nodes fastest to reach from the location of the node given
+			if (nodeRequest.getNode() == null) {
+				return new LinkedList<String>();
+			}
+			return registry.getRanked(nodeRequest.getNode().getLatitude(), nodeRequest.getNode().getLongitude(),
+					nodeRequest.getCount() > 0 ? nodeRequest.getCount() : defaultRanked, nodeRequest.getNode().getId());
+		case GET_CAPACITY:	// the regions with the most free CPUs, or the region of the node given
+			if (nodeRequest.getNode() != null) {
+				LinkedList<RegionCapacity> region = new LinkedList<RegionCapacity>();
+				RegionCapacity capacity = registry.getRegionCapacity(nodeRequest.getNode().getLatitude(),
+						nodeRequest.getNode().getLongitude());
+				if (capacity != null) {
+					region.add(capacity);
 				}
-				
-				break;
-			default:
-				System.out.println("[NM] Invalid request: " + request.getType());
+				return region;
 			}
+			return registry.findRegions(nodeRequest.getMinFreeCPUs(), nodeRequest.getCount());
+		default:
+			System.out.println("[NM] Receive an invalid request of type: " + nodeRequest.getType());
 			return success;
 		}
 	}
+
+	/**
+	 * Get the nodes located in the neighborhood of the node, as a reply shared by the nodes of
+	 * its region.
+	 * 
+	 * @param node
+	 * @return the neighboring nodes, empty if the node has no valid location
+	 */
+	private Object getNeighbors(NodeInfo node) {
+		if (node == null) {
+			return new LinkedList<String>();
+		}
+		return registry.getNeighbors(node.getLatitude(), node.getLongitude());
+	}
+
+	/**
+	 * Handle a delta heartbeat. The first heartbeat of a node (neighbors version -1) carries its
+	 * complete information and registers it like ONLINE. The following ones only carry the id
+	 * and the fields that changed, and are answered with the changes to the neighbor list since
+	 * the version the node has.
+	 * 
+	 * @param request
+	 * @return the reply, or null if the node is not of the managed type
+	 */
+	private NodeReply handleDeltaHeartbeat(NodeRequest request) {
+		NodeInfo update = request.getNode();
+		float[] location;
+
+		if (update == null || update.getId() == null) {
+			return new NodeReply(NodeReplyType.RESYNC, 0);
+		}
+		String owner = getOwner(update.getId());
+		if (owner != null) {
+			// the node belongs to another shard, it is not leaving so the database is not told
+			if (registry.contains(update.getId())) {
+				registry.offline(update);
+			}
+			return NodeReply.redirect(owner);
+		}
+		if (request.getNeighborsVersion() < 0) {
+			if (!handleHeartbeat(new NodeRequest(update, NodeRequestType.ONLINE))) {
+				return null;
+			}
+			location = new float[] { update.getLatitude(), update.getLongitude() };
+		} else {
+			long start = System.nanoTime();
+			location = registry.heartbeat(update);
+			applyTimes.recordSince(start);
+		}
+		if (location == null || !registry.contains(update.getId())) {
+			// the node expired or we restarted, ask it for its complete information
+			return new NodeReply(NodeReplyType.RESYNC, 0);
+		}
+		long start = System.nanoTime();
+		NodeReply reply = registry.getNeighborsReply(location[0], location[1], request.getNeighborsVersion());
+		neighborTimes.recordSince(start);
+		return reply;
+	}
+
+	/**
+	 * Handle an online/offline message from a node.
+	 * 
+	 * @param request
+	 * @return is success?
+	 */
+	private boolean handleHeartbeat(NodeRequest request) {
+		NodeInfo node = null;
+		boolean success = false;
+		boolean isNewNode = false;
+
+		if (request != null)
+			node = request.getNode();
+		if (node == null || node.getNodeType() == null || !node.getNodeType().equals(nodeType)) {
+			return false;
+		}
+
+		switch (request.getType()) {
+		case ONLINE:
+			// a request indicating that the node is online/active
+			isNewNode = registry.online(node);
+			success = true;
+			
+			// save the information about a new node to the DB, written behind
+			if (useDatabase && isNewNode) {
+				dbWriter.joined(node);
+			}
+			
+			break;
+		case OFFLINE:
+			// a request indicating that the node is going to be offline/inactive
+			NodeInfo leavingNode = registry.offline(node);
+			success = true;
+			
+			// save the information about a leaving node to the DB, written behind
+			if (useDatabase && leavingNode != null) {
+				dbWriter.left(node, System.currentTimeMillis());
+			}
+			
+			break;
+		default:
+			System.out.println("[NM] Invalid request: " + request.getType());
+		}
+		return success;
+	}
 }
@@ -0,0 +1,833 @@
+package edu.umn.cs.Nebula.instance;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+
+import edu.umn.cs.Nebula.net.CachedReply;
+import edu.umn.cs.Nebula.node.NodeInfo;
+import edu.umn.cs.Nebula.node.Resources;
+import edu.umn.cs.Nebula.request.NodeReply;
+import edu.umn.cs.Nebula.request.NodeReplyType;
+import edu.umn.cs.Nebula.request.RegionCapacity;
+import edu.umn.cs.Nebula.request.SchedulerReply;
+import edu.umn.cs.Nebula.schedule.Lease;
+import edu.umn.cs.Nebula.util.ChangeTracker;
+import edu.umn.cs.Nebula.util.ExpiryIndex;
+import edu.umn.cs.Nebula.util.GreatCircle;
+import edu.umn.cs.Nebula.util.Grid;
+import edu.umn.cs.Nebula.util.GridDelta;
+import edu.umn.cs.Nebula.util.LatencyHistogram;
+import edu.umn.cs.Nebula.util.PhiAccrualDetector;
+import edu.umn.cs.Nebula.util.SpatialIndex;
+
+/**
+ * The online nodes of a node manager with their available resources, leases, location index
+ * and changes. Safe for concurrent use without any outside lock:
+ * - the nodes, resources and leases are kept in concurrent maps: the ids, the resources, the
+ *   leases and the neighbor lists are read without waiting;
+ * - the updates of a node are made under the lock of its stripe, so heartbeats of different
+ *   nodes rarely wait for each other;
+ * - a node is changed in place by its heartbeats, so it is copied under the lock of its stripe,
+ *   one node at a time: a reader of nodes waits for at most one update of each node it copies,
+ *   and an update for at most one copy;
+ * - the location index is read without locks; its changes, on joins and leaves, are made
+ *   one at a time under the index lock;
+ * - the capacity totals of the regions are kept by a {@link CapacityIndex}, refreshed after
+ *   every change of the resources or lease of a node.
+ * Locks are always taken in the order stripe, then index.
+ *
+ * Silent nodes are judged by a {@link PhiAccrualDetector} against their own heartbeat history:
+ * a node that misses heartbeats by more than usual is marked as suspect, so that the schedulers
+ * do not place new work on it, and is removed only once it has most likely failed.
+ *
+ * Reads return copies. A copy of a node is consistent, a copy of several nodes is not taken at
+ * a single instant; take {@link #getVersion()} first, the changes after it are listed by
+ * {@link #getChanges()}.
+ *
+ * @author albert
+ */
+public class NodeRegistry implements NodeDirectory {
+	private static final int numStripes = 64;
+	private static final int maxRemovedChanges = 10000;
+	// fewest nodes considered by a ranking
+	private static final int minRankCandidates = 32;
+	// cells per side of the capacity grid, when the location index is not a grid
+	private static final int capacityCells = 12;
+
+	private final ConcurrentHashMap<String, NodeInfo> nodes = new ConcurrentHashMap<String, NodeInfo>();
+	private final ConcurrentHashMap<String, Integer> availableResources = new ConcurrentHashMap<String, Integer>();
+	// location of the nodes of the other shards, only used for the neighbor lists
+	private final ConcurrentHashMap<String, PeerNode> peers = new ConcurrentHashMap<String, PeerNode>();
+
+	// per stripe: the lock of its nodes and their times of last heartbeat
+	private final ReentrantLock[] stripes = new ReentrantLock[numStripes];
+	private final ExpiryIndex[] liveness = new ExpiryIndex[numStripes];
+	private final ConcurrentHashMap<String, PhiAccrualDetector.History> histories = new ConcurrentHashMap<String, PhiAccrualDetector.History>();
+	private final PhiAccrualDetector detector;
+	// nodes marked as suspect, changed with the flag under the stripe of the node
+	private final AtomicInteger numSuspects = new AtomicInteger();
+	private final long minSilence;
+	// interval the nodes are asked to keep
+	private volatile long expectedInterval;
+
+	private final SpatialIndex index;
+	private final NeighborCache neighborCache;
+	private final NetworkRanking ranking = new NetworkRanking();
+	private final CapacityIndex capacity;
+	private final ReentrantLock indexLock = new ReentrantLock();
+
+	// time waited for the locks when they were taken
+	private final LatencyHistogram stripeWaits = new LatencyHistogram();
+	private final LatencyHistogram indexWaits = new LatencyHistogram();
+
+	// joins, leaves, resource and lease changes of the nodes, for the schedulers
+	private final ChangeTracker changes = new ChangeTracker(maxRemovedChanges);
+	private final LeaseTable leases = new LeaseTable(changes);
+
+	/**
+	 * @param minSilence		time a node without heartbeat is kept in any case, in milliseconds
+	 * @param expectedInterval	heartbeat interval of the nodes, in milliseconds
+	 * @param detector			decides when a silent node is suspect and when it has failed
+	 * @param index				location index of the nodes
+	 */
+	public NodeRegistry(long minSilence, long expectedInterval, PhiAccrualDetector detector, SpatialIndex index) {
+		this.index = index;
+		this.neighborCache = new NeighborCache(index);
+		this.capacity = new CapacityIndex(index instanceof Grid ? (Grid) index : new Grid(capacityCells, -90, 90, -180, 180),
+				new CapacityIndex.NodeState() {
+					@Override
+					public int getNumCPUs(String nodeId) {
+						NodeInfo node = nodes.get(nodeId);
+						if (node == null) {
+							return -1;
+						}
+						return node.getResources() == null ? 0 : node.getResources().getNumCPUs();
+					}
+
+					@Override
+					public int getFreeCPUs(String nodeId) {
+						Integer value = availableResources.get(nodeId);
+						return value == null ? 0 : value;
+					}
+
+					@Override
+					public boolean isLeased(String nodeId) {
+						return leases.get(nodeId) != null;
+					}
+				});
+		this.detector = detector;
+		this.minSilence = minSilence;
+		this.expectedInterval = expectedInterval;
+		for (int i = 0; i < numStripes; i++) {
+			stripes[i] = new ReentrantLock();
+			liveness[i] = new ExpiryIndex(Math.max(minSilence, expectedInterval));
+		}
+	}
+
+	/**
+	 * A node of another shard: which shard, and where it is.
+	 */
+	private static class PeerNode {
+		private final String shard;
+		private final float latitude;
+		private final float longitude;
+
+		public PeerNode(String shard, float latitude, float longitude) {
+			this.shard = shard;
+			this.latitude = latitude;
+			this.longitude = longitude;
+		}
+	}
+
+	/**
+	 * A candidate of a ranking, the most expensive first.
+	 */
+	private static class Ranked implements Comparable<Ranked> {
+		private final String nodeId;
+		private final double cost;
+
+		public Ranked(String nodeId, double cost) {
+			this.nodeId = nodeId;
+			this.cost = cost;
+		}
+
+		@Override
+		public int compareTo(Ranked other) {
+			return Double.compare(other.cost, cost);
+		}
+	}
+
+	private int stripe(String nodeId) {
+		return (nodeId.hashCode() & Integer.MAX_VALUE) % numStripes;
+	}
+
+	/**
+	 * Take a lock, recording how long it was waited for if it was taken.
+	 */
+	private static void lock(Lock lock, LatencyHistogram waits) {
+		if (lock.tryLock()) {
+			return;
+		}
+		long start = System.nanoTime();
+		lock.lock();
+		waits.recordSince(start);
+	}
+
+	/**
+	 * @return the time waited for the stripe locks, when they were taken
+	 */
+	public LatencyHistogram getStripeWaits() {
+		return stripeWaits;
+	}
+
+	/**
+	 * @return the time the changes to the location index waited for each other, when they did
+	 */
+	public LatencyHistogram getIndexWaits() {
+		return indexWaits;
+	}
+
+	/**
+	 * UPDATES
+	 * ======================================================================================================== */
+
+	/**
+	 * Register a node that is online, or refresh its last online if it is known.
+	 *
+	 * @param node
+	 * @return true if the node is new
+	 */
+	public boolean online(NodeInfo node) {
+		int i = stripe(node.getId());
+		lock(stripes[i], stripeWaits);
+		try {
+			NodeInfo known = nodes.get(node.getId());
+			if (known != null) {
+				// we have seen this node before, so simply update its last online
+				heard(known, i);
+				if (node.getBandwidth() > 0) {
+					known.addBandwidth(node.getBandwidth());
+					ranking.addBandwidth(known.getId(), node.getBandwidth());
+				}
+				return false;
+			}
+			node.updateLastOnline();
+			node.setSuspect(false);
+			nodes.put(node.getId(), node);
+			liveness[i].touch(node.getId(), node.getLastOnline());
+			histories.put(node.getId(), new PhiAccrualDetector.History(node.getLastOnline(), expectedInterval));
+			availableResources.put(node.getId(), node.getResources() == null ? 0 : node.getResources().getNumCPUs());
+			if (node.getBandwidthSamples() != null) {
+				for (double sample : node.getBandwidthSamples()) {
+					ranking.addBandwidth(node.getId(), sample);
+				}
+			}
+			if (node.getLatencySamples() != null) {
+				for (double sample : node.getLatencySamples()) {
+					ranking.addLatency(node.getId(), sample);
+				}
+			}
+			lock(indexLock, indexWaits);
+			try {
+				index.insertItem(node.getId(), node.getLatitude(), node.getLongitude());
+			} finally {
+				indexLock.unlock();
+			}
+			capacity.add(node.getId(), node.getLatitude(), node.getLongitude());
+			changes.changed(node.getId());
+			return true;
+		} finally {
+			stripes[i].unlock();
+		}
+	}
+
+	/**
+	 * Remove a node that goes offline.
+	 *
+	 * @param node	the node, its location is used if the node is not known
+	 * @return the removed node, or null if it was not known
+	 */
+	public NodeInfo offline(NodeInfo node) {
+		int i = stripe(node.getId());
+		lock(stripes[i], stripeWaits);
+		try {
+			NodeInfo leaving = nodes.remove(node.getId());
+			liveness[i].remove(node.getId());
+			if (leaving != null && leaving.isSuspect()) {
+				numSuspects.decrementAndGet();
+			}
+			remove(leaving != null ? leaving : node);
+			if (leaving != null) {
+				changes.removed(node.getId());
+			}
+			return leaving;
+		} finally {
+			stripes[i].unlock();
+		}
+	}
+
+	/**
+	 * Remove a node from the resources, the heartbeat histories and the index. Must be called holding the stripe of the node.
+	 */
+	private void remove(NodeInfo node) {
+		availableResources.remove(node.getId());
+		histories.remove(node.getId());
+		ranking.remove(node.getId());
+		capacity.remove(node.getId());
+		lock(indexLock, indexWaits);
+		try {
+			index.removeItem(node.getId(), node.getLatitude(), node.getLongitude());
+			// the node may already have moved to another shard
+			PeerNode peer = peers.get(node.getId());
+			if (peer != null) {
+				index.insertItem(node.getId(), peer.latitude, peer.longitude);
+			}
+		} finally {
+			indexLock.unlock();
+		}
+	}
+
+	/**
+	 * Apply a delta heartbeat: refresh the last online of the node and apply the fields that changed.
+	 *
+	 * @param update	the id of the node and the fields that changed
+	 * @return the location of the node as {latitude, longitude}, or null if the node is not known
+	 */
+	public float[] heartbeat(NodeInfo update) {
+		int i = stripe(update.getId());
+		lock(stripes[i], stripeWaits);
+		try {
+			NodeInfo node = nodes.get(update.getId());
+			if (node == null) {
+				return null;
+			}
+			heard(node, i);
+			if (update.getResources() != null) {
+				boolean changed = isResourceChange(node.getResources(), update.getResources());
+				node.setResources(update.getResources());
+				if (changed) {
+					capacity.refresh(node.getId());
+					changes.changed(node.getId());
+				}
+			}
+			if (update.getBandwidthSamples() != null) {
+				for (double sample : update.getBandwidthSamples()) {
+					node.addBandwidth(sample);
+					ranking.addBandwidth(node.getId(), sample);
+				}
+			}
+			if (update.getLatencySamples() != null) {
+				for (double sample : update.getLatencySamples()) {
+					node.addLatency(sample);
+					ranking.addLatency(node.getId(), sample);
+				}
+			}
+			return new float[] { node.getLatitude(), node.getLongitude() };
+		} finally {
+			stripes[i].unlock();
+		}
+	}
+
+	/**
+	 * Record a heartbeat of a known node, which is no longer suspect. Must be called holding
+	 * the stripe of the node.
+	 */
+	private void heard(NodeInfo node, int stripe) {
+		node.updateLastOnline();
+		liveness[stripe].touch(node.getId(), node.getLastOnline());
+		PhiAccrualDetector.History history = histories.get(node.getId());
+		if (history != null) {
+			history.heartbeat(node.getLastOnline(), expectedInterval);
+		}
+		if (node.isSuspect()) {
+			node.setSuspect(false);
+			numSuspects.decrementAndGet();
+			changes.changed(node.getId());
+		}
+	}
+
+	/**
+	 * Free memory moves with every heartbeat, only a change in CPUs or total memory is worth
+	 * telling the schedulers about.
+	 */
+	private static boolean isResourceChange(Resources before, Resources after) {
+		return before == null || before.getNumCPUs() != after.getNumCPUs()
+				|| before.getTotalAvailableMemory() != after.getTotalAvailableMemory();
+	}
+
+	/**
+	 * Change the heartbeat interval the nodes are asked to keep. The nodes are judged against
+	 * the interval they were asked for at their last heartbeat, and not checked before it is over.
+	 *
+	 * @param interval	in milliseconds
+	 */
+	public void setExpectedInterval(long interval) {
+		expectedInterval = interval;
+		for (int i = 0; i < numStripes; i++) {
+			lock(stripes[i], stripeWaits);
+			try {
+				liveness[i].setMaxInactive(Math.max(minSilence, interval));
+			} finally {
+				stripes[i].unlock();
+			}
+		}
+	}
+
+	/**
+	 * Check the nodes that have been silent for longer than both the minimum silence and the
+	 * expected interval: remove the ones the detector takes as failed, and mark as suspect the
+	 * ones it suspects. Only the silent nodes are visited, one stripe at a time.
+	 *
+	 * @param now	the current time
+	 * @return the removed nodes
+	 */
+	public LinkedList<NodeInfo> removeExpired(long now) {
+		LinkedList<NodeInfo> removed = new LinkedList<NodeInfo>();
+		for (int i = 0; i < numStripes; i++) {
+			lock(stripes[i], stripeWaits);
+			try {
+				for (String nodeId : liveness[i].getExpired(now)) {
+					NodeInfo node = nodes.get(nodeId);
+					PhiAccrualDetector.History history = histories.get(nodeId);
+					if (node == null || history == null) {
+						liveness[i].remove(nodeId);
+						continue;
+					}
+					double phi = detector.phi(history, now);
+					if (phi >= detector.getFailThreshold()) {
+						nodes.remove(nodeId);
+						liveness[i].remove(nodeId);
+						if (node.isSuspect()) {
+							numSuspects.decrementAndGet();
+						}
+						remove(node);
+						changes.removed(nodeId);
+						removed.add(node);
+					} else if (phi >= detector.getSuspectThreshold() && !node.isSuspect()) {
+						node.setSuspect(true);
+						numSuspects.incrementAndGet();
+						changes.changed(nodeId);
+					}
+				}
+			} finally {
+				stripes[i].unlock();
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * @return the number of nodes currently suspected
+	 */
+	public int getNumSuspects() {
+		return numSuspects.get();
+	}
+
+	/**
+	 * READS
+	 * ======================================================================================================== */
+
+	@Override
+	public boolean contains(String nodeId) {
+		return nodes.containsKey(nodeId);
+	}
+
+	@Override
+	public int size() {
+		return nodes.size();
+	}
+
+	/**
+	 * @return the number of regions of the location index
+	 */
+	public int getIndexRegions() {
+		return index.getNumRegions();
+	}
+
+	@Override
+	public Set<String> getNodeIds() {
+		return Collections.unmodifiableSet(nodes.keySet());
+	}
+
+	/**
+	 * @return a copy of the node, taken under the lock of its stripe, or null if it is not online
+	 */
+	@Override
+	public NodeInfo getNode(String nodeId) {
+		int i = stripe(nodeId);
+		lock(stripes[i], stripeWaits);
+		try {
+			NodeInfo node = nodes.get(nodeId);
+			return node == null ? null : new NodeInfo(node);
+		} finally {
+			stripes[i].unlock();
+		}
+	}
+
+	@Override
+	public HashMap<String, NodeInfo> getNodes() {
+		return getNodes(nodes.keySet());
+	}
+
+	@Override
+	public HashMap<String, NodeInfo> getNodes(Collection<String> nodeIds) {
+		HashMap<String, NodeInfo> result = new HashMap<String, NodeInfo>();
+		for (String nodeId : nodeIds) {
+			NodeInfo node = getNode(nodeId);
+			if (node != null) {
+				result.put(nodeId, node);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the nodes located in the neighborhood of the location, shared by the nodes of its
+	 * region and not to be changed, empty if the location is not valid
+	 */
+	public CachedReply<LinkedList<String>> getNeighbors(float latitude, float longitude) {
+		CachedReply<LinkedList<String>> neighbors = neighborCache.get(latitude, longitude);
+		return neighbors != null ? neighbors : new CachedReply<LinkedList<String>>(new LinkedList<String>());
+	}
+
+	/**
+	 * @return the cache of the neighbor lists, for its hit and miss counts
+	 */
+	public NeighborCache getNeighborCache() {
+		return neighborCache;
+	}
+
+	/**
+	 * @param count		most nodes returned, 0 for no limit
+	 * @param radius	farthest distance of a node returned, in kilometers, 0 for no limit
+	 * @return the nodes closest to the location by great-circle distance, closest first, empty if
+	 * the location is not valid or there is no limit at all
+	 */
+	public LinkedList<String> getNearest(float latitude, float longitude, int count, double radius) {
+		if (count <= 0 && radius <= 0) {
+			return new LinkedList<String>();
+		}
+		return index.getNearestItems(latitude, longitude, count > 0 ? count : Integer.MAX_VALUE,
+				radius > 0 ? radius : Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Rank the nodes around a location by the estimated time to reach them, see
+	 * {@link NetworkRanking}. The candidates are the nodes closest by distance, a few times more
+	 * than asked for, since the distance is part of the cost and far nodes cannot make up for it.
+	 *
+	 * @param count		most nodes returned
+	 * @param exclude	a node not to return, the one asking, or null
+	 * @return the nodes cheapest to reach first, empty if the location is not valid
+	 */
+	public LinkedList<String> getRanked(float latitude, float longitude, int count, String exclude) {
+		LinkedList<String> ranked = new LinkedList<String>();
+		if (count <= 0) {
+			return ranked;
+		}
+		int numCandidates = Math.max(4 * count, minRankCandidates);
+		// the most expensive candidate kept is on top
+		PriorityQueue<Ranked> kept = new PriorityQueue<Ranked>();
+		for (String nodeId : index.getNearestItems(latitude, longitude, numCandidates, Double.POSITIVE_INFINITY)) {
+			if (nodeId.equals(exclude)) {
+				continue;
+			}
+			float candidateLatitude, candidateLongitude;
+			NodeInfo node = nodes.get(nodeId);
+			PeerNode peer;
+			if (node != null) {
+				candidateLatitude = node.getLatitude();
+				candidateLongitude = node.getLongitude();
+			} else if ((peer = peers.get(nodeId)) != null) {
+				candidateLatitude = peer.latitude;
+				candidateLongitude = peer.longitude;
+			} else {
+				// left since the index was read
+				continue;
+			}
+			double cost = ranking.getCost(nodeId,
+					GreatCircle.getDistance(latitude, longitude, candidateLatitude, candidateLongitude));
+			if (kept.size() < count) {
+				kept.add(new Ranked(nodeId, cost));
+			} else if (cost < kept.peek().cost) {
+				kept.poll();
+				kept.add(new Ranked(nodeId, cost));
+			}
+		}
+		while (!kept.isEmpty()) {
+			ranked.addFirst(kept.poll().nodeId);
+		}
+		return ranked;
+	}
+
+	/**
+	 * Build the reply bringing the neighbor list of a location from the given version to the
+	 * current one.
+	 *
+	 * @param since	the version the node has, -1 if none; a version ahead of the index is from
+	 *				before a restart and gets the whole list
+	 * @return the reply
+	 */
+	public NodeReply getNeighborsReply(float latitude, float longitude, long since) {
+		boolean valid = index.validCoordinate(latitude, longitude);
+		long version = index.getVersion();
+		if (!valid) {
+			return NodeReply.full(version, new LinkedList<String>());
+		}
+		if (since > version) {
+			since = -1;
+		}
+		if (since >= 0 && index.getNeighborVersion(latitude, longitude) <= since) {
+			return new NodeReply(NodeReplyType.UNCHANGED, version);
+		}
+		GridDelta delta = since < 0 ? null : index.getNeighborChanges(latitude, longitude, since);
+		if (delta == null) {
+			return NodeReply.full(version, neighborCache.get(latitude, longitude).getValue());
+		}
+		return NodeReply.diff(delta.getVersion(), delta.getAdded(), delta.getRemoved());
+	}
+
+	@Override
+	public ChangeTracker getChanges() {
+		return changes;
+	}
+
+	@Override
+	public long getVersion() {
+		return changes.getVersion();
+	}
+
+	@Override
+	public long getLastVersion() {
+		return Math.max(changes.getVersion(), index.getVersion());
+	}
+
+	@Override
+	public void startAfter(long version) {
+		indexLock.lock();
+		try {
+			index.startAfter(version);
+		} finally {
+			indexLock.unlock();
+		}
+		changes.startAfter(version);
+	}
+
+	/**
+	 * Build the reply bringing a copy of the registry from the given version to the current one.
+	 * The nodes are copied after the version is taken, so a change made meanwhile may be sent
+	 * twice, but is never missed.
+	 *
+	 * @param since	the version the reader has, -1 if none
+	 * @return the reply, FULL if the version is too old to bring up to date
+	 */
+	public SchedulerReply getChangesReply(long since) {
+		ChangeTracker.Changes changed = since < 0 ? null : changes.getChangesSince(since);
+		SchedulerReply reply;
+		if (changed == null) {
+			long version = changes.getVersion();
+			reply = SchedulerReply.full(version, getNodes());
+		} else if (changed.isEmpty()) {
+			reply = new SchedulerReply(NodeReplyType.UNCHANGED, changed.getVersion());
+		} else {
+			reply = SchedulerReply.diff(changed.getVersion(), getNodes(changed.getChanged()), changed.getRemoved());
+		}
+		reply.setEpoch(changes.getEpoch());
+		return reply;
+	}
+
+	/**
+	 * PEERS
+	 * ======================================================================================================== */
+
+	/**
+	 * Add or move a node of another shard in the location index, so that the neighbor lists
+	 * cover every shard.
+	 *
+	 * @param shard	the shard the node is registered at
+	 */
+	public void putPeer(String shard, NodeInfo node) {
+		PeerNode peer = new PeerNode(shard, node.getLatitude(), node.getLongitude());
+		lock(indexLock, indexWaits);
+		try {
+			PeerNode previous = peers.put(node.getId(), peer);
+			if (nodes.containsKey(node.getId())) {
+				// still registered here, the index already has it
+				return;
+			}
+			if (previous != null) {
+				index.removeItem(node.getId(), previous.latitude, previous.longitude);
+			}
+			index.insertItem(node.getId(), peer.latitude, peer.longitude);
+		} finally {
+			indexLock.unlock();
+		}
+	}
+
+	/**
+	 * Remove a node of another shard from the location index, unless it has moved to another
+	 * shard meanwhile.
+	 *
+	 * @param shard	the shard the node left
+	 */
+	public void removePeer(String shard, String nodeId) {
+		lock(indexLock, indexWaits);
+		try {
+			PeerNode peer = peers.get(nodeId);
+			if (peer == null || !peer.shard.equals(shard)) {
+				return;
+			}
+			peers.remove(nodeId);
+			if (!nodes.containsKey(nodeId)) {
+				index.removeItem(nodeId, peer.latitude, peer.longitude);
+			}
+		} finally {
+			indexLock.unlock();
+		}
+	}
+
+	/**
+	 * Remove every node of a shard that is no longer followed from the location index.
+	 */
+	public void removePeers(String shard) {
+		for (Map.Entry<String, PeerNode> peer : peers.entrySet()) {
+			if (peer.getValue().shard.equals(shard)) {
+				removePeer(shard, peer.getKey());
+			}
+		}
+	}
+
+	/**
+	 * RESOURCES
+	 * ======================================================================================================== */
+
+	/**
+	 * @return the available resources of the node, or -1 if it is not online
+	 */
+	public int getAvailableResources(String nodeId) {
+		Integer value = availableResources.get(nodeId);
+		return value == null ? -1 : value;
+	}
+
+	/**
+	 * @return false if the node is not online
+	 */
+	public boolean setAvailableResources(String nodeId, int value) {
+		if (availableResources.replace(nodeId, value) == null) {
+			return false;
+		}
+		capacity.refresh(nodeId);
+		return true;
+	}
+
+	/**
+	 * Atomically add to the available resources of a node, for example -1 to take a CPU.
+	 *
+	 * @return the new value, or -1 if the node is not online or does not have enough resources left
+	 */
+	public int addAvailableResources(String nodeId, final int delta) {
+		final int[] result = { -1 };
+		availableResources.computeIfPresent(nodeId, new BiFunction<String, Integer, Integer>() {
+			@Override
+			public Integer apply(String key, Integer value) {
+				if (value + delta < 0) {
+					return value;
+				}
+				result[0] = value + delta;
+				return result[0];
+			}
+		});
+		if (result[0] >= 0) {
+			capacity.refresh(nodeId);
+		}
+		return result[0];
+	}
+
+	/**
+	 * @return the totals of the region containing the location, or null if the location is not valid
+	 */
+	public RegionCapacity getRegionCapacity(float latitude, float longitude) {
+		return capacity.getRegion(latitude, longitude);
+	}
+
+	/**
+	 * @param minFreeCPUs	fewest free CPUs of a region returned
+	 * @param count			most regions returned, 0 for no limit
+	 * @return the regions with nodes and enough free CPUs, the most free CPUs first
+	 */
+	public LinkedList<RegionCapacity> findRegions(int minFreeCPUs, int count) {
+		return capacity.findRegions(minFreeCPUs, count);
+	}
+
+	/**
+	 * LEASES
+	 * ======================================================================================================== */
+
+	@Override
+	public Lease getLease(String nodeId) {
+		return leases.get(nodeId);
+	}
+
+	@Override
+	public boolean lease(String nodeId, Lease lease) {
+		NodeInfo node = nodes.get(nodeId);
+		if (node == null) {
+			return false;
+		}
+		// a suspect node keeps its lease but takes no new one
+		if (!leases.lease(nodeId, lease, node.isSuspect())) {
+			return false;
+		}
+		capacity.refresh(nodeId);
+		return true;
+	}
+
+	@Override
+	public boolean release(String nodeId, String scheduler) {
+		if (!leases.release(nodeId, scheduler)) {
+			return false;
+		}
+		capacity.refresh(nodeId);
+		return true;
+	}
+
+	@Override
+	public HashMap<String, Lease> expireLeases(long now) {
+		HashMap<String, Lease> expired = leases.expire(now);
+		for (String nodeId : expired.keySet()) {
+			capacity.refresh(nodeId);
+		}
+		return expired;
+	}
+
+	@Override
+	public long getNextLeaseExpiry(long defaultTime) {
+		return leases.getNextExpiry(defaultTime);
+	}
+
+	/**
+	 * The node is registered as if it had just sent a heartbeat: it stays if it is still
+	 * online, and expires after maxInactive otherwise. Its location is indexed again.
+	 */
+	@Override
+	public void restore(String nodeId, NodeInfo node, Lease lease) {
+		if (node == null) {
+			return;
+		}
+		online(node);
+		if (lease != null) {
+			leases.lease(nodeId, lease);
+			capacity.refresh(nodeId);
+		}
+	}
+}
@@ -0,0 +1,324 @@
+package edu.umn.cs.Nebula.instance;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.umn.cs.Nebula.node.NodeInfo;
+import edu.umn.cs.Nebula.node.NodeType;
+import edu.umn.cs.Nebula.util.DatabaseConnector;
+
+/**
+ * Write-behind of the node joins and leaves to the node database.
+ * Callers only queue the latest state of a node, which replaces any state of the same node not
+ * written yet; a dedicated thread writes the queue in batched statements. The queue holds at
+ * most @capacity nodes, a state that does not fit is dropped and counted, so a slow database
+ * never stalls the node manager.
+ *
+ * @author albert
+ */
+public class NodeStateWriter implements Runnable {
+	private static final int maxRowsPerStatement = 500;
+	private static final long retryDelay = 1000; // in milliseconds
+
+	private final DatabaseConnector dbConn;
+	private final int capacity;
+	private final long flushInterval;
+
+	// latest state of every node not written yet, in arrival order
+	private LinkedHashMap<String, NodeState> pending = new LinkedHashMap<String, NodeState>();
+	private final ReentrantLock pendingLock = new ReentrantLock();
+	private final Condition notEmpty = pendingLock.newCondition();
+
+	private final AtomicLong queued = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong failedFlushes = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong totalFlushTime = new AtomicLong(); // in microseconds
+	private volatile long lastFlushTime = 0; // in microseconds
+	private volatile long maxFlushTime = 0; // in microseconds
+
+	/**
+	 * @param dbConn		a connected database
+	 * @param capacity		maximum number of nodes waiting to be written
+	 * @param flushInterval	time the states are left to gather before a flush, in milliseconds
+	 */
+	public NodeStateWriter(DatabaseConnector dbConn, int capacity, long flushInterval) {
+		this.dbConn = dbConn;
+		this.capacity = capacity;
+		this.flushInterval = flushInterval;
+	}
+
+	/**
+	 * State of a node to be written.
+	 */
+	private static class NodeState {
+		private final String id;
+		private final String ip;
+		private final float latitude;
+		private final float longitude;
+		private final NodeType type;
+		private final long online;
+		// the row of the node may not exist yet
+		private boolean joined;
+
+		public NodeState(NodeInfo node, long online, boolean joined) {
+			this.id = node.getId();
+			this.ip = node.getIp();
+			this.latitude = node.getLatitude();
+			this.longitude = node.getLongitude();
+			this.type = node.getNodeType();
+			this.online = online;
+			this.joined = joined;
+		}
+	}
+
+	/**
+	 * QUEUE
+	 * ======================================================================================================== */
+
+	/**
+	 * Queue a node that joined.
+	 *
+	 * @return false if the queue is full and the state is dropped
+	 */
+	public boolean joined(NodeInfo node) {
+		return queue(new NodeState(node, System.currentTimeMillis(), true));
+	}
+
+	/**
+	 * Queue a node that left.
+	 *
+	 * @param node		the node with its last location
+	 * @param online	the time it was last online
+	 * @return false if the queue is full and the state is dropped
+	 */
+	public boolean left(NodeInfo node, long online) {
+		return queue(new NodeState(node, online, false));
+	}
+
+	private boolean queue(NodeState state) {
+		pendingLock.lock();
+		try {
+			NodeState previous = pending.get(state.id);
+			if (previous != null) {
+				// a join not written yet still has to create the row
+				state.joined |= previous.joined;
+				coalesced.incrementAndGet();
+			} else if (pending.size() >= capacity) {
+				dropped.incrementAndGet();
+				return false;
+			}
+			pending.put(state.id, state);
+			queued.incrementAndGet();
+			notEmpty.signal();
+			return true;
+		} finally {
+			pendingLock.unlock();
+		}
+	}
+
+	/**
+	 * Put back the states of a failed flush, unless a newer state of the node was queued since.
+	 */
+	private void requeue(LinkedHashMap<String, NodeState> batch) {
+		pendingLock.lock();
+		try {
+			LinkedHashMap<String, NodeState> merged = new LinkedHashMap<String, NodeState>();
+			for (NodeState state : batch.values()) {
+				if (merged.size() >= capacity) {
+					dropped.incrementAndGet();
+					continue;
+				}
+				merged.put(state.id, state);
+			}
+			for (NodeState state : pending.values()) {
+				NodeState previous = merged.remove(state.id);
+				if (previous != null) {
+					state.joined |= previous.joined;
+				} else if (merged.size() >= capacity) {
+					dropped.incrementAndGet();
+					continue;
+				}
+				merged.put(state.id, state);
+			}
+			pending = merged;
+		} finally {
+			pendingLock.unlock();
+		}
+	}
+
+	/**
+	 * WRITER
+	 * ======================================================================================================== */
+
+	@Override
+	public void run() {
+		LinkedHashMap<String, NodeState> batch;
+		while (true) {
+			try {
+				pendingLock.lock();
+				try {
+					while (pending.isEmpty()) {
+						notEmpty.await();
+					}
+				} finally {
+					pendingLock.unlock();
+				}
+				// let a burst of joins and leaves gather into one flush
+				Thread.sleep(flushInterval);
+
+				pendingLock.lock();
+				try {
+					batch = pending;
+					pending = new LinkedHashMap<String, NodeState>();
+				} finally {
+					pendingLock.unlock();
+				}
+
+				boolean success;
+				try {
+					success = flush(batch);
+				} catch (RuntimeException e) {
+					// keep the writer alive, the batch is retried like any failed flush
+					System.out.println("[NM] Node state flush failed: " + e);
+					success = false;
+				}
+				if (!success) {
+					failedFlushes.incrementAndGet();
+					requeue(batch);
+					Thread.sleep(retryDelay);
+					if (!dbConn.isConnected()) {
+						dbConn.connect();
+					}
+				}
+			} catch (InterruptedException e) {
+				System.out.println("[NM] Node state writer is interrupted and exits: " + e.getMessage());
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Write the joins as multi-row inserts and the leaves as a batch of updates.
+	 *
+	 * @return whether every statement succeeded
+	 */
+	private boolean flush(LinkedHashMap<String, NodeState> batch) {
+		LinkedList<String> sqlStatements = new LinkedList<String>();
+		StringBuilder insert = null;
+		int rows = 0;
+
+		for (NodeState state : batch.values()) {
+			if (!state.joined) {
+				sqlStatements.add("UPDATE node SET online = " + state.online
+						+ ", latitude = " + state.latitude
+						+ ", longitude = " + state.longitude
+						+ " WHERE id = '" + state.id + "'"
+						+ " AND type = '" + state.type + "';");
+				continue;
+			}
+			if (insert == null) {
+				insert = new StringBuilder("INSERT INTO node (id, ip, latitude, longitude, type, online) VALUES ");
+			} else {
+				insert.append(", ");
+			}
+			insert.append("('" + state.id + "', '" + state.ip + "', '" + state.latitude
+					+ "', '" + state.longitude + "', '" + state.type + "', " + state.online + ")");
+			if (++rows == maxRowsPerStatement) {
+				sqlStatements.add(insert.append(" ON DUPLICATE KEY UPDATE online = VALUES(online);").toString());
+				insert = null;
+				rows = 0;
+			}
+		}
+		if (insert != null) {
+			sqlStatements.add(insert.append(" ON DUPLICATE KEY UPDATE online = VALUES(online);").toString());
+		}
+
+		long start = System.nanoTime();
+		boolean success = dbConn.updateBatch(sqlStatements);
+		long elapsed = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+
+		lastFlushTime = elapsed;
+		maxFlushTime = Math.max(maxFlushTime, elapsed);
+		totalFlushTime.addAndGet(elapsed);
+		flushes.incrementAndGet();
+		if (success) {
+			written.addAndGet(batch.size());
+		}
+		return success;
+	}
+
+	/**
+	 * METRICS
+	 * ======================================================================================================== */
+
+	/**
+	 * @return the number of nodes waiting to be written
+	 */
+	public int getQueueDepth() {
+		pendingLock.lock();
+		try {
+			return pending.size();
+		} finally {
+			pendingLock.unlock();
+		}
+	}
+
+	public long getQueued() {
+		return queued.get();
+	}
+
+	/**
+	 * @return the number of states that replaced a state of the same node not written yet
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getWritten() {
+		return written.get();
+	}
+
+	public long getFailedFlushes() {
+		return failedFlushes.get();
+	}
+
+	/**
+	 * @return the duration of the last flush, in milliseconds
+	 */
+	public double getLastFlushLatency() {
+		return lastFlushTime / 1000.0;
+	}
+
+	/**
+	 * @return the longest flush, in milliseconds
+	 */
+	public double getMaxFlushLatency() {
+		return maxFlushTime / 1000.0;
+	}
+
+	/**
+	 * @return the average flush, in milliseconds
+	 */
+	public double getAverageFlushLatency() {
+		long count = flushes.get();
+		return count == 0 ? 0 : totalFlushTime.get() / 1000.0 / count;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("queue %d, queued %d, coalesced %d, dropped %d, written %d, failed flushes %d, flush last %.1f ms avg %.1f ms max %.1f ms",
+				getQueueDepth(), getQueued(), getCoalesced(), getDropped(), getWritten(), getFailedFlushes(),
+				getLastFlushLatency(), getAverageFlushLatency(), getMaxFlushLatency());
+	}
+}
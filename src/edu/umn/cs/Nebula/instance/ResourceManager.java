@@ -1,21 +1,24 @@
 package edu.umn.cs.Nebula.instance;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
-import com.google.gson.Gson;
+import java.util.LinkedList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+import edu.umn.cs.Nebula.net.ReplySink;
+import edu.umn.cs.Nebula.net.ReplyStream;
+import edu.umn.cs.Nebula.net.RequestDispatcher;
+import edu.umn.cs.Nebula.net.RequestServer;
 import edu.umn.cs.Nebula.node.NodeInfo;
 import edu.umn.cs.Nebula.node.NodeType;
+import edu.umn.cs.Nebula.request.NodeReplyType;
+import edu.umn.cs.Nebula.request.SchedulerReply;
 import edu.umn.cs.Nebula.request.SchedulerRequest;
 import edu.umn.cs.Nebula.schedule.Lease;
+import edu.umn.cs.Nebula.util.ChangeTracker;
 
 /**
  * Nebula Resource Manager.
@@ -26,11 +29,16 @@ import edu.umn.cs.Nebula.schedule.Lease;
 public class ResourceManager {
 	private static final int schedulerPort = 6414;
 	private static final int poolSize = 10;
-	private static final Gson gson = new Gson();
 
-	private static HashMap<String, Lease> busyNodes = new HashMap<String, Lease>();
-	
 	private static NodeManager nodeManager;
+	// the nodes of the node manager, or of all the node manager shards
+	private static NodeDirectory nodes;
+	
+	// schedulers streamed the changes to the node table
+	private static CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+	private static final ReentrantLock publisherLock = new ReentrantLock();
+	private static final Condition nodesChanged = publisherLock.newCondition();
+	private static boolean hasChanges = false; // guarded by publisherLock
 	
 	private static final boolean DEBUG = true;
 
@@ -63,10 +71,21 @@ public class ResourceManager {
 			nodeDatabasePort = Integer.parseInt(args[7]);
 		}
 
-		nodeManager = new NodeManager(nodeManagerPort, nodeManagerMaxInactive, nodeManagerPoolSize, NodeType.COMPUTE);
-		nodeManager.connectDB(nodeDatabaseUsername, nodeDatabasePassword, nodeDatabaseServerName, nodeDatabaseName,
-				nodeDatabasePort);
-		nodeManager.run();
+		ShardedNodeDirectory shards = ShardedNodeDirectory.fromProperties(nodeManagerMaxInactive);
+		if (shards != null) {
+			// the nodes are managed by node manager shards, each with its own database connection
+			System.out.println("[RM] Routing the node manager shards");
+			// the shards save their nodes, only the leases are saved here
+			DirectorySnapshot.startFromProperties(shards, "rm-" + schedulerPort);
+			shards.start();
+			nodes = shards;
+		} else {
+			nodeManager = new NodeManager(nodeManagerPort, nodeManagerMaxInactive, nodeManagerPoolSize, NodeType.COMPUTE);
+			nodeManager.connectDB(nodeDatabaseUsername, nodeDatabasePassword, nodeDatabaseServerName, nodeDatabaseName,
+					nodeDatabasePort);
+			nodeManager.run();
+			nodes = nodeManager.getRegistry();
+		}
 
 		start();
 	}
@@ -75,27 +94,12 @@ public class ResourceManager {
 	 * Start listening to scheduler requests on port @schedulerPort.
 	 */
 	private static void start() {
+		startPublisher();
+
 		// listening for client requests
-		ExecutorService requestPool = Executors.newFixedThreadPool(poolSize);
-		ServerSocket serverSock = null;
-		try {
-			serverSock = new ServerSocket(schedulerPort);
-			System.out.println("[RM] Listening for scheduler requests on port " + schedulerPort);
-			while (true) {
-				requestPool.submit(new SchedulerHandler(serverSock.accept()));
-			}
-		} catch (IOException e) {
-			System.err.println("[RM] Failed to establish listening socket: " + e);
-		} finally {
-			requestPool.shutdown();
-			if (serverSock != null) {
-				try {
-					serverSock.close();
-				} catch (IOException e) {
-					System.err.println("[RM] Failed to close listening socket");
-				}
-			}
-		}
+		RequestServer server = RequestServer.create("RM", schedulerPort, poolSize, new SchedulerDispatcher());
+		System.out.println("[RM] Listening for scheduler requests on port " + schedulerPort);
+		server.run();
 	}
 
 	/** 
@@ -103,84 +107,120 @@ public class ResourceManager {
 	 * ======================================================================================================== */
 	
 	/**
-	 * Scheduler handler class which communicates with a scheduler for leasing and acquiring nodes.
+	 * Scheduler request dispatcher which communicates with a scheduler for leasing and acquiring nodes.
 	 * 
 	 * @author albert
 	 */
-	public static class SchedulerHandler implements Runnable {
-		private Socket socket;
+	public static class SchedulerDispatcher extends RequestDispatcher<SchedulerRequest> {
 
-		SchedulerHandler(Socket socket) {
-			this.socket = socket;
+		SchedulerDispatcher() {
+			super(SchedulerRequest.class);
 		}
 
-		public void run() {
-			PrintWriter out = null;
-			BufferedReader in = null;
-			SchedulerRequest request;
-
-			try {
-				out = new PrintWriter(socket.getOutputStream());
-				in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-				request = gson.fromJson(in.readLine(), SchedulerRequest.class);
-			} catch (IOException e) {
-				if (DEBUG) System.out.println("[RM] Failed parsing scheduler request: " + e.getMessage());
-				if (out != null) {
-					out.println(gson.toJson(false));
-					out.flush();
-					out.close();
-				}
-				return;
-			}
-
+		@Override
+		public Object dispatch(SchedulerRequest request) {
 			if (request == null) {
 				if (DEBUG) System.out.println("[RM] Scheduler request not found.");
-				out.println(gson.toJson(null));
-			} else {
-				if (DEBUG) System.out.println("[RM] Receive a " + request.getType() + " request from " + request.getSchedulerName());
-
-				switch(request.getType()) {
-				case GETNODES:
-					// return the status of all nodes, including the ones that are busy
-					HashMap<String, NodeInfo> reply = new HashMap<String, NodeInfo>();
-					NodeInfo nodeInfo;
-					synchronized (nodeManager.nodesLock) {
-						for (String nodeId: nodeManager.getNodes().keySet()) {
-							nodeInfo = nodeManager.getNodes().get(nodeId);
-							// add the remaining time to expire
-							if (busyNodes.containsKey(nodeId)) {
-								nodeInfo.setNote("" + busyNodes.get(nodeId).getRemainingTime());
-							} else {
-								nodeInfo.setNote("available");
-							}
-							reply.put(nodeId, nodeInfo);
+				return null;
+			}
+			if (DEBUG) System.out.println("[RM] Receive a " + request.getType() + " request from " + request.getSchedulerName());
+
+			switch(request.getType()) {
+			case GETNODES:
+				// return the status of all nodes, including the ones that are busy
+				return getNodes(nodes.getNodeIds());
+			case GETCHANGES:
+				return handleGetChanges(request);
+			case SUBSCRIBE:
+				return handleSubscribe(request);
+			case LEASE:
+				HashMap<String, Lease> successfullyLeasedNodes = handleLease(request);
+				if (DEBUG) System.out.println("[RM] Leased: " + successfullyLeasedNodes.keySet() + " by " + request.getSchedulerName());
+				return successfullyLeasedNodes;
+			case RELEASE:
+				return handleRelease(request);
+			default:
+				if (DEBUG) System.out.println("[RM] Invalid request: " + request.getType());
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * A scheduler streamed the changes to the node table, and the version it has.
+	 */
+	private static class Subscriber {
+		private final String schedulerName;
+		private final ReplySink sink;
+		private long version;
+		private boolean started = false;
+
+		public Subscriber(String schedulerName, ReplySink sink, long version) {
+			this.schedulerName = schedulerName;
+			this.sink = sink;
+			this.version = version;
+		}
+	}
+
+	/**
+	 * Sends the changes to the node table to every subscriber as soon as they happen, and
+	 * expires the leases when their time is up. Runs alone so that the messages of a
+	 * subscriber are sent in version order.
+	 * 
+	 * @author albert
+	 */
+	private static class ChangePublisher implements Runnable {
+		private HashMap<Subscriber, SchedulerReply> replies = new HashMap<Subscriber, SchedulerReply>();
+		private LinkedList<Subscriber> closed = new LinkedList<Subscriber>();
+
+		@Override
+		public void run() {
+			while (true) {
+				publisherLock.lock();
+				try {
+					while (!hasChanges) {
+						long wait = nodes.getNextLeaseExpiry(System.currentTimeMillis() + 60000) - System.currentTimeMillis();
+						if (wait <= 0) {
+							break;
 						}
+						nodesChanged.await(wait, TimeUnit.MILLISECONDS);
 					}
-					out.println(gson.toJson(reply));
-					break;
-				case LEASE:
-					HashMap<String, Lease> successfullyLeasedNodes = handleLease(request);
-					if (DEBUG) System.out.println("[RM] Leased: " + successfullyLeasedNodes.keySet() + " by " + request.getSchedulerName());
-					out.println(gson.toJson(successfullyLeasedNodes));
-					break;
-				case RELEASE:
-					boolean releaseSuccess = handleRelease(request);
-					out.println(gson.toJson(releaseSuccess));
-					break;
-				default:
-					if (DEBUG) System.out.println("[RM] Invalid request: " + request.getType());
-					out.println(gson.toJson(false));
+					hasChanges = false;
+				} catch (InterruptedException e) {
+					System.out.println("[RM] Change publisher is interrupted and exits: " + e.getMessage());
+					return;
+				} finally {
+					publisherLock.unlock();
+				}
+
+				// free the nodes whose lease is over
+				for (String nodeId : nodes.expireLeases(System.currentTimeMillis()).keySet()) {
+					if (DEBUG) System.out.println("[RM] Lease of " + nodeId + " expired");
+				}
+				for (Subscriber subscriber : subscribers) {
+					SchedulerReply reply = getChangesReply(subscriber.version);
+					if (reply.getType() == NodeReplyType.UNCHANGED && subscriber.started) {
+						continue;
+					}
+					subscriber.version = reply.getVersion();
+					subscriber.started = true;
+					replies.put(subscriber, reply);
+				}
+
+				// a slow scheduler only delays the publisher, never the node manager
+				for (Subscriber subscriber : replies.keySet()) {
+					if (!subscriber.sink.send(replies.get(subscriber))) {
+						closed.add(subscriber);
+					}
+				}
+				replies.clear();
+				if (!closed.isEmpty()) {
+					subscribers.removeAll(closed);
+					for (Subscriber subscriber : closed) {
+						if (DEBUG) System.out.println("[RM] " + subscriber.schedulerName + " unsubscribed");
+					}
+					closed.clear();
 				}
-			}
-			out.flush();
-
-			try {
-				if (in != null) in.close();
-				if (out != null) out.close();
-				socket.close();
-			} catch (IOException e) {
-				System.err.println("[RM] Failed closing streams/socket.");
 			}
 		}
 	}
@@ -189,6 +229,109 @@ public class ResourceManager {
 	 * HANDLER METHODS
 	 * ======================================================================================================== */
 	
+	/**
+	 * Get the status of a set of nodes.
+	 * 
+	 * @param nodeIds
+	 * @return copies of the nodes noted with their remaining lease time, or "available", or
+	 *         "suspect" if the node misses heartbeats and should not be given new work
+	 */
+	private static HashMap<String, NodeInfo> getNodes(Collection<String> nodeIds) {
+		HashMap<String, NodeInfo> result = nodes.getNodes(nodeIds);
+		Lease lease;
+		for (NodeInfo nodeInfo: result.values()) {
+			lease = nodes.getLease(nodeInfo.getId());
+			if (lease != null) {
+				nodeInfo.setNote("" + lease.getRemainingTime());
+			} else {
+				nodeInfo.setNote(nodeInfo.isSuspect() ? "suspect" : "available");
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Changes to the node table since the version the scheduler has: the nodes that joined,
+	 * changed their resources or were leased or released, and the nodes that left.
+	 * 
+	 * @param request
+	 * @return the reply, FULL if the scheduler has no version or one too old to bring up to date
+	 */
+	private static SchedulerReply handleGetChanges(SchedulerRequest request) {
+		return getChangesReply(request.getVersion());
+	}
+
+	/**
+	 * The nodes are copied after the version is taken, so a change made meanwhile may be in the
+	 * reply and sent again in the next DIFF, but is never missed.
+	 * 
+	 * @param since	the version the scheduler has, -1 if none
+	 * @return the reply bringing the node table from the version to the current one
+	 */
+	private static SchedulerReply getChangesReply(long since) {
+		ChangeTracker.Changes changes = since < 0 ? null : nodes.getChanges().getChangesSince(since);
+		SchedulerReply reply;
+		if (changes == null) {
+			long version = nodes.getVersion();
+			reply = SchedulerReply.full(version, getNodes(nodes.getNodeIds()));
+		} else if (changes.isEmpty()) {
+			reply = new SchedulerReply(NodeReplyType.UNCHANGED, changes.getVersion());
+		} else {
+			reply = SchedulerReply.diff(changes.getVersion(), getNodes(changes.getChanged()), changes.getRemoved());
+		}
+		reply.setEpoch(nodes.getChanges().getEpoch());
+		return reply;
+	}
+
+	/**
+	 * Subscription of a scheduler to the changes to the node table. The scheduler first gets
+	 * the reply bringing it up from the version it sent, then a DIFF every time nodes join,
+	 * leave, change their resources, or are leased, released or expire.
+	 * 
+	 * @param request
+	 * @return the stream of SchedulerReply
+	 */
+	private static ReplyStream handleSubscribe(final SchedulerRequest request) {
+		return new ReplyStream() {
+			@Override
+			public void open(ReplySink sink) {
+				if (DEBUG) System.out.println("[RM] " + request.getSchedulerName() + " subscribed at version " + request.getVersion());
+				// the publisher sends the first reply, keeping the messages in order
+				subscribers.add(new Subscriber(request.getSchedulerName(), sink, request.getVersion()));
+				signalChanges();
+			}
+		};
+	}
+
+	/**
+	 * Start the thread streaming the node changes to the subscribed schedulers.
+	 */
+	private static void startPublisher() {
+		nodes.getChanges().setListener(new Runnable() {
+			@Override
+			public void run() {
+				// called by whoever changed a node
+				signalChanges();
+			}
+		});
+		Thread publisher = new Thread(new ChangePublisher(), "RM-publisher");
+		publisher.setDaemon(true);
+		publisher.start();
+	}
+
+	/**
+	 * Wake up the publisher.
+	 */
+	private static void signalChanges() {
+		publisherLock.lock();
+		try {
+			hasChanges = true;
+			nodesChanged.signal();
+		} finally {
+			publisherLock.unlock();
+		}
+	}
+
 	/**
 	 * Lease request from a scheduler on one or more nodes.
 	 * 
@@ -199,29 +342,15 @@ public class ResourceManager {
 	private static HashMap<String, Lease> handleLease(SchedulerRequest leaseRequest) {
 		HashMap<String, Lease> successfullyLeasedNodes = new HashMap<String, Lease>();
 
-		synchronized (nodeManager.nodesLock) {
-			for (String nodeId: leaseRequest.getLeaseNodes()) {
-				if (nodeManager.getNodes().get(nodeId) == null) {
-					// the node is not available
-					if (DEBUG) System.out.println("[RM] " + nodeId + " is not available."); 
-					continue;
-				}
-
-				if (busyNodes.containsKey(nodeId)) {
-					if (busyNodes.get(nodeId).getScheduler() != null && 
-							!busyNodes.get(nodeId).getScheduler().equals(leaseRequest.getSchedulerName())) {
-						// do not let a scheduler acquire a node that has already been claimed by another scheduler
-						if (DEBUG) System.out.println("[RM] " + nodeId + " is busy."); 
-						continue;
-					}
-				}
-
-				// TODO add more conditions/constraints such as lease time limit etc.
+		for (String nodeId: leaseRequest.getLeaseNodes()) {
+			// TODO add more conditions/constraints such as lease time limit etc.
 
-				// success. create a new lease
-				busyNodes.put(nodeId, leaseRequest.getLease(nodeId));
-				successfullyLeasedNodes.put(nodeId, leaseRequest.getLease(nodeId));
+			// do not let a scheduler acquire a node that is gone or has already been claimed by another scheduler
+			if (!nodes.lease(nodeId, leaseRequest.getLease(nodeId))) {
+				if (DEBUG) System.out.println("[RM] " + nodeId + " is not available."); 
+				continue;
 			}
+			successfullyLeasedNodes.put(nodeId, leaseRequest.getLease(nodeId));
 		}
 		return successfullyLeasedNodes;
 	}
@@ -233,17 +362,9 @@ public class ResourceManager {
 	 * @param nodeIds
 	 */
 	private static boolean handleRelease(SchedulerRequest leaseRequest) {
-		synchronized (nodeManager.nodesLock) {
-			for (String nodeId: leaseRequest.getNodes()) {
-				if (nodeManager.getNodes().get(nodeId) == null || busyNodes.get(nodeId) == null) {
-					continue;
-				}
-				if (busyNodes.get(nodeId).getScheduler() != null && 
-						busyNodes.get(nodeId).getScheduler().equals(leaseRequest.getSchedulerName())) {
-					// free the node only if it is currently owned by the scheduler
-					busyNodes.remove(nodeId);
-				}
-			}
+		for (String nodeId: leaseRequest.getNodes()) {
+			// free the node only if it is currently owned by the scheduler
+			nodes.release(nodeId, leaseRequest.getSchedulerName());
 		}
 		return true;
 	}
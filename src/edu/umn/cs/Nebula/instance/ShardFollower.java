@@ -0,0 +1,188 @@
+package edu.umn.cs.Nebula.instance;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedList;
+
+import edu.umn.cs.Nebula.net.SessionClient;
+import edu.umn.cs.Nebula.node.NodeInfo;
+import edu.umn.cs.Nebula.request.NodeRequest;
+import edu.umn.cs.Nebula.request.NodeRequestType;
+import edu.umn.cs.Nebula.request.SchedulerReply;
+
+/**
+ * Follows the node table of a node manager shard by polling it for the changes since the
+ * version last seen, and reports the nodes that joined or changed and the nodes that left.
+ * A shard that does not reply for more than @maxSilence is taken as gone: its nodes are
+ * reported as left, and it is read again from scratch once it replies.
+ *
+ * @author albert
+ */
+public class ShardFollower implements Runnable {
+	private static final long requestTimeout = 2000; // in milliseconds
+
+	/**
+	 * Receives the changes of the followed shard, always from the thread of the follower.
+	 */
+	public interface Listener {
+		void changed(String shard, Collection<NodeInfo> nodes);
+
+		void removed(String shard, Collection<String> nodeIds);
+	}
+
+	private final String shard;
+	private final InetSocketAddress address;
+	private final SessionClient session;
+	private final long pollInterval;
+	private final long maxSilence;
+	private final Listener listener;
+
+	// the nodes of the shard as of version
+	private final HashSet<String> known = new HashSet<String>();
+	private long version = -1;
+	private long lastReply = System.currentTimeMillis();
+
+	// the shards sent along with every poll, null if none
+	private volatile LinkedList<String> shards;
+	private volatile boolean running = true;
+
+	/**
+	 * @param shard			host:port of the shard
+	 * @param address		the host and port of the shard, see {@link ShardedNodeDirectory#parseShard(String)}
+	 * @param pollInterval	in milliseconds
+	 * @param maxSilence	in milliseconds
+	 */
+	public ShardFollower(String shard, InetSocketAddress address, long pollInterval, long maxSilence, Listener listener) {
+		this.shard = shard;
+		this.address = address;
+		this.session = new SessionClient(address.getHostString(), address.getPort());
+		this.pollInterval = pollInterval;
+		this.maxSilence = maxSilence;
+		this.listener = listener;
+	}
+
+	public String getShard() {
+		return shard;
+	}
+
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * Send the shards along with the polls, so that the followed shard knows its peers.
+	 */
+	public void setShards(LinkedList<String> shards) {
+		this.shards = shards;
+	}
+
+	/**
+	 * Stop following the shard. Its nodes are not reported as left.
+	 */
+	public void stop() {
+		running = false;
+		session.close();
+	}
+
+	/**
+	 * Stop following a shard that was removed, after sending it the remaining shards so that it
+	 * redirects its nodes to their new owners.
+	 */
+	public void retire(LinkedList<String> shards) {
+		running = false;
+		NodeRequest request = new NodeRequest(NodeRequestType.GET_CHANGES);
+		request.setNeighborsVersion(version);
+		request.setShards(shards);
+		try {
+			if (!session.isConnected()) {
+				session.connect();
+			}
+			session.call(request, SchedulerReply.class, requestTimeout);
+		} catch (IOException e) {
+			System.out.println("[SHARD] Failed telling " + shard + " it is removed: " + e.getMessage());
+		}
+		session.close();
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				poll();
+				lastReply = System.currentTimeMillis();
+			} catch (IOException e) {
+				if (running && System.currentTimeMillis() - lastReply > maxSilence && version >= 0) {
+					System.out.println("[SHARD] " + shard + " is not replying, dropping its nodes: " + e.getMessage());
+					forget();
+				}
+			}
+			try {
+				Thread.sleep(pollInterval);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private void poll() throws IOException {
+		if (!session.isConnected()) {
+			session.connect();
+		}
+		NodeRequest request = new NodeRequest(NodeRequestType.GET_CHANGES);
+		request.setNeighborsVersion(version);
+		request.setShards(shards);
+		Object reply = session.call(request, SchedulerReply.class, requestTimeout);
+		if (!(reply instanceof SchedulerReply) || ((SchedulerReply) reply).getType() == null) {
+			throw new IOException(shard + " does not serve its changes");
+		}
+		apply((SchedulerReply) reply);
+	}
+
+	private void apply(SchedulerReply reply) {
+		if (!running) {
+			return;
+		}
+		LinkedList<String> removed = new LinkedList<String>();
+		switch (reply.getType()) {
+		case FULL:
+			if (reply.getNodes() != null) {
+				for (String nodeId : known) {
+					if (!reply.getNodes().containsKey(nodeId)) {
+						removed.add(nodeId);
+					}
+				}
+			}
+			known.removeAll(removed);
+			break;
+		case DIFF:
+			if (reply.getRemoved() != null) {
+				removed.addAll(reply.getRemoved());
+				known.removeAll(removed);
+			}
+			break;
+		default:
+			break;
+		}
+		if (!removed.isEmpty()) {
+			listener.removed(shard, removed);
+		}
+		if (reply.getNodes() != null && !reply.getNodes().isEmpty()) {
+			known.addAll(reply.getNodes().keySet());
+			listener.changed(shard, reply.getNodes().values());
+		}
+		version = reply.getVersion();
+	}
+
+	/**
+	 * Report every node of the shard as left and read it again from scratch.
+	 */
+	private void forget() {
+		if (!known.isEmpty()) {
+			listener.removed(shard, new LinkedList<String>(known));
+			known.clear();
+		}
+		version = -1;
+	}
+}
@@ -0,0 +1,425 @@
+package edu.umn.cs.Nebula.instance;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.umn.cs.Nebula.node.NodeInfo;
+import edu.umn.cs.Nebula.schedule.Lease;
+import edu.umn.cs.Nebula.util.ChangeTracker;
+
+/**
+ * The union of the node tables of several node manager shards, for a master that does not run
+ * a node manager itself. Every shard is followed by its own thread, so a slow shard does not
+ * delay the others. Nodes are assigned to the shards by consistent hashing of their id: the
+ * list of shards is sent to every shard with each poll, and a shard redirects the nodes it
+ * does not own to their owner. Adding or removing a shard only moves the nodes of that shard.
+ *
+ * The shards are listed as host:port of their node listener, either once at startup or in a
+ * file that is read again when it changes (one shard per line, or separated by commas).
+ * The leases are kept here, the shards do not know about them.
+ *
+ * @author albert
+ */
+public class ShardedNodeDirectory implements NodeDirectory, Runnable, ShardFollower.Listener {
+	private static final int maxRemovedChanges = 10000;
+	private static final long defaultPollInterval = 1000; // in milliseconds
+
+	private final long pollInterval;
+	private final long maxSilence;
+	private final TreeMap<String, InetSocketAddress> initialShards;
+	private final File shardsFile;
+	private long shardsFileModified = 0;
+
+	private final ConcurrentHashMap<String, ShardFollower> followers = new ConcurrentHashMap<String, ShardFollower>();
+	private final Object shardsLock = new Object();
+
+	// the union of the shards, and the shard every node is registered at
+	private final ConcurrentHashMap<String, NodeInfo> nodes = new ConcurrentHashMap<String, NodeInfo>();
+	private final ConcurrentHashMap<String, String> owners = new ConcurrentHashMap<String, String>();
+	private final Object applyLock = new Object();
+
+	private final ChangeTracker changes = new ChangeTracker(maxRemovedChanges);
+	private final LeaseTable leases = new LeaseTable(changes);
+
+	/**
+	 * @param shards		host:port of the shards
+	 * @param pollInterval	time between two polls of a shard, in milliseconds
+	 * @param maxSilence	time after which the nodes of a shard that does not reply are dropped, in milliseconds
+	 */
+	public ShardedNodeDirectory(Collection<String> shards, long pollInterval, long maxSilence) {
+		this(parseShards(shards), null, pollInterval, maxSilence);
+	}
+
+	/**
+	 * @param shardsFile	file listing the shards, read again when it changes
+	 */
+	public ShardedNodeDirectory(File shardsFile, long pollInterval, long maxSilence) {
+		this(null, shardsFile, pollInterval, maxSilence);
+	}
+
+	private ShardedNodeDirectory(TreeMap<String, InetSocketAddress> shards, File shardsFile, long pollInterval, long maxSilence) {
+		this.initialShards = shards;
+		this.shardsFile = shardsFile;
+		this.pollInterval = pollInterval;
+		this.maxSilence = maxSilence;
+	}
+
+	/**
+	 * Create the directory selected with {@code -Dnebula.shards=host:port,host:port} or
+	 * {@code -Dnebula.shards.file=path}.
+	 * 
+	 * @param maxInactive	time after which an inactive node expires, in milliseconds
+	 * @return the directory, not started, or null if the node managers are not sharded
+	 */
+	public static ShardedNodeDirectory fromProperties(long maxInactive) {
+		String file = System.getProperty("nebula.shards.file");
+		if (file != null) {
+			return new ShardedNodeDirectory(new File(file), defaultPollInterval, 2 * maxInactive);
+		}
+		String shards = System.getProperty("nebula.shards");
+		if (shards != null) {
+			return new ShardedNodeDirectory(parseShards(shards), null, defaultPollInterval, 2 * maxInactive);
+		}
+		return null;
+	}
+
+	/**
+	 * Parse a list of shards separated by commas, white spaces or new lines.
+	 * 
+	 * @return the host and port of every valid shard by host:port, the others are left out
+	 */
+	public static TreeMap<String, InetSocketAddress> parseShards(String shards) {
+		return parseShards(Arrays.asList(shards.trim().split("[,\\s]+")));
+	}
+
+	/**
+	 * @return the host and port of every valid shard by host:port, the others are left out
+	 */
+	public static TreeMap<String, InetSocketAddress> parseShards(Collection<String> shards) {
+		TreeMap<String, InetSocketAddress> result = new TreeMap<String, InetSocketAddress>();
+		for (String shard : shards) {
+			if (shard == null || shard.trim().isEmpty()) {
+				continue;
+			}
+			InetSocketAddress address = parseShard(shard);
+			if (address == null) {
+				System.out.println("[SHARDS] Ignoring shard \"" + shard + "\": expected host:port with a port from 1 to 65535");
+				continue;
+			}
+			result.put(shard.trim(), address);
+		}
+		return result;
+	}
+
+	/**
+	 * @param shard	host:port of a shard
+	 * @return the host and port, not resolved, or null if the shard is not host:port
+	 */
+	public static InetSocketAddress parseShard(String shard) {
+		shard = shard.trim();
+		int separator = shard.lastIndexOf(':');
+		if (separator <= 0) {
+			return null;
+		}
+		int port;
+		try {
+			port = Integer.parseInt(shard.substring(separator + 1));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		if (port <= 0 || port > 65535) {
+			return null;
+		}
+		return InetSocketAddress.createUnresolved(shard.substring(0, separator), port);
+	}
+
+	/**
+	 * Start following the shards, and watching the shards file if any.
+	 */
+	public void start() {
+		if (initialShards != null) {
+			setShards(initialShards);
+		}
+		if (shardsFile != null) {
+			Thread watcher = new Thread(this, "shards-watcher");
+			watcher.setDaemon(true);
+			watcher.start();
+		}
+	}
+
+	/**
+	 * MEMBERSHIP
+	 * ======================================================================================================== */
+
+	/**
+	 * Replace the shards. The nodes of the removed shards are dropped until they join the shard
+	 * that now owns them; the shards learn the new list with the next poll.
+	 * 
+	 * @param shards	host:port of the shards, the ones that are not are left out
+	 */
+	public void setShards(Collection<String> shards) {
+		setShards(parseShards(shards));
+	}
+
+	private void setShards(TreeMap<String, InetSocketAddress> wanted) {
+		synchronized (shardsLock) {
+			for (String shard : new LinkedList<String>(followers.keySet())) {
+				if (!wanted.containsKey(shard)) {
+					retire(shard, new LinkedList<String>(wanted.keySet()));
+				}
+			}
+			for (Map.Entry<String, InetSocketAddress> entry : wanted.entrySet()) {
+				String shard = entry.getKey();
+				if (!followers.containsKey(shard)) {
+					ShardFollower follower = new ShardFollower(shard, entry.getValue(), pollInterval, maxSilence, this);
+					followers.put(shard, follower);
+					Thread thread = new Thread(follower, "shard-" + shard);
+					thread.setDaemon(true);
+					thread.start();
+					System.out.println("[SHARDS] Added " + shard);
+				}
+			}
+			LinkedList<String> list = new LinkedList<String>(wanted.keySet());
+			for (ShardFollower follower : followers.values()) {
+				follower.setShards(list);
+			}
+		}
+	}
+
+	public void addShard(String shard) {
+		InetSocketAddress address = parseShard(shard);
+		if (address == null) {
+			throw new IllegalArgumentException("Shard \"" + shard + "\" is not host:port");
+		}
+		synchronized (shardsLock) {
+			TreeMap<String, InetSocketAddress> shards = getAddresses();
+			shards.put(shard.trim(), address);
+			setShards(shards);
+		}
+	}
+
+	public void removeShard(String shard) {
+		synchronized (shardsLock) {
+			TreeMap<String, InetSocketAddress> shards = getAddresses();
+			shards.remove(shard);
+			setShards(shards);
+		}
+	}
+
+	private TreeMap<String, InetSocketAddress> getAddresses() {
+		TreeMap<String, InetSocketAddress> addresses = new TreeMap<String, InetSocketAddress>();
+		for (ShardFollower follower : followers.values()) {
+			addresses.put(follower.getShard(), follower.getAddress());
+		}
+		return addresses;
+	}
+
+	/**
+	 * Stop following a shard and drop its nodes. The shard is told the remaining shards, so it
+	 * redirects its nodes to them.
+	 */
+	private void retire(String shard, LinkedList<String> remaining) {
+		synchronized (shardsLock) {
+			ShardFollower follower = followers.remove(shard);
+			if (follower == null) {
+				return;
+			}
+			follower.retire(remaining);
+			LinkedList<String> owned = new LinkedList<String>();
+			for (Map.Entry<String, String> owner : owners.entrySet()) {
+				if (owner.getValue().equals(shard)) {
+					owned.add(owner.getKey());
+				}
+			}
+			removed(shard, owned);
+			System.out.println("[SHARDS] Removed " + shard + " and its " + owned.size() + " nodes");
+		}
+	}
+
+	/**
+	 * @return host:port of the shards
+	 */
+	public Set<String> getShards() {
+		return Collections.unmodifiableSet(followers.keySet());
+	}
+
+	/**
+	 * Watch the shards file.
+	 */
+	@Override
+	public void run() {
+		while (shardsFile != null) {
+			if (shardsFile.lastModified() != shardsFileModified) {
+				shardsFileModified = shardsFile.lastModified();
+				try {
+					setShards(parseShards(new String(Files.readAllBytes(shardsFile.toPath()), StandardCharsets.UTF_8)));
+				} catch (IOException e) {
+					System.out.println("[SHARDS] Failed reading " + shardsFile + ": " + e.getMessage());
+				}
+			}
+			try {
+				Thread.sleep(pollInterval);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * CHANGES OF THE SHARDS
+	 * ======================================================================================================== */
+
+	@Override
+	public void changed(String shard, Collection<NodeInfo> changed) {
+		synchronized (applyLock) {
+			if (followers.get(shard) == null) {
+				// removed meanwhile
+				return;
+			}
+			for (NodeInfo node : changed) {
+				nodes.put(node.getId(), node);
+				owners.put(node.getId(), shard);
+				changes.changed(node.getId());
+			}
+		}
+	}
+
+	@Override
+	public void removed(String shard, Collection<String> nodeIds) {
+		synchronized (applyLock) {
+			for (String nodeId : nodeIds) {
+				// a node that moved may have joined its new shard first
+				if (owners.remove(nodeId, shard)) {
+					nodes.remove(nodeId);
+					changes.removed(nodeId);
+				}
+			}
+		}
+	}
+
+	/**
+	 * READS
+	 * ======================================================================================================== */
+
+	@Override
+	public boolean contains(String nodeId) {
+		return nodes.containsKey(nodeId);
+	}
+
+	@Override
+	public int size() {
+		return nodes.size();
+	}
+
+	@Override
+	public Set<String> getNodeIds() {
+		return Collections.unmodifiableSet(nodes.keySet());
+	}
+
+	/**
+	 * @return the shard the node is registered at, or null if it is not online
+	 */
+	public String getOwner(String nodeId) {
+		return owners.get(nodeId);
+	}
+
+	@Override
+	public NodeInfo getNode(String nodeId) {
+		// the nodes are replaced, never changed, so a copy is consistent
+		NodeInfo node = nodes.get(nodeId);
+		return node == null ? null : new NodeInfo(node);
+	}
+
+	@Override
+	public HashMap<String, NodeInfo> getNodes() {
+		return getNodes(nodes.keySet());
+	}
+
+	@Override
+	public HashMap<String, NodeInfo> getNodes(Collection<String> nodeIds) {
+		HashMap<String, NodeInfo> result = new HashMap<String, NodeInfo>();
+		for (String nodeId : nodeIds) {
+			NodeInfo node = getNode(nodeId);
+			if (node != null) {
+				result.put(nodeId, node);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public ChangeTracker getChanges() {
+		return changes;
+	}
+
+	@Override
+	public long getVersion() {
+		return changes.getVersion();
+	}
+
+	@Override
+	public long getLastVersion() {
+		return changes.getVersion();
+	}
+
+	@Override
+	public void startAfter(long version) {
+		changes.startAfter(version);
+	}
+
+	/**
+	 * LEASES
+	 * ======================================================================================================== */
+
+	@Override
+	public Lease getLease(String nodeId) {
+		return leases.get(nodeId);
+	}
+
+	@Override
+	public boolean lease(String nodeId, Lease lease) {
+		NodeInfo node = nodes.get(nodeId);
+		if (node == null) {
+			return false;
+		}
+		// a suspect node keeps its lease but takes no new one
+		return leases.lease(nodeId, lease, node.isSuspect());
+	}
+
+	@Override
+	public boolean release(String nodeId, String scheduler) {
+		return leases.release(nodeId, scheduler);
+	}
+
+	@Override
+	public HashMap<String, Lease> expireLeases(long now) {
+		return leases.expire(now);
+	}
+
+	@Override
+	public long getNextLeaseExpiry(long defaultTime) {
+		return leases.getNextExpiry(defaultTime);
+	}
+
+	/**
+	 * Only the lease is restored, the shards send their nodes with the first poll.
+	 */
+	@Override
+	public void restore(String nodeId, NodeInfo node, Lease lease) {
+		if (lease != null) {
+			leases.lease(nodeId, lease);
+		}
+	}
+}
@@ -4,18 +4,28 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.lang.reflect.Type;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
@@ -25,8 +35,15 @@ import edu.umn.cs.Nebula.job.Job;
 import edu.umn.cs.Nebula.job.RunningTask;
 import edu.umn.cs.Nebula.job.Task;
 import edu.umn.cs.Nebula.job.TaskInfo;
+import edu.umn.cs.Nebula.net.RequestDispatcher;
+import edu.umn.cs.Nebula.net.RequestServer;
+import edu.umn.cs.Nebula.net.SessionClient;
+import edu.umn.cs.Nebula.net.SessionPool;
+import edu.umn.cs.Nebula.net.StreamListener;
 import edu.umn.cs.Nebula.node.NodeInfo;
 import edu.umn.cs.Nebula.request.JobRequest;
+import edu.umn.cs.Nebula.request.NodeReplyType;
+import edu.umn.cs.Nebula.request.SchedulerReply;
 import edu.umn.cs.Nebula.request.SchedulerRequest;
 import edu.umn.cs.Nebula.request.SchedulerRequestType;
 import edu.umn.cs.Nebula.request.TaskRequest;
@@ -47,12 +64,24 @@ public abstract class JobManager {
 
 	/* Node and lease utilities */
 	protected static String resourceManagerServer = "localhost";
-	protected static int resourceManagerPort;
+	protected static int resourceManagerPort = 6414;
+	protected static int resourceManagerSessions = 2;
+	protected static long resourceManagerTimeout = 5000; // in milliseconds
+	protected static int resourceManagerRetries = 2;
+	private static SessionPool resourceManager;
+	private static final Type leasesType = new TypeToken<HashMap<String, Lease>>() {}.getType();
 	protected static int nodePort = 2021;
-	protected static HashMap<String, NodeInfo> onlineNodes = new HashMap<String, NodeInfo>();
+	protected static ConcurrentHashMap<String, NodeInfo> onlineNodes = new ConcurrentHashMap<String, NodeInfo>();
+	private static long onlineNodesVersion = -1;
+	// epoch of the resource manager the version is from
+	private static long onlineNodesEpoch = 0;
+	private static final ReentrantLock onlineNodesLock = new ReentrantLock();
+	// whether the changes to the nodes are streamed by the resource manager
+	private static volatile boolean subscribed = false;
+	protected static long maxResubscribeDelay = 30000; // in milliseconds
 	protected static HashMap<String, RunningTask> usedNodes = new HashMap<String, RunningTask>();
 	protected static HashMap<String, Lease> leases = new HashMap<String, Lease>();
-	protected static final Object leaseLock = new Object();
+	protected static final ReentrantLock leaseLock = new ReentrantLock();
 
 	/* Job/Task utilities */
 	private static long jobId = 0;
@@ -61,7 +90,12 @@ public abstract class JobManager {
 	protected static HashMap<String, TaskInfo> runningTaskStatuses = new HashMap<String, TaskInfo>();
 	protected static HashMap<Long, Task> rescheduleTasks = new HashMap<Long, Task>();
 	protected static final Object schedulerWait = new Object();
-	protected static final Object schedulerLock = new Object();
+	protected static final ReentrantLock schedulerLock = new ReentrantLock();
+
+	/* Task dispatch */
+	protected static int taskRequestTimeout = 1000; // per node, in milliseconds
+	protected static int maxTaskRequests = 64; // task requests sent at the same time
+	private static ExecutorService taskRequestPool;
 
 	protected static Queue<Job> jobQueue = new PriorityQueue<Job>(100,
 			new Comparator<Job>() {
@@ -98,15 +132,19 @@ public abstract class JobManager {
 		appType = type;
 		DEBUG = debug;
 
-		Thread jobListener = new Thread(new JobListener(jobListenerPort, numWorkerThreads));
+		Thread jobListener = new Thread(RequestServer.create(name, jobListenerPort, numWorkerThreads, new JobRequestDispatcher()));
 		jobListener.start();
 
-		Thread taskListener = new Thread(new TaskListener(taskListenerPort, numWorkerThreads));
+		Thread taskListener = new Thread(RequestServer.create(name, taskListenerPort, numWorkerThreads, new TaskRequestDispatcher()));
 		taskListener.start();
 
 		Thread leaseMonitor = new Thread(new LeaseMonitor());
 		leaseMonitor.start();
 
+		Thread nodeSubscriber = new Thread(new NodeSubscriber(), name + "-subscriber");
+		nodeSubscriber.setDaemon(true);
+		nodeSubscriber.start();
+
 		if (DEBUG) {
 			Thread debugger = new Thread(new Debugger());
 			debugger.start();
@@ -119,93 +157,14 @@ public abstract class JobManager {
 	 */
 
 	/**
-	 * This thread listens for any job requests.
-	 * 
-	 * @author albert
-	 */
-	private static class JobListener implements Runnable {
-		private final int port;
-		private final int numThreads;
-		
-		public JobListener(int port, int poolSize) {
-			this.port = port;
-			this.numThreads = poolSize;
-		}
-		
-		@Override
-		public void run() {
-			ExecutorService requestPool = Executors.newFixedThreadPool(numThreads);
-			ServerSocket serverSocket = null;
-
-			try {
-				serverSocket = new ServerSocket(port);
-				while (true) {
-					requestPool.submit(new JobRequestHandler(serverSocket.accept()));
-				}
-			} catch (IOException e) {
-				System.err.println("[" + name + "] Failed to establish listening socket: " + e);
-			} finally {
-				requestPool.shutdown();
-				if (serverSocket != null) {
-					try {
-						serverSocket.close();
-					} catch (IOException e) {
-						System.err.println("[" + name + "] Failed closing server socket: " + e);
-					}
-				}
-			}
-		}
-	}
-
-	/**
-	 * This thread listens for any task requests.
+	 * Job request dispatcher. Replies are plain text lines.
 	 * 
 	 * @author albert
 	 */
-	private static class TaskListener implements Runnable {
-		private final int port;
-		private final int numThreads;
+	private static class JobRequestDispatcher extends RequestDispatcher<JobRequest> {
 
-		public TaskListener(int port, int poolSize) {
-			this.port = port;
-			this.numThreads = poolSize;
-		}
-		
-		@Override
-		public void run() {
-			ExecutorService requestPool = Executors.newFixedThreadPool(numThreads);
-			ServerSocket serverSocket = null;
-
-			try {
-				serverSocket = new ServerSocket(port);
-				while (true) {
-					requestPool.submit(new TaskRequestHandler(serverSocket.accept()));
-				}
-			} catch (IOException e) {
-				System.err.println("[" + name + "] Failed to establish listening socket: " + e);
-			} finally {
-				requestPool.shutdown();
-				if (serverSocket != null) {
-					try {
-						serverSocket.close();
-					} catch (IOException e) {
-						System.err.println("[" + name + "] Failed closing server socket: " + e);
-					}
-				}
-			}
-		}
-	}
-
-	/**
-	 * Job request handler.
-	 * 
-	 * @author albert
-	 */
-	private static class JobRequestHandler implements Runnable {
-		private final Socket clientSock;
-
-		public JobRequestHandler(Socket socket) {
-			clientSock = socket;
+		public JobRequestDispatcher() {
+			super(JobRequest.class);
 		}
 
 		private String parseJobRequest(JobRequest jobRequest) {
@@ -220,12 +179,15 @@ public abstract class JobManager {
 			case SUBMIT:
 				// job submission
 				if (job != null) {
-					synchronized (schedulerLock) {
+					schedulerLock.lock();
+					try {
 						// update the job ID and put the job to the schedule queue
 						job.setId(jobId);
 						jobId++;
 						jobQueue.add(job);
 						response = "Job ID: " + Long.toString(jobId - 1);
+					} finally {
+						schedulerLock.unlock();
 					}
 					synchronized (schedulerWait) {
 						// notify the scheduler there is a new job in the queue
@@ -241,14 +203,16 @@ public abstract class JobManager {
 				String nodeId;
 
 				if (job != null) {
-					synchronized (schedulerLock) {
+					schedulerLock.lock();
+					try {
 						if ((tasks = runningJobs.remove(job.getId())) != null) {
 							for (Long taskId : tasks) {
 								// get the task to be killed
-								killedTask = runningTasks.remove(taskId);
+								killedTask = runningTasks.remove(job.getId() + "_" + taskId);
+								if (killedTask == null) continue;
 								nodeId = killedTask.getNodeId();
-								// send a CANCEL request to the node
-								sendTaskRequest(nodeId, nodePort, killedTask,
+								// send a CANCEL request to the node, without holding the lock
+								sendTaskRequestAsync(nodeId, nodePort, killedTask,
 										TaskRequestType.CANCEL);
 							}
 							success = true;
@@ -256,6 +220,8 @@ public abstract class JobManager {
 						// make sure that the job is removed from the schedule
 						// queue if it has not been scheduled yet
 						response = Boolean.toString(jobQueue.remove(job) || success);
+					} finally {
+						schedulerLock.unlock();
 					}
 				}
 				break;
@@ -263,40 +229,30 @@ public abstract class JobManager {
 			return response;
 		}
 
-		public void run() {
-			BufferedReader in = null;
-			PrintWriter out = null;
-			JobRequest jobRequest = null;
-			String response = "Failed";
-
-			try {
-				in = new BufferedReader(new InputStreamReader(clientSock.getInputStream()));
-				out = new PrintWriter(clientSock.getOutputStream(), true);
-				String message = in.readLine();
-				jobRequest = gson.fromJson(message, JobRequest.class);
-			} catch (IOException e) {
-				System.err.println("[" + name + "] Failed parsing job request: " + e.getMessage());
+		@Override
+		public Object dispatch(JobRequest jobRequest) {
+			if (jobRequest == null) {
+				System.err.println("[" + name + "] Failed parsing job request");
+				return "Failed";
 			}
+			return parseJobRequest(jobRequest);
+		}
 
-			if (jobRequest != null) {
-				response = parseJobRequest(jobRequest);
-			}
-			out.println(response);
-			out.flush();
-			out.close();
+		@Override
+		public String encode(Object reply) {
+			return String.valueOf(reply);
 		}
 	}
 
 	/**
-	 * Task request handler.
+	 * Task request dispatcher. Replies are plain text lines.
 	 * 
 	 * @author albert
 	 */
-	private static class TaskRequestHandler implements Runnable {
-		private final Socket clientSock;
+	private static class TaskRequestDispatcher extends RequestDispatcher<TaskRequest> {
 
-		public TaskRequestHandler(Socket socket) {
-			clientSock = socket;
+		public TaskRequestDispatcher() {
+			super(TaskRequest.class);
 		}
 
 		private String parseTaskRequest(TaskRequest taskRequest) {
@@ -316,7 +272,8 @@ public abstract class JobManager {
 			switch (taskRequest.getType()) {
 			case CANCEL:
 				// cancel the task
-				synchronized (schedulerLock) {
+				schedulerLock.lock();
+				try {
 					if (runningTasks.get(taskId) != null) {
 						runningTasks.remove(taskId);
 					}
@@ -326,9 +283,11 @@ public abstract class JobManager {
 							runningJobs.remove(jobId);
 						}
 					}
+				} finally {
+					schedulerLock.unlock();
 				}
 				// send a CANCEL request to the node
-				sendTaskRequest(nodeId, nodePort, task, TaskRequestType.CANCEL);
+				sendTaskRequestAsync(nodeId, nodePort, task, TaskRequestType.CANCEL);
 				response = "OK";
 				break;
 			case UPDATE:
@@ -342,25 +301,35 @@ public abstract class JobManager {
 					switch (taskInfo.getStatus()) {
 					case RUNNING:
 						// monitor the load of each task
-						synchronized (schedulerLock) {
+						schedulerLock.lock();
+						try {
 							runningTaskStatuses.put(processId, taskInfo);
+						} finally {
+							schedulerLock.unlock();
 						}
 						break;
 					case ERROR:
 					case FAILED:
 						Task rescheduleTask;
-						synchronized (leaseLock) {
+						leaseLock.lock();
+						try {
 							rescheduleTask = usedNodes.remove(processId);
+						} finally {
+							leaseLock.unlock();
 						}
-						synchronized (schedulerLock) {
+						schedulerLock.lock();
+						try {
 							rescheduleTasks.put(taskId, rescheduleTask);
 							runningTasks.remove(processId);
 							runningTaskStatuses.remove(processId);
+						} finally {
+							schedulerLock.unlock();
 						}
 						break;
 					case CANCELLED:
 					case COMPLETED:
-						synchronized (schedulerLock) {
+						schedulerLock.lock();
+						try {
 							if (runningJobs.get(jobId).isEmpty()) {
 								runningJobs.remove(jobId);
 							}
@@ -368,9 +337,14 @@ public abstract class JobManager {
 							runningJobs.get(jobId).remove(taskId);
 							runningTaskStatuses.remove(processId);
 							rescheduleTasks.remove(taskId);
+						} finally {
+							schedulerLock.unlock();
 						}
-						synchronized (leaseLock) {
+						leaseLock.lock();
+						try {
 							usedNodes.remove(nodeId);
+						} finally {
+							leaseLock.unlock();
 						}
 						break;
 					default:
@@ -385,27 +359,18 @@ public abstract class JobManager {
 			return response;
 		}
 
-		public void run() {
-			BufferedReader in = null;
-			PrintWriter out = null;
-			TaskRequest taskRequest = null;
-			String response = "Failed";
-
-			try {
-				in = new BufferedReader(new InputStreamReader(clientSock.getInputStream()));
-				out = new PrintWriter(clientSock.getOutputStream(), true);
-				String message = in.readLine();
-				taskRequest = gson.fromJson(message, TaskRequest.class);
-			} catch (IOException e) {
-				System.err.println("[" + name + "] Failed parsing task request: " + e.getMessage());
+		@Override
+		public Object dispatch(TaskRequest taskRequest) {
+			if (taskRequest == null) {
+				System.err.println("[" + name + "] Failed parsing task request");
+				return "Failed";
 			}
+			return parseTaskRequest(taskRequest);
+		}
 
-			if (taskRequest != null) {
-				response = parseTaskRequest(taskRequest);
-			}
-			out.println(response);
-			out.flush();
-			out.close();
+		@Override
+		public String encode(Object reply) {
+			return String.valueOf(reply);
 		}
 	}
 
@@ -421,7 +386,8 @@ public abstract class JobManager {
 		@Override
 		public void run() {
 			while (true) {
-				synchronized (leaseLock) {
+				leaseLock.lock();
+				try {
 					for (String leasedNodeId : leases.keySet()) {
 						// for each leased node, check if the lease has expired
 						if (usedNodes.containsKey(leasedNodeId)) {
@@ -439,6 +405,8 @@ public abstract class JobManager {
 					for (String nodeId : expiredNodes) {
 						leases.remove(nodeId);
 					}
+				} finally {
+					leaseLock.unlock();
 				}
 				// release all expired nodes
 				if (!expiredNodes.isEmpty() && releaseNodes(expiredNodes)) {
@@ -455,6 +423,62 @@ public abstract class JobManager {
 		}
 	}
 
+	/**
+	 * Keeps a subscription to the node changes streamed by the resource
+	 * manager, so that nodes leaving and leases expiring are known as soon as
+	 * they happen. While subscribed the scheduler does not poll for nodes.
+	 * The subscription is renewed with an exponential backoff when the
+	 * session to the resource manager breaks.
+	 * 
+	 * @author albert
+	 */
+	private static class NodeSubscriber implements Runnable {
+
+		@Override
+		public void run() {
+			long delay = 1000;
+			while (true) {
+				final CountDownLatch closed = new CountDownLatch(1);
+				SessionClient session = new SessionClient(resourceManagerServer, resourceManagerPort);
+				SchedulerRequest request = new SchedulerRequest(SchedulerRequestType.SUBSCRIBE, name);
+				request.setVersion(onlineNodesVersion);
+				try {
+					session.connect();
+					session.subscribe(request, SchedulerReply.class, new StreamListener() {
+						@Override
+						public void onMessage(Object message) {
+							if (message instanceof SchedulerReply && applyNodeChanges((SchedulerReply) message)) {
+								subscribed = true;
+							}
+						}
+
+						@Override
+						public void onClose(IOException cause) {
+							subscribed = false;
+							closed.countDown();
+						}
+					});
+					if (DEBUG) System.out.println("[" + name + "] Subscribed to node changes");
+					delay = 1000;
+					closed.await();
+				} catch (IOException e) {
+					System.err.println("[" + name + "] Failed subscribing to node changes: " + e.getMessage());
+					session.close();
+				} catch (InterruptedException e) {
+					session.close();
+					return;
+				}
+				subscribed = false;
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					return;
+				}
+				delay = Math.min(delay * 2, maxResubscribeDelay);
+			}
+		}
+	}
+
 	/**
 	 * Debugger threads that print the information of every tasks
 	 * 
@@ -464,19 +488,25 @@ public abstract class JobManager {
 
 		private static void printTaskStatuses() {
 			System.out.println("========= TASK STATUSES =========");
-			synchronized (schedulerLock) {
+			schedulerLock.lock();
+			try {
 				System.out.println("[" + name + "] Number of jobs in queue: "+ jobQueue.size());
 				System.out.println("[" + name + "] Running tasks: " + runningTasks.keySet());
 				System.out.println("[" + name + "] Reschedule tasks: " + rescheduleTasks.keySet());
+			} finally {
+				schedulerLock.unlock();
 			}
 			System.out.println("==========================\n");
 		}
 
 		private static void printNodeStatuses() {
 			System.out.println("========= NODE STATUSES =========");
-			synchronized (leaseLock) {
+			leaseLock.lock();
+			try {
 				System.out.println("[" + name + "] Online nodes: " + onlineNodes.keySet());
 				System.out.println("[" + name + "] Leased nodes: " + leases.keySet());
+			} finally {
+				leaseLock.unlock();
 			}
 			System.out.println("==========================\n");
 		}
@@ -500,59 +530,164 @@ public abstract class JobManager {
 	 */
 
 	/**
-	 * Update the status of all online nodes. Find any used nodes that left the
-	 * system and put their corresponding tasks to be rescheduled.
+	 * @return the client for the resource manager, created on first use
+	 */
+	protected static synchronized SessionPool getResourceManager() {
+		if (resourceManager == null) {
+			resourceManager = new SessionPool(resourceManagerServer, resourceManagerPort, resourceManagerSessions,
+					resourceManagerTimeout, resourceManagerRetries);
+		}
+		return resourceManager;
+	}
+
+	private static Throwable getCause(Throwable error) {
+		return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+	}
+
+	/**
+	 * @return whether onlineNodes is kept up to date by the resource manager
+	 */
+	protected static boolean isSubscribed() {
+		return subscribed;
+	}
+
+	/**
+	 * Update the status of all online nodes with the changes since the last
+	 * update. Find any used nodes that left the system and put their
+	 * corresponding tasks to be rescheduled.
 	 * 
 	 * @return success
 	 */
 	protected static boolean updateOnlineNodes() {
-		SchedulerRequest request = new SchedulerRequest(SchedulerRequestType.GETNODES, name);
-		BufferedReader in = null;
-		PrintWriter out = null;
-		boolean success = false;
-		Socket socket = null;
+		return updateOnlineNodesAsync().join();
+	}
 
-		try {
-			// setup connection to the resource manager
-			socket = new Socket(resourceManagerServer, resourceManagerPort);
-			out = new PrintWriter(socket.getOutputStream());
-			in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+	/**
+	 * Asynchronous version of {@link #updateOnlineNodes()}. Does not poll while the changes
+	 * are streamed, see {@link #isSubscribed()}.
+	 * 
+	 * @return a future completed with success
+	 */
+	protected static CompletableFuture<Boolean> updateOnlineNodesAsync() {
+		if (subscribed) {
+			return CompletableFuture.completedFuture(true);
+		}
+		SchedulerRequest request = new SchedulerRequest(SchedulerRequestType.GETCHANGES, name);
+		request.setVersion(onlineNodesVersion);
+		return getResourceManager().send(request, SchedulerReply.class).handle(new BiFunction<Object, Throwable, Boolean>() {
+			@Override
+			public Boolean apply(Object reply, Throwable error) {
+				if (error != null) {
+					System.err.println("[" + name + "] Failed getting nodes: " + getCause(error));
+					return false;
+				}
+				return reply != null && applyNodeChanges((SchedulerReply) reply);
+			}
+		});
+	}
 
-			// send a GETNODES request to the resource manager
-			out.println(gson.toJson(request));
-			out.flush();
-			// update the info of all nodes
-			onlineNodes = gson.fromJson(in.readLine(),new TypeToken<HashMap<String, NodeInfo>>() {}.getType());
-		} catch (IOException e) {
-			System.err.println("[" + name + "] Failed getting nodes: " + e);
-		} finally {
-			try {
-				if (in != null)in.close();
-				if (out != null)out.close();
-				if (socket != null)socket.close();
-			} catch (IOException e) {
-				System.err.println("[" + name + "] Failed closing streams/socket: " + e);
+	/**
+	 * Bring onlineNodes up to the version of the reply. Find any used nodes
+	 * that left the system and put their corresponding tasks to be
+	 * rescheduled, and forget the leases the resource manager expired.
+	 * Replies of the poll and of the subscription may cross, so a reply not
+	 * newer than onlineNodes is dropped, unless it is a FULL reply from a
+	 * restarted resource manager.
+	 * 
+	 * @param reply
+	 * @return success
+	 */
+	private static boolean applyNodeChanges(SchedulerReply reply) {
+		onlineNodesLock.lock();
+		try {
+			if (reply.getType() == null) {
+				return false;
+			}
+			if (reply.getEpoch() != onlineNodesEpoch && onlineNodesVersion >= 0) {
+				if (reply.getType() != NodeReplyType.FULL) {
+					// the resource manager restarted, our version means nothing to it
+					onlineNodesVersion = -1;
+					return false;
+				}
+			} else if (reply.getVersion() <= onlineNodesVersion
+					&& (reply.getType() != NodeReplyType.FULL || reply.getEpoch() != 0)) {
+				// an older reply that arrived late; a sender without epoch may have restarted
+				return true;
+			}
+			switch (reply.getType()) {
+			case FULL:
+				onlineNodes.keySet().retainAll(reply.getNodes().keySet());
+				onlineNodes.putAll(reply.getNodes());
+				break;
+			case DIFF:
+				if (reply.getNodes() != null) {
+					onlineNodes.putAll(reply.getNodes());
+				}
+				if (reply.getRemoved() != null) {
+					onlineNodes.keySet().removeAll(reply.getRemoved());
+				}
+				break;
+			case UNCHANGED:
+				break;
+			default:
+				onlineNodesVersion = -1;
+				return false;
 			}
+			onlineNodesVersion = reply.getVersion();
+			onlineNodesEpoch = reply.getEpoch();
+		} finally {
+			onlineNodesLock.unlock();
 		}
 
-		if (onlineNodes != null) {
-			for (String usedNodeId : usedNodes.keySet()) {
+		LinkedList<RunningTask> abandonedTasks = new LinkedList<RunningTask>();
+		leaseLock.lock();
+		try {
+			if (reply.getNodes() != null) {
+				for (NodeInfo node : reply.getNodes().values()) {
+					// a lease we still hold locally but whose time is up was expired by the resource manager;
+					// a node that shows available while our lease runs is a change older than the lease
+					Lease lease = leases.get(node.getId());
+					if (lease != null && "available".equals(node.getNote()) && lease.getRemainingTime() <= 0) {
+						leases.remove(node.getId());
+					}
+				}
+			}
+			Iterator<String> usedNodeIds = usedNodes.keySet().iterator();
+			while (usedNodeIds.hasNext()) {
+				String usedNodeId = usedNodeIds.next();
 				if (!onlineNodes.containsKey(usedNodeId)) {
 					// handle used nodes that become inactive
-					synchronized (leaseLock) {
-						leases.remove(usedNodeId);
+					leases.remove(usedNodeId);
+					if (usedNodes.get(usedNodeId) != null) {
+						abandonedTasks.add(usedNodes.get(usedNodeId));
 					}
-					// set the abandoned task to be rescheduled
-					Task abandonedTask = usedNodes.remove(usedNodeId);
-					if (abandonedTask != null) {
-						runningTasks.remove(abandonedTask.getId());
-						rescheduleTasks.put(abandonedTask.getId(), abandonedTask);
+					usedNodeIds.remove();
+				}
+			}
+		} finally {
+			leaseLock.unlock();
+		}
+
+		if (!abandonedTasks.isEmpty()) {
+			// set the abandoned tasks to be rescheduled
+			schedulerLock.lock();
+			try {
+				for (RunningTask abandonedTask : abandonedTasks) {
+					runningTasks.remove(abandonedTask.getJobId() + "_" + abandonedTask.getId());
+					if (runningJobs.containsKey(abandonedTask.getJobId())) {
+						runningJobs.get(abandonedTask.getJobId()).remove(abandonedTask.getId());
 					}
+					rescheduleTasks.put(abandonedTask.getId(), abandonedTask);
 				}
+			} finally {
+				schedulerLock.unlock();
+			}
+			if (DEBUG) System.out.println("[" + name + "] " + abandonedTasks.size() + " tasks lost their node");
+			synchronized (schedulerWait) {
+				schedulerWait.notifyAll();
 			}
-			success = true;
 		}
-		return success;
+		return true;
 	}
 
 	/**
@@ -562,61 +697,59 @@ public abstract class JobManager {
 	 * @return
 	 */
 	protected static HashMap<String, Lease> leaseNodes(HashMap<String, Lease> leaseRequest) {
+		return leaseNodesAsync(leaseRequest).join();
+	}
+
+	/**
+	 * Asynchronous version of {@link #leaseNodes(HashMap)}.
+	 * 
+	 * @param leaseRequest
+	 * @return a future completed with the leases obtained, or null
+	 */
+	protected static CompletableFuture<HashMap<String, Lease>> leaseNodesAsync(HashMap<String, Lease> leaseRequest) {
 		SchedulerRequest request = new SchedulerRequest(SchedulerRequestType.LEASE, name);
-		BufferedReader in = null;
-		PrintWriter out = null;
-		Socket socket = null;
-		HashMap<String, Lease> successLeases = null;
 
 		if (leaseRequest == null || leaseRequest.isEmpty()) {
 			if (DEBUG)
 				System.out.println("[" + name + "] Lease is null or empty.");
-			return null;
+			return CompletableFuture.completedFuture(null);
 		}
 
 		for (String nodeId : leaseRequest.keySet()) {
 			// we can only lease nodes that are currently not being used by
 			// another scheduler
 			if (onlineNodes.containsKey(nodeId)
-					&& (onlineNodes.get(nodeId).getNote().equals("0") || leases.containsKey(nodeId))) {
+					&& ("available".equals(onlineNodes.get(nodeId).getNote()) || leases.containsKey(nodeId))) {
 				request.addLease(nodeId, leaseRequest.get(nodeId));
 			}
 		}
 
-		try {
-			// setup connection to the resource manager
-			socket = new Socket(resourceManagerServer, resourceManagerPort);
-			out = new PrintWriter(socket.getOutputStream());
-			in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-			// send a LEASE request to the resource manager
-			out.println(gson.toJson(request));
-			out.flush();
-			successLeases = gson.fromJson(in.readLine(),new TypeToken<HashMap<String, Lease>>() {}.getType());
-		} catch (IOException e) {
-			System.err.println("[" + name + "] Failed leasing nodes: " + e);
-		} finally {
-			try {
-				if (in != null)in.close();
-				if (out != null)out.close();
-				if (socket != null)socket.close();
-			} catch (IOException e) {
-				System.err.println("[" + name + "] Failed closing streams/socket: " + e);
-			}
-		}
-
-		if (successLeases == null || successLeases.isEmpty()) {
-			if (DEBUG) System.out.println("["+ name+ "] Failed leasing. Leases return with null, or empty leases.");
-			return null;
-		}
+		return getResourceManager().send(request, leasesType).handle(new BiFunction<Object, Throwable, HashMap<String, Lease>>() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public HashMap<String, Lease> apply(Object reply, Throwable error) {
+				if (error != null) {
+					System.err.println("[" + name + "] Failed leasing nodes: " + getCause(error));
+					return null;
+				}
+				HashMap<String, Lease> successLeases = (HashMap<String, Lease>) reply;
+				if (successLeases == null || successLeases.isEmpty()) {
+					if (DEBUG) System.out.println("["+ name+ "] Failed leasing. Leases return with null, or empty leases.");
+					return null;
+				}
 
-		// record the nodes that have been successfully leased
-		synchronized (leaseLock) {
-			for (String nodeId : successLeases.keySet()) {
-				leases.put(nodeId, successLeases.get(nodeId));
+				// record the nodes that have been successfully leased
+				leaseLock.lock();
+				try {
+					for (String nodeId : successLeases.keySet()) {
+						leases.put(nodeId, successLeases.get(nodeId));
+					}
+				} finally {
+					leaseLock.unlock();
+				}
+				return successLeases;
 			}
-		}
-		return successLeases;
+		});
 	}
 
 	/**
@@ -626,34 +759,27 @@ public abstract class JobManager {
 	 * @return
 	 */
 	protected static boolean releaseNodes(Set<String> nodes) {
-		SchedulerRequest request = new SchedulerRequest(SchedulerRequestType.RELEASE, name, nodes);
-		BufferedReader in = null;
-		PrintWriter out = null;
-		Socket socket = null;
-		boolean success = false;
-
-		try {
-			// setup connection to the resource manager
-			socket = new Socket(resourceManagerServer, resourceManagerPort);
-			out = new PrintWriter(socket.getOutputStream());
-			in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+		return releaseNodesAsync(nodes).join();
+	}
 
-			// send a REALEASE message to the resource manager
-			out.println(gson.toJson(request));
-			out.flush();
-			success = gson.fromJson(in.readLine(), Boolean.class);
-		} catch (IOException e) {
-			System.err.println("[" + name + "] Failed releasing nodes: " + e);
-		} finally {
-			try {
-				if (in != null)in.close();
-				if (out != null)out.close();
-				if (socket != null)socket.close();
-			} catch (IOException e) {
-				System.err.println("[" + name+ "] Failed closing streams/socket: " + e);
+	/**
+	 * Asynchronous version of {@link #releaseNodes(Set)}.
+	 * 
+	 * @param nodes
+	 * @return a future completed with success
+	 */
+	protected static CompletableFuture<Boolean> releaseNodesAsync(Set<String> nodes) {
+		SchedulerRequest request = new SchedulerRequest(SchedulerRequestType.RELEASE, name, nodes);
+		return getResourceManager().send(request, Boolean.class).handle(new BiFunction<Object, Throwable, Boolean>() {
+			@Override
+			public Boolean apply(Object reply, Throwable error) {
+				if (error != null) {
+					System.err.println("[" + name + "] Failed releasing nodes: " + getCause(error));
+					return false;
+				}
+				return Boolean.TRUE.equals(reply);
 			}
-		}
-		return success;
+		});
 	}
 
 	// /**
@@ -815,8 +941,9 @@ public abstract class JobManager {
 
 		if (DEBUG) System.out.println("[" + name + "] Sending TaskRequest to " + nodeIp + ":" + port);
 		try {
-			// send the request to the node
-			socket.connect(new InetSocketAddress(nodeIp, port), 1000);
+			// send the request to the node, a dead node must not hold the caller longer than the timeout
+			socket.connect(new InetSocketAddress(nodeIp, port), taskRequestTimeout);
+			socket.setSoTimeout(taskRequestTimeout);
 			out = new PrintWriter(socket.getOutputStream());
 			in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 			out.println(gson.toJson(request));
@@ -842,4 +969,38 @@ public abstract class JobManager {
 		}
 		return success;
 	}
+
+	/**
+	 * Send a task request to a node without waiting for the reply. At most
+	 * {@link #maxTaskRequests} requests are sent at the same time, the others
+	 * wait for a free slot.
+	 * 
+	 * @return a future completed with the result of
+	 *         {@link #sendTaskRequest(String, int, RunningTask, TaskRequestType)}
+	 */
+	protected static CompletableFuture<Boolean> sendTaskRequestAsync(final String nodeIp, final int port,
+			final RunningTask task, final TaskRequestType type) {
+		return CompletableFuture.supplyAsync(new Supplier<Boolean>() {
+			@Override
+			public Boolean get() {
+				return sendTaskRequest(nodeIp, port, task, type);
+			}
+		}, getTaskRequestPool());
+	}
+
+	private static synchronized ExecutorService getTaskRequestPool() {
+		if (taskRequestPool == null) {
+			taskRequestPool = Executors.newFixedThreadPool(maxTaskRequests, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "task-request-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return taskRequestPool;
+	}
 }
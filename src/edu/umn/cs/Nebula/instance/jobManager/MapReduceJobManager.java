@@ -63,8 +63,8 @@ public class MapReduceJobManager extends JobManager {
 				continue;
 			}
 			
-			// get a list of currently active nodes
-			if (!updateOnlineNodes() || onlineNodes == null || onlineNodes.isEmpty()) {
+			// get a list of currently active nodes, unless they are streamed
+			if ((!isSubscribed() && !updateOnlineNodes()) || onlineNodes == null || onlineNodes.isEmpty()) {
 				System.out.println("[" + name + "] Not nodes found.");
 				Thread.sleep(sleepTime);
 				continue;
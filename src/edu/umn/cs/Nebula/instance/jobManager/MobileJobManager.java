@@ -1,8 +1,14 @@
 package edu.umn.cs.Nebula.instance.jobManager;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import edu.umn.cs.Nebula.job.ApplicationType;
 import edu.umn.cs.Nebula.job.Job;
@@ -66,10 +72,13 @@ public class MobileJobManager extends JobManager {
 					} catch (InterruptedException e) {}
 				}
 
-				synchronized (schedulerLock) {
+				schedulerLock.lock();
+				try {
 					// make sure there is a job in the queue
 					if (jobQueue.isEmpty()) continue;
 					jobToBeScheduled = jobQueue.remove();
+				} finally {
+					schedulerLock.unlock();
 				}
 				
 				// schedule the tasks, get the number of tasks that have been
@@ -83,12 +92,15 @@ public class MobileJobManager extends JobManager {
 					if (DEBUG) System.out.println("[" + name + "] No tasks can be scheduled");
 					continue;
 				}
-				synchronized (schedulerLock) {
+				schedulerLock.lock();
+				try {
 					if (numScheduledTasks > 0 && jobToBeScheduled.getNumTasks() > 0) {
 						// update the next task to be scheduled
 						jobToBeScheduled.increasePriority();
 						jobQueue.add(jobToBeScheduled);
 					}
+				} finally {
+					schedulerLock.unlock();
 				}
 			}
 		}
@@ -102,12 +114,17 @@ public class MobileJobManager extends JobManager {
 		 *            the job to be scheduled
 		 * @return the number of tasks that are successfully scheduled
 		 */
-		private int schedule(Job job) {
-			boolean success = false;
+		private int schedule(final Job job) {
 			HashMap<String, RunningTask> deployableTasks = new HashMap<String, RunningTask>();
 			HashMap<String, Lease> leaseRequest = new HashMap<String, Lease>();
 			HashMap<String, Lease> successLeases;
 
+			// refresh the online nodes unless they are streamed, keeping the last known ones if the
+			// resource manager is unreachable
+			if (!isSubscribed()) {
+				updateOnlineNodes();
+			}
+
 			// check if we have any available nodes
 			LinkedList<String> availableNodes = new LinkedList<String>();
 			availableNodes.addAll(onlineNodes.keySet());
@@ -144,32 +161,59 @@ public class MobileJobManager extends JobManager {
 				return -1;
 			}
 
-			for (String nodeId : deployableTasks.keySet()) {
-				if (!successLeases.containsKey(nodeId)) {
-					deployableTasks.remove(nodeId);
-				}
+			deployableTasks.keySet().retainAll(successLeases.keySet());
+
+			// deploy the tasks on all nodes at once, recording each task as soon as its node accepts it
+			final AtomicInteger numScheduledTasks = new AtomicInteger();
+			final Set<String> failedNodes = Collections.synchronizedSet(new HashSet<String>());
+			CompletableFuture<?>[] dispatches = new CompletableFuture<?>[deployableTasks.size()];
+			int i = 0;
+			for (final String nodeId : deployableTasks.keySet()) {
+				final RunningTask task = deployableTasks.get(nodeId);
+				dispatches[i++] = sendTaskRequestAsync(nodeId, nodePort, task, TaskRequestType.RUN)
+						.thenAccept(new Consumer<Boolean>() {
+							@Override
+							public void accept(Boolean success) {
+								if (!success) {
+									failedNodes.add(nodeId);
+									return;
+								}
+								numScheduledTasks.incrementAndGet();
+								// keep the job-task info in the runningJobs structure
+								schedulerLock.lock();
+								try {
+									if (!runningJobs.containsKey(job.getId())) {
+										runningJobs.put(job.getId(), new LinkedList<Long>());
+									}
+									runningJobs.get(job.getId()).addLast(task.getId());
+									runningTasks.put(job.getId() + "_" + task.getId(), task);
+								} finally {
+									schedulerLock.unlock();
+								}
+								leaseLock.lock();
+								try {
+									usedNodes.put(nodeId, task);
+								} finally {
+									leaseLock.unlock();
+								}
+							}
+						});
 			}
-
-			int numScheduledTasks = 0;
-			RunningTask task;
-			for (String nodeId : deployableTasks.keySet()) {
-				// Deploy the task on the node
-				task = deployableTasks.get(nodeId);
-				success = sendTaskRequest(nodeId, nodePort, task, TaskRequestType.RUN);
-
-				if (success) {
-					numScheduledTasks++;
-					// keep the job-task info in the runningJobs structure
-					synchronized (schedulerLock) {
-						if (!runningJobs.containsKey(job.getId())) {runningJobs.put(job.getId(), new LinkedList<Long>());
-						}
-						runningJobs.get(job.getId()).addLast(task.getId());
-						runningTasks.put(job.getId() + "_" + task.getId(), task);
-					}
+			CompletableFuture.allOf(dispatches).join();
+
+			// give back the nodes that did not take their task
+			if (!failedNodes.isEmpty()) {
+				if (DEBUG) System.out.println("[" + name + "] Failed deploying tasks on " + failedNodes);
+				leaseLock.lock();
+				try {
+					leases.keySet().removeAll(failedNodes);
+				} finally {
+					leaseLock.unlock();
 				}
+				releaseNodesAsync(new HashSet<String>(failedNodes));
 			}
 
-			return numScheduledTasks;
+			return numScheduledTasks.get();
 		}
 	}
 }
@@ -0,0 +1,77 @@
+package edu.umn.cs.Nebula.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the number of requests waiting for a thread of a server. Past half the bound only
+ * requests of high priority are queued, past the bound none is: a request that is shed is
+ * answered at once, and told to retry after the time the queue takes to drain at the current
+ * rate, rather than being answered after its client has given up.
+ *
+ * The bound is set with {@code -Dnebula.server.maxQueued} (1000 by default).
+ *
+ * @author albert
+ */
+public class AdmissionControl {
+	public static final String MAX_QUEUED_PROPERTY = "nebula.server.maxQueued";
+	private static final int defaultMaxQueued = 1000;
+	private static final long minRetryAfter = 1000; // in milliseconds
+	private static final long maxRetryAfter = 30000; // in milliseconds
+
+	private final LoadMeter load;
+	private final int maxQueued;
+	private final AtomicLong shed = new AtomicLong();
+
+	/**
+	 * @param load		load of the server, which counts the waiting requests
+	 * @param maxQueued	most requests waiting for a thread
+	 */
+	public AdmissionControl(LoadMeter load, int maxQueued) {
+		this.load = load;
+		this.maxQueued = Math.max(1, maxQueued);
+	}
+
+	/**
+	 * Create the admission control with the bound given with {@code -Dnebula.server.maxQueued}.
+	 */
+	public static AdmissionControl fromProperties(LoadMeter load) {
+		return new AdmissionControl(load, Integer.getInteger(MAX_QUEUED_PROPERTY, defaultMaxQueued));
+	}
+
+	/**
+	 * Decide whether a request can wait for a thread. The count of waiting requests is not
+	 * reserved, so concurrent callers may overshoot the bound by a few.
+	 *
+	 * @param priority	priority of the request, above 0 for the requests shed last
+	 * @return true if the request is to be queued, false if it is shed
+	 */
+	public boolean admit(int priority) {
+		int bound = priority > 0 ? maxQueued : maxQueued / 2;
+		if (load.getQueueDepth() < bound) {
+			return true;
+		}
+		shed.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * @return the time after which a shed request should be sent again, in milliseconds, the
+	 * shortest one until a rate has been measured
+	 */
+	public long getRetryAfter() {
+		double rate = load.getRequestRate();
+		long drain = rate > 0 ? (long) (load.getQueueDepth() * 1000 / rate) : minRetryAfter;
+		return Math.max(minRetryAfter, Math.min(maxRetryAfter, drain));
+	}
+
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+
+	/**
+	 * @return the number of requests shed since startup
+	 */
+	public long getShed() {
+		return shed.get();
+	}
+}
@@ -0,0 +1,378 @@
+package edu.umn.cs.Nebula.net;
+
+import java.io.IOException;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact binary payloads (version 1).
+ *
+ * Every value starts with a one-byte tag. Integers are zigzag varints, collections are a
+ * varint size followed by their elements, and objects of the request package are written as
+ * {@link #MESSAGE}: the schema id, the number of fields and the fields in schema order
+ * (see {@link MessageSchemas}). Readers ignore fields they do not know and leave missing
+ * fields unset, so schemas can grow by appending fields.
+ *
+ * Short strings (node ids, enum names, ...) are interned per connection: the first time a
+ * string is written it is sent in full and both sides append it to their string table, and
+ * afterwards it is sent as its index in the table. The codec is therefore stateful and must
+ * encode and decode frames in the order they travel on the connection.
+ *
+ * @author albert
+ */
+public class BinaryCodec extends WireCodec {
+	public static final String NAME = "binary/1";
+
+	static final byte NULL = 0;
+	static final byte TRUE = 1;
+	static final byte FALSE = 2;
+	static final byte INT = 3;
+	static final byte LONG = 4;
+	static final byte FLOAT = 5;
+	static final byte DOUBLE = 6;
+	static final byte STRING = 7;
+	static final byte STRING_REF = 8;
+	static final byte LIST = 9;
+	static final byte SET = 10;
+	static final byte MAP = 11;
+	static final byte MESSAGE = 12;
+
+	private static final int maxInternLength = 64;
+	private static final int maxInterned = 1 << 16;
+
+	// strings interned by this side when encoding and by the peer when decoding
+	private final HashMap<String, Integer> sentStrings = new HashMap<String, Integer>();
+	private final ArrayList<String> receivedStrings = new ArrayList<String>();
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public boolean isStateful() {
+		return true;
+	}
+
+	@Override
+	public byte[] encode(Object message) {
+		Output out = new Output();
+		try {
+			out.writeValue(message);
+		} catch (RuntimeException e) {
+			// the frame will not be sent, forget the strings it would have interned
+			for (String interned : out.interned) {
+				sentStrings.remove(interned);
+			}
+			throw e;
+		}
+		return out.toByteArray();
+	}
+
+	@Override
+	public Object decode(byte[] data, Type type) throws IOException {
+		Input in = new Input(data);
+		Object value;
+		try {
+			value = in.readValue();
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("Truncated payload");
+		}
+		return adapt(value, type);
+	}
+
+	private static boolean isInternable(String value) {
+		return value.length() <= maxInternLength;
+	}
+
+	/**
+	 * Convert a decoded collection into the collection class expected by the caller.
+	 *
+	 * @return the value, or null if it cannot be converted to the expected type
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object adapt(Object value, Type type) throws IOException {
+		Class<?> raw = null;
+		if (type instanceof Class) {
+			raw = (Class<?>) type;
+		} else if (type instanceof ParameterizedType) {
+			raw = (Class<?>) ((ParameterizedType) type).getRawType();
+		}
+		if (value == null || raw == null || raw.isInstance(value)) {
+			return value;
+		}
+		try {
+			if (value instanceof Collection && Collection.class.isAssignableFrom(raw) && !raw.isInterface()) {
+				Collection adapted = (Collection) raw.getDeclaredConstructor().newInstance();
+				adapted.addAll((Collection) value);
+				return adapted;
+			}
+			if (value instanceof Map && Map.class.isAssignableFrom(raw) && !raw.isInterface()) {
+				Map adapted = (Map) raw.getDeclaredConstructor().newInstance();
+				adapted.putAll((Map) value);
+				return adapted;
+			}
+		} catch (ReflectiveOperationException e) {
+			throw new IOException("Cannot create " + raw.getName());
+		}
+		// a reply of another type (e.g. false for a failed request) reads as no reply
+		return null;
+	}
+
+	/**
+	 * Growable output buffer.
+	 */
+	public class Output {
+		private byte[] buffer = new byte[256];
+		private int size = 0;
+		private final ArrayList<String> interned = new ArrayList<String>();
+
+		private void ensure(int extra) {
+			if (size + extra > buffer.length) {
+				byte[] larger = new byte[Math.max(buffer.length * 2, size + extra)];
+				System.arraycopy(buffer, 0, larger, 0, size);
+				buffer = larger;
+			}
+		}
+
+		public void writeByte(int value) {
+			ensure(1);
+			buffer[size++] = (byte) value;
+		}
+
+		public void writeVarLong(long value) {
+			ensure(10);
+			while ((value & ~0x7FL) != 0) {
+				buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buffer[size++] = (byte) value;
+		}
+
+		public void writeVarInt(int value) {
+			writeVarLong(value & 0xFFFFFFFFL);
+		}
+
+		private void writeFixed(long value, int bytes) {
+			ensure(bytes);
+			for (int i = bytes - 1; i >= 0; i--) {
+				buffer[size++] = (byte) (value >>> (i * 8));
+			}
+		}
+
+		public void writeString(String value) {
+			Integer ref = sentStrings.get(value);
+			if (ref != null) {
+				writeByte(STRING_REF);
+				writeVarInt(ref);
+				return;
+			}
+			byte[] bytes = value.getBytes(Frame.UTF8);
+			writeByte(STRING);
+			writeVarInt(bytes.length);
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, buffer, size, bytes.length);
+			size += bytes.length;
+			if (isInternable(value) && sentStrings.size() < maxInterned) {
+				sentStrings.put(value, sentStrings.size());
+				interned.add(value);
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		public void writeValue(Object value) {
+			if (value == null) {
+				writeByte(NULL);
+			} else if (value instanceof Boolean) {
+				writeByte((Boolean) value ? TRUE : FALSE);
+			} else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+				int v = ((Number) value).intValue();
+				writeByte(INT);
+				writeVarInt((v << 1) ^ (v >> 31));
+			} else if (value instanceof Long) {
+				long v = (Long) value;
+				writeByte(LONG);
+				writeVarLong((v << 1) ^ (v >> 63));
+			} else if (value instanceof Float) {
+				writeByte(FLOAT);
+				writeFixed(Float.floatToIntBits((Float) value) & 0xFFFFFFFFL, 4);
+			} else if (value instanceof Double) {
+				writeByte(DOUBLE);
+				writeFixed(Double.doubleToLongBits((Double) value), 8);
+			} else if (value instanceof String) {
+				writeString((String) value);
+			} else if (value instanceof Enum) {
+				writeString(((Enum<?>) value).name());
+			} else if (value instanceof Map) {
+				Map<Object, Object> map = (Map<Object, Object>) value;
+				writeByte(MAP);
+				writeVarInt(map.size());
+				for (Map.Entry<Object, Object> entry : map.entrySet()) {
+					writeValue(entry.getKey());
+					writeValue(entry.getValue());
+				}
+			} else if (value instanceof Collection) {
+				Collection<Object> collection = (Collection<Object>) value;
+				writeByte(value instanceof Set ? SET : LIST);
+				writeVarInt(collection.size());
+				for (Object element : collection) {
+					writeValue(element);
+				}
+			} else {
+				MessageSchema<Object> schema = (MessageSchema<Object>) MessageSchemas.forClass(value.getClass());
+				if (schema == null) {
+					throw new IllegalArgumentException("No binary schema for " + value.getClass().getName());
+				}
+				Object[] fields = schema.fields(value);
+				writeByte(MESSAGE);
+				writeVarInt(schema.getId());
+				writeVarInt(fields.length);
+				for (Object field : fields) {
+					writeValue(field);
+				}
+			}
+		}
+
+		public byte[] toByteArray() {
+			byte[] result = new byte[size];
+			System.arraycopy(buffer, 0, result, 0, size);
+			return result;
+		}
+	}
+
+	/**
+	 * Cursor over a received payload.
+	 */
+	public class Input {
+		private final byte[] data;
+		private int position = 0;
+
+		public Input(byte[] data) {
+			this.data = data;
+		}
+
+		private int readByte() {
+			if (position >= data.length) {
+				throw new IndexOutOfBoundsException();
+			}
+			return data[position++] & 0xFF;
+		}
+
+		public long readVarLong() throws IOException {
+			long result = 0;
+			int b;
+			for (int shift = 0; shift < 64; shift += 7) {
+				b = readByte();
+				result |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return result;
+				}
+			}
+			throw new IOException("Malformed varint");
+		}
+
+		public int readVarInt() throws IOException {
+			return (int) readVarLong();
+		}
+
+		private int readSize() throws IOException {
+			int n = readVarInt();
+			if (n < 0 || n > data.length - position) {
+				// every element takes at least one byte
+				throw new IOException("Invalid size: " + n);
+			}
+			return n;
+		}
+
+		private long readFixed(int bytes) {
+			long result = 0;
+			for (int i = 0; i < bytes; i++) {
+				result = (result << 8) | readByte();
+			}
+			return result;
+		}
+
+		public Object readValue() throws IOException {
+			int tag = readByte();
+			int n;
+			switch (tag) {
+			case NULL:
+				return null;
+			case TRUE:
+				return Boolean.TRUE;
+			case FALSE:
+				return Boolean.FALSE;
+			case INT:
+				int i = readVarInt();
+				return (i >>> 1) ^ -(i & 1);
+			case LONG:
+				long l = readVarLong();
+				return (l >>> 1) ^ -(l & 1);
+			case FLOAT:
+				return Float.intBitsToFloat((int) readFixed(4));
+			case DOUBLE:
+				return Double.longBitsToDouble(readFixed(8));
+			case STRING:
+				n = readSize();
+				String value = new String(data, position, n, Frame.UTF8);
+				position += n;
+				if (isInternable(value) && receivedStrings.size() < maxInterned) {
+					receivedStrings.add(value);
+				}
+				return value;
+			case STRING_REF:
+				n = readVarInt();
+				if (n < 0 || n >= receivedStrings.size()) {
+					throw new IOException("Unknown string reference: " + n);
+				}
+				return receivedStrings.get(n);
+			case LIST:
+				n = readSize();
+				ArrayList<Object> list = new ArrayList<Object>(n);
+				for (int k = 0; k < n; k++) {
+					list.add(readValue());
+				}
+				return list;
+			case SET:
+				n = readSize();
+				HashSet<Object> set = new HashSet<Object>();
+				for (int k = 0; k < n; k++) {
+					set.add(readValue());
+				}
+				return set;
+			case MAP:
+				n = readSize();
+				LinkedHashMap<Object, Object> map = new LinkedHashMap<Object, Object>();
+				for (int k = 0; k < n; k++) {
+					Object key = readValue();
+					map.put(key, readValue());
+				}
+				return map;
+			case MESSAGE:
+				MessageSchema<?> schema = MessageSchemas.forId(readVarInt());
+				n = readSize();
+				if (schema == null) {
+					throw new IOException("Unknown message schema");
+				}
+				Object[] fields = new Object[Math.max(n, schema.getNumFields())];
+				for (int k = 0; k < n; k++) {
+					fields[k] = readValue();
+				}
+				try {
+					return schema.create(fields);
+				} catch (ClassCastException e) {
+					throw new IOException("Invalid field in " + schema.getType().getSimpleName() + ": " + e.getMessage());
+				}
+			default:
+				throw new IOException("Unknown tag: " + tag);
+			}
+		}
+	}
+}
@@ -0,0 +1,315 @@
+package edu.umn.cs.Nebula.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-per-connection server: connections are accepted by the calling thread and
+ * handled by a fixed pool using blocking streams. Sessions get their own thread for as
+ * long as they are open.
+ *
+ * A connection is only read by its pool thread, so requests cannot be told apart while they
+ * wait: when the {@link AdmissionControl} bound is reached, new connections skip the pool. A
+ * single shedding thread reads their request and answers it with the overloaded reply of the
+ * dispatcher, such as a RETRY, or closes them if the dispatcher has none or too many are waiting.
+ *
+ * @author albert
+ */
+public class BlockingServer extends RequestServer {
+	private static final int backlog = 1024;
+	private static final int maxShedQueued = 1024;
+	private static final int shedReadTimeout = 1000; // in milliseconds
+
+	private final int poolSize;
+
+	private ServerSocket serverSock;
+	private ExecutorService requestPool;
+	private ExecutorService sessionPool;
+	private ExecutorService shedPool;
+	private volatile boolean running = false;
+
+	public BlockingServer(String name, int port, int poolSize, RequestDispatcher<?> dispatcher) {
+		super(name, port, dispatcher);
+		this.poolSize = poolSize;
+	}
+
+	@Override
+	public void run() {
+		// listening for client requests
+		requestPool = executorStrategy.newRequestPool(poolSize);
+		sessionPool = executorStrategy.newConnectionPool();
+		shedPool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(maxShedQueued));
+		try {
+			serverSock = new ServerSocket(port, backlog);
+			running = true;
+			while (running) {
+				Socket clientSock = serverSock.accept();
+				if (!admission.admit(1)) {
+					shed(clientSock);
+					continue;
+				}
+				load.queued();
+				requestPool.submit(new ConnectionHandler(clientSock));
+			}
+		} catch (IOException e) {
+			if (running) {
+				System.err.println("[" + name + "] Failed to establish listening socket: " + e);
+			}
+		} finally {
+			close();
+		}
+	}
+
+	@Override
+	public void close() {
+		running = false;
+		if (requestPool != null) requestPool.shutdown();
+		if (sessionPool != null) sessionPool.shutdown();
+		if (shedPool != null) shedPool.shutdown();
+		if (serverSock != null) {
+			try {
+				serverSock.close();
+			} catch (IOException e) {
+				System.err.println("[" + name + "] Failed to close listening socket");
+			}
+		}
+	}
+
+	/**
+	 * Answer a connection turned away by the admission control on the shedding thread, or
+	 * close it if the shedding thread is behind.
+	 */
+	private void shed(Socket clientSock) {
+		try {
+			shedPool.execute(new ShedHandler(clientSock));
+		} catch (RejectedExecutionException e) {
+			try {
+				clientSock.close();
+			} catch (IOException e1) {}
+		}
+	}
+
+	/**
+	 * Reads the request of a connection that is shed and answers it with the overloaded reply
+	 * of the dispatcher. Sessions are closed, their clients reconnect with a backoff.
+	 */
+	private class ShedHandler implements Runnable {
+		private final Socket clientSock;
+
+		public ShedHandler(Socket sock) {
+			clientSock = sock;
+		}
+
+		@Override
+		public void run() {
+			try {
+				clientSock.setSoTimeout(shedReadTimeout);
+				BufferedInputStream in = new BufferedInputStream(clientSock.getInputStream());
+				String line = Frame.readLine(in);
+				if (line == null || line.equals(Frame.HANDSHAKE) || line.startsWith(Frame.HANDSHAKE + " ")) {
+					return;
+				}
+				Object reply = dispatcher.overloadedObject(dispatcher.decodeLine(line), admission.getRetryAfter());
+				if (reply != null) {
+					PrintWriter out = new PrintWriter(clientSock.getOutputStream(), true);
+					out.println(dispatcher.encode(reply));
+					out.flush();
+				}
+			} catch (IOException e) {
+				// the client is gone or too slow to wait for
+			} finally {
+				try {
+					clientSock.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	/**
+	 * Reads the first line of a connection. Answers it if it is a request,
+	 * or hands the connection over to a {@link SessionHandler} if it is the session handshake.
+	 */
+	private class ConnectionHandler implements Runnable {
+		private final Socket clientSock;
+		private final long acceptedAt = System.nanoTime();
+
+		public ConnectionHandler(Socket sock) {
+			clientSock = sock;
+		}
+
+		@Override
+		public void run() {
+			BufferedInputStream in = null;
+			PrintWriter out = null;
+			String line;
+			boolean handedOver = false;
+
+			// a session counts as one request for its handshake
+			load.started(acceptedAt);
+			try {
+				in = new BufferedInputStream(clientSock.getInputStream());
+				out = new PrintWriter(clientSock.getOutputStream(), true);
+				line = Frame.readLine(in);
+				if (line != null && (line.equals(Frame.HANDSHAKE) || line.startsWith(Frame.HANDSHAKE + " "))) {
+					// do not hold a request thread for the lifetime of the session
+					WireCodec codec = WireCodec.negotiate(line.substring(Frame.HANDSHAKE.length()));
+					sessionPool.submit(new SessionHandler(clientSock, in, codec));
+					handedOver = true;
+					return;
+				}
+				String reply;
+				try {
+					reply = dispatcher.dispatchLine(line);
+				} catch (RuntimeException e) {
+					System.err.println("[" + name + "] Failed handling request: " + e);
+					reply = dispatcher.encode(null);
+				}
+				out.println(reply);
+				out.flush();
+			} catch (IOException e) {
+				System.out.println("[" + name + "] Failed parsing request: " + e.getMessage());
+				if (out != null) {
+					out.println(dispatcher.encode(false));
+					out.flush();
+				}
+			} finally {
+				if (!handedOver) {
+					try {
+						if (in != null) in.close();
+						if (out != null) out.close();
+						clientSock.close();
+					} catch (IOException e) {
+						System.err.println("[" + name + "] Failed closing streams/socket: " + e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Serves a persistent session. Every frame carries one request
+	 * and is answered with a frame of the same id, until the client closes the connection.
+	 * A {@link ReplyStream} keeps sending frames of the same id from other threads.
+	 */
+	private class SessionHandler implements Runnable {
+		private final Socket clientSock;
+		private final BufferedInputStream bufferedIn;
+		private final WireCodec codec;
+		private DataOutputStream out;
+		// replies are encoded and written under this lock so that a stateful codec sees them in wire order
+		private final ReentrantLock writeLock = new ReentrantLock();
+
+		public SessionHandler(Socket sock, BufferedInputStream in, WireCodec codec) {
+			clientSock = sock;
+			bufferedIn = in;
+			this.codec = codec;
+		}
+
+		@Override
+		public void run() {
+			DataInputStream in = new DataInputStream(bufferedIn);
+			Frame frame;
+
+			try {
+				out = new DataOutputStream(new BufferedOutputStream(clientSock.getOutputStream()));
+				clientSock.setTcpNoDelay(true);
+				out.write((Frame.ACCEPTED + " " + codec.getName() + "\n").getBytes(Frame.UTF8));
+				out.flush();
+
+				while ((frame = Frame.read(in)) != null) {
+					// a session has its own thread, its requests do not wait
+					load.received();
+					Object request;
+					try {
+						request = dispatcher.decodeFrame(frame.getPayload(), codec);
+					} catch (RuntimeException e) {
+						if (codec.isStateful()) {
+							// the frame may not have been read to the end, the codec is out of sync
+							throw e;
+						}
+						System.err.println("[" + name + "] Failed decoding request: " + e);
+						request = null;
+					}
+					Object reply;
+					try {
+						reply = dispatcher.dispatchObject(request);
+					} catch (RuntimeException e) {
+						System.err.println("[" + name + "] Failed handling request: " + e);
+						reply = null;
+					}
+					if (reply instanceof ReplyStream) {
+						((ReplyStream) reply).open(new Sink(frame.getId()));
+						continue;
+					}
+					write(frame.getId(), reply);
+				}
+			} catch (IOException | RuntimeException e) {
+				System.out.println("[" + name + "] Session closed: " + e);
+			} finally {
+				try {
+					clientSock.close();
+				} catch (IOException e) {
+					System.err.println("[" + name + "] Failed closing socket: " + e);
+				}
+			}
+		}
+
+		private void write(int id, Object reply) throws IOException {
+			writeLock.lock();
+			try {
+				byte[] bytes;
+				try {
+					bytes = dispatcher.encodeFrame(reply, codec);
+				} catch (RuntimeException e) {
+					System.err.println("[" + name + "] Failed encoding reply: " + e);
+					bytes = dispatcher.encodeFrame(null, codec);
+				}
+				new Frame(id, bytes).write(out);
+				out.flush();
+			} finally {
+				writeLock.unlock();
+			}
+		}
+
+		private class Sink implements ReplySink {
+			private final int id;
+
+			public Sink(int id) {
+				this.id = id;
+			}
+
+			@Override
+			public boolean send(Object message) {
+				if (!isOpen()) {
+					return false;
+				}
+				try {
+					write(id, message);
+					return true;
+				} catch (IOException e) {
+					try {
+						clientSock.close();
+					} catch (IOException ignored) {}
+					return false;
+				}
+			}
+
+			@Override
+			public boolean isOpen() {
+				return !clientSock.isClosed();
+			}
+		}
+	}
+}
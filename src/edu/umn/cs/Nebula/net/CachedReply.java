@@ -0,0 +1,50 @@
+package edu.umn.cs.Nebula.net;
+
+/**
+ * A reply shared by many requests, such as the neighbor list of a region. Its JSON form is
+ * computed once, when first sent, and then only copied to the requests served with it; the
+ * binary codec is stateful and encodes the value for every connection. The value must not be
+ * changed once shared.
+ *
+ * @author albert
+ *
+ * @param <T> the type of the value
+ */
+public class CachedReply<T> {
+	private final T value;
+	private volatile String json;
+	private volatile byte[] jsonBytes;
+
+	public CachedReply(T value) {
+		this.value = value;
+	}
+
+	public T getValue() {
+		return value;
+	}
+
+	/**
+	 * @return the value serialized as a reply line
+	 */
+	public String getJson() {
+		String result = json;
+		if (result == null) {
+			// computed twice at worst, by requests racing for the first use
+			result = RequestDispatcher.gson.toJson(value);
+			json = result;
+		}
+		return result;
+	}
+
+	/**
+	 * @return the value serialized as the payload of a JSON frame, not to be changed
+	 */
+	public byte[] getJsonBytes() {
+		byte[] result = jsonBytes;
+		if (result == null) {
+			result = getJson().getBytes(Frame.UTF8);
+			jsonBytes = result;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,167 @@
+package edu.umn.cs.Nebula.net;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+
+import com.google.gson.Gson;
+
+import edu.umn.cs.Nebula.job.Job;
+import edu.umn.cs.Nebula.job.JobType;
+import edu.umn.cs.Nebula.job.RunningTask;
+import edu.umn.cs.Nebula.job.TaskInfo;
+import edu.umn.cs.Nebula.job.TaskStatus;
+import edu.umn.cs.Nebula.node.NodeInfo;
+import edu.umn.cs.Nebula.node.NodeType;
+import edu.umn.cs.Nebula.node.Resources;
+import edu.umn.cs.Nebula.request.DSSRequest;
+import edu.umn.cs.Nebula.request.DSSRequestType;
+import edu.umn.cs.Nebula.request.JobRequest;
+import edu.umn.cs.Nebula.request.JobRequestType;
+import edu.umn.cs.Nebula.request.NodeReply;
+import edu.umn.cs.Nebula.request.NodeRequest;
+import edu.umn.cs.Nebula.request.NodeRequestType;
+import edu.umn.cs.Nebula.request.RegionCapacity;
+import edu.umn.cs.Nebula.request.SchedulerReply;
+import edu.umn.cs.Nebula.request.SchedulerRequest;
+import edu.umn.cs.Nebula.request.SchedulerRequestType;
+import edu.umn.cs.Nebula.request.TaskRequest;
+import edu.umn.cs.Nebula.request.TaskRequestType;
+import edu.umn.cs.Nebula.schedule.Lease;
+
+/**
+ * Check that every message with a binary schema reads back as it was written, under both
+ * codecs. The messages go through one pair of codecs in order, twice, so that the second pass
+ * reads the interned strings. Then every message is written the way a peer with an older
+ * schema would, with only its first fields, and must still be read, with those fields kept.
+ * Messages are compared by their JSON form.
+ *
+ * Usage: CodecCheck
+ * Exits with status 1 if any check fails.
+ *
+ * @author albert
+ */
+public class CodecCheck {
+	private static final Gson gson = new Gson();
+	private static int checks = 0;
+	private static int failures = 0;
+
+	public static void main(String[] args) throws IOException {
+		Object[] messages = createMessages();
+
+		for (WireCodec[] pair : new WireCodec[][] { { new JsonCodec(), new JsonCodec() }, { new BinaryCodec(), new BinaryCodec() } }) {
+			for (int pass = 1; pass <= 2; pass++) {
+				for (Object message : messages) {
+					Object decoded = pair[1].decode(pair[0].encode(message), message.getClass());
+					check(pair[0].getName() + " pass " + pass + " " + message.getClass().getSimpleName(),
+							gson.toJson(message), gson.toJson(decoded));
+				}
+			}
+		}
+
+		BinaryCodec sender = new BinaryCodec();
+		BinaryCodec receiver = new BinaryCodec();
+		for (Object message : messages) {
+			checkOlderSchemas(sender, receiver, message);
+		}
+
+		System.out.println(checks + " checks, " + failures + " failed");
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Write the message with each shorter prefix of its fields and read it back.
+	 */
+	@SuppressWarnings("unchecked")
+	private static void checkOlderSchemas(BinaryCodec sender, BinaryCodec receiver, Object message) throws IOException {
+		MessageSchema<Object> schema = (MessageSchema<Object>) MessageSchemas.forClass(message.getClass());
+		Object[] fields = schema.fields(message);
+		for (int n = 0; n < fields.length; n++) {
+			BinaryCodec.Output out = sender.new Output();
+			out.writeByte(BinaryCodec.MESSAGE);
+			out.writeVarInt(schema.getId());
+			out.writeVarInt(n);
+			for (int i = 0; i < n; i++) {
+				out.writeValue(fields[i]);
+			}
+			String name = "binary " + message.getClass().getSimpleName() + " with " + n + "/" + fields.length + " fields";
+			Object decoded;
+			try {
+				decoded = receiver.decode(out.toByteArray(), message.getClass());
+			} catch (IOException | RuntimeException e) {
+				check(name, "read", e.toString());
+				continue;
+			}
+			Object[] kept = schema.fields(decoded);
+			check(name, gson.toJson(Arrays.copyOf(fields, n)), gson.toJson(Arrays.copyOf(kept, n)));
+		}
+	}
+
+	private static void check(String name, String expected, String actual) {
+		checks++;
+		if (!expected.equals(actual)) {
+			failures++;
+			System.out.println("FAILED " + name + "\n  expected " + expected + "\n  actual   " + actual);
+		}
+	}
+
+	/**
+	 * One message of every class with a binary schema, with every field set.
+	 */
+	private static Object[] createMessages() {
+		NodeInfo node = new NodeInfo("node-1", "10.0.0.1", 44.97f, -93.26f, NodeType.COMPUTE, 95.5, 12.25);
+		node.setResources(new Resources(4, 8L << 30, 2L << 30));
+		node.setLastOnline(1234567890123L);
+		node.setNote("note");
+		node.addLatency(14.5);
+		node.setSuspect(true);
+
+		NodeRequest nodeRequest = new NodeRequest(node, NodeRequestType.GET_CAPACITY);
+		nodeRequest.setNeighborsVersion(42);
+		nodeRequest.setShards(new LinkedList<String>(Arrays.asList("host-a:6425", "host-b:6425")));
+		nodeRequest.setCount(10);
+		nodeRequest.setRadius(250.5);
+		nodeRequest.setMinFreeCPUs(200);
+
+		Lease lease = new Lease("scheduler-1", 0);
+		lease.setExpiredTime(1234567899999L);
+
+		SchedulerRequest schedulerRequest = new SchedulerRequest(SchedulerRequestType.LEASE, "scheduler-1");
+		schedulerRequest.addLease("node-1", lease);
+		schedulerRequest.setNodes(new HashSet<String>(Arrays.asList("node-1", "node-2")));
+		schedulerRequest.setVersion(7);
+
+		DSSRequest dssRequest = new DSSRequest("node-1", DSSRequestType.UPLOAD, "namespace", "file.txt");
+		dssRequest.setLatitude(45.5f);
+		dssRequest.setLongitude(-94f);
+		dssRequest.setNote("dss note");
+
+		TaskRequest taskRequest = new TaskRequest(new RunningTask(3, 1, JobType.MAP, "run", "a.out", TaskStatus.RUNNING),
+				TaskRequestType.UPDATE);
+		taskRequest.addTaskInfo("process-1", new TaskInfo(TaskStatus.RUNNING, 1234567890000L, 0.75));
+
+		JobRequest jobRequest = new JobRequest(new Job(1, 2, 3, JobType.REDUCE, "reduce", "b.out", TaskStatus.WAITING),
+				JobRequestType.SUBMIT);
+
+		NodeReply nodeReply = NodeReply.diff(43, new LinkedList<String>(Arrays.asList("node-2")),
+				new LinkedList<String>(Arrays.asList("node-3")));
+		nodeReply.setNeighbors(new LinkedList<String>(Arrays.asList("node-1", "node-2")));
+		nodeReply.setMaster("host-b:6425");
+		nodeReply.setHeartbeatInterval(3000);
+		nodeReply.setRetryAfter(1500);
+
+		HashMap<String, NodeInfo> nodes = new HashMap<String, NodeInfo>();
+		nodes.put(node.getId(), node);
+		SchedulerReply schedulerReply = SchedulerReply.diff(8, nodes, new LinkedList<String>(Arrays.asList("node-4")));
+		schedulerReply.setEpoch(1234567000000L);
+
+		RegionCapacity region = new RegionCapacity("8_2", 30, 45, -120, -90, 12, 48, 20, 3);
+
+		return new Object[] { nodeRequest, node, node.getResources(), schedulerRequest, lease, dssRequest,
+				taskRequest.getTaskStatuses().get("process-1"), taskRequest, jobRequest, nodeReply, schedulerReply, region };
+	}
+}
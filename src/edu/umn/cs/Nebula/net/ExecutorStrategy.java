@@ -0,0 +1,102 @@
+package edu.umn.cs.Nebula.net;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How request handlers are run, selected at startup with {@code -Dnebula.executor=platform|virtual}.
+ *
+ * PLATFORM: a fixed pool of platform threads, the pool size bounds the number of requests
+ * handled at the same time.
+ * VIRTUAL: a new virtual thread per request or connection, so a handler blocked on a socket or
+ * the database does not hold an OS thread. The pool size is ignored. Virtual threads need a
+ * JVM that provides them (Java 21+); on older JVMs this falls back to PLATFORM.
+ *
+ * @author albert
+ */
+public enum ExecutorStrategy {
+	PLATFORM, VIRTUAL;
+
+	private static final Method newVirtualExecutor = findVirtualExecutor();
+	private static ExecutorStrategy defaultStrategy;
+
+	private static Method findVirtualExecutor() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	public static boolean isVirtualSupported() {
+		return newVirtualExecutor != null;
+	}
+
+	/**
+	 * @return the strategy selected by the nebula.executor system property, PLATFORM by default
+	 */
+	public static synchronized ExecutorStrategy getDefault() {
+		if (defaultStrategy == null) {
+			String name = System.getProperty("nebula.executor", PLATFORM.name());
+			try {
+				defaultStrategy = valueOf(name.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				System.err.println("[EXECUTOR] Unknown executor strategy " + name + ", using " + PLATFORM);
+				defaultStrategy = PLATFORM;
+			}
+			if (defaultStrategy == VIRTUAL && !isVirtualSupported()) {
+				System.err.println("[EXECUTOR] Virtual threads are not supported by this JVM, using " + PLATFORM);
+				defaultStrategy = PLATFORM;
+			}
+		}
+		return defaultStrategy;
+	}
+
+	/**
+	 * Create the executor for short requests.
+	 *
+	 * @param poolSize the number of threads of a PLATFORM pool
+	 */
+	public ExecutorService newRequestPool(int poolSize) {
+		if (this == VIRTUAL) {
+			return newVirtualPool();
+		}
+		return Executors.newFixedThreadPool(poolSize);
+	}
+
+	/**
+	 * Create the executor for short requests that runs the waiting {@link PriorityTask}s by
+	 * priority. Only {@link PriorityTask}s may be executed on it. A VIRTUAL pool runs every
+	 * request at once, there is nothing to order.
+	 *
+	 * @param poolSize the number of threads of a PLATFORM pool
+	 */
+	public ExecutorService newPriorityRequestPool(int poolSize) {
+		if (this == VIRTUAL) {
+			return newVirtualPool();
+		}
+		return new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+	}
+
+	/**
+	 * Create the executor for long-lived connections such as sessions, one thread each.
+	 */
+	public ExecutorService newConnectionPool() {
+		if (this == VIRTUAL) {
+			return newVirtualPool();
+		}
+		return Executors.newCachedThreadPool();
+	}
+
+	private static ExecutorService newVirtualPool() {
+		try {
+			return (ExecutorService) newVirtualExecutor.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Failed creating a virtual thread executor", e);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package edu.umn.cs.Nebula.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A message exchanged on a persistent session.
+ * A session starts with the client sending the {@link #HANDSHAKE} line and the server
+ * answering with {@link #ACCEPTED}. From then on both sides exchange frames of the form
+ * [int length][int id][length bytes of payload]. The id of a reply is the id of the request
+ * it answers, which allows several requests to be in flight on the same connection.
+ *
+ * @author albert
+ */
+public class Frame {
+	public static final String HANDSHAKE = "NEBULA-SESSION";
+	public static final String ACCEPTED = "OK";
+	public static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final int id;
+	private final byte[] payload;
+
+	public Frame(int id, byte[] payload) {
+		this.id = id;
+		this.payload = payload;
+	}
+
+	public Frame(int id, String payload) {
+		this(id, payload == null ? new byte[0] : payload.getBytes(UTF8));
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	public String getPayloadString() {
+		return new String(payload, UTF8);
+	}
+
+	/**
+	 * Write the frame to the stream. The caller is responsible for flushing.
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(payload.length);
+		out.writeInt(id);
+		out.write(payload);
+	}
+
+	/**
+	 * Read the next frame from the stream.
+	 *
+	 * @return the frame, or null if the stream is closed
+	 */
+	public static Frame read(DataInputStream in) throws IOException {
+		int length;
+		try {
+			length = in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		if (length < 0 || length > MAX_PAYLOAD) {
+			throw new IOException("Invalid frame length: " + length);
+		}
+		int id = in.readInt();
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return new Frame(id, payload);
+	}
+
+	/**
+	 * Read a single newline-terminated line without consuming anything after it,
+	 * so the same stream can be used to read frames afterwards.
+	 *
+	 * @return the line without the line terminator, or null if the stream is closed
+	 */
+	public static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+		int b;
+		while ((b = in.read()) != -1) {
+			if (b == '\n') {
+				break;
+			}
+			line.write(b);
+		}
+		if (b == -1 && line.size() == 0) {
+			return null;
+		}
+		byte[] bytes = line.toByteArray();
+		int length = bytes.length;
+		if (length > 0 && bytes[length - 1] == '\r') {
+			length--;
+		}
+		return new String(bytes, 0, length, UTF8);
+	}
+}
@@ -0,0 +1,41 @@
+package edu.umn.cs.Nebula.net;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * JSON payloads, the same format as one-shot request lines.
+ *
+ * @author albert
+ */
+public class JsonCodec extends WireCodec {
+	public static final String NAME = "json";
+	private static final Gson gson = new Gson();
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public boolean isStateful() {
+		return false;
+	}
+
+	@Override
+	public byte[] encode(Object message) {
+		return gson.toJson(message).getBytes(Frame.UTF8);
+	}
+
+	@Override
+	public Object decode(byte[] data, Type type) throws IOException {
+		try {
+			return gson.fromJson(new String(data, Frame.UTF8), type);
+		} catch (JsonSyntaxException e) {
+			throw new IOException("Malformed JSON payload: " + e.getMessage());
+		}
+	}
+}
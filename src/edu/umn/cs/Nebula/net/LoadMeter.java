@@ -0,0 +1,125 @@
+package edu.umn.cs.Nebula.net;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.umn.cs.Nebula.util.LatencyHistogram;
+
+/**
+ * Request rate and queueing delay of a server, measured over successive windows. The servers
+ * record every request with the time it waited for a thread; readers get the figures of the
+ * last complete window, so a burst shows up within one window and is forgotten after the next.
+ * The distribution of the queueing delays since startup and the number of requests waiting
+ * for a thread are kept as well. Recording is lock-free.
+ *
+ * @author albert
+ */
+public class LoadMeter {
+	private static final long defaultWindow = 1000; // in milliseconds
+
+	private final long window;
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong queueNanos = new AtomicLong();
+	private final AtomicInteger waiting = new AtomicInteger();
+	private final LatencyHistogram queueTimes = new LatencyHistogram();
+
+	// figures of the last complete window
+	private long windowStart = System.currentTimeMillis();
+	private double requestRate = 0;
+	private double queueDelay = 0;
+
+	public LoadMeter() {
+		this(defaultWindow);
+	}
+
+	/**
+	 * @param window	length of a measurement window, in milliseconds
+	 */
+	public LoadMeter(long window) {
+		this.window = window;
+	}
+
+	/**
+	 * Record a request handed to the thread pool.
+	 */
+	public void queued() {
+		waiting.incrementAndGet();
+	}
+
+	/**
+	 * Record a request the thread pool did not take.
+	 */
+	public void rejected() {
+		waiting.decrementAndGet();
+	}
+
+	/**
+	 * Record a queued request that starts running.
+	 *
+	 * @param queuedAt	{@link System#nanoTime()} when the request was queued
+	 */
+	public void started(long queuedAt) {
+		long nanos = Math.max(0, System.nanoTime() - queuedAt);
+		waiting.decrementAndGet();
+		requests.incrementAndGet();
+		queueNanos.addAndGet(nanos);
+		queueTimes.record(nanos);
+	}
+
+	/**
+	 * Record a request that runs at once on the thread of its connection.
+	 */
+	public void received() {
+		requests.incrementAndGet();
+		queueTimes.record(0);
+	}
+
+	/**
+	 * @return the number of requests waiting for a thread
+	 */
+	public int getQueueDepth() {
+		return waiting.get();
+	}
+
+	/**
+	 * @return the queueing delays since startup
+	 */
+	public LatencyHistogram getQueueTimes() {
+		return queueTimes;
+	}
+
+	/**
+	 * @return requests per second over the last window
+	 */
+	public synchronized double getRequestRate() {
+		roll();
+		return requestRate;
+	}
+
+	/**
+	 * @return mean time the requests of the last window waited for a thread, in milliseconds
+	 */
+	public synchronized double getQueueDelay() {
+		roll();
+		return queueDelay;
+	}
+
+	private void roll() {
+		long now = System.currentTimeMillis();
+		long elapsed = now - windowStart;
+		if (elapsed < window) {
+			return;
+		}
+		long count = requests.getAndSet(0);
+		long nanos = queueNanos.getAndSet(0);
+		requestRate = count * 1000.0 / elapsed;
+		queueDelay = count == 0 ? 0 : nanos / 1e6 / count;
+		windowStart = now;
+	}
+
+	@Override
+	public synchronized String toString() {
+		roll();
+		return String.format("%.0f req/s, %.1f ms queued", requestRate, queueDelay);
+	}
+}
@@ -0,0 +1,78 @@
+package edu.umn.cs.Nebula.net;
+
+/**
+ * Field layout of a message class for the {@link BinaryCodec}.
+ * New fields must only be appended, so peers with an older schema can still read the message.
+ *
+ * @author albert
+ *
+ * @param <T> the message class
+ */
+public abstract class MessageSchema<T> {
+	private final int id;
+	private final Class<T> type;
+	private final int numFields;
+
+	protected MessageSchema(int id, Class<T> type, int numFields) {
+		this.id = id;
+		this.type = type;
+		this.numFields = numFields;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public Class<T> getType() {
+		return type;
+	}
+
+	public int getNumFields() {
+		return numFields;
+	}
+
+	/**
+	 * @return the field values of the message, in schema order
+	 */
+	public abstract Object[] fields(T message);
+
+	/**
+	 * Rebuild a message. The array holds at least {@link #getNumFields()} values;
+	 * fields the sender did not know about are null.
+	 */
+	public abstract T create(Object[] fields);
+
+	protected static int asInt(Object value) {
+		return value == null ? 0 : ((Number) value).intValue();
+	}
+
+	protected static long asLong(Object value) {
+		return value == null ? 0 : ((Number) value).longValue();
+	}
+
+	protected static float asFloat(Object value) {
+		return value == null ? 0 : ((Number) value).floatValue();
+	}
+
+	protected static double asDouble(Object value) {
+		return value == null ? 0 : ((Number) value).doubleValue();
+	}
+
+	protected static String asString(Object value) {
+		return (String) value;
+	}
+
+	/**
+	 * @return the enum constant, or null if the peer sent a constant this side does not know
+	 */
+	protected static <E extends Enum<E>> E asEnum(Class<E> enumType, Object value) {
+		if (value == null) {
+			return null;
+		}
+		try {
+			return Enum.valueOf(enumType, (String) value);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+}
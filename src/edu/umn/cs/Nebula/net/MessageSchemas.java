@@ -0,0 +1,292 @@
+package edu.umn.cs.Nebula.net;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+
+import com.google.gson.Gson;
+
+import edu.umn.cs.Nebula.job.Job;
+import edu.umn.cs.Nebula.job.RunningTask;
+import edu.umn.cs.Nebula.job.TaskInfo;
+import edu.umn.cs.Nebula.job.TaskStatus;
+import edu.umn.cs.Nebula.node.NodeInfo;
+import edu.umn.cs.Nebula.node.NodeType;
+import edu.umn.cs.Nebula.node.Resources;
+import edu.umn.cs.Nebula.request.DSSRequest;
+import edu.umn.cs.Nebula.request.DSSRequestType;
+import edu.umn.cs.Nebula.request.JobRequest;
+import edu.umn.cs.Nebula.request.JobRequestType;
+import edu.umn.cs.Nebula.request.NodeReply;
+import edu.umn.cs.Nebula.request.NodeReplyType;
+import edu.umn.cs.Nebula.request.NodeRequest;
+import edu.umn.cs.Nebula.request.NodeRequestType;
+import edu.umn.cs.Nebula.request.RegionCapacity;
+import edu.umn.cs.Nebula.request.SchedulerReply;
+import edu.umn.cs.Nebula.request.SchedulerRequest;
+import edu.umn.cs.Nebula.request.SchedulerRequestType;
+import edu.umn.cs.Nebula.request.TaskRequest;
+import edu.umn.cs.Nebula.request.TaskRequestType;
+import edu.umn.cs.Nebula.schedule.Lease;
+
+/**
+ * Registry of the message schemas known to the {@link BinaryCodec}.
+ * Schema ids are part of the wire format and must never be reused.
+ * Jobs and tasks are rarely sent and have deep class hierarchies, so they are carried as
+ * embedded JSON strings.
+ *
+ * @author albert
+ */
+public class MessageSchemas {
+	private static final Gson gson = new Gson();
+	private static final HashMap<Integer, MessageSchema<?>> byId = new HashMap<Integer, MessageSchema<?>>();
+	private static final HashMap<Class<?>, MessageSchema<?>> byClass = new HashMap<Class<?>, MessageSchema<?>>();
+
+	static {
+		register(new MessageSchema<NodeRequest>(1, NodeRequest.class, 7) {
+			@Override
+			public Object[] fields(NodeRequest request) {
+				return new Object[] { request.getType(), request.getNode(), request.getNeighborsVersion(), request.getShards(),
+						request.getCount(), request.getRadius(), request.getMinFreeCPUs() };
+			}
+
+			@Override
+			public NodeRequest create(Object[] fields) {
+				NodeRequest request = new NodeRequest((NodeInfo) fields[1], asEnum(NodeRequestType.class, fields[0]));
+				request.setNeighborsVersion(fields[2] == null ? -1 : asLong(fields[2]));
+				request.setShards(asStringList(fields[3]));
+				request.setCount(asInt(fields[4]));
+				request.setRadius(asDouble(fields[5]));
+				request.setMinFreeCPUs(asInt(fields[6]));
+				return request;
+			}
+		});
+		register(new MessageSchema<NodeInfo>(2, NodeInfo.class, 11) {
+			@Override
+			public Object[] fields(NodeInfo node) {
+				return new Object[] { node.getId(), node.getIp(), node.getLatitude(), node.getLongitude(),
+						node.getNodeType(), node.getLastOnline(), node.getResources(), node.getNote(),
+						node.getBandwidthSamples(), node.getLatencySamples(), node.isSuspect() };
+			}
+
+			@Override
+			public NodeInfo create(Object[] fields) {
+				NodeInfo node = new NodeInfo(asString(fields[0]), asString(fields[1]), asEnum(NodeType.class, fields[4]));
+				node.setLatitude(asFloat(fields[2]));
+				node.setLongitude(asFloat(fields[3]));
+				node.setLastOnline(asLong(fields[5]));
+				node.setResources((Resources) fields[6]);
+				node.setNote(asString(fields[7]));
+				if (fields[8] != null) {
+					for (Object sample : (Collection<?>) fields[8]) {
+						node.addBandwidth(asDouble(sample));
+					}
+				}
+				if (fields[9] != null) {
+					for (Object sample : (Collection<?>) fields[9]) {
+						node.addLatency(asDouble(sample));
+					}
+				}
+				node.setSuspect(Boolean.TRUE.equals(fields[10]));
+				return node;
+			}
+		});
+		register(new MessageSchema<Resources>(3, Resources.class, 3) {
+			@Override
+			public Object[] fields(Resources resources) {
+				return new Object[] { resources.getNumCPUs(), resources.getTotalAvailableMemory(), resources.getFreeMemory() };
+			}
+
+			@Override
+			public Resources create(Object[] fields) {
+				return new Resources(asInt(fields[0]), asLong(fields[1]), asLong(fields[2]));
+			}
+		});
+		register(new MessageSchema<SchedulerRequest>(4, SchedulerRequest.class, 5) {
+			@Override
+			public Object[] fields(SchedulerRequest request) {
+				HashMap<String, Lease> leases = new HashMap<String, Lease>();
+				for (String nodeId : request.getLeaseNodes()) {
+					leases.put(nodeId, request.getLease(nodeId));
+				}
+				return new Object[] { request.getType(), request.getSchedulerName(), leases, request.getNodes(), request.getVersion() };
+			}
+
+			@Override
+			public SchedulerRequest create(Object[] fields) {
+				SchedulerRequest request = new SchedulerRequest(asEnum(SchedulerRequestType.class, fields[0]), asString(fields[1]));
+				if (fields[2] != null) {
+					for (Map.Entry<?, ?> lease : ((Map<?, ?>) fields[2]).entrySet()) {
+						request.addLease(asString(lease.getKey()), (Lease) lease.getValue());
+					}
+				}
+				if (fields[3] != null) {
+					HashSet<String> nodes = new HashSet<String>();
+					for (Object nodeId : (Collection<?>) fields[3]) {
+						nodes.add(asString(nodeId));
+					}
+					request.setNodes(nodes);
+				}
+				request.setVersion(fields[4] == null ? -1 : asLong(fields[4]));
+				return request;
+			}
+		});
+		register(new MessageSchema<Lease>(5, Lease.class, 2) {
+			@Override
+			public Object[] fields(Lease lease) {
+				return new Object[] { lease.getScheduler(), lease.getExpiredTime() };
+			}
+
+			@Override
+			public Lease create(Object[] fields) {
+				Lease lease = new Lease(asString(fields[0]), 0);
+				lease.setExpiredTime(asLong(fields[1]));
+				return lease;
+			}
+		});
+		register(new MessageSchema<DSSRequest>(6, DSSRequest.class, 7) {
+			@Override
+			public Object[] fields(DSSRequest request) {
+				return new Object[] { request.getType(), request.getNodeId(), request.getNamespace(), request.getFilename(),
+						request.getLatitude(), request.getLongitude(), request.getNote() };
+			}
+
+			@Override
+			public DSSRequest create(Object[] fields) {
+				DSSRequest request = new DSSRequest(asString(fields[1]), asEnum(DSSRequestType.class, fields[0]),
+						asString(fields[2]), asString(fields[3]));
+				request.setLatitude(asFloat(fields[4]));
+				request.setLongitude(asFloat(fields[5]));
+				request.setNote(asString(fields[6]));
+				return request;
+			}
+		});
+		register(new MessageSchema<TaskInfo>(7, TaskInfo.class, 3) {
+			@Override
+			public Object[] fields(TaskInfo info) {
+				return new Object[] { info.getStatus(), info.getUpdateTime(), info.getLoad() };
+			}
+
+			@Override
+			public TaskInfo create(Object[] fields) {
+				return new TaskInfo(asEnum(TaskStatus.class, fields[0]), asLong(fields[1]), asDouble(fields[2]));
+			}
+		});
+		register(new MessageSchema<TaskRequest>(8, TaskRequest.class, 3) {
+			@Override
+			public Object[] fields(TaskRequest request) {
+				String task = request.getTask() == null ? null : gson.toJson(request.getTask());
+				return new Object[] { request.getType(), task, request.getTaskStatuses() };
+			}
+
+			@Override
+			public TaskRequest create(Object[] fields) {
+				TaskRequest request = new TaskRequest(asEnum(TaskRequestType.class, fields[0]));
+				if (fields[1] != null) {
+					request.setTask(gson.fromJson(asString(fields[1]), RunningTask.class));
+				}
+				if (fields[2] != null) {
+					for (Map.Entry<?, ?> status : ((Map<?, ?>) fields[2]).entrySet()) {
+						request.addTaskInfo(asString(status.getKey()), (TaskInfo) status.getValue());
+					}
+				}
+				return request;
+			}
+		});
+		register(new MessageSchema<JobRequest>(9, JobRequest.class, 2) {
+			@Override
+			public Object[] fields(JobRequest request) {
+				String job = request.getJob() == null ? null : gson.toJson(request.getJob());
+				return new Object[] { request.getType(), job };
+			}
+
+			@Override
+			public JobRequest create(Object[] fields) {
+				Job job = fields[1] == null ? null : gson.fromJson(asString(fields[1]), Job.class);
+				return new JobRequest(job, asEnum(JobRequestType.class, fields[0]));
+			}
+		});
+		register(new MessageSchema<NodeReply>(10, NodeReply.class, 8) {
+			@Override
+			public Object[] fields(NodeReply reply) {
+				return new Object[] { reply.getType(), reply.getVersion(), reply.getNeighbors(), reply.getAdded(), reply.getRemoved(),
+						reply.getMaster(), reply.getHeartbeatInterval(), reply.getRetryAfter() };
+			}
+
+			@Override
+			public NodeReply create(Object[] fields) {
+				NodeReply reply = new NodeReply(asEnum(NodeReplyType.class, fields[0]), asLong(fields[1]));
+				reply.setNeighbors(asStringList(fields[2]));
+				reply.setAdded(asStringList(fields[3]));
+				reply.setRemoved(asStringList(fields[4]));
+				reply.setMaster(asString(fields[5]));
+				reply.setHeartbeatInterval(asLong(fields[6]));
+				reply.setRetryAfter(asLong(fields[7]));
+				return reply;
+			}
+		});
+		register(new MessageSchema<SchedulerReply>(11, SchedulerReply.class, 5) {
+			@Override
+			public Object[] fields(SchedulerReply reply) {
+				return new Object[] { reply.getType(), reply.getVersion(), reply.getNodes(), reply.getRemoved(), reply.getEpoch() };
+			}
+
+			@Override
+			public SchedulerReply create(Object[] fields) {
+				SchedulerReply reply = new SchedulerReply(asEnum(NodeReplyType.class, fields[0]), asLong(fields[1]));
+				if (fields[2] != null) {
+					HashMap<String, NodeInfo> nodes = new HashMap<String, NodeInfo>();
+					for (Map.Entry<?, ?> node : ((Map<?, ?>) fields[2]).entrySet()) {
+						nodes.put(asString(node.getKey()), (NodeInfo) node.getValue());
+					}
+					reply.setNodes(nodes);
+				}
+				reply.setRemoved(asStringList(fields[3]));
+				reply.setEpoch(asLong(fields[4]));
+				return reply;
+			}
+		});
+		register(new MessageSchema<RegionCapacity>(12, RegionCapacity.class, 9) {
+			@Override
+			public Object[] fields(RegionCapacity region) {
+				return new Object[] { region.getId(), region.getMinLatitude(), region.getMaxLatitude(), region.getMinLongitude(),
+						region.getMaxLongitude(), region.getNumNodes(), region.getNumCPUs(), region.getFreeCPUs(), region.getNumLeased() };
+			}
+
+			@Override
+			public RegionCapacity create(Object[] fields) {
+				return new RegionCapacity(asString(fields[0]), asDouble(fields[1]), asDouble(fields[2]), asDouble(fields[3]),
+						asDouble(fields[4]), asInt(fields[5]), asInt(fields[6]), asInt(fields[7]), asInt(fields[8]));
+			}
+		});
+	}
+
+	private static LinkedList<String> asStringList(Object value) {
+		if (value == null) {
+			return null;
+		}
+		LinkedList<String> result = new LinkedList<String>();
+		for (Object element : (Collection<?>) value) {
+			result.add((String) element);
+		}
+		return result;
+	}
+
+	public static void register(MessageSchema<?> schema) {
+		if (byId.containsKey(schema.getId())) {
+			throw new IllegalArgumentException("Duplicate message schema id: " + schema.getId());
+		}
+		byId.put(schema.getId(), schema);
+		byClass.put(schema.getType(), schema);
+	}
+
+	public static MessageSchema<?> forId(int id) {
+		return byId.get(id);
+	}
+
+	public static MessageSchema<?> forClass(Class<?> type) {
+		return byClass.get(type);
+	}
+}
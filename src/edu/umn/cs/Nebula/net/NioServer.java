@@ -0,0 +1,493 @@
+package edu.umn.cs.Nebula.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Non-blocking server. The calling thread accepts connections and spreads them over a few
+ * event loops, each owning a {@link Selector}. The event loops decode request lines and session
+ * frames and write the replies; the requests themselves are dispatched on a worker pool so that
+ * a slow handler never stalls I/O. An idle or slow client only costs its buffers, not a thread.
+ *
+ * As the requests are decoded before they are queued, the worker pool runs them by priority,
+ * and the requests the {@link AdmissionControl} sheds are answered from the event loop at once.
+ *
+ * @author albert
+ */
+public class NioServer extends RequestServer {
+	private static final int backlog = 1024;
+	private static final int bufferSize = 4096;
+	private static final int maxLineLength = 1024 * 1024;
+	private static final long acceptRetryDelay = 100; // in milliseconds
+
+	private final int poolSize;
+	private final int numLoops;
+
+	private ServerSocketChannel serverChannel;
+	private EventLoop[] loops;
+	private ExecutorService workers;
+	private volatile boolean running = false;
+
+	public NioServer(String name, int port, int poolSize, RequestDispatcher<?> dispatcher) {
+		this(name, port, poolSize, Math.min(4, Runtime.getRuntime().availableProcessors()), dispatcher);
+	}
+
+	public NioServer(String name, int port, int poolSize, int numLoops, RequestDispatcher<?> dispatcher) {
+		super(name, port, dispatcher);
+		this.poolSize = poolSize;
+		this.numLoops = Math.max(1, numLoops);
+	}
+
+	@Override
+	public void run() {
+		int next = 0;
+		SocketChannel channel;
+
+		try {
+			running = true;
+			workers = executorStrategy.newPriorityRequestPool(poolSize);
+			loops = new EventLoop[numLoops];
+			for (int i = 0; i < numLoops; i++) {
+				loops[i] = new EventLoop();
+				Thread loopThread = new Thread(loops[i], name + "-loop-" + i);
+				loopThread.setDaemon(true);
+				loopThread.start();
+			}
+
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().setReuseAddress(true);
+			serverChannel.bind(new InetSocketAddress(port), backlog);
+			while (running) {
+				try {
+					channel = serverChannel.accept();
+				} catch (IOException e) {
+					if (!running || !serverChannel.isOpen()) {
+						throw e;
+					}
+					// out of file descriptors or the like, the listener itself is fine: let some be freed
+					System.err.println("[" + name + "] Failed to accept a connection: " + e);
+					try {
+						Thread.sleep(acceptRetryDelay);
+					} catch (InterruptedException e1) {
+						break;
+					}
+					continue;
+				}
+				try {
+					channel.configureBlocking(false);
+					channel.socket().setTcpNoDelay(true);
+				} catch (IOException e) {
+					// the client is already gone
+					System.err.println("[" + name + "] Failed to set up a connection: " + e);
+					try {
+						channel.close();
+					} catch (IOException e1) {}
+					continue;
+				}
+				loops[next].register(channel);
+				next = (next + 1) % numLoops;
+			}
+		} catch (IOException e) {
+			if (running) {
+				System.err.println("[" + name + "] Failed to establish listening socket: " + e);
+			}
+		} finally {
+			close();
+		}
+	}
+
+	@Override
+	public void close() {
+		running = false;
+		if (workers != null) workers.shutdown();
+		try {
+			if (serverChannel != null) serverChannel.close();
+		} catch (IOException e) {
+			System.err.println("[" + name + "] Failed to close listening socket");
+		}
+		if (loops != null) {
+			for (EventLoop loop : loops) {
+				if (loop != null) loop.selector.wakeup();
+			}
+		}
+	}
+
+	/**
+	 * Selector thread serving a share of the connections.
+	 */
+	private class EventLoop implements Runnable {
+		private final Selector selector;
+		private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<SocketChannel>();
+		private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<Connection>();
+
+		public EventLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		public void register(SocketChannel channel) {
+			newChannels.add(channel);
+			selector.wakeup();
+		}
+
+		public void requestWrite(Connection connection) {
+			pendingWrites.add(connection);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			SocketChannel channel;
+			Connection connection;
+			SelectionKey key;
+
+			while (running || !newChannels.isEmpty()) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					System.err.println("[" + name + "] Selector failed: " + e);
+					break;
+				}
+
+				while ((channel = newChannels.poll()) != null) {
+					try {
+						connection = new Connection(channel, this);
+						connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+					} catch (ClosedChannelException e) {
+						// the client went away before we got to it
+					}
+				}
+				while ((connection = pendingWrites.poll()) != null) {
+					connection.flush();
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					key = keys.next();
+					keys.remove();
+					connection = (Connection) key.attachment();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isReadable()) {
+						connection.read();
+					}
+					if (key.isValid() && key.isWritable()) {
+						connection.flush();
+					}
+				}
+			}
+			for (SelectionKey remaining : selector.keys()) {
+				((Connection) remaining.attachment()).close();
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * State of one client connection. Only the event loop reads from it, changes its
+	 * interest set or closes it; workers only append replies to the output queue.
+	 */
+	private class Connection {
+		private final SocketChannel channel;
+		private final EventLoop loop;
+		private SelectionKey key;
+
+		private ByteBuffer in = ByteBuffer.allocate(bufferSize);
+		private final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<ByteBuffer>();
+		private boolean session = false;
+		private WireCodec codec;
+		// replies are encoded and queued under this lock so that a stateful codec sees them in wire order
+		private final Object encodeLock = new Object();
+		private boolean lastRequest = false;
+		private volatile boolean closeAfterWrite = false;
+
+		public Connection(SocketChannel channel, EventLoop loop) {
+			this.channel = channel;
+			this.loop = loop;
+		}
+
+		public void read() {
+			int bytesRead;
+			try {
+				bytesRead = channel.read(in);
+			} catch (IOException e) {
+				close();
+				return;
+			}
+			if (bytesRead < 0) {
+				close();
+				return;
+			}
+			in.flip();
+			try {
+				decode();
+			} catch (IOException e) {
+				System.out.println("[" + name + "] Dropping connection: " + e.getMessage());
+				close();
+				return;
+			}
+			in.compact();
+			if (!in.hasRemaining()) {
+				// the pending message does not fit, grow the buffer
+				ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+				in.flip();
+				larger.put(in);
+				in = larger;
+			}
+		}
+
+		/**
+		 * Consume every complete line or frame available in the input buffer.
+		 */
+		private void decode() throws IOException {
+			while (!lastRequest) {
+				if (!session) {
+					int end = -1;
+					for (int i = in.position(); i < in.limit(); i++) {
+						if (in.get(i) == '\n') {
+							end = i;
+							break;
+						}
+					}
+					if (end < 0) {
+						if (in.remaining() > maxLineLength) {
+							throw new IOException("Request line too long");
+						}
+						return;
+					}
+					byte[] bytes = new byte[end - in.position()];
+					in.get(bytes);
+					in.get(); // skip the line break
+					int length = bytes.length;
+					if (length > 0 && bytes[length - 1] == '\r') {
+						length--;
+					}
+					String line = new String(bytes, 0, length, Frame.UTF8);
+					if (line.equals(Frame.HANDSHAKE) || line.startsWith(Frame.HANDSHAKE + " ")) {
+						session = true;
+						codec = WireCodec.negotiate(line.substring(Frame.HANDSHAKE.length()));
+						send(ByteBuffer.wrap((Frame.ACCEPTED + " " + codec.getName() + "\n").getBytes(Frame.UTF8)), false);
+					} else {
+						// one request per connection: stop reading and close once the reply is out
+						lastRequest = true;
+						key.interestOps(0);
+						dispatch(line);
+					}
+				} else {
+					if (in.remaining() < 8) {
+						return;
+					}
+					int length = in.getInt(in.position());
+					if (length < 0 || length > Frame.MAX_PAYLOAD) {
+						throw new IOException("Invalid frame length: " + length);
+					}
+					if (in.remaining() < 8 + length) {
+						if (in.capacity() < 8 + length) {
+							ByteBuffer larger = ByteBuffer.allocate(8 + length);
+							larger.put(in);
+							larger.flip();
+							in = larger;
+						}
+						return;
+					}
+					in.getInt();
+					int id = in.getInt();
+					byte[] payload = new byte[length];
+					in.get(payload);
+					dispatchFrame(payload, id);
+				}
+			}
+		}
+
+		/**
+		 * Run a one-shot request on the worker pool and queue its reply line.
+		 */
+		private void dispatch(String line) {
+			final long queuedAt = System.nanoTime();
+			final Object request = dispatcher.decodeLine(line);
+			int priority = dispatcher.getPriorityOf(request);
+			if (!admission.admit(priority)) {
+				Object reply = dispatcher.overloadedObject(request, admission.getRetryAfter());
+				if (reply == null) {
+					closeAfterWrite = true;
+					loop.requestWrite(this);
+				} else {
+					sendLine(dispatcher.encode(reply));
+				}
+				return;
+			}
+			Runnable task = new PriorityTask(priority) {
+				@Override
+				public void run() {
+					load.started(queuedAt);
+					String reply;
+					try {
+						reply = dispatcher.dispatchDecoded(request);
+					} catch (RuntimeException e) {
+						System.err.println("[" + name + "] Failed handling request: " + e);
+						reply = dispatcher.encode(null);
+					}
+					sendLine(reply);
+				}
+			};
+			try {
+				load.queued();
+				workers.execute(task);
+			} catch (RejectedExecutionException e) {
+				load.rejected();
+				closeAfterWrite = true;
+				loop.requestWrite(this);
+			}
+		}
+
+		/**
+		 * Run a session request on the worker pool and queue its reply frame.
+		 * The frames are decoded here on the event loop, in order as stateful codecs need.
+		 */
+		private void dispatchFrame(byte[] payload, final int id) throws IOException {
+			final long queuedAt = System.nanoTime();
+			final Object decoded = dispatcher.decodeFrame(payload, codec);
+			int priority = dispatcher.getPriorityOf(decoded);
+			if (!admission.admit(priority)) {
+				// the client waits for a frame of this id, even if there is nothing to say
+				sendFrame(id, dispatcher.overloadedObject(decoded, admission.getRetryAfter()));
+				return;
+			}
+			Runnable task = new PriorityTask(priority) {
+				@Override
+				public void run() {
+					load.started(queuedAt);
+					Object reply;
+					try {
+						reply = dispatcher.dispatchObject(decoded);
+					} catch (RuntimeException e) {
+						System.err.println("[" + name + "] Failed handling request: " + e);
+						reply = null;
+					}
+					if (reply instanceof ReplyStream) {
+						((ReplyStream) reply).open(new Sink(id));
+						return;
+					}
+					sendFrame(id, reply);
+				}
+			};
+			try {
+				load.queued();
+				workers.execute(task);
+			} catch (RejectedExecutionException e) {
+				load.rejected();
+				closeAfterWrite = true;
+				loop.requestWrite(this);
+			}
+		}
+
+		/**
+		 * Encode a reply and queue its frame. Called by workers and reply streams.
+		 */
+		private void sendFrame(int id, Object reply) {
+			synchronized (encodeLock) {
+				byte[] bytes;
+				try {
+					bytes = dispatcher.encodeFrame(reply, codec);
+				} catch (RuntimeException e) {
+					System.err.println("[" + name + "] Failed encoding reply: " + e);
+					bytes = dispatcher.encodeFrame(null, codec);
+				}
+				ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 8);
+				buffer.putInt(bytes.length).putInt(id).put(bytes);
+				buffer.flip();
+				send(buffer, false);
+			}
+		}
+
+		/**
+		 * Queue the reply line of a one-shot request, the connection closes after it.
+		 */
+		private void sendLine(String reply) {
+			byte[] bytes = reply.getBytes(Frame.UTF8);
+			ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 1);
+			buffer.put(bytes).put((byte) '\n');
+			buffer.flip();
+			send(buffer, true);
+		}
+
+		private void send(ByteBuffer buffer, boolean closeWhenDone) {
+			out.add(buffer);
+			if (closeWhenDone) {
+				closeAfterWrite = true;
+			}
+			loop.requestWrite(this);
+		}
+
+		/**
+		 * Write as much of the queued output as the socket accepts. Called on the event loop.
+		 */
+		public void flush() {
+			if (key == null || !key.isValid()) {
+				return;
+			}
+			ByteBuffer buffer;
+			try {
+				while ((buffer = out.peek()) != null) {
+					channel.write(buffer);
+					if (buffer.hasRemaining()) {
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+						return;
+					}
+					out.poll();
+				}
+			} catch (IOException e) {
+				close();
+				return;
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			if (closeAfterWrite) {
+				close();
+			}
+		}
+
+		public void close() {
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {}
+		}
+
+		private class Sink implements ReplySink {
+			private final int id;
+
+			public Sink(int id) {
+				this.id = id;
+			}
+
+			@Override
+			public boolean send(Object message) {
+				if (!isOpen()) {
+					return false;
+				}
+				sendFrame(id, message);
+				return true;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return channel.isOpen();
+			}
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package edu.umn.cs.Nebula.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A request run on a pool created with {@link ExecutorStrategy#newPriorityRequestPool(int)}:
+ * tasks of higher priority are taken first, tasks of the same priority in the order they were
+ * queued.
+ *
+ * @author albert
+ */
+public abstract class PriorityTask implements Runnable, Comparable<PriorityTask> {
+	private static final AtomicLong sequence = new AtomicLong();
+
+	private final int priority;
+	private final long order = sequence.getAndIncrement();
+
+	public PriorityTask(int priority) {
+		this.priority = priority;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+
+	@Override
+	public int compareTo(PriorityTask other) {
+		if (priority != other.priority) {
+			return priority > other.priority ? -1 : 1;
+		}
+		return order < other.order ? -1 : (order == other.order ? 0 : 1);
+	}
+}
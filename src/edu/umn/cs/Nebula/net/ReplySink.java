@@ -0,0 +1,17 @@
+package edu.umn.cs.Nebula.net;
+
+/**
+ * Server side of a {@link ReplyStream}.
+ *
+ * @author albert
+ */
+public interface ReplySink {
+	/**
+	 * Send a message to the client. Messages are delivered in the order they are sent.
+	 *
+	 * @return false if the session is closed, in which case the sink should be dropped
+	 */
+	boolean send(Object message);
+
+	boolean isOpen();
+}
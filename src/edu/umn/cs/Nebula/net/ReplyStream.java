@@ -0,0 +1,18 @@
+package edu.umn.cs.Nebula.net;
+
+/**
+ * A reply made of any number of messages sent as they become available, for example the
+ * changes to a table a client subscribed to. A dispatcher returns it instead of a single reply
+ * and the server calls {@link #open(ReplySink)} with a sink bound to the request; every message
+ * is sent in a frame with the id of the request. Only sessions can carry a stream, a one-shot
+ * request gets a null reply.
+ *
+ * @author albert
+ */
+public interface ReplyStream {
+	/**
+	 * Called once the stream can be written to. Must not block, messages are to be sent
+	 * later from whatever thread produces them.
+	 */
+	void open(ReplySink sink);
+}
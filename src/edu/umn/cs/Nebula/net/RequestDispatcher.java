@@ -0,0 +1,211 @@
+package edu.umn.cs.Nebula.net;
+
+import java.io.IOException;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import edu.umn.cs.Nebula.util.LatencyHistogram;
+import edu.umn.cs.Nebula.util.Metrics;
+
+/**
+ * Request logic of a listener, independent of how connections are served.
+ * A request line is parsed as {@code T}, handed to {@link #dispatch(Object)} and the returned
+ * object is serialized back as the reply. Session frames go through the {@link WireCodec}
+ * negotiated for the connection instead. A {@link CachedReply} is sent in the form it keeps.
+ *
+ * @author albert
+ *
+ * @param <T> the request class
+ */
+public abstract class RequestDispatcher<T> {
+	protected static final Gson gson = new Gson();
+
+	private final Class<T> requestType;
+
+	// time spent in every stage of the requests, if measured
+	private volatile LatencyHistogram decodeTimes;
+	private volatile LatencyHistogram dispatchTimes;
+	private volatile LatencyHistogram encodeTimes;
+
+	protected RequestDispatcher(Class<T> requestType) {
+		this.requestType = requestType;
+	}
+
+	public Class<T> getRequestType() {
+		return requestType;
+	}
+
+	/**
+	 * Measure the time spent decoding, dispatching and encoding, as the histograms
+	 * {@code decode}, {@code dispatch} and {@code encode}.
+	 */
+	public void setMetrics(Metrics metrics) {
+		decodeTimes = metrics.histogram("decode");
+		dispatchTimes = metrics.histogram("dispatch");
+		encodeTimes = metrics.histogram("encode");
+	}
+
+	/**
+	 * @return now, after recording the time elapsed since the start
+	 */
+	private static long record(LatencyHistogram times, long start) {
+		long now = System.nanoTime();
+		if (times != null) {
+			times.record(now - start);
+		}
+		return now;
+	}
+
+	/**
+	 * Handle a request.
+	 *
+	 * @param request the request, or null if it could not be parsed
+	 * @return the reply
+	 */
+	public abstract Object dispatch(T request);
+
+	/**
+	 * Parse a request line.
+	 *
+	 * @param line
+	 * @return the request, or null if the line is not a valid request
+	 */
+	public T decode(String line) {
+		try {
+			return gson.fromJson(line, requestType);
+		} catch (JsonSyntaxException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Serialize a reply. The result must not contain a line break.
+	 *
+	 * @param reply
+	 * @return the reply line
+	 */
+	public String encode(Object reply) {
+		return gson.toJson(reply);
+	}
+
+	public String dispatchLine(String line) {
+		return dispatchDecoded(decodeLine(line));
+	}
+
+	/**
+	 * Parse a request line, see {@link #decode(String)}.
+	 */
+	public T decodeLine(String line) {
+		long start = System.nanoTime();
+		T request = decode(line);
+		record(decodeTimes, start);
+		return request;
+	}
+
+	/**
+	 * Handle a request parsed by {@link #decodeLine(String)}.
+	 *
+	 * @return the reply line, without line break
+	 */
+	@SuppressWarnings("unchecked")
+	public String dispatchDecoded(Object request) {
+		long start = System.nanoTime();
+		Object reply = dispatch((T) request);
+		start = record(dispatchTimes, start);
+		// a one-shot connection closes after the first reply, it cannot carry a stream
+		String encoded;
+		if (reply instanceof CachedReply) {
+			encoded = ((CachedReply<?>) reply).getJson();
+		} else {
+			encoded = encode(reply instanceof ReplyStream ? null : reply);
+		}
+		record(encodeTimes, start);
+		return encoded;
+	}
+
+	/**
+	 * Priority of a request when the server is loaded: the requests of higher priority run
+	 * first and are shed last, see {@link AdmissionControl}. All requests have priority 0
+	 * unless overridden.
+	 *
+	 * @param request the request, or null if it could not be parsed
+	 */
+	public int getPriority(T request) {
+		return 0;
+	}
+
+	/**
+	 * Reply to a request that is shed because the server is overloaded.
+	 *
+	 * @param request		the request, or null if it could not be parsed
+	 * @param retryAfter	time after which the client should send it again, in milliseconds
+	 * @return the reply, or null to close one-shot connections without replying (default)
+	 */
+	public Object overloaded(T request, long retryAfter) {
+		return null;
+	}
+
+	/**
+	 * {@link #getPriority(Object)} of a request decoded by the server.
+	 */
+	@SuppressWarnings("unchecked")
+	public int getPriorityOf(Object request) {
+		return getPriority((T) request);
+	}
+
+	/**
+	 * {@link #overloaded(Object, long)} for a request decoded by the server.
+	 */
+	@SuppressWarnings("unchecked")
+	public Object overloadedObject(Object request, long retryAfter) {
+		return overloaded((T) request, retryAfter);
+	}
+
+	/**
+	 * Dispatch a request decoded by {@link #decodeFrame(byte[], WireCodec)}.
+	 */
+	@SuppressWarnings("unchecked")
+	public Object dispatchObject(Object request) {
+		long start = System.nanoTime();
+		Object reply = dispatch((T) request);
+		record(dispatchTimes, start);
+		return reply;
+	}
+
+	/**
+	 * Parse the payload of a session frame.
+	 *
+	 * @return the request, or null if the payload is not a valid request
+	 * @throws IOException if the payload cannot be decoded, which breaks stateful codecs
+	 */
+	public T decodeFrame(byte[] payload, WireCodec codec) throws IOException {
+		long start = System.nanoTime();
+		T request;
+		if (codec instanceof JsonCodec) {
+			// same parsing rules as request lines
+			request = decode(new String(payload, Frame.UTF8));
+		} else {
+			Object decoded = codec.decode(payload, requestType);
+			request = requestType.isInstance(decoded) ? requestType.cast(decoded) : null;
+		}
+		record(decodeTimes, start);
+		return request;
+	}
+
+	/**
+	 * Serialize the reply to a session frame.
+	 */
+	public byte[] encodeFrame(Object reply, WireCodec codec) {
+		long start = System.nanoTime();
+		byte[] encoded;
+		if (reply instanceof CachedReply) {
+			CachedReply<?> cached = (CachedReply<?>) reply;
+			encoded = codec instanceof JsonCodec ? cached.getJsonBytes() : codec.encode(cached.getValue());
+		} else {
+			encoded = codec instanceof JsonCodec ? encode(reply).getBytes(Frame.UTF8) : codec.encode(reply);
+		}
+		record(encodeTimes, start);
+		return encoded;
+	}
+}
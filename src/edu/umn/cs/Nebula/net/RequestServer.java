@@ -0,0 +1,76 @@
+package edu.umn.cs.Nebula.net;
+
+/**
+ * A listener that serves requests on a port using a {@link RequestDispatcher}.
+ * Every server accepts both one-shot connections (one request line, one reply line)
+ * and persistent sessions (see {@link Frame}). {@link #run()} blocks until the server is closed.
+ *
+ * The implementation is selected with the {@code nebula.server} system property:
+ * {@code nio} (default) or {@code blocking}. The threads running the requests are created
+ * according to the {@link ExecutorStrategy}. The requests waiting for a thread are bounded by
+ * the {@link AdmissionControl}.
+ *
+ * @author albert
+ */
+public abstract class RequestServer implements Runnable {
+	public static final String SERVER_PROPERTY = "nebula.server";
+
+	protected final String name;
+	protected final int port;
+	protected final RequestDispatcher<?> dispatcher;
+	protected ExecutorStrategy executorStrategy = ExecutorStrategy.getDefault();
+	protected final LoadMeter load = new LoadMeter();
+	protected final AdmissionControl admission = AdmissionControl.fromProperties(load);
+
+	protected RequestServer(String name, int port, RequestDispatcher<?> dispatcher) {
+		this.name = name;
+		this.port = port;
+		this.dispatcher = dispatcher;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * @return the request rate and queueing delay of the server
+	 */
+	public LoadMeter getLoad() {
+		return load;
+	}
+
+	/**
+	 * @return the bound on the requests waiting for a thread
+	 */
+	public AdmissionControl getAdmission() {
+		return admission;
+	}
+
+	/**
+	 * Override the default executor strategy. Must be called before {@link #run()}.
+	 */
+	public void setExecutorStrategy(ExecutorStrategy executorStrategy) {
+		this.executorStrategy = executorStrategy;
+	}
+
+	/**
+	 * Stop accepting connections and release the server resources.
+	 */
+	public abstract void close();
+
+	/**
+	 * Create the server selected by the {@code nebula.server} system property.
+	 *
+	 * @param name		prefix used in log messages
+	 * @param port		listening port
+	 * @param poolSize	number of threads handling requests (platform executor strategy)
+	 * @param dispatcher
+	 * @return the server
+	 */
+	public static RequestServer create(String name, int port, int poolSize, RequestDispatcher<?> dispatcher) {
+		if ("blocking".equalsIgnoreCase(System.getProperty(SERVER_PROPERTY))) {
+			return new BlockingServer(name, port, poolSize, dispatcher);
+		}
+		return new NioServer(name, port, poolSize, dispatcher);
+	}
+}
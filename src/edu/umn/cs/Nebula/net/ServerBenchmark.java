@@ -0,0 +1,136 @@
+package edu.umn.cs.Nebula.net;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compare the executor strategies of the blocking server under many concurrent clients.
+ * Every client opens one-shot connections in a loop; the handler sleeps to stand for a
+ * database or network call. Reports throughput and latency percentiles for each strategy.
+ *
+ * Usage: ServerBenchmark [clients=10000] [requests per client=10] [handler delay ms=10] [pool size=10] [port=16500]
+ *
+ * Run with a file descriptor limit above the number of clients.
+ *
+ * @author albert
+ */
+public class ServerBenchmark {
+
+	/**
+	 * Replies true after sleeping the requested number of milliseconds.
+	 */
+	private static class SleepDispatcher extends RequestDispatcher<Long> {
+		public SleepDispatcher() {
+			super(Long.class);
+		}
+
+		@Override
+		public Object dispatch(Long delay) {
+			try {
+				if (delay != null && delay > 0) {
+					Thread.sleep(delay);
+				}
+			} catch (InterruptedException e) {
+				return false;
+			}
+			return true;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int requests = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		long delay = args.length > 2 ? Long.parseLong(args[2]) : 10;
+		int poolSize = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+		int port = args.length > 4 ? Integer.parseInt(args[4]) : 16500;
+
+		for (ExecutorStrategy strategy : ExecutorStrategy.values()) {
+			if (strategy == ExecutorStrategy.VIRTUAL && !ExecutorStrategy.isVirtualSupported()) {
+				System.out.println(strategy + ": not supported by this JVM");
+				continue;
+			}
+			run(strategy, clients, requests, delay, poolSize, port++);
+		}
+		System.exit(0);
+	}
+
+	private static void run(ExecutorStrategy strategy, int clients, final int requests, final long delay,
+			int poolSize, final int port) throws InterruptedException {
+		BlockingServer server = new BlockingServer("BENCH", port, poolSize, new SleepDispatcher());
+		server.setExecutorStrategy(strategy);
+		Thread serverThread = new Thread(server);
+		serverThread.setDaemon(true);
+		serverThread.start();
+		Thread.sleep(500);
+
+		// the clients need as much concurrency as the server being measured
+		ExecutorService clientPool = ExecutorStrategy.isVirtualSupported()
+				? ExecutorStrategy.VIRTUAL.newConnectionPool() : Executors.newCachedThreadPool();
+		final long[] latencies = new long[clients * requests];
+		final AtomicInteger completed = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(clients);
+
+		long start = System.nanoTime();
+		for (int c = 0; c < clients; c++) {
+			clientPool.execute(new Runnable() {
+				@Override
+				public void run() {
+					for (int r = 0; r < requests; r++) {
+						long sent = System.nanoTime();
+						if (request(port, delay)) {
+							latencies[completed.getAndIncrement()] = System.nanoTime() - sent;
+						} else {
+							failed.incrementAndGet();
+						}
+					}
+					done.countDown();
+				}
+			});
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+		clientPool.shutdown();
+		server.close();
+
+		int n = completed.get();
+		long[] sorted = Arrays.copyOf(latencies, n);
+		Arrays.sort(sorted);
+		System.out.println(String.format("%s: %d clients, %d ok, %d failed, %.0f req/s, p50 %.1f ms, p99 %.1f ms, max %.1f ms",
+				strategy, clients, n, failed.get(), n / (elapsed / 1e9),
+				percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 1.0)));
+	}
+
+	private static double percentile(long[] sorted, double p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int i = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, i)] / 1e6;
+	}
+
+	private static boolean request(int port, long delay) {
+		Socket socket = null;
+		try {
+			socket = new Socket("localhost", port);
+			PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			out.println(delay);
+			return "true".equals(in.readLine());
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				if (socket != null) socket.close();
+			} catch (IOException e) {}
+		}
+	}
+}
@@ -0,0 +1,391 @@
+package edu.umn.cs.Nebula.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Client side of a persistent session (see {@link Frame}).
+ * A single connection is shared by every caller: each request is tagged with a new id and
+ * a reader thread hands the replies back to the waiting callers, so requests from different
+ * threads can be in flight at the same time.
+ *
+ * The payload codec is negotiated in the handshake. The client offers the codecs listed in the
+ * {@code nebula.codecs} system property (binary first by default) and falls back to JSON when
+ * the server does not know any of them.
+ *
+ * @author albert
+ */
+public class SessionClient {
+	private static final int connectTimeout = 3000; // in milliseconds
+	public static final String defaultCodecs = System.getProperty("nebula.codecs", BinaryCodec.NAME + " " + JsonCodec.NAME);
+
+	private final String host;
+	private final int port;
+	private final String offeredCodecs;
+	private WireCodec codec;
+
+	private Socket socket;
+	private DataOutputStream out;
+	private Thread reader;
+	private volatile boolean connected = false;
+
+	private int nextId = 1;
+	private final HashMap<Integer, PendingReply> pending = new HashMap<Integer, PendingReply>();
+	// held while writing to the socket, so a lock rather than a monitor to not pin virtual threads
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	public SessionClient(String host, int port) {
+		this(host, port, defaultCodecs);
+	}
+
+	/**
+	 * @param codecs	space-separated codec names, in order of preference
+	 */
+	public SessionClient(String host, int port, String codecs) {
+		this.host = host;
+		this.port = port;
+		this.offeredCodecs = codecs;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * @return the name of the codec used by the current connection, or null if not connected
+	 */
+	public String getCodecName() {
+		WireCodec current = codec;
+		return current == null ? null : current.getName();
+	}
+
+	/**
+	 * Open the connection and perform the session handshake.
+	 *
+	 * @throws IOException if the server cannot be reached or does not support sessions
+	 */
+	public synchronized void connect() throws IOException {
+		if (connected) {
+			return;
+		}
+		Socket sock = new Socket();
+		try {
+			sock.connect(new InetSocketAddress(host, port), connectTimeout);
+			sock.setTcpNoDelay(true);
+			sock.setKeepAlive(true);
+
+			BufferedInputStream bin = new BufferedInputStream(sock.getInputStream());
+			OutputStream rawOut = sock.getOutputStream();
+			rawOut.write((Frame.HANDSHAKE + " " + offeredCodecs + "\n").getBytes(Frame.UTF8));
+			rawOut.flush();
+
+			// servers that do not know about sessions never answer the handshake
+			sock.setSoTimeout(connectTimeout);
+			String reply;
+			try {
+				reply = Frame.readLine(bin);
+			} catch (SocketTimeoutException e) {
+				reply = null;
+			}
+			if (reply == null || !(reply.equals(Frame.ACCEPTED) || reply.startsWith(Frame.ACCEPTED + " "))) {
+				throw new IOException("Session rejected by " + host + ":" + port + ": " + reply);
+			}
+			// servers that predate codec negotiation answer a bare OK and speak JSON
+			WireCodec chosen = WireCodec.negotiate(reply.substring(Frame.ACCEPTED.length()));
+			sock.setSoTimeout(0);
+
+			synchronized (pending) {
+				socket = sock;
+				codec = chosen;
+				out = new DataOutputStream(new BufferedOutputStream(rawOut));
+				connected = true;
+			}
+			reader = new Thread(new Reader(sock, new DataInputStream(bin), chosen));
+			reader.setDaemon(true);
+			reader.start();
+		} catch (IOException e) {
+			try {
+				sock.close();
+			} catch (IOException ignored) {}
+			throw e;
+		}
+	}
+
+	/**
+	 * Send a request without waiting for its reply.
+	 *
+	 * @param request	the request object
+	 * @param replyType	the type the reply is decoded to
+	 * @return a future completed with the decoded reply
+	 */
+	public CompletableFuture<Object> send(Object request, Type replyType) {
+		CompletableFuture<Object> reply = new CompletableFuture<Object>();
+		int id;
+		Socket sock;
+		DataOutputStream output;
+		WireCodec encoder;
+		synchronized (pending) {
+			if (!connected) {
+				reply.completeExceptionally(new IOException("Session is not connected"));
+				return reply;
+			}
+			sock = socket;
+			output = out;
+			encoder = codec;
+			id = nextId++;
+			if (nextId == Integer.MAX_VALUE) {
+				nextId = 1;
+			}
+			pending.put(id, new PendingReply(reply, replyType));
+		}
+		final int requestId = id;
+		reply.whenComplete(new BiConsumer<Object, Throwable>() {
+			@Override
+			public void accept(Object value, Throwable error) {
+				if (error != null) {
+					// the caller gave up (e.g. timed out), a late reply is decoded and dropped
+					synchronized (pending) {
+						pending.remove(requestId);
+					}
+				}
+			}
+		});
+		try {
+			// encode while holding the write lock so that a stateful codec sees frames in wire order
+			writeLock.lock();
+			try {
+				new Frame(id, encoder.encode(request)).write(output);
+				output.flush();
+			} finally {
+				writeLock.unlock();
+			}
+		} catch (IOException e) {
+			synchronized (pending) {
+				pending.remove(id);
+			}
+			reply.completeExceptionally(e);
+			close(sock);
+		} catch (RuntimeException e) {
+			// the request could not be encoded, nothing was written
+			synchronized (pending) {
+				pending.remove(id);
+			}
+			reply.completeExceptionally(new IOException("Failed encoding request: " + e.getMessage()));
+		}
+		return reply;
+	}
+
+	/**
+	 * Send a request answered with a {@link ReplyStream}. Every message of the stream is handed
+	 * to the listener until the session closes.
+	 *
+	 * @param request		the request object
+	 * @param messageType	the type the messages are decoded to
+	 * @throws IOException if the request could not be sent
+	 */
+	public void subscribe(Object request, Type messageType, StreamListener listener) throws IOException {
+		int id;
+		Socket sock;
+		DataOutputStream output;
+		WireCodec encoder;
+		synchronized (pending) {
+			if (!connected) {
+				throw new IOException("Session is not connected");
+			}
+			sock = socket;
+			output = out;
+			encoder = codec;
+			id = nextId++;
+			if (nextId == Integer.MAX_VALUE) {
+				nextId = 1;
+			}
+			pending.put(id, new PendingReply(listener, messageType));
+		}
+		try {
+			writeLock.lock();
+			try {
+				new Frame(id, encoder.encode(request)).write(output);
+				output.flush();
+			} finally {
+				writeLock.unlock();
+			}
+		} catch (IOException e) {
+			synchronized (pending) {
+				pending.remove(id);
+			}
+			close(sock);
+			throw e;
+		} catch (RuntimeException e) {
+			synchronized (pending) {
+				pending.remove(id);
+			}
+			throw new IOException("Failed encoding request: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Send a request and wait for its reply.
+	 *
+	 * @param timeout in milliseconds
+	 * @return the decoded reply
+	 * @throws IOException if the session fails or the reply does not arrive in time
+	 */
+	public Object call(Object request, Type replyType, long timeout) throws IOException {
+		try {
+			return send(request, replyType).get(timeout, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} catch (TimeoutException e) {
+			throw new IOException("No reply from " + host + ":" + port + " after " + timeout + " ms");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a reply");
+		}
+	}
+
+	/**
+	 * Close the connection, fail every request that is still waiting for a reply and end
+	 * every stream.
+	 */
+	public void close() {
+		Socket current;
+		synchronized (pending) {
+			current = socket;
+		}
+		close(current);
+	}
+
+	/**
+	 * Close a connection of this session. The requests and streams are only ended if it is still
+	 * the current connection, not one already replaced by a reconnect.
+	 */
+	private void close(Socket sock) {
+		IOException cause = new IOException("Session to " + host + ":" + port + " closed");
+		LinkedList<StreamListener> streams = new LinkedList<StreamListener>();
+		synchronized (pending) {
+			if (sock == socket) {
+				connected = false;
+				socket = null;
+				out = null;
+				for (PendingReply reply : pending.values()) {
+					if (reply.listener != null) {
+						streams.add(reply.listener);
+					} else {
+						reply.future.completeExceptionally(cause);
+					}
+				}
+				pending.clear();
+			}
+		}
+		try {
+			if (sock != null) sock.close();
+		} catch (IOException e) {
+			System.err.println("[SESSION] Failed closing socket: " + e);
+		}
+		for (StreamListener listener : streams) {
+			listener.onClose(cause);
+		}
+	}
+
+	/**
+	 * Reads the replies of one connection and completes the matching pending requests.
+	 */
+	private class Reader implements Runnable {
+		private final Socket sock;
+		private final DataInputStream in;
+		private final WireCodec codec;
+
+		public Reader(Socket sock, DataInputStream in, WireCodec codec) {
+			this.sock = sock;
+			this.in = in;
+			this.codec = codec;
+		}
+
+		@Override
+		public void run() {
+			Frame frame;
+			PendingReply reply;
+			Object message;
+			try {
+				while ((frame = Frame.read(in)) != null) {
+					synchronized (pending) {
+						reply = pending.get(frame.getId());
+						if (reply != null && reply.listener == null) {
+							pending.remove(frame.getId());
+						}
+					}
+					// replies are decoded even if nobody waits for them, to keep a stateful codec in sync
+					try {
+						message = codec.decode(frame.getPayload(), reply == null ? Object.class : reply.type);
+					} catch (IOException e) {
+						if (codec.isStateful()) {
+							throw e;
+						}
+						if (reply != null && reply.listener == null) {
+							reply.future.completeExceptionally(e);
+						}
+						continue;
+					}
+					if (reply == null) {
+						continue;
+					}
+					if (reply.listener != null) {
+						reply.listener.onMessage(message);
+					} else {
+						reply.future.complete(message);
+					}
+				}
+			} catch (IOException e) {
+				if (!sock.isClosed()) {
+					System.out.println("[SESSION] Connection to " + host + ":" + port + " lost: " + e.getMessage());
+				}
+			}
+			close(sock);
+		}
+	}
+
+	private static class PendingReply {
+		private final CompletableFuture<Object> future;
+		private final StreamListener listener;
+		private final Type type;
+
+		public PendingReply(CompletableFuture<Object> future, Type type) {
+			this.future = future;
+			this.listener = null;
+			this.type = type;
+		}
+
+		public PendingReply(StreamListener listener, Type type) {
+			this.future = null;
+			this.listener = listener;
+			this.type = type;
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package edu.umn.cs.Nebula.net;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * A few persistent sessions to the same server, used round-robin.
+ * Each session pipelines requests, so the pool mostly spreads the load of encoding and
+ * reading over several connections and keeps a spare connection when one breaks.
+ * Sessions are opened lazily and reopened after a failure. A request that fails or gets no
+ * reply within the timeout is retried on the next session with an exponential backoff, so
+ * only idempotent requests should be sent through the pool.
+ *
+ * @author albert
+ */
+public class SessionPool {
+	private static final long minRetryDelay = 100; // in milliseconds
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "session-pool-timer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final String host;
+	private final int port;
+	private final SessionClient[] sessions;
+	private final long timeout;
+	private final int maxRetries;
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * @param size			number of sessions
+	 * @param timeout		time to wait for each reply, in milliseconds
+	 * @param maxRetries	number of times a failed request is sent again
+	 */
+	public SessionPool(String host, int port, int size, long timeout, int maxRetries) {
+		this.host = host;
+		this.port = port;
+		this.timeout = timeout;
+		this.maxRetries = maxRetries;
+		sessions = new SessionClient[Math.max(1, size)];
+		for (int i = 0; i < sessions.length; i++) {
+			sessions[i] = new SessionClient(host, port);
+		}
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Send a request without waiting for its reply.
+	 *
+	 * @return a future completed with the decoded reply, or with the last error once the
+	 * retries are exhausted
+	 */
+	public CompletableFuture<Object> send(Object request, Type replyType) {
+		CompletableFuture<Object> result = new CompletableFuture<Object>();
+		attempt(request, replyType, 0, result);
+		return result;
+	}
+
+	/**
+	 * Send a request and wait for its reply.
+	 *
+	 * @throws IOException if every attempt failed
+	 */
+	public Object call(Object request, Type replyType) throws IOException {
+		try {
+			return send(request, replyType).get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a reply");
+		}
+	}
+
+	public void close() {
+		for (SessionClient session : sessions) {
+			session.close();
+		}
+	}
+
+	/**
+	 * @return the next session, connected
+	 */
+	private SessionClient acquire() throws IOException {
+		SessionClient session = sessions[(next.getAndIncrement() & Integer.MAX_VALUE) % sessions.length];
+		if (!session.isConnected()) {
+			session.connect();
+		}
+		return session;
+	}
+
+	private void attempt(final Object request, final Type replyType, final int attempt, final CompletableFuture<Object> result) {
+		SessionClient session;
+		try {
+			session = acquire();
+		} catch (IOException e) {
+			retry(request, replyType, attempt, result, e);
+			return;
+		}
+
+		final CompletableFuture<Object> reply = session.send(request, replyType);
+		final ScheduledFuture<?> timeoutTask = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				reply.completeExceptionally(new IOException("No reply from " + host + ":" + port + " after " + timeout + " ms"));
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+		reply.whenComplete(new BiConsumer<Object, Throwable>() {
+			@Override
+			public void accept(Object value, Throwable error) {
+				timeoutTask.cancel(false);
+				if (error == null) {
+					result.complete(value);
+				} else {
+					retry(request, replyType, attempt, result, error);
+				}
+			}
+		});
+	}
+
+	private void retry(final Object request, final Type replyType, final int attempt, final CompletableFuture<Object> result,
+			Throwable error) {
+		if (attempt >= maxRetries) {
+			result.completeExceptionally(error);
+			return;
+		}
+		long delay = minRetryDelay << Math.min(attempt, 10);
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				// connecting blocks, keep it off the timer thread
+				CompletableFuture.runAsync(new Runnable() {
+					@Override
+					public void run() {
+						attempt(request, replyType, attempt + 1, result);
+					}
+				});
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,18 @@
+package edu.umn.cs.Nebula.net;
+
+import java.io.IOException;
+
+/**
+ * Client side of a {@link ReplyStream}, see {@link SessionClient#subscribe(Object, java.lang.reflect.Type, StreamListener)}.
+ * Both methods are called on the reader thread of the session and must return quickly.
+ *
+ * @author albert
+ */
+public interface StreamListener {
+	void onMessage(Object message);
+
+	/**
+	 * The session closed, no more messages will be received.
+	 */
+	void onClose(IOException cause);
+}
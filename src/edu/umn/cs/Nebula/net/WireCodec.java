@@ -0,0 +1,69 @@
+package edu.umn.cs.Nebula.net;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+
+/**
+ * Serialization used for the payload of session frames.
+ * The codec is negotiated during the session handshake: the client lists the codecs it
+ * supports in order of preference after {@link Frame#HANDSHAKE} and the server answers with
+ * the one it picked after {@link Frame#ACCEPTED}. A missing codec name means JSON, which is
+ * what older clients and servers speak.
+ *
+ * A codec instance belongs to one connection. Stateful codecs must see the frames in the
+ * order they are written to / read from the connection.
+ *
+ * @author albert
+ */
+public abstract class WireCodec {
+
+	public abstract String getName();
+
+	/**
+	 * @return whether encoding/decoding depends on the previous frames of the connection
+	 */
+	public abstract boolean isStateful();
+
+	public abstract byte[] encode(Object message);
+
+	/**
+	 * @param data	the payload
+	 * @param type	the expected type of the message
+	 * @return the decoded message
+	 * @throws IOException if the payload is malformed
+	 */
+	public abstract Object decode(byte[] data, Type type) throws IOException;
+
+	/**
+	 * Create a new codec instance.
+	 *
+	 * @param name
+	 * @return the codec, or null if the name is unknown
+	 */
+	public static WireCodec forName(String name) {
+		if (JsonCodec.NAME.equals(name)) {
+			return new JsonCodec();
+		} else if (BinaryCodec.NAME.equals(name)) {
+			return new BinaryCodec();
+		}
+		return null;
+	}
+
+	/**
+	 * Pick the first supported codec from a space-separated list of codec names.
+	 *
+	 * @param offered
+	 * @return the codec, JSON if none of the offered codecs is supported
+	 */
+	public static WireCodec negotiate(String offered) {
+		WireCodec codec;
+		if (offered != null) {
+			for (String name : offered.trim().split(" +")) {
+				if ((codec = forName(name)) != null) {
+					return codec;
+				}
+			}
+		}
+		return new JsonCodec();
+	}
+}
@@ -9,12 +9,13 @@ import java.net.Socket;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
 
 import edu.umn.cs.Nebula.job.JobType;
 import edu.umn.cs.Nebula.job.RunningTask;
 import edu.umn.cs.Nebula.job.TaskInfo;
 import edu.umn.cs.Nebula.job.TaskStatus;
+import edu.umn.cs.Nebula.net.ExecutorStrategy;
 import edu.umn.cs.Nebula.request.TaskRequest;
 import edu.umn.cs.Nebula.request.TaskRequestType;
 
@@ -33,7 +34,7 @@ public class ComputeNode extends Node {
 	private static LinkedHashMap<String, Thread> taskListeners = new LinkedHashMap<String, Thread>();
 	private static LinkedHashMap<String, TaskInfo> taskStatuses = new LinkedHashMap<String, TaskInfo>();
 	private static String taskDirectory = "/home/umn_nebula/albert/";
-	private static final Object tasksLock = new Object();
+	private static final ReentrantLock tasksLock = new ReentrantLock();
 	private static final Object taskStatusLock = new Object();
 	private static final long maxInactive = 30000;
 
@@ -54,6 +55,13 @@ public class ComputeNode extends Node {
 		// Connect to the Job Manager
 		Thread ping = new Thread(new Ping(jobManager, jobManagerPort));
 		ping.start();
+		// Let the master know when the node shuts down
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				goOffline(jobManager, jobManagerPort);
+			}
+		}));
 
 		// Periodically check the status of all running tasks
 		Thread taskMonitor = new Thread(new TaskMonitor());
@@ -70,7 +78,7 @@ public class ComputeNode extends Node {
 	 * @throws IOException
 	 */
 	protected static void listenForTasks(int poolSize, int port) throws IOException {
-		ExecutorService requestPool = Executors.newFixedThreadPool(poolSize);
+		ExecutorService requestPool = ExecutorStrategy.getDefault().newRequestPool(poolSize);
 		ServerSocket serverSocket = null;
 
 		try {
@@ -161,7 +169,8 @@ public class ComputeNode extends Node {
 				}
 
 				// remove all terminated tasks from the structure
-				synchronized (tasksLock) {
+				tasksLock.lock();
+				try {
 					for (String processId : removedTasks) {
 						// check if the process has not yet terminate
 						if (runningTasks.containsKey(processId)) {
@@ -175,6 +184,8 @@ public class ComputeNode extends Node {
 							listener.interrupt();
 						}
 					}
+				} finally {
+					tasksLock.unlock();
 				}
 				if (!taskStatuses.isEmpty()) {
 					// send the task updates to the Job Manager
@@ -307,9 +318,12 @@ public class ComputeNode extends Node {
 					if (childRunning) {
 						childMonitor = new Thread(new TaskListener(processId));
 						childMonitor.start();
-						synchronized (tasksLock) {
+						tasksLock.lock();
+						try {
 							runningTasks.put(processId, child);
 							taskListeners.put(processId, childMonitor);
+						} finally {
+							tasksLock.unlock();
 						}
 					} else {
 						System.out.println("[" + nodeInfo.getId() + "] Failed running task: " + task.getCommand() + " "
@@ -336,7 +350,8 @@ public class ComputeNode extends Node {
 					break;
 				}
 				processId = task.getJobId() + "_" + task.getId();
-				synchronized (tasksLock) {
+				tasksLock.lock();
+				try {
 					// terminate the task's listener
 					if ((childMonitor = taskListeners.get(processId)) != null) {
 						childMonitor.interrupt();
@@ -361,6 +376,8 @@ public class ComputeNode extends Node {
 									"[" + nodeInfo.getId() + "] " + processId + " is not available / no such task");
 						reply = "No such task";
 					}
+				} finally {
+					tasksLock.unlock();
 				}
 				break;
 			case DATA:
@@ -4,16 +4,21 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.lang.reflect.Type;
 import java.net.HttpURLConnection;
 import java.net.Socket;
 import java.net.URL;
 import java.util.LinkedList;
+import java.util.Random;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
 import com.google.gson.reflect.TypeToken;
 
+import edu.umn.cs.Nebula.net.SessionClient;
+import edu.umn.cs.Nebula.request.NodeReply;
 import edu.umn.cs.Nebula.request.NodeRequest;
 import edu.umn.cs.Nebula.request.NodeRequestType;
 
@@ -26,6 +31,15 @@ public abstract class Node {
 	// A list of neighboring nodes and its lock
 	protected static LinkedList<String> neighbors = new LinkedList<String>();
 	protected static final Object neighborsLock = new Object();
+
+	// Persistent session with the master, shared by heartbeats and other node requests
+	protected static SessionClient session;
+	protected static final long requestTimeout = 5000; // in milliseconds
+	protected static final Type neighborsType = new TypeToken<LinkedList<String>>() {}.getType();
+
+	// the node manager shard the node was redirected to, null if none
+	protected static volatile String redirectedMaster;
+	protected static volatile int redirectedPort;
 		
 	/**
 	 * Get a node information (id, ip, latitude, longitude)
@@ -66,59 +80,377 @@ public abstract class Node {
 		}	
 	}
 	
+	/**
+	 * Send a request to the master and return the decoded reply.
+	 * The request goes over the persistent session if one is open, otherwise it uses
+	 * a one-shot connection.
+	 * 
+	 * @param master
+	 * @param port
+	 * @param request
+	 * @param replyType
+	 * @return the reply, or null if the master did not send one of the expected type
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	protected static <R> R sendRequest(String master, int port, NodeRequest request, Type replyType) throws IOException {
+		SessionClient currentSession = session;
+		if (currentSession != null && currentSession.isConnected()) {
+			return (R) currentSession.call(request, replyType, requestTimeout);
+		}
+
+		BufferedReader in = null;
+		PrintWriter out = null;
+		Socket socket = null;
+		try {
+			socket = new Socket(master, port);
+			out = new PrintWriter(socket.getOutputStream());
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			out.println(gson.toJson(request));
+			out.flush();
+			return gson.fromJson(in.readLine(), replyType);
+		} catch (JsonSyntaxException e) {
+			return null;
+		} finally {
+			try {
+				if (in != null)
+					in.close();
+				if (out != null)
+					out.close();
+				if (socket != null)
+					socket.close();
+			} catch (IOException e) {
+				System.err.println("[" + nodeInfo.getId() + "] Failed closing streams/socket: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Ask the master for the current list of neighboring nodes.
+	 * 
+	 * @return the neighbors, or null if the master could not be reached
+	 */
+	protected static LinkedList<String> getNeighbors(String master, int port) {
+		try {
+			LinkedList<String> result = sendRequest(master, port, 
+					new NodeRequest(nodeInfo, NodeRequestType.GET_NEIGHBORS), neighborsType);
+			if (result != null) {
+				result.remove(nodeInfo.getId());
+			}
+			return result;
+		} catch (IOException e) {
+			System.out.println("[" + nodeInfo.getId() + "] Failed getting neighbors: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Tell the master that the node is leaving and close the session.
+	 * 
+	 * @return is success?
+	 */
+	protected static boolean goOffline(String master, int port) {
+		boolean success = false;
+		if (redirectedMaster != null) {
+			master = redirectedMaster;
+			port = redirectedPort;
+		}
+		try {
+			success = sendRequest(master, port, new NodeRequest(nodeInfo, NodeRequestType.OFFLINE), neighborsType) != null;
+		} catch (IOException e) {
+			System.out.println("[" + nodeInfo.getId() + "] Failed sending OFFLINE: " + e);
+		}
+		if (session != null) {
+			session.close();
+		}
+		return success;
+	}
+
 	/**
 	 * Periodically send a heartbeat to the master. 
 	 * The heartbeat message is on the form of @NodeInfo.
 	 * The response contains a list of neighboring nodes.
 	 * 
+	 * In persistent mode the heartbeats are sent over a long-lived session with the master,
+	 * which is re-established with an exponential backoff when it breaks. While there is no
+	 * session (or the master does not support sessions), heartbeats fall back to one-shot
+	 * connections.
+	 * 
+	 * In delta mode only the first heartbeat carries the complete node information. The
+	 * following ones carry the fields that changed since the last heartbeat and the version of
+	 * the neighbor list the node has, and the master only replies with the changes to the list.
+	 * A master that leaves several delta heartbeats in a row without a usable reply, as one
+	 * that does not know them does, makes the node fall back to full heartbeats. A single
+	 * failed heartbeat does not.
+	 * 
+	 * A sharded master redirects the node to the shard that owns it. After a few failed
+	 * heartbeats to that shard, the node goes back to the master it was configured with.
+	 * 
+	 * An overloaded master answers RETRY instead: the next heartbeat is sent after the delay
+	 * it asked for plus a random share of it, so that the nodes do not all come back at once.
+	 * A heartbeat that fails or gets no usable reply is taken as a passing failure: the node
+	 * waits longer after every failure in a row, with the same jitter.
+	 * 
 	 * @author albert
 	 */
 	protected static class Ping implements Runnable {
-		int interval = 3000; // in milliseconds
+		int interval = 3000; // in milliseconds, follows the recommendation of the master
+		int minInterval = 1000; // in milliseconds
+		int maxInterval = 300000; // in milliseconds
+		int minBackoff = 1000; // in milliseconds
+		int maxBackoff = 60000; // in milliseconds
+		int maxRedirectFailures = 3;
+		int maxDeltaFailures = 5;
 		String master;
 		int port;
+		// the master the node was configured with
+		private final String originMaster;
+		private final int originPort;
+		private int redirectFailures = 0;
+		boolean persistent;
+		boolean delta = true;
+
+		// state of the delta heartbeats
+		private long neighborsVersion = -1;
+		private Resources sentResources;
+		private int sentBandwidthSamples;
+		private int sentLatencySamples;
+		// delta heartbeats in a row without a usable reply
+		private int deltaFailures = 0;
+
+		private final Random random = new Random();
+		private int backoff = minBackoff;
+		private long nextConnectAttempt = 0;
+		// set when the master asked to retry later, in milliseconds
+		private long retryDelay = 0;
+		// grows with every failed heartbeat in a row, 0 after a reply, in milliseconds
+		private long failureDelay = 0;
 
 		public Ping(String master, int port) {
+			this(master, port, true);
+		}
+
+		public Ping(String master, int port, boolean persistent) {
 			this.master = master;
 			this.port = port;
+			this.originMaster = master;
+			this.originPort = port;
+			this.persistent = persistent;
+		}
+
+		/**
+		 * Send the following heartbeats to another master, starting over with the complete
+		 * node information.
+		 */
+		private void switchMaster(String newMaster, int newPort) {
+			System.out.println("[" + nodeInfo.getId() + "] Switching to the master at " + newMaster + ":" + newPort);
+			master = newMaster;
+			port = newPort;
+			boolean redirected = !(newMaster.equals(originMaster) && newPort == originPort);
+			redirectedMaster = redirected ? newMaster : null;
+			redirectedPort = newPort;
+			redirectFailures = 0;
+			if (session != null) {
+				session.close();
+				session = null;
+			}
+			nextConnectAttempt = 0;
+			backoff = minBackoff;
+			deltaFailures = 0;
+			neighborsVersion = -1;
+		}
+
+		/**
+		 * Make sure the session is open, unless we are still backing off from a failed attempt.
+		 */
+		private void connectSession() {
+			if (session != null && session.isConnected()) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			if (now < nextConnectAttempt) {
+				return;
+			}
+			if (session == null) {
+				session = new SessionClient(master, port);
+			}
+			try {
+				session.connect();
+				backoff = minBackoff;
+			} catch (IOException e) {
+				System.out.println("[" + nodeInfo.getId() + "] Failed opening session: " + e.getMessage()
+						+ ". Retrying in " + backoff + " ms");
+				// add some jitter so that nodes do not reconnect at the same time
+				nextConnectAttempt = now + backoff + random.nextInt(backoff / 2 + 1);
+				backoff = Math.min(backoff * 2, maxBackoff);
+			}
 		}
 		
+		/**
+		 * Build the next delta heartbeat: everything on the first one, afterwards only the
+		 * resources and measurements that changed.
+		 */
+		private NodeRequest buildDeltaHeartbeat() {
+			NodeRequest request;
+			if (neighborsVersion < 0) {
+				request = new NodeRequest(nodeInfo, NodeRequestType.HEARTBEAT);
+			} else {
+				NodeInfo update = new NodeInfo(nodeInfo.getId(), nodeInfo.getIp(), nodeInfo.getNodeType());
+				Resources resources = nodeInfo.getResources();
+				if (resources != null && !resources.equals(sentResources)) {
+					update.setResources(resources);
+				}
+				addNewSamples(nodeInfo.getBandwidthSamples(), nodeInfo.getNumBandwidthSamples() - sentBandwidthSamples,
+						update.getBandwidthSamples());
+				addNewSamples(nodeInfo.getLatencySamples(), nodeInfo.getNumLatencySamples() - sentLatencySamples,
+						update.getLatencySamples());
+				request = new NodeRequest(update, NodeRequestType.HEARTBEAT);
+			}
+			request.setNeighborsVersion(neighborsVersion);
+			return request;
+		}
+
+		private void addNewSamples(LinkedList<Double> samples, int numNew, LinkedList<Double> target) {
+			int skip = samples.size() - Math.min(numNew, samples.size());
+			for (double sample : samples) {
+				if (skip-- <= 0) {
+					target.add(sample);
+				}
+			}
+		}
+
+		/**
+		 * Send a delta heartbeat and apply the reply to the neighbor list.
+		 * 
+		 * @return false if there is no reply the node can use
+		 */
+		private boolean sendDeltaHeartbeat() throws IOException {
+			Resources resources = nodeInfo.getResources();
+			int numBandwidthSamples = nodeInfo.getNumBandwidthSamples();
+			int numLatencySamples = nodeInfo.getNumLatencySamples();
+			NodeReply reply = sendRequest(master, port, buildDeltaHeartbeat(), NodeReply.class);
+			if (reply == null || reply.getType() == null) {
+				return false;
+			}
+			if (reply.getHeartbeatInterval() > 0) {
+				// the master spreads the heartbeats out when it is loaded
+				interval = (int) Math.max(minInterval, Math.min(maxInterval, reply.getHeartbeatInterval()));
+			}
+
+			synchronized (neighborsLock) {
+				switch (reply.getType()) {
+				case FULL:
+					neighbors = reply.getNeighbors() == null ? new LinkedList<String>() : reply.getNeighbors();
+					break;
+				case DIFF:
+					if (reply.getRemoved() != null) {
+						neighbors.removeAll(reply.getRemoved());
+					}
+					if (reply.getAdded() != null) {
+						for (String neighbor : reply.getAdded()) {
+							if (!neighbors.contains(neighbor)) {
+								neighbors.add(neighbor);
+							}
+						}
+					}
+					break;
+				case RESYNC:
+					// the master lost track of us, send everything on the next heartbeat
+					neighborsVersion = -1;
+					return true;
+				case RETRY:
+					// the master is overloaded, come back later, not all at the same time
+					long delay = Math.max(minBackoff, reply.getRetryAfter());
+					retryDelay = delay + random.nextInt((int) Math.min(delay / 2, maxBackoff) + 1);
+					return true;
+				case REDIRECT:
+					// another shard owns us
+					String owner = reply.getMaster();
+					int separator = owner == null ? -1 : owner.lastIndexOf(':');
+					int ownerPort = -1;
+					if (separator > 0) {
+						try {
+							ownerPort = Integer.parseInt(owner.substring(separator + 1));
+						} catch (NumberFormatException e) {}
+					}
+					if (ownerPort <= 0 || ownerPort > 65535) {
+						System.out.println("[" + nodeInfo.getId() + "] Ignoring redirect to " + owner);
+						return false;
+					}
+					switchMaster(owner.substring(0, separator), ownerPort);
+					return true;
+				default:
+					break;
+				}
+				neighbors.remove(nodeInfo.getId()); // remove myself from the list
+			}
+			neighborsVersion = reply.getVersion();
+			sentResources = resources == null ? null
+					: new Resources(resources.getNumCPUs(), resources.getTotalAvailableMemory(), resources.getFreeMemory());
+			sentBandwidthSamples = numBandwidthSamples;
+			sentLatencySamples = numLatencySamples;
+			return true;
+		}
+
+		/**
+		 * Wait longer after a failed heartbeat: one interval after the first failure in a row,
+		 * twice as long after every other one, plus a random share so that the nodes turned
+		 * away together do not come back together.
+		 */
+		private void backOff() {
+			failureDelay = failureDelay == 0 ? interval : Math.min(failureDelay * 2, maxBackoff);
+			retryDelay = failureDelay + random.nextInt((int) (failureDelay / 2) + 1);
+		}
+
 		@Override
 		public void run() {
 			NodeRequest request = new NodeRequest(nodeInfo, NodeRequestType.ONLINE);
-			BufferedReader in = null;
-			PrintWriter out = null;
-			Socket socket = null;
 
 			while (true) {
+				if (persistent) {
+					connectSession();
+				}
 				try {
-					// send a heartbeat to the Job Manager
-					socket = new Socket(master, port);
-					out = new PrintWriter(socket.getOutputStream());
-					in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-					out.println(gson.toJson(request));
-					out.flush();
-					synchronized (neighborsLock) {
-						// update the list of neighboring nodes
-						neighbors = gson.fromJson(in.readLine(), new TypeToken<LinkedList<String>>() {}.getType());
-						neighbors.remove(nodeInfo.getId()); // remove myself from the list
+					boolean answered = delta && sendDeltaHeartbeat();
+					if (answered) {
+						deltaFailures = 0;
+						failureDelay = 0;
+					} else if (delta && ++deltaFailures >= maxDeltaFailures) {
+						System.out.println("[" + nodeInfo.getId() + "] No reply to " + deltaFailures
+								+ " delta heartbeats in a row, falling back to full heartbeats");
+						delta = false;
+					} else if (delta) {
+						backOff();
+					}
+					if (!delta) {
+						// send a heartbeat to the Job Manager
+						LinkedList<String> reply = sendRequest(master, port, request, neighborsType);
+						synchronized (neighborsLock) {
+							// update the list of neighboring nodes
+							neighbors = reply;
+							if (neighbors == null) {
+								neighbors = new LinkedList<String>();
+							}
+							neighbors.remove(nodeInfo.getId()); // remove myself from the list
+						}
+						failureDelay = 0;
 					}
+					redirectFailures = 0;
 				} catch (IOException e) {
 					System.out.println("[" + nodeInfo.getId() + "] Ping failed: " + e);
-				} finally {
-					try {
-						if (in != null)
-							in.close();
-						if (out != null)
-							out.close();
-						if (socket != null)
-							socket.close();
-					} catch (IOException e) {
-						System.err.println("[" + nodeInfo.getId() + "] Failed closing streams/socket: " + e);
+					backOff();
+					if (redirectedMaster != null && ++redirectFailures >= maxRedirectFailures) {
+						// the shard we were sent to is gone, ask the configured master again
+						switchMaster(originMaster, originPort);
 					}
+				} catch (RuntimeException e) {
+					// a reply we cannot make sense of must not stop the heartbeats
+					System.out.println("[" + nodeInfo.getId() + "] Ping failed on a bad reply: " + e);
+					backOff();
 				}
 				try {
-					Thread.sleep(interval);
+					Thread.sleep(retryDelay > 0 ? retryDelay : interval);
+					retryDelay = 0;
 				} catch (InterruptedException e) {
 					return;
 				}
@@ -16,6 +16,11 @@ public class NodeInfo implements Serializable {
 	private long lastOnline;
 	private Resources resources;
 	private String note;
+	// missed heartbeats by more than usual, see PhiAccrualDetector
+	private boolean suspect;
+	// number of samples ever added, used by the node to find the samples it has not reported yet
+	private transient int numBandwidthSamples;
+	private transient int numLatencySamples;
 	
 	public NodeInfo(String id, String ip, float latitude, float longitude, NodeType nodeType) {
 		this.id = id;
@@ -55,6 +60,26 @@ public class NodeInfo implements Serializable {
 		this.latency = new LinkedList<Double>();
 	}
 	
+	/**
+	 * Copy of another node, to be modified or sent without touching the original.
+	 */
+	public NodeInfo(NodeInfo other) {
+		this.maxRecord = other.maxRecord;
+		this.id = other.id;
+		this.ip = other.ip;
+		this.latitude = other.latitude;
+		this.longitude = other.longitude;
+		this.nodeType = other.nodeType;
+		this.lastOnline = other.lastOnline;
+		this.resources = other.resources;
+		this.note = other.note;
+		this.suspect = other.suspect;
+		this.bandwidth = other.bandwidth == null ? new LinkedList<Double>() : new LinkedList<Double>(other.bandwidth);
+		this.latency = other.latency == null ? new LinkedList<Double>() : new LinkedList<Double>(other.latency);
+		this.numBandwidthSamples = other.numBandwidthSamples;
+		this.numLatencySamples = other.numLatencySamples;
+	}
+	
 	public void setId(String id) {
 		this.id = id;
 	}
@@ -95,6 +120,7 @@ public class NodeInfo implements Serializable {
 			this.bandwidth.removeFirst();
 		}
 		this.bandwidth.addLast(bandwidth);
+		numBandwidthSamples++;
 	}
 	
 	public double getBandwidth() {
@@ -103,14 +129,25 @@ public class NodeInfo implements Serializable {
 		} else {
 			int i = 0;
 			double total = 0;
-			while (i < maxRecord && i < bandwidth.size()) {
-				total++;
+			for (double sample : bandwidth) {
+				if (i == maxRecord) {
+					break;
+				}
+				total += sample;
 				i++;
 			}
 			return total/i;
 		}
 	}
 	
+	public LinkedList<Double> getBandwidthSamples() {
+		return bandwidth;
+	}
+	
+	public int getNumBandwidthSamples() {
+		return numBandwidthSamples;
+	}
+	
 	public void setNodeType(NodeType nodeType) {
 		this.nodeType = nodeType;
 	}
@@ -126,6 +163,10 @@ public class NodeInfo implements Serializable {
 	public long getLastOnline() {
 		return lastOnline;
 	}
+	
+	public void setLastOnline(long lastOnline) {
+		this.lastOnline = lastOnline;
+	}
 
 	public void addLatency(double latency) {
 		if (latency <= 0) {
@@ -135,6 +176,7 @@ public class NodeInfo implements Serializable {
 			this.latency.removeFirst();
 		}
 		this.latency.addLast(latency);
+		numLatencySamples++;
 	}
 	
 	public double getLatency() {
@@ -143,14 +185,25 @@ public class NodeInfo implements Serializable {
 		} else {
 			int i = 0;
 			double total = 0;
-			while (i < maxRecord && i < latency.size()) {
-				total++;
+			for (double sample : latency) {
+				if (i == maxRecord) {
+					break;
+				}
+				total += sample;
 				i++;
 			}
 			return total/i;
 		}
 	}
 
+	public LinkedList<Double> getLatencySamples() {
+		return latency;
+	}
+	
+	public int getNumLatencySamples() {
+		return numLatencySamples;
+	}
+
 	public String getNote() {
 		return note;
 	}
@@ -166,4 +219,12 @@ public class NodeInfo implements Serializable {
 	public void setResources(Resources resources) {
 		this.resources = resources;
 	}
+
+	public boolean isSuspect() {
+		return suspect;
+	}
+
+	public void setSuspect(boolean suspect) {
+		this.suspect = suspect;
+	}
 }
@@ -11,6 +11,15 @@ public class Resources {
 		this.setTotalAvailableMemory(totalAvailableMemory);
 	}
 	
+	/**
+	 * Resources reported by another machine, taken as is.
+	 */
+	public Resources(int numCPUs, long totalAvailableMemory, long freeMemory) {
+		this.numCPUs = numCPUs;
+		this.totalAvailableMemory = totalAvailableMemory;
+		this.freeMemory = freeMemory;
+	}
+	
 	public Resources() {
 		numCPUs = r.availableProcessors();
 		totalAvailableMemory = r.totalMemory();
@@ -49,4 +58,20 @@ public class Resources {
 		return "\tCPU: " + numCPUs + "\n" 
 				+ "\tMemory: " + (freeMemory/(1024*1024)) + "/" + (totalAvailableMemory/(1024*1024)) + " MB";
 	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Resources)) {
+			return false;
+		}
+		Resources other = (Resources) o;
+		return numCPUs == other.numCPUs && totalAvailableMemory == other.totalAvailableMemory
+				&& freeMemory == other.freeMemory;
+	}
+	
+	@Override
+	public int hashCode() {
+		return 31 * (31 * numCPUs + (int) (totalAvailableMemory ^ (totalAvailableMemory >>> 32)))
+				+ (int) (freeMemory ^ (freeMemory >>> 32));
+	}
 }
@@ -15,8 +15,8 @@ import java.net.Socket;
 import java.net.URL;
 import java.nio.file.Files;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
+import edu.umn.cs.Nebula.net.ExecutorStrategy;
 import edu.umn.cs.Nebula.request.DSSRequest;
 import edu.umn.cs.Nebula.request.DSSRequestType;
 import edu.umn.cs.Nebula.util.LRUCache;
@@ -51,6 +51,13 @@ public class StorageNode extends Node {
 		// Connect to the DSS Master
 		Thread ping = new Thread(new Ping(dssMasterServer, dssMasterPort));
 		ping.start();
+		// Let the master know when the node shuts down
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				goOffline(dssMasterServer, dssMasterPort);
+			}
+		}));
 		
 		cache = new LRUCache<String>(20);
 		
@@ -65,7 +72,7 @@ public class StorageNode extends Node {
 	 * @throws IOException
 	 */
 	protected static void listenForRequests(int poolSize, int port) throws IOException {
-		ExecutorService requestPool = Executors.newFixedThreadPool(poolSize);
+		ExecutorService requestPool = ExecutorStrategy.getDefault().newRequestPool(poolSize);
 		ServerSocket serverSocket = null;
 
 		try {
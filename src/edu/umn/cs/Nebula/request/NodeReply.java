@@ -0,0 +1,122 @@
+package edu.umn.cs.Nebula.request;
+
+import java.util.LinkedList;
+
+/**
+ * Reply to a HEARTBEAT request.
+ * 
+ * UNCHANGED: the neighbor list of the node is still at the version it sent.
+ * DIFF: apply the removed and added nodes to get the list at the new version.
+ * FULL: the complete list at the new version.
+ * RESYNC: the master does not know the node, which must send its complete information again.
+ * REDIRECT: the node belongs to another node manager shard, at host:port @master.
+ * RETRY: the node manager is overloaded and did not handle the heartbeat, the node should
+ * send it again after @retryAfter milliseconds.
+ * 
+ * Every reply may carry the heartbeat interval recommended by the node manager for its current
+ * load, 0 if it does not recommend any.
+ */
+public class NodeReply {
+	private NodeReplyType type;
+	private long version;
+	private LinkedList<String> neighbors;
+	private LinkedList<String> added;
+	private LinkedList<String> removed;
+	private String master;
+	private long heartbeatInterval;
+	private long retryAfter;
+	
+	public NodeReply(NodeReplyType type, long version) {
+		this.type = type;
+		this.version = version;
+	}
+	
+	public static NodeReply full(long version, LinkedList<String> neighbors) {
+		NodeReply reply = new NodeReply(NodeReplyType.FULL, version);
+		reply.setNeighbors(neighbors);
+		return reply;
+	}
+	
+	public static NodeReply redirect(String master) {
+		NodeReply reply = new NodeReply(NodeReplyType.REDIRECT, 0);
+		reply.setMaster(master);
+		return reply;
+	}
+	
+	public static NodeReply retry(long retryAfter) {
+		NodeReply reply = new NodeReply(NodeReplyType.RETRY, 0);
+		reply.setRetryAfter(retryAfter);
+		return reply;
+	}
+	
+	public static NodeReply diff(long version, LinkedList<String> added, LinkedList<String> removed) {
+		NodeReply reply = new NodeReply(NodeReplyType.DIFF, version);
+		reply.setAdded(added);
+		reply.setRemoved(removed);
+		return reply;
+	}
+
+	public NodeReplyType getType() {
+		return type;
+	}
+
+	public void setType(NodeReplyType type) {
+		this.type = type;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	public LinkedList<String> getNeighbors() {
+		return neighbors;
+	}
+
+	public void setNeighbors(LinkedList<String> neighbors) {
+		this.neighbors = neighbors;
+	}
+
+	public LinkedList<String> getAdded() {
+		return added;
+	}
+
+	public void setAdded(LinkedList<String> added) {
+		this.added = added;
+	}
+
+	public LinkedList<String> getRemoved() {
+		return removed;
+	}
+
+	public void setRemoved(LinkedList<String> removed) {
+		this.removed = removed;
+	}
+
+	public String getMaster() {
+		return master;
+	}
+
+	public void setMaster(String master) {
+		this.master = master;
+	}
+
+	public long getHeartbeatInterval() {
+		return heartbeatInterval;
+	}
+
+	public void setHeartbeatInterval(long heartbeatInterval) {
+		this.heartbeatInterval = heartbeatInterval;
+	}
+
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+
+	public void setRetryAfter(long retryAfter) {
+		this.retryAfter = retryAfter;
+	}
+}
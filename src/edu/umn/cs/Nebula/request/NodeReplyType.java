@@ -0,0 +1,5 @@
+package edu.umn.cs.Nebula.request;
+
+public enum NodeReplyType {
+	UNCHANGED, DIFF, FULL, RESYNC, REDIRECT, RETRY
+}
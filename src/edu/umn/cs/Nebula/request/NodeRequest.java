@@ -1,10 +1,25 @@
 package edu.umn.cs.Nebula.request;
 
+import java.util.LinkedList;
+
 import edu.umn.cs.Nebula.node.NodeInfo;
 
 public class NodeRequest {
 	private NodeInfo node;
 	private NodeRequestType type;
+	// HEARTBEAT: version of the neighbor list the node has, -1 if it has none
+	// GET_CHANGES: version of the node table the reader has, -1 if it has none
+	private long neighborsVersion = -1;
+	// GET_CHANGES: the node manager shards, sent by the master that routes them
+	private LinkedList<String> shards;
+	// GET_NEAREST: most nodes wanted, 0 for no limit
+	// GET_RANKED: most nodes wanted, 0 for the default
+	// GET_CAPACITY: most regions wanted, 0 for no limit
+	private int count;
+	// GET_NEAREST: farthest distance from the location of the node, in kilometers, 0 for no limit
+	private double radius;
+	// GET_CAPACITY: fewest free CPUs of a region wanted
+	private int minFreeCPUs;
 	
 	public NodeRequest(NodeRequestType type) {
 		this.type = type;
@@ -30,4 +45,44 @@ public class NodeRequest {
 	public void setType(NodeRequestType type) {
 		this.type = type;
 	}
+
+	public long getNeighborsVersion() {
+		return neighborsVersion;
+	}
+
+	public void setNeighborsVersion(long neighborsVersion) {
+		this.neighborsVersion = neighborsVersion;
+	}
+
+	public LinkedList<String> getShards() {
+		return shards;
+	}
+
+	public void setShards(LinkedList<String> shards) {
+		this.shards = shards;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public void setCount(int count) {
+		this.count = count;
+	}
+
+	public double getRadius() {
+		return radius;
+	}
+
+	public void setRadius(double radius) {
+		this.radius = radius;
+	}
+
+	public int getMinFreeCPUs() {
+		return minFreeCPUs;
+	}
+
+	public void setMinFreeCPUs(int minFreeCPUs) {
+		this.minFreeCPUs = minFreeCPUs;
+	}
 }
@@ -2,5 +2,11 @@ package edu.umn.cs.Nebula.request;
 
 public enum NodeRequestType {
 	ONLINE, OFFLINE, 
-	GET, GET_NEIGHBORS, GET_NODES
+	GET, GET_NEIGHBORS, GET_NODES,
+	HEARTBEAT,
+	GET_CHANGES,
+	GET_METRICS,
+	GET_NEAREST,
+	GET_RANKED,
+	GET_CAPACITY
 }
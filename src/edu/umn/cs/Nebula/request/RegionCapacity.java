@@ -0,0 +1,78 @@
+package edu.umn.cs.Nebula.request;
+
+/**
+ * Reply to a GET_CAPACITY request, one per region: the area of the region and the totals of
+ * its online nodes.
+ */
+public class RegionCapacity {
+	private String id;
+	private double minLatitude;
+	private double maxLatitude;
+	private double minLongitude;
+	private double maxLongitude;
+	private int numNodes;
+	private int numCPUs;
+	private int freeCPUs;
+	private int numLeased;
+
+	public RegionCapacity(String id, double minLatitude, double maxLatitude, double minLongitude, double maxLongitude,
+			int numNodes, int numCPUs, int freeCPUs, int numLeased) {
+		this.id = id;
+		this.minLatitude = minLatitude;
+		this.maxLatitude = maxLatitude;
+		this.minLongitude = minLongitude;
+		this.maxLongitude = maxLongitude;
+		this.numNodes = numNodes;
+		this.numCPUs = numCPUs;
+		this.freeCPUs = freeCPUs;
+		this.numLeased = numLeased;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public double getMinLatitude() {
+		return minLatitude;
+	}
+
+	public double getMaxLatitude() {
+		return maxLatitude;
+	}
+
+	public double getMinLongitude() {
+		return minLongitude;
+	}
+
+	public double getMaxLongitude() {
+		return maxLongitude;
+	}
+
+	public int getNumNodes() {
+		return numNodes;
+	}
+
+	public int getNumCPUs() {
+		return numCPUs;
+	}
+
+	public int getFreeCPUs() {
+		return freeCPUs;
+	}
+
+	public int getNumLeased() {
+		return numLeased;
+	}
+
+	/**
+	 * @return the share of the CPUs of the region in use, 0 if it has none
+	 */
+	public double getLoad() {
+		return numCPUs <= 0 ? 0 : (double) (numCPUs - freeCPUs) / numCPUs;
+	}
+
+	@Override
+	public String toString() {
+		return id + ": " + numNodes + " nodes, " + freeCPUs + "/" + numCPUs + " CPUs free, " + numLeased + " leased";
+	}
+}
@@ -0,0 +1,82 @@
+package edu.umn.cs.Nebula.request;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import edu.umn.cs.Nebula.node.NodeInfo;
+
+/**
+ * Reply to a GETCHANGES request.
+ * 
+ * UNCHANGED: no node joined, left, or changed its lease or resources since the version sent.
+ * DIFF: put the nodes and drop the removed ones to get the node table at the new version.
+ * FULL: the complete node table at the new version.
+ *
+ * The epoch of the reply changes when the sender restarts, and versions of different epochs
+ * cannot be compared. It is 0 if the sender does not tell.
+ */
+public class SchedulerReply {
+	private NodeReplyType type;
+	private long version;
+	private HashMap<String, NodeInfo> nodes;
+	private LinkedList<String> removed;
+	private long epoch;
+
+	public SchedulerReply(NodeReplyType type, long version) {
+		this.type = type;
+		this.version = version;
+	}
+
+	public static SchedulerReply full(long version, HashMap<String, NodeInfo> nodes) {
+		SchedulerReply reply = new SchedulerReply(NodeReplyType.FULL, version);
+		reply.setNodes(nodes);
+		return reply;
+	}
+
+	public static SchedulerReply diff(long version, HashMap<String, NodeInfo> nodes, LinkedList<String> removed) {
+		SchedulerReply reply = new SchedulerReply(NodeReplyType.DIFF, version);
+		reply.setNodes(nodes);
+		reply.setRemoved(removed);
+		return reply;
+	}
+
+	public NodeReplyType getType() {
+		return type;
+	}
+
+	public void setType(NodeReplyType type) {
+		this.type = type;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	public HashMap<String, NodeInfo> getNodes() {
+		return nodes;
+	}
+
+	public void setNodes(HashMap<String, NodeInfo> nodes) {
+		this.nodes = nodes;
+	}
+
+	public LinkedList<String> getRemoved() {
+		return removed;
+	}
+
+	public void setRemoved(LinkedList<String> removed) {
+		this.removed = removed;
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	public void setEpoch(long epoch) {
+		this.epoch = epoch;
+	}
+}
@@ -12,6 +12,7 @@ public class SchedulerRequest {
 	private String schedulerName;
 	private HashMap<String, Lease> leases;
 	private Set<String> nodes;
+	private long version = -1;
 
 	public SchedulerRequest(SchedulerRequestType type, String schedulerName) {
 		this.type = type;
@@ -22,7 +23,8 @@ public class SchedulerRequest {
 	public SchedulerRequest(SchedulerRequestType type, String schedulerName, Set<String> nodes) {
 		this.type = type;
 		this.setSchedulerName(schedulerName);
-		nodes = new HashSet<String>();
+		this.nodes = new HashSet<String>(nodes);
+		leases = new HashMap<String, Lease>();
 	}
 	
 	public SchedulerRequestType getType() {
@@ -68,4 +70,15 @@ public class SchedulerRequest {
 	public void setNodes(HashSet<String> nodes) {
 		this.nodes = nodes;
 	}
+
+	/**
+	 * @return the version of the node table the scheduler has, -1 if none
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
 }
@@ -1,5 +1,5 @@
 package edu.umn.cs.Nebula.request;
 
 public enum SchedulerRequestType {
-	GETNODES, LEASE, RELEASE
+	GETNODES, LEASE, RELEASE, GETCHANGES, SUBSCRIBE
 }
@@ -0,0 +1,192 @@
+package edu.umn.cs.Nebula.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Versions a set of keys so that the keys changed or removed since a given version can be
+ * listed without going through the whole set. Every change increments the version and only
+ * the latest change of each key is kept, so the log is as large as the set plus the most
+ * recent removals. Versions start at the creation time in milliseconds, but a burst of changes
+ * runs them ahead of the clock, so a restarted tracker is started after the last version saved
+ * with {@link #startAfter(long)}; versions from before it are then too old to bring up to date.
+ * The tracker is thread-safe.
+ */
+public class ChangeTracker {
+	private final int maxRemoved;
+	private long version = System.currentTimeMillis();
+	private long truncatedVersion = version;
+	// tells this tracker from the one of a restarted process
+	private final long epoch = version;
+
+	private HashMap<String, Long> versions = new HashMap<String, Long>();
+	private TreeMap<Long, String> log = new TreeMap<Long, String>();
+	private LinkedHashMap<String, Long> removed = new LinkedHashMap<String, Long>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private volatile Runnable listener;
+
+	/**
+	 * @param maxRemoved	number of removed keys remembered
+	 */
+	public ChangeTracker(int maxRemoved) {
+		this.maxRemoved = maxRemoved;
+	}
+
+	public long getVersion() {
+		lock.lock();
+		try {
+			return version;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the creation time of the tracker, which differs after a restart
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Hand out versions after the given one only, and take every version up to it as too old to
+	 * bring up to date. Does nothing if the tracker is already past it.
+	 */
+	public void startAfter(long start) {
+		lock.lock();
+		try {
+			if (start > version) {
+				version = start;
+				truncatedVersion = start;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param listener	called after every change, by the thread making it and without holding the tracker
+	 */
+	public void setListener(Runnable listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Record that a key was added or changed.
+	 */
+	public long changed(String key) {
+		long changeVersion;
+		lock.lock();
+		try {
+			changeVersion = record(key);
+			removed.remove(key);
+		} finally {
+			lock.unlock();
+		}
+		notifyListener();
+		return changeVersion;
+	}
+
+	/**
+	 * Record that a key was removed.
+	 */
+	public long removed(String key) {
+		long changeVersion;
+		lock.lock();
+		try {
+			changeVersion = record(key);
+			removed.remove(key);
+			removed.put(key, changeVersion);
+			if (removed.size() > maxRemoved) {
+				// forget the oldest removal, versions up to it can no longer be brought up to date
+				Iterator<Map.Entry<String, Long>> oldest = removed.entrySet().iterator();
+				Map.Entry<String, Long> entry = oldest.next();
+				oldest.remove();
+				versions.remove(entry.getKey());
+				log.remove(entry.getValue());
+				truncatedVersion = Math.max(truncatedVersion, entry.getValue());
+			}
+		} finally {
+			lock.unlock();
+		}
+		notifyListener();
+		return changeVersion;
+	}
+
+	private long record(String key) {
+		Long previous = versions.put(key, ++version);
+		if (previous != null) {
+			log.remove(previous);
+		}
+		log.put(version, key);
+		return version;
+	}
+
+	private void notifyListener() {
+		Runnable current = listener;
+		if (current != null) {
+			current.run();
+		}
+	}
+
+	/**
+	 * @param since	a version handed out by this tracker
+	 * @return the changes since the version, or null if they are no longer known
+	 */
+	public Changes getChangesSince(long since) {
+		lock.lock();
+		try {
+			if (since < truncatedVersion || since > version) {
+				return null;
+			}
+			Changes changes = new Changes(version);
+			for (String key : log.tailMap(since, false).values()) {
+				if (removed.containsKey(key)) {
+					changes.getRemoved().add(key);
+				} else {
+					changes.getChanged().add(key);
+				}
+			}
+			return changes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Keys changed and removed since a given version.
+	 */
+	public static class Changes {
+		private final long version;
+		private final LinkedList<String> changed = new LinkedList<String>();
+		private final LinkedList<String> removed = new LinkedList<String>();
+
+		public Changes(long version) {
+			this.version = version;
+		}
+
+		/**
+		 * @return the version the changes bring the set up to
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		public LinkedList<String> getChanged() {
+			return changed;
+		}
+
+		public LinkedList<String> getRemoved() {
+			return removed;
+		}
+
+		public boolean isEmpty() {
+			return changed.isEmpty() && removed.isEmpty();
+		}
+	}
+}
@@ -2,6 +2,7 @@ package edu.umn.cs.Nebula.util;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.List;
 
 import com.mysql.jdbc.Connection;
 import com.mysql.jdbc.Statement;
@@ -43,6 +44,24 @@ public class DatabaseConnector {
 		return true;
 	}
 
+	/**
+	 * Send several update statements in a single batch.
+	 *
+	 * @return false if any of them failed
+	 */
+	public boolean updateBatch(List<String> sqlStatements) {
+		try (Statement dbStatement = (Statement) dbConnection.createStatement()) {
+			for (String sqlStatement : sqlStatements) {
+				dbStatement.addBatch(sqlStatement);
+			}
+			dbStatement.executeBatch();
+		} catch (SQLException e) {
+			System.out.println("[DBCONN] Batch of " + sqlStatements.size() + " queries failed: " + e);
+			return false;
+		}
+		return true;
+	}
+
 	public ResultSet selectQuery(String sqlStatement) {
 		ResultSet resultSet;
 
@@ -58,6 +77,7 @@ public class DatabaseConnector {
 
 	public boolean isConnected() {
 		try {
+			if (dbConnection == null) return false;
 			return dbConnection.isValid(5);
 		} catch (SQLException e) {
 			return false;
@@ -0,0 +1,93 @@
+package edu.umn.cs.Nebula.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Keys ordered by the last time they were seen, for keys that all expire after the same
+ * inactivity period. Since the period is the same for every key, the order of last sightings is
+ * also the order of expiry: touching a key moves it to the end in constant time, and the expired
+ * keys are always at the front, so finding them only costs the number of expired keys.
+ * The index is not thread-safe.
+ */
+public class ExpiryIndex {
+	private long maxInactive;
+	// access order keeps the least recently seen key first
+	private LinkedHashMap<String, Long> lastSeen = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+	/**
+	 * @param maxInactive	time after which a key that has not been seen expires, in milliseconds
+	 */
+	public ExpiryIndex(long maxInactive) {
+		this.maxInactive = maxInactive;
+	}
+
+	/**
+	 * Change the inactivity period of every key. The order of expiry stays the same.
+	 */
+	public void setMaxInactive(long maxInactive) {
+		this.maxInactive = maxInactive;
+	}
+
+	/**
+	 * Record that a key was seen at the given time.
+	 */
+	public void touch(String key, long time) {
+		lastSeen.put(key, time);
+	}
+
+	public void remove(String key) {
+		lastSeen.remove(key);
+	}
+
+	public int size() {
+		return lastSeen.size();
+	}
+
+	/**
+	 * Remove the keys that have not been seen for more than maxInactive.
+	 *
+	 * @param now	the current time
+	 * @return the expired keys, least recently seen first
+	 */
+	public LinkedList<String> removeExpired(long now) {
+		LinkedList<String> expired = new LinkedList<String>();
+		Iterator<Map.Entry<String, Long>> entries = lastSeen.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<String, Long> entry = entries.next();
+			if (now - entry.getValue() <= maxInactive) {
+				break;
+			}
+			expired.add(entry.getKey());
+			entries.remove();
+		}
+		return expired;
+	}
+
+	/**
+	 * List the keys that have not been seen for more than maxInactive, without removing them.
+	 *
+	 * @param now	the current time
+	 * @return the expired keys, least recently seen first
+	 */
+	public LinkedList<String> getExpired(long now) {
+		LinkedList<String> expired = new LinkedList<String>();
+		for (Map.Entry<String, Long> entry : lastSeen.entrySet()) {
+			if (now - entry.getValue() <= maxInactive) {
+				break;
+			}
+			expired.add(entry.getKey());
+		}
+		return expired;
+	}
+
+	/**
+	 * @return the time the least recently seen key expires, or -1 if the index is empty
+	 */
+	public long getNextExpiry() {
+		Iterator<Long> times = lastSeen.values().iterator();
+		return times.hasNext() ? times.next() + maxInactive : -1;
+	}
+}
@@ -0,0 +1,53 @@
+package edu.umn.cs.Nebula.util;
+
+/**
+ * Distances on the earth, taken as a sphere.
+ */
+public class GreatCircle {
+	public static final double EARTH_RADIUS = 6371; // in kilometers
+
+	/**
+	 * @return the great-circle distance between two locations, in kilometers
+	 */
+	public static double getDistance(double latitude1, double longitude1, double latitude2, double longitude2) {
+		double sinLatitude = Math.sin(Math.toRadians(latitude2 - latitude1) / 2);
+		double sinLongitude = Math.sin(Math.toRadians(longitude2 - longitude1) / 2);
+		return toDistance(sinLatitude * sinLatitude
+				+ Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2)) * sinLongitude * sinLongitude);
+	}
+
+	/**
+	 * Bound the distance from a location to a box of latitudes and longitudes from below, using
+	 * the smallest latitude and longitude differences and the latitude of the box farthest
+	 * from the equator.
+	 *
+	 * @return at most the distance to the closest location in the box, in kilometers
+	 */
+	public static double getLowerBound(double latitude, double longitude, double minLatitude, double maxLatitude,
+			double minLongitude, double maxLongitude) {
+		double latitudeGap = Math.max(0, Math.max(minLatitude - latitude, latitude - maxLatitude));
+		double longitudeGap = 0;
+		if (longitude < minLongitude || longitude > maxLongitude) {
+			longitudeGap = Math.min(getLongitudeGap(longitude, minLongitude), getLongitudeGap(longitude, maxLongitude));
+		}
+		double sinLatitude = Math.sin(Math.toRadians(latitudeGap) / 2);
+		double sinLongitude = Math.sin(Math.toRadians(longitudeGap) / 2);
+		double minCos = Math.max(0, Math.min(Math.cos(Math.toRadians(minLatitude)), Math.cos(Math.toRadians(maxLatitude))));
+		return toDistance(sinLatitude * sinLatitude + Math.cos(Math.toRadians(latitude)) * minCos * sinLongitude * sinLongitude);
+	}
+
+	/**
+	 * @return the difference between two longitudes around the earth, between 0 and 180
+	 */
+	private static double getLongitudeGap(double longitude1, double longitude2) {
+		double gap = Math.abs(longitude1 - longitude2) % 360;
+		return gap > 180 ? 360 - gap : gap;
+	}
+
+	/**
+	 * @param h	haversine of the central angle
+	 */
+	private static double toDistance(double h) {
+		return 2 * EARTH_RADIUS * Math.asin(Math.sqrt(Math.max(0, Math.min(1, h))));
+	}
+}
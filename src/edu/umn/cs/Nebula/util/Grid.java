@@ -1,33 +1,69 @@
 package edu.umn.cs.Nebula.util;
 
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.LinkedList;
 
-public class Grid {
+/**
+ * A k x k grid over a geographic area. Every change to the grid increments its version, and
+ * every cell logs its latest changes, so that the changes in a neighborhood since a given
+ * version can be computed without sending the whole neighborhood again. Versions start at the
+ * creation time in milliseconds, but a burst of changes runs them ahead of the clock, so a
+ * restarted grid is started after the last version saved with {@link #startAfter(long)}: a
+ * version handed out before the restart is then older than every cell and gets the whole
+ * neighborhood.
+ *
+ * Cells are identified by their index, row * k + column, where the row is the latitude index
+ * and the column the longitude index. The methods taking a cell id of the form "row_column"
+ * are kept for the callers that use them and convert to the index.
+ *
+ * Besides the fixed 3x3 neighborhoods, the grid finds the items closest to a location by
+ * great-circle distance: cells are searched in rings of growing size around the location, until
+ * the distance to the cells not searched yet is beyond the farthest item wanted. A grid spanning
+ * all longitudes wraps around the antimeridian.
+ * As a {@link SpatialIndex}, the regions are the cells and a neighborhood is 3x3 cells, whatever
+ * the number of items in them.
+ *
+ * One thread at a time may change the grid, while any number of threads read it without locks:
+ * the cells publish snapshots of their items, and the version of the grid is published after
+ * the change it stands for.
+ */
+public class Grid implements SpatialIndex {
 	private final int k;
 	private final double minLatitude, maxLatitude, minLongitude, maxLongitude;
-	
-	private HashMap<String, GridCell> cells;
-	
+	private final double cellWidth, cellHeight;
+
+	private final boolean wraps;
+	private final GridCell[] cells;
+	private volatile long version = System.currentTimeMillis();
+
+	/**
+	 * Receives the items of a neighborhood, see {@link Grid#visitNeighborItems(int, ItemVisitor)}.
+	 */
+	public interface ItemVisitor {
+		void visit(String item);
+	}
+
 	public Grid(int k, double minLatitude, double maxLatitude, double minLongitude, double maxLongitude) {
 		this.k = k;
 		this.minLatitude = minLatitude;
 		this.maxLatitude = maxLatitude;
 		this.minLongitude = minLongitude;
 		this.maxLongitude = maxLongitude;
-		
-		cells = new HashMap<String, GridCell>();
-		String id;
+		this.cellWidth = (maxLongitude - minLongitude) / k;
+		this.cellHeight = (maxLatitude - minLatitude) / k;
+		this.wraps = maxLongitude - minLongitude >= 360;
+
+		cells = new GridCell[k * k];
 		for (int i = 0; i < k; i++) {
-			id = Integer.toString(i) + "_";
 			for (int j = 0; j < k; j++) {
-				cells.put(id + Integer.toString(j), new GridCell(id + Integer.toString(j)));
+				cells[i * k + j] = new GridCell(i + "_" + j, version);
 			}
 		}
 	}
-	
+
+	@Override
 	public boolean validCoordinate(double latitude, double longitude) {
-		if (latitude < -90 || latitude > 90 || longitude < -180 || longitude > 180 || 
+		if (latitude < -90 || latitude > 90 || longitude < -180 || longitude > 180 ||
 				latitude < minLatitude || latitude > maxLatitude || longitude < minLongitude || longitude > maxLongitude)
 			return false;
 		return true;
@@ -36,116 +72,376 @@ public class Grid {
 	public int getK() {
 		return k;
 	}
-	
-	public String getGridLocation(double latitude, double longitude) {
-		double relativeLat;
-		double relativeLon;
-		
+
+	@Override
+	public int getNumRegions() {
+		return cells.length;
+	}
+
+	@Override
+	public String getRegionId(double latitude, double longitude) {
+		return getGridLocation(latitude, longitude);
+	}
+
+	@Override
+	public long getRegionKey(double latitude, double longitude) {
+		return getCellIndex(latitude, longitude);
+	}
+
+	/**
+	 * @return the index of the cell containing the location, -1 if the location is not valid
+	 */
+	public int getCellIndex(double latitude, double longitude) {
 		if (!validCoordinate(latitude, longitude))
-			return null;
-		
-		if (minLatitude < 0) {
-			relativeLat = latitude + Math.abs(minLatitude);
-		} else {
-			relativeLat = latitude - minLatitude;
-		}
-		if (minLongitude < 0) {
-			relativeLon = longitude + Math.abs(minLongitude);
-		} else {
-			relativeLon = longitude - minLongitude;
+			return -1;
+
+		// the maximum coordinates belong to the last cells
+		int latitudeLocation = Math.min(k - 1, (int) Math.floor((latitude - minLatitude) / cellHeight));
+		int longitudeLocation = Math.min(k - 1, (int) Math.floor((longitude - minLongitude) / cellWidth));
+		return latitudeLocation * k + longitudeLocation;
+	}
+
+	/**
+	 * @return the id of the cell containing the location, null if the location is not valid
+	 */
+	public String getGridLocation(double latitude, double longitude) {
+		int cell = getCellIndex(latitude, longitude);
+		return cell < 0 ? null : getCellId(cell);
+	}
+
+	/**
+	 * @return the id "row_column" of a cell
+	 */
+	public String getCellId(int cell) {
+		return cell / k + "_" + cell % k;
+	}
+
+	/**
+	 * @return the area of a cell as {minLatitude, maxLatitude, minLongitude, maxLongitude}
+	 */
+	public double[] getCellBounds(int cell) {
+		int row = cell / k, column = cell % k;
+		return new double[] { minLatitude + row * cellHeight, minLatitude + (row + 1) * cellHeight,
+				minLongitude + column * cellWidth, minLongitude + (column + 1) * cellWidth };
+	}
+
+	/**
+	 * @return the index of the cell with the given id "row_column", -1 if there is none
+	 */
+	public int parseCellId(String id) {
+		int separator = id == null ? -1 : id.indexOf('_');
+		if (separator < 0)
+			return -1;
+		try {
+			int row = Integer.parseInt(id.substring(0, separator));
+			int column = Integer.parseInt(id.substring(separator + 1));
+			if (row < 0 || row >= k || column < 0 || column >= k)
+				return -1;
+			return row * k + column;
+		} catch (NumberFormatException e) {
+			return -1;
 		}
-		
-		double cellWidth = (maxLongitude - minLongitude) / k;
-		double cellHeight = (maxLatitude - minLatitude) / k;
-		
-		int latitudeLocation = (int) Math.floor(relativeLat / cellHeight);
-		int longitudeLocation = (int) Math.floor(relativeLon / cellWidth);
-
-		if (latitude == maxLatitude)
-			latitudeLocation--;
-		if (longitude == maxLongitude)
-			longitudeLocation--;
-		
-		return latitudeLocation + "_" + longitudeLocation;
-	}
-	
+	}
+
+	@Override
 	public boolean insertItem(String item, double latitude, double longitude) {
-		if (!validCoordinate(latitude, longitude))
+		int cell = getCellIndex(latitude, longitude);
+		if (cell < 0)
 			return false;
-		
-		String gridIndex = getGridLocation(latitude, longitude);
-		return cells.get(gridIndex).addItem(item);
+		return cells[cell].addItem(item, latitude, longitude, version + 1) && bump(cells[cell]);
 	}
-	
+
+	@Override
 	public boolean removeItem(String item, double latitude, double longitude) {
-		if (!validCoordinate(latitude, longitude))
+		int cell = getCellIndex(latitude, longitude);
+		if (cell < 0)
 			return false;
-		
-		String gridIndex = getGridLocation(latitude, longitude);
-		return cells.get(gridIndex).removeItem(item);
+		return cells[cell].removeItem(item, version + 1) && bump(cells[cell]);
 	}
-	
+
 	public LinkedList<String> getItems(String id) {
-		if (!cells.containsKey(id))
+		return getItems(parseCellId(id));
+	}
+
+	/**
+	 * @return a copy of the items of the cell, empty if there is no such cell
+	 */
+	public LinkedList<String> getItems(int cell) {
+		if (!isCell(cell))
 			return new LinkedList<String>();
-		return cells.get(id).getAllItems();
+		return new LinkedList<String>(cells[cell].getSnapshot().getAllItems());
 	}
-	
+
 	public void clearItems(String id) {
-		if (cells.containsKey(id))
-			cells.get(id).clearItems();
+		clearItems(parseCellId(id));
 	}
-	
-	public LinkedList<String> getNeighborItems(String id) {
-		LinkedList<String> items = new LinkedList<String>();
-		
-		int latitudeIdx = Integer.parseInt(id.split("_")[0]);
-		int longitudeIdx = Integer.parseInt(id.split("_")[1]);
-		
-		int minLatitude = latitudeIdx - 1;
-		int maxLatitude = latitudeIdx + 1;
-		int minLongitude = longitudeIdx - 1;
-		int maxLongitude = longitudeIdx + 1;
-		
-		// make sure the cells are all inside the boundary [0, k)
-		// add the three cells whose latitude index is the same as id's latitude
-		items.addAll(getItems(latitudeIdx + "_" + longitudeIdx));
-		if (minLongitude > 0) {
-			items.addAll(getItems(latitudeIdx + "_" + minLongitude));
+
+	public void clearItems(int cell) {
+		if (isCell(cell)) {
+			cells[cell].clearItems(version + 1);
+			bump(cells[cell]);
 		}
-		if (maxLongitude < k) {
-			items.addAll(getItems(latitudeIdx + "_" + maxLongitude));
+	}
+
+	private boolean isCell(int cell) {
+		return cell >= 0 && cell < cells.length;
+	}
+
+	/**
+	 * Move to the next version if the last operation changed the cell.
+	 */
+	private boolean bump(GridCell cell) {
+		if (cell.getVersion() > version) {
+			version = cell.getVersion();
+		}
+		return true;
+	}
+
+	@Override
+	public void startAfter(long start) {
+		if (start <= version)
+			return;
+		for (int i = 0; i < cells.length; i++) {
+			cells[i] = new GridCell(cells[i].getId(), start);
+		}
+		version = start;
+	}
+
+	/**
+	 * @return the version of the last change to the grid
+	 */
+	@Override
+	public long getVersion() {
+		return version;
+	}
+
+	@Override
+	public LinkedList<String> getNeighborItems(double latitude, double longitude) {
+		return getNeighborItems(getCellIndex(latitude, longitude));
+	}
+
+	public LinkedList<String> getNeighborItems(String id) {
+		return getNeighborItems(parseCellId(id));
+	}
+
+	/**
+	 * @return the items in the cell and the cells around it, empty if there is no such cell
+	 */
+	public LinkedList<String> getNeighborItems(int cell) {
+		final LinkedList<String> items = new LinkedList<String>();
+		visitNeighborItems(cell, new ItemVisitor() {
+			@Override
+			public void visit(String item) {
+				items.add(item);
+			}
+		});
+		return items;
+	}
+
+	/**
+	 * Hand every item in the cell and the cells around it to the visitor, without allocating.
+	 */
+	public void visitNeighborItems(int cell, ItemVisitor visitor) {
+		if (!isCell(cell))
+			return;
+		int row = cell / k;
+		int column = cell % k;
+		for (int i = Math.max(0, row - 1); i <= Math.min(k - 1, row + 1); i++) {
+			for (int j = Math.max(0, column - 1); j <= Math.min(k - 1, column + 1); j++) {
+				GridCell.Snapshot neighbor = cells[i * k + j].getSnapshot();
+				for (int n = 0; n < neighbor.getNumItems(); n++) {
+					visitor.visit(neighbor.getItem(n));
+				}
+			}
 		}
-		// add the three cells whose latitude index is 1 below the id's latitude
-		if (minLatitude > 0) {
-			if (minLongitude > 0) {
-				items.addAll(getItems(minLatitude + "_" + minLongitude));
+	}
+
+	@Override
+	public long getNeighborVersion(double latitude, double longitude) {
+		return getNeighborVersion(getCellIndex(latitude, longitude));
+	}
+
+	public long getNeighborVersion(String id) {
+		return getNeighborVersion(parseCellId(id));
+	}
+
+	/**
+	 * @return the version of the last change in the cell or the cells around it
+	 */
+	public long getNeighborVersion(int cell) {
+		if (!isCell(cell))
+			return 0;
+		long result = 0;
+		int row = cell / k;
+		int column = cell % k;
+		for (int i = Math.max(0, row - 1); i <= Math.min(k - 1, row + 1); i++) {
+			for (int j = Math.max(0, column - 1); j <= Math.min(k - 1, column + 1); j++) {
+				result = Math.max(result, cells[i * k + j].getVersion());
 			}
-			items.addAll(getItems(minLatitude + "_" + longitudeIdx));
-			if (maxLongitude < k) {
-				items.addAll(getItems(minLatitude + "_" + maxLongitude));
+		}
+		return result;
+	}
+
+	/**
+	 * Fill the buffer with the cell and the (up to 8) cells around it.
+	 *
+	 * @param neighbors	buffer of at least 9 cells, reused by the caller
+	 * @return the number of cells in the buffer, 0 if there is no such cell
+	 */
+	public int getNeighborCells(int cell, int[] neighbors) {
+		if (!isCell(cell))
+			return 0;
+		int count = 0;
+		int row = cell / k;
+		int column = cell % k;
+		for (int i = Math.max(0, row - 1); i <= Math.min(k - 1, row + 1); i++) {
+			for (int j = Math.max(0, column - 1); j <= Math.min(k - 1, column + 1); j++) {
+				neighbors[count++] = i * k + j;
 			}
 		}
-		// add the three cells whose latitude index is 1 above the id's latitude
-		if (maxLatitude < k) {
-			if (minLongitude > 0) {
-				items.addAll(getItems(maxLatitude + "_" + minLongitude));
+		return count;
+	}
+
+	@Override
+	public GridDelta getNeighborChanges(double latitude, double longitude, long since) {
+		return getNeighborChanges(getCellIndex(latitude, longitude), since);
+	}
+
+	public GridDelta getNeighborChanges(String id, long since) {
+		return getNeighborChanges(parseCellId(id), since);
+	}
+
+	/**
+	 * Compute the changes in the cell and the cells around it made after the given version.
+	 *
+	 * @param cell	the cell
+	 * @param since	the version the caller has seen
+	 * @return the changes up to the current version, or null if they are no longer logged
+	 */
+	public GridDelta getNeighborChanges(int cell, long since) {
+		long current = version;
+		int[] neighbors = new int[9];
+		int count = getNeighborCells(cell, neighbors);
+		ArrayList<GridCell> neighborCells = new ArrayList<GridCell>(count);
+		for (int n = 0; n < count; n++) {
+			neighborCells.add(cells[neighbors[n]]);
+		}
+		return GridDelta.merge(neighborCells, since, current);
+	}
+
+	/**
+	 * @param count	number of items wanted
+	 * @return the items closest to the location, closest first, empty if the location is not valid
+	 */
+	public LinkedList<String> getNearestItems(double latitude, double longitude, int count) {
+		return getNearestItems(latitude, longitude, count, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * @param radius	in kilometers
+	 * @return the items within the radius of the location, closest first, empty if the location is not valid
+	 */
+	public LinkedList<String> getItemsWithin(double latitude, double longitude, double radius) {
+		return getNearestItems(latitude, longitude, Integer.MAX_VALUE, radius);
+	}
+
+	/**
+	 * Find the items closest to a location. The cost is in the number of items in the cells
+	 * searched, which cover little more than the distance of the farthest item returned.
+	 *
+	 * @param count		most items returned
+	 * @param radius	longest distance of an item returned, in kilometers
+	 * @return the items, closest first, empty if the location is not valid
+	 */
+	@Override
+	public LinkedList<String> getNearestItems(double latitude, double longitude, int count, double radius) {
+		int cell = getCellIndex(latitude, longitude);
+		if (cell < 0 || count <= 0) {
+			return new LinkedList<String>();
+		}
+		int row = cell / k;
+		int column = cell % k;
+		// how far the columns go around the location, with a wrapping grid each column only once
+		int maxLeft = wraps ? (k - 1) / 2 : column;
+		int maxRight = wraps ? k / 2 : k - 1 - column;
+		double cosLatitude = Math.cos(Math.toRadians(latitude));
+
+		NearestItems found = new NearestItems(latitude, longitude, count, radius);
+		for (int ring = 0; ; ring++) {
+			int rowLow = Math.max(0, row - ring);
+			int rowHigh = Math.min(k - 1, row + ring);
+			int left = Math.min(ring, maxLeft);
+			int right = Math.min(ring, maxRight);
+			for (int i = rowLow; i <= rowHigh; i++) {
+				// rows farther in latitude alone than the farthest item wanted are skipped
+				double rowGap = Math.max(0, Math.max(minLatitude + i * cellHeight - latitude,
+						latitude - (minLatitude + (i + 1) * cellHeight)));
+				if (GreatCircle.EARTH_RADIUS * Math.toRadians(rowGap) > found.getReach()) {
+					continue;
+				}
+				if (i == row - ring || i == row + ring) {
+					// a new row, all its columns are new
+					for (int j = -left; j <= right; j++) {
+						found.search(cells[i * k + wrap(column + j)]);
+					}
+				} else {
+					if (ring <= maxLeft) {
+						found.search(cells[i * k + wrap(column - ring)]);
+					}
+					if (ring <= maxRight) {
+						found.search(cells[i * k + wrap(column + ring)]);
+					}
+				}
+			}
+			if (left == maxLeft && right == maxRight && rowLow == 0 && rowHigh == k - 1) {
+				// the whole grid is searched
+				break;
+			}
+
+			// lower bound of the distance to the cells outside the rings searched so far
+			double reach = found.getReach();
+			double bound = Double.POSITIVE_INFINITY;
+			if (rowLow > 0) {
+				bound = Math.min(bound, latitude - (minLatitude + rowLow * cellHeight));
+			}
+			if (rowHigh < k - 1) {
+				bound = Math.min(bound, minLatitude + (rowHigh + 1) * cellHeight - latitude);
+			}
+			bound = bound == Double.POSITIVE_INFINITY ? bound : GreatCircle.EARTH_RADIUS * Math.toRadians(bound);
+			if (left < maxLeft || right < maxRight) {
+				double gap = Double.POSITIVE_INFINITY;
+				if (left < maxLeft || wraps) {
+					gap = Math.min(gap, longitude - (minLongitude + (column - left) * cellWidth));
+				}
+				if (right < maxRight || wraps) {
+					gap = Math.min(gap, minLongitude + (column + right + 1) * cellWidth - longitude);
+				}
+				// the items beside the rings that matter are within their latitudes and the reach
+				double reachDegrees = Math.toDegrees(reach / GreatCircle.EARTH_RADIUS);
+				double low = Math.max(minLatitude + rowLow * cellHeight, Math.max(-90, latitude - reachDegrees));
+				double high = Math.min(minLatitude + (rowHigh + 1) * cellHeight, Math.min(90, latitude + reachDegrees));
+				double minCos = Math.min(Math.cos(Math.toRadians(low)), Math.cos(Math.toRadians(high)));
+				double sinHalf = Math.sin(Math.toRadians(Math.min(180, gap)) / 2);
+				double h = Math.max(0, cosLatitude * minCos) * sinHalf * sinHalf;
+				bound = Math.min(bound, 2 * GreatCircle.EARTH_RADIUS * Math.asin(Math.sqrt(Math.min(1, h))));
 			}
-			items.addAll(getItems(maxLatitude + "_" + longitudeIdx));
-			if (maxLongitude < k) {
-				items.addAll(getItems(maxLatitude + "_" + maxLongitude));
+			if (bound > reach) {
+				break;
 			}
 		}
-		return items;
+
+		return found.getItems();
+	}
+
+	private int wrap(int column) {
+		return column < 0 ? column + k : (column >= k ? column - k : column);
 	}
-	
-	
-	
+
 	public String getAllItemsString() {
-		String result = "";
-		for (String id: cells.keySet()) {
-			result += id + ": " + cells.get(id).getAllItems() + "; ";
+		StringBuilder result = new StringBuilder();
+		for (GridCell cell : cells) {
+			result.append(cell.getId()).append(": ").append(cell.getAllItems()).append("; ");
 		}
-		return result;
+		return result.toString();
 	}
 }
@@ -0,0 +1,108 @@
+package edu.umn.cs.Nebula.util;
+
+import java.util.Random;
+
+/**
+ * Measure the location index at scale: inserting and removing items at random locations, and
+ * querying neighborhoods by cell id, by cell index and with a visitor, and the 10 nearest items
+ * and the items within 100 km of a location. Every measure is
+ * repeated over a few rounds on a new grid, the first rounds stand for the JIT warm-up.
+ *
+ * Usage: GridBenchmark [items=1000000] [k=12] [queries=2000] [rounds=5]
+ */
+public class GridBenchmark {
+
+	/**
+	 * Counts the items of a neighborhood.
+	 */
+	private static class Counter implements Grid.ItemVisitor {
+		int count;
+
+		@Override
+		public void visit(String item) {
+			count++;
+		}
+	}
+
+	public static void main(String[] args) {
+		int numItems = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int k = args.length > 1 ? Integer.parseInt(args[1]) : 12;
+		int numQueries = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+		int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+		Random random = new Random(42);
+		String[] items = new String[numItems];
+		double[] latitudes = new double[numItems];
+		double[] longitudes = new double[numItems];
+		for (int i = 0; i < numItems; i++) {
+			items[i] = "node-" + i;
+			latitudes[i] = random.nextDouble() * 180 - 90;
+			longitudes[i] = random.nextDouble() * 360 - 180;
+		}
+
+		long sink = 0;
+		for (int round = 1; round <= rounds; round++) {
+			Grid grid = new Grid(k, -90, 90, -180, 180);
+
+			long start = System.nanoTime();
+			for (int i = 0; i < numItems; i++) {
+				grid.insertItem(items[i], latitudes[i], longitudes[i]);
+			}
+			long insert = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int q = 0; q < numQueries; q++) {
+				sink += grid.getNeighborItems(grid.getGridLocation(latitudes[q], longitudes[q])).size();
+			}
+			long byId = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int q = 0; q < numQueries; q++) {
+				sink += grid.getNeighborItems(grid.getCellIndex(latitudes[q], longitudes[q])).size();
+			}
+			long byIndex = System.nanoTime() - start;
+
+			Counter counter = new Counter();
+			start = System.nanoTime();
+			for (int q = 0; q < numQueries; q++) {
+				grid.visitNeighborItems(grid.getCellIndex(latitudes[q], longitudes[q]), counter);
+			}
+			long visited = System.nanoTime() - start;
+			sink += counter.count;
+
+			start = System.nanoTime();
+			for (int q = 0; q < numQueries; q++) {
+				sink += grid.getNearestItems(latitudes[q], longitudes[q], 10).size();
+			}
+			long nearest = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int q = 0; q < numQueries; q++) {
+				sink += grid.getItemsWithin(latitudes[q], longitudes[q], 100).size();
+			}
+			long within = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int q = 0; q < numItems; q++) {
+				sink += grid.getNeighborVersion(grid.getCellIndex(latitudes[q], longitudes[q]));
+			}
+			long versions = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < numItems; i++) {
+				grid.removeItem(items[i], latitudes[i], longitudes[i]);
+			}
+			long remove = System.nanoTime() - start;
+
+			System.out.println(String.format("round %d: %d items, k %d: insert %.0f ns, remove %.0f ns, neighbor version %.0f ns,"
+					+ " neighbors by id %.1f us, by index %.1f us, visitor %.1f us, 10 nearest %.1f us, within 100 km %.1f us",
+					round, numItems, k, insert / (double) numItems, remove / (double) numItems, versions / (double) numItems,
+					byId / 1e3 / numQueries, byIndex / 1e3 / numQueries, visited / 1e3 / numQueries,
+					nearest / 1e3 / numQueries, within / 1e3 / numQueries));
+		}
+		// keep the results alive
+		if (sink == 42) {
+			System.out.println(sink);
+		}
+	}
+}
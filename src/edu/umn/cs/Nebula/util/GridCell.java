@@ -1,44 +1,306 @@
 package edu.umn.cs.Nebula.util;
 
-import java.util.LinkedList;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 
+/**
+ * The items of a region of a location index, with their locations and a log of their latest
+ * changes. One thread at a time may change the cell, while any number of threads read it
+ * without locks: every change publishes a new immutable {@link Snapshot}, and a reader works
+ * on the snapshot it took. The items are stored in chunks of 64, so a change copies one or two
+ * chunks and the array of chunks rather than the whole cell.
+ */
 public class GridCell {
+	private static final int maxChanges = 64;
+	private static final int chunkBits = 6;
+	private static final int chunkSize = 1 << chunkBits;
 
 	private final String id;
-	private LinkedList<String> items;
-	
+	// position of every item, to find and remove it in constant time; only used by the writer
+	private final HashMap<String, Integer> positions;
+	private volatile Snapshot snapshot;
+
 	public GridCell(String id) {
+		this(id, 0);
+	}
+
+	/**
+	 * @param version	the version the cell starts at, no change before it is logged
+	 */
+	public GridCell(String id, long version) {
 		this.id = id;
-		items = new LinkedList<String>();
+		positions = new HashMap<String, Integer>();
+		snapshot = new Snapshot(new Chunk[0], 0, version, version, new Change[0]);
 	}
-	
-	public boolean addItem(String item) {
-		if (items.contains(item))
+
+	/**
+	 * Add an item and record the change under the given version. The location of an item
+	 * already in the cell is updated, which is not a change.
+	 */
+	public boolean addItem(String item, double latitude, double longitude, long version) {
+		Snapshot current = snapshot;
+		Integer position = positions.get(item);
+		if (position != null) {
+			Chunk[] chunks = current.chunks.clone();
+			put(chunks, position, item, latitude, longitude);
+			snapshot = new Snapshot(chunks, current.numItems, current.version, current.truncatedVersion, current.changes);
 			return true;
-		return items.add(item);
+		}
+		int size = current.numItems;
+		Chunk[] chunks = Arrays.copyOf(current.chunks, numChunks(size + 1));
+		put(chunks, size, item, latitude, longitude);
+		positions.put(item, size);
+		publish(chunks, size + 1, Collections.singletonList(new Change(version, item, true)));
+		return true;
 	}
-	
-	public boolean removeItem(String item) {
-		return items.remove(item);
+
+	/**
+	 * Remove an item and record the change under the given version. The last item takes its
+	 * place, so the order of the items is not kept.
+	 */
+	public boolean removeItem(String item, long version) {
+		Integer position = positions.remove(item);
+		if (position == null)
+			return false;
+		Snapshot current = snapshot;
+		int last = current.numItems - 1;
+		Chunk[] chunks = Arrays.copyOf(current.chunks, numChunks(last));
+		if (position < last) {
+			String moved = current.getItem(last);
+			put(chunks, position, moved, current.getLatitude(last), current.getLongitude(last));
+			positions.put(moved, position);
+		}
+		if ((last & (chunkSize - 1)) != 0) {
+			// release the item in the chunk that stays
+			put(chunks, last, null, 0, 0);
+		}
+		publish(chunks, last, Collections.singletonList(new Change(version, item, false)));
+		return true;
+	}
+
+	public void clearItems(long version) {
+		Snapshot current = snapshot;
+		ArrayList<Change> removed = new ArrayList<Change>(current.numItems);
+		for (int i = 0; i < current.numItems; i++) {
+			removed.add(new Change(version, current.getItem(i), false));
+		}
+		positions.clear();
+		publish(new Chunk[0], 0, removed);
+	}
+
+	private static int numChunks(int numItems) {
+		return (numItems + chunkSize - 1) >> chunkBits;
+	}
+
+	/**
+	 * Write an item in a copy of its chunk, in an array of chunks the caller has copied already.
+	 */
+	private static void put(Chunk[] chunks, int i, String item, double latitude, double longitude) {
+		int index = i >> chunkBits;
+		Chunk chunk = chunks[index] == null ? new Chunk() : chunks[index].copy();
+		int slot = i & (chunkSize - 1);
+		chunk.items[slot] = item;
+		chunk.latitudes[slot] = latitude;
+		chunk.longitudes[slot] = longitude;
+		chunks[index] = chunk;
+	}
+
+	/**
+	 * Publish the new items with the given changes appended to the log.
+	 */
+	private void publish(Chunk[] chunks, int numItems, List<Change> logged) {
+		Snapshot current = snapshot;
+		if (logged.isEmpty()) {
+			snapshot = new Snapshot(chunks, numItems, current.version, current.truncatedVersion, current.changes);
+			return;
+		}
+		int total = current.changes.length + logged.size();
+		int dropped = Math.max(0, total - maxChanges);
+		Change[] changes = new Change[total - dropped];
+		long truncatedVersion = current.truncatedVersion;
+		for (int i = 0; i < total; i++) {
+			Change change = i < current.changes.length ? current.changes[i] : logged.get(i - current.changes.length);
+			if (i < dropped) {
+				truncatedVersion = change.version;
+			} else {
+				changes[i - dropped] = change;
+			}
+		}
+		snapshot = new Snapshot(chunks, numItems, logged.get(logged.size() - 1).version, truncatedVersion, changes);
 	}
-	
+
+	/**
+	 * @return the current state of the cell, which does not change
+	 */
+	public Snapshot getSnapshot() {
+		return snapshot;
+	}
+
 	public String getItem(int i) {
-		return items.get(i);
+		return snapshot.getItem(i);
 	}
-	
-	public LinkedList<String> getAllItems() {
-		return items;
+
+	public double getLatitude(int i) {
+		return snapshot.getLatitude(i);
 	}
-	
-	public int getNumItems() {
-		return items.size();
+
+	public double getLongitude(int i) {
+		return snapshot.getLongitude(i);
 	}
-	
-	public void clearItems() {
-		items.clear();
+
+	/**
+	 * @return the items, read-only
+	 */
+	public List<String> getAllItems() {
+		return snapshot.getAllItems();
+	}
+
+	public int getNumItems() {
+		return snapshot.numItems;
 	}
 
 	public String getId() {
 		return id;
 	}
+
+	/**
+	 * @return the version of the last change in this cell
+	 */
+	public long getVersion() {
+		return snapshot.version;
+	}
+
+	/**
+	 * @return whether the change log still holds every change made after the given version
+	 */
+	public boolean hasChangesSince(long since) {
+		return snapshot.hasChangesSince(since);
+	}
+
+	/**
+	 * @return the logged changes, oldest first
+	 */
+	public List<Change> getChanges() {
+		return snapshot.getChanges();
+	}
+
+	/**
+	 * Up to 64 consecutive items with their locations. A published chunk is never written again.
+	 */
+	private static class Chunk {
+		private final String[] items = new String[chunkSize];
+		private final double[] latitudes = new double[chunkSize];
+		private final double[] longitudes = new double[chunkSize];
+
+		public Chunk copy() {
+			Chunk copy = new Chunk();
+			System.arraycopy(items, 0, copy.items, 0, chunkSize);
+			System.arraycopy(latitudes, 0, copy.latitudes, 0, chunkSize);
+			System.arraycopy(longitudes, 0, copy.longitudes, 0, chunkSize);
+			return copy;
+		}
+	}
+
+	/**
+	 * The items of a cell, their locations and its change log at one version.
+	 */
+	public static class Snapshot {
+		private final Chunk[] chunks;
+		private final int numItems;
+		private final long version;
+		private final long truncatedVersion;
+		private final Change[] changes;
+
+		private Snapshot(Chunk[] chunks, int numItems, long version, long truncatedVersion, Change[] changes) {
+			this.chunks = chunks;
+			this.numItems = numItems;
+			this.version = version;
+			this.truncatedVersion = truncatedVersion;
+			this.changes = changes;
+		}
+
+		public int getNumItems() {
+			return numItems;
+		}
+
+		public String getItem(int i) {
+			return chunks[i >> chunkBits].items[i & (chunkSize - 1)];
+		}
+
+		public double getLatitude(int i) {
+			return chunks[i >> chunkBits].latitudes[i & (chunkSize - 1)];
+		}
+
+		public double getLongitude(int i) {
+			return chunks[i >> chunkBits].longitudes[i & (chunkSize - 1)];
+		}
+
+		/**
+		 * @return the items, read-only
+		 */
+		public List<String> getAllItems() {
+			return new AbstractList<String>() {
+				@Override
+				public String get(int i) {
+					if (i < 0 || i >= numItems)
+						throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + numItems);
+					return getItem(i);
+				}
+
+				@Override
+				public int size() {
+					return numItems;
+				}
+			};
+		}
+
+		/**
+		 * @return the version of the last change in the cell
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * @return whether the change log still holds every change made after the given version
+		 */
+		public boolean hasChangesSince(long since) {
+			return since >= truncatedVersion;
+		}
+
+		/**
+		 * @return the logged changes, oldest first
+		 */
+		public List<Change> getChanges() {
+			return Collections.unmodifiableList(Arrays.asList(changes));
+		}
+	}
+
+	public static class Change {
+		private final long version;
+		private final String item;
+		private final boolean added;
+
+		public Change(long version, String item, boolean added) {
+			this.version = version;
+			this.item = item;
+			this.added = added;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public String getItem() {
+			return item;
+		}
+
+		public boolean isAdded() {
+			return added;
+		}
+	}
 }
@@ -0,0 +1,89 @@
+package edu.umn.cs.Nebula.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Items added to and removed from a neighborhood of a {@link SpatialIndex} since a given version.
+ */
+public class GridDelta {
+	private final long version;
+	private final LinkedList<String> added;
+	private final LinkedList<String> removed;
+	
+	public GridDelta(long version) {
+		this.version = version;
+		added = new LinkedList<String>();
+		removed = new LinkedList<String>();
+	}
+	
+	/**
+	 * @return the grid version the delta brings the neighborhood up to
+	 */
+	public long getVersion() {
+		return version;
+	}
+	
+	public LinkedList<String> getAdded() {
+		return added;
+	}
+	
+	public LinkedList<String> getRemoved() {
+		return removed;
+	}
+	
+	public boolean isEmpty() {
+		return added.isEmpty() && removed.isEmpty();
+	}
+
+	/**
+	 * Merge the changes the cells of a neighborhood logged after the given version. The version
+	 * of the index must be read before the cells, so that changes made meanwhile are after it
+	 * and sent again next time.
+	 *
+	 * @param since		the version the caller has seen
+	 * @param version	the version of the index
+	 * @return the changes up to the version of the index, or null if they are no longer logged
+	 */
+	public static GridDelta merge(List<GridCell> cells, long since, long version) {
+		ArrayList<GridCell.Change> changes = new ArrayList<GridCell.Change>();
+		for (GridCell cell : cells) {
+			GridCell.Snapshot snapshot = cell.getSnapshot();
+			if (snapshot.getVersion() <= since) {
+				continue;
+			}
+			if (!snapshot.hasChangesSince(since)) {
+				return null;
+			}
+			for (GridCell.Change change : snapshot.getChanges()) {
+				if (change.getVersion() > since) {
+					changes.add(change);
+				}
+			}
+		}
+		// replay in version order, an item moving between two neighboring cells ends up added
+		Collections.sort(changes, new Comparator<GridCell.Change>() {
+			@Override
+			public int compare(GridCell.Change a, GridCell.Change b) {
+				return Long.compare(a.getVersion(), b.getVersion());
+			}
+		});
+		LinkedHashMap<String, Boolean> state = new LinkedHashMap<String, Boolean>();
+		for (GridCell.Change change : changes) {
+			state.put(change.getItem(), change.isAdded());
+		}
+		GridDelta delta = new GridDelta(version);
+		for (String item : state.keySet()) {
+			if (state.get(item)) {
+				delta.added.add(item);
+			} else {
+				delta.removed.add(item);
+			}
+		}
+		return delta;
+	}
+}
@@ -0,0 +1,99 @@
+package edu.umn.cs.Nebula.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Consistent hashing of keys over a set of members. Every member is placed at many points of
+ * the ring, so that the keys are spread evenly and adding or removing a member only moves the
+ * keys of that member.
+ * The ring is not thread-safe; share it by replacing it with a new ring rather than changing it.
+ */
+public final class HashRing {
+	private static final int defaultReplicas = 128;
+
+	private final int replicas;
+	private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+	private final TreeSet<String> members = new TreeSet<String>();
+
+	public HashRing() {
+		this(defaultReplicas);
+	}
+
+	/**
+	 * @param replicas number of points of every member on the ring
+	 */
+	public HashRing(int replicas) {
+		this.replicas = replicas;
+	}
+
+	public HashRing(Collection<String> members) {
+		this(defaultReplicas);
+		for (String member : members) {
+			add(member);
+		}
+	}
+
+	public void add(String member) {
+		if (!members.add(member)) {
+			return;
+		}
+		for (int i = 0; i < replicas; i++) {
+			ring.put(hash(member + "#" + i), member);
+		}
+	}
+
+	public void remove(String member) {
+		if (!members.remove(member)) {
+			return;
+		}
+		for (int i = 0; i < replicas; i++) {
+			ring.remove(hash(member + "#" + i));
+		}
+	}
+
+	/**
+	 * @return the member owning the key, or null if the ring is empty
+	 */
+	public String get(String key) {
+		if (ring.isEmpty()) {
+			return null;
+		}
+		Map.Entry<Long, String> owner = ring.ceilingEntry(hash(key));
+		return owner != null ? owner.getValue() : ring.firstEntry().getValue();
+	}
+
+	public boolean contains(String member) {
+		return members.contains(member);
+	}
+
+	/**
+	 * @return the members in sorted order
+	 */
+	public Collection<String> getMembers() {
+		return Collections.unmodifiableSet(members);
+	}
+
+	public int size() {
+		return members.size();
+	}
+
+	private static long hash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+			long hash = 0;
+			for (int i = 0; i < 8; i++) {
+				hash = (hash << 8) | (digest[i] & 0xff);
+			}
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not available", e);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package edu.umn.cs.Nebula.util;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of durations in log-linear buckets, in the manner of HdrHistogram: every power
+ * of two is split into 8 buckets, so a percentile is known within 12.5% whatever its magnitude,
+ * from nanoseconds to minutes, in a fixed array of counters. Recording is lock-free and costs a
+ * few instructions; readers see counts that may be a few recordings apart from each other.
+ */
+public class LatencyHistogram {
+	private static final int subBucketBits = 3;
+	private static final int subBuckets = 1 << subBucketBits;
+	private static final int maxExponent = 40; // 2^40 ns is about 18 minutes
+
+	private final AtomicLongArray counts = new AtomicLongArray((maxExponent + 1) * subBuckets);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param nanos	a duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(bucket(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long current;
+		while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+		}
+	}
+
+	/**
+	 * Record the time elapsed since the given start.
+	 *
+	 * @param start	{@link System#nanoTime()} at the start
+	 */
+	public void recordSince(long start) {
+		record(System.nanoTime() - start);
+	}
+
+	private static int bucket(long nanos) {
+		if (nanos < subBuckets) {
+			return (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		if (exponent > maxExponent) {
+			return (maxExponent + 1) * subBuckets - 1;
+		}
+		// the bits after the leading one select the sub-bucket
+		int sub = (int) (nanos >>> (exponent - subBucketBits)) & (subBuckets - 1);
+		return (exponent - subBucketBits + 1) * subBuckets + sub;
+	}
+
+	/**
+	 * @return the highest duration of the bucket, in nanoseconds
+	 */
+	private static long upperBound(int bucket) {
+		if (bucket < subBuckets) {
+			return bucket;
+		}
+		int exponent = bucket / subBuckets + subBucketBits - 1;
+		int sub = bucket % subBuckets;
+		long width = 1L << (exponent - subBucketBits);
+		return (1L << exponent) + (sub + 1) * width - 1;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return the mean duration, in nanoseconds
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : total.get() / (double) n;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile	between 0 and 100
+	 * @return the duration under which the given share of the recordings fall, in nanoseconds
+	 */
+	public long getPercentile(double percentile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * @return count, mean, percentiles and max, the durations in microseconds
+	 */
+	public LinkedHashMap<String, Object> snapshot() {
+		LinkedHashMap<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("count", getCount());
+		result.put("mean_us", Math.round(getMean() / 100) / 10.0);
+		result.put("p50_us", getPercentile(50) / 1000);
+		result.put("p90_us", getPercentile(90) / 1000);
+		result.put("p99_us", getPercentile(99) / 1000);
+		result.put("p999_us", getPercentile(99.9) / 1000);
+		result.put("max_us", getMax() / 1000);
+		return result;
+	}
+}
@@ -0,0 +1,76 @@
+package edu.umn.cs.Nebula.util;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Named latency histograms and gauges of a component, read together as a snapshot. Every
+ * histogram also counts its recordings, and the snapshot gives their rate since the previous
+ * snapshot, so that one histogram per request type is also its request counter.
+ * Safe for concurrent use; histograms are meant to be looked up once and kept.
+ */
+public class Metrics {
+	private final ConcurrentSkipListMap<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<String, LatencyHistogram>();
+	private final ConcurrentSkipListMap<String, Callable<?>> gauges = new ConcurrentSkipListMap<String, Callable<?>>();
+
+	// counts of the histograms at the previous snapshot
+	private final HashMap<String, Long> lastCounts = new HashMap<String, Long>();
+	private long lastSnapshot = System.currentTimeMillis();
+
+	/**
+	 * @return the histogram of the given name, created if needed
+	 */
+	public LatencyHistogram histogram(String name) {
+		LatencyHistogram histogram = histograms.get(name);
+		if (histogram == null) {
+			LatencyHistogram created = new LatencyHistogram();
+			histogram = histograms.putIfAbsent(name, created);
+			if (histogram == null) {
+				histogram = created;
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Add a histogram kept by another component.
+	 */
+	public void register(String name, LatencyHistogram histogram) {
+		histograms.put(name, histogram);
+	}
+
+	/**
+	 * Add a value read at every snapshot.
+	 */
+	public void gauge(String name, Callable<?> value) {
+		gauges.put(name, value);
+	}
+
+	/**
+	 * @return the gauges, then every histogram with its rate per second since the previous snapshot
+	 */
+	public synchronized LinkedHashMap<String, Object> snapshot() {
+		LinkedHashMap<String, Object> result = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, Callable<?>> gauge : gauges.entrySet()) {
+			try {
+				result.put(gauge.getKey(), gauge.getValue().call());
+			} catch (Exception e) {
+				result.put(gauge.getKey(), null);
+			}
+		}
+		long now = System.currentTimeMillis();
+		double elapsed = Math.max(1, now - lastSnapshot) / 1000.0;
+		for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+			LinkedHashMap<String, Object> values = histogram.getValue().snapshot();
+			long count = (Long) values.get("count");
+			Long last = lastCounts.put(histogram.getKey(), count);
+			values.put("rate_per_s", Math.round((count - (last == null ? 0 : last)) / elapsed * 10) / 10.0);
+			result.put(histogram.getKey(), values);
+		}
+		lastSnapshot = now;
+		return result;
+	}
+}
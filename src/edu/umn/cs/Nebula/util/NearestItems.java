@@ -0,0 +1,85 @@
+package edu.umn.cs.Nebula.util;
+
+import java.util.LinkedList;
+import java.util.PriorityQueue;
+
+/**
+ * The items closest to a location among the cells searched, for the nearest queries of the
+ * spatial indexes.
+ */
+class NearestItems {
+	private final double latitude;
+	private final double longitude;
+	private final int count;
+	private final double radius;
+	// the farthest item found is on top
+	private final PriorityQueue<Neighbor> found = new PriorityQueue<Neighbor>();
+
+	/**
+	 * @param count		most items wanted
+	 * @param radius	longest distance of an item wanted, in kilometers
+	 */
+	public NearestItems(double latitude, double longitude, int count, double radius) {
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.count = count;
+		this.radius = radius;
+	}
+
+	/**
+	 * Keep the items of the cell that are among the closest so far.
+	 */
+	public void search(GridCell cell) {
+		GridCell.Snapshot items = cell.getSnapshot();
+		for (int n = 0; n < items.getNumItems(); n++) {
+			double distance = GreatCircle.getDistance(latitude, longitude, items.getLatitude(n), items.getLongitude(n));
+			if (distance > radius) {
+				continue;
+			}
+			if (found.size() < count) {
+				found.add(new Neighbor(items.getItem(n), distance));
+			} else if (distance < found.peek().distance) {
+				found.poll();
+				found.add(new Neighbor(items.getItem(n), distance));
+			}
+		}
+	}
+
+	/**
+	 * @return the distance within which an item can still be among the closest, in kilometers
+	 */
+	public double getReach() {
+		return found.size() < count ? radius : Math.min(radius, found.peek().distance);
+	}
+
+	/**
+	 * @return the items kept, closest first
+	 */
+	public LinkedList<String> getItems() {
+		LinkedList<String> items = new LinkedList<String>();
+		// the queue iterates in no particular order
+		PriorityQueue<Neighbor> sorted = new PriorityQueue<Neighbor>(found);
+		while (!sorted.isEmpty()) {
+			items.addFirst(sorted.poll().item);
+		}
+		return items;
+	}
+
+	/**
+	 * An item found, the farthest first.
+	 */
+	private static class Neighbor implements Comparable<Neighbor> {
+		private final String item;
+		private final double distance;
+
+		public Neighbor(String item, double distance) {
+			this.item = item;
+			this.distance = distance;
+		}
+
+		@Override
+		public int compareTo(Neighbor other) {
+			return Double.compare(other.distance, distance);
+		}
+	}
+}
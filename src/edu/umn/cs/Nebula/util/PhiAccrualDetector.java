@@ -0,0 +1,110 @@
+package edu.umn.cs.Nebula.util;
+
+/**
+ * Phi-accrual failure detection: instead of a fixed timeout, the silence of a node is weighed
+ * against the history of its own heartbeats. phi is -log10 of the probability that a heartbeat
+ * comes even later than now, given the mean and deviation of the past inter-arrival times: a
+ * node on a jittery link is given more time than one that has always been on time.
+ *
+ * Inter-arrival times are measured relative to the interval the node was asked to keep, so
+ * the history stays valid when the interval changes. The mean and variance are moving
+ * averages, and the deviation is bounded: at least half an interval, so that a node that was
+ * always on time is not suspected for one lost heartbeat, and at most one interval, so that a
+ * node that is never on time still fails.
+ */
+public class PhiAccrualDetector {
+	private static final double alpha = 0.125;
+	private static final double minDeviation = 0.5;
+	private static final double maxDeviation = 1.0;
+	private static final double initialDeviation = 0.25;
+
+	private final double suspectThreshold;
+	private final double failThreshold;
+
+	/**
+	 * @param suspectThreshold	phi above which a node is suspected
+	 * @param failThreshold		phi above which a node is taken as failed
+	 */
+	public PhiAccrualDetector(double suspectThreshold, double failThreshold) {
+		this.suspectThreshold = suspectThreshold;
+		this.failThreshold = failThreshold;
+	}
+
+	/**
+	 * Create the detector with the thresholds given with {@code -Dnebula.phi.suspect} (3 by
+	 * default) and {@code -Dnebula.phi.fail} (8 by default).
+	 */
+	public static PhiAccrualDetector fromProperties() {
+		return new PhiAccrualDetector(Double.parseDouble(System.getProperty("nebula.phi.suspect", "3")),
+				Double.parseDouble(System.getProperty("nebula.phi.fail", "8")));
+	}
+
+	public double getSuspectThreshold() {
+		return suspectThreshold;
+	}
+
+	public double getFailThreshold() {
+		return failThreshold;
+	}
+
+	/**
+	 * Heartbeat history of one node. Not thread-safe.
+	 */
+	public static class History {
+		private long lastHeartbeat;
+		private long expectedInterval;
+		// of the inter-arrival times divided by the expected interval
+		private double mean = 1;
+		private double variance = initialDeviation * initialDeviation;
+
+		/**
+		 * @param now				time of the first heartbeat
+		 * @param expectedInterval	interval the node is asked to keep, in milliseconds
+		 */
+		public History(long now, long expectedInterval) {
+			this.lastHeartbeat = now;
+			this.expectedInterval = Math.max(1, expectedInterval);
+		}
+
+		/**
+		 * Record a heartbeat.
+		 *
+		 * @param expectedInterval	interval the node is asked to keep from now on
+		 */
+		public void heartbeat(long now, long expectedInterval) {
+			double sample = (now - lastHeartbeat) / (double) this.expectedInterval;
+			double delta = sample - mean;
+			mean += alpha * delta;
+			variance = (1 - alpha) * (variance + alpha * delta * delta);
+			lastHeartbeat = now;
+			this.expectedInterval = Math.max(1, expectedInterval);
+		}
+
+		public long getLastHeartbeat() {
+			return lastHeartbeat;
+		}
+	}
+
+	/**
+	 * @return the suspicion of a node at the given time, 0 when it is on time
+	 */
+	public double phi(History history, long now) {
+		double elapsed = (now - history.lastHeartbeat) / (double) history.expectedInterval;
+		double deviation = Math.max(minDeviation, Math.min(maxDeviation, Math.sqrt(history.variance)));
+		double y = (elapsed - history.mean) / deviation;
+		// logistic approximation of the normal distribution
+		double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+		if (elapsed > history.mean) {
+			return -Math.log10(e / (1 + e));
+		}
+		return -Math.log10(1 - 1 / (1 + e));
+	}
+
+	public boolean isSuspect(History history, long now) {
+		return phi(history, now) >= suspectThreshold;
+	}
+
+	public boolean hasFailed(History history, long now) {
+		return phi(history, now) >= failThreshold;
+	}
+}
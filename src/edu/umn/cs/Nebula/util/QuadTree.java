@@ -0,0 +1,407 @@
+package edu.umn.cs.Nebula.util;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.PriorityQueue;
+
+/**
+ * A point-region quadtree over a geographic area. A region holding more than maxItems items is
+ * split in four, and four sibling regions holding half as many in all are merged back, so that
+ * regions are small where nodes crowd and large where they are sparse. The neighborhood of a
+ * location is the region containing it and the regions touching it, and holds a similar number
+ * of items in a city and in the countryside, where a fixed grid puts thousands in the first and
+ * none in the second.
+ *
+ * The items of a region are kept in a {@link GridCell}, which logs their changes. Splitting or
+ * merging regions starts a new version and new cells with empty logs, so the neighborhoods
+ * reshaped are sent whole again rather than as changes. Versions start at the creation time in
+ * milliseconds; a restarted quadtree is started after the last version saved, see
+ * {@link #startAfter(long)}.
+ *
+ * One thread at a time may change the quadtree, while any number of threads read it without
+ * locks. A split or a merge replaces the content of a region, its cell or its children, in a
+ * single write, and the cells publish snapshots of their items, so a reader sees every region
+ * either before or after a change. The version of the quadtree is published after the change
+ * it stands for, so a reader that reads it first sees at least that change.
+ */
+public class QuadTree implements SpatialIndex {
+	private static final int defaultMaxItems = 64;
+	private static final int defaultMaxDepth = 16;
+
+	private final double minLatitude, maxLatitude, minLongitude, maxLongitude;
+	private final int maxItems;
+	private final int maxDepth;
+
+	private final Region root;
+	private volatile long version = System.currentTimeMillis();
+	private volatile int numRegions = 1;
+
+	public QuadTree(double minLatitude, double maxLatitude, double minLongitude, double maxLongitude) {
+		this(minLatitude, maxLatitude, minLongitude, maxLongitude, defaultMaxItems, defaultMaxDepth);
+	}
+
+	/**
+	 * @param maxItems	most items in a region before it is split
+	 * @param maxDepth	most times the area is split, regions this deep hold any number of items;
+	 *					at most 31, so that the region keys fit in a long
+	 */
+	public QuadTree(double minLatitude, double maxLatitude, double minLongitude, double maxLongitude, int maxItems,
+			int maxDepth) {
+		this.minLatitude = minLatitude;
+		this.maxLatitude = maxLatitude;
+		this.minLongitude = minLongitude;
+		this.maxLongitude = maxLongitude;
+		this.maxItems = maxItems;
+		this.maxDepth = Math.min(maxDepth, 31);
+		root = new Region(null, "r", minLatitude, maxLatitude, minLongitude, maxLongitude, version);
+	}
+
+	/**
+	 * A region of the area, split in four children or holding its items in a cell. Readers
+	 * read the content once and work on what they read.
+	 */
+	private static class Region {
+		private final Region parent;
+		private final String id;
+		// the path from the root, two bits per level after a leading 1
+		private final long key;
+		private final int depth;
+		private final double minLatitude, maxLatitude, minLongitude, maxLongitude;
+		private final double midLatitude, midLongitude;
+
+		// the cell of a leaf or the four children of a split region
+		private volatile Object content;
+		private volatile int numItems; // in the whole region
+
+		public Region(Region parent, String id, double minLatitude, double maxLatitude, double minLongitude,
+				double maxLongitude, long version) {
+			this.parent = parent;
+			this.id = id;
+			this.key = parent == null ? 1 : parent.key << 2 | (id.charAt(id.length() - 1) - '0');
+			this.depth = parent == null ? 0 : parent.depth + 1;
+			this.minLatitude = minLatitude;
+			this.maxLatitude = maxLatitude;
+			this.minLongitude = minLongitude;
+			this.maxLongitude = maxLongitude;
+			this.midLatitude = (minLatitude + maxLatitude) / 2;
+			this.midLongitude = (minLongitude + maxLongitude) / 2;
+			this.content = new GridCell(id, version);
+		}
+
+		public boolean isLeaf() {
+			return content instanceof GridCell;
+		}
+
+		/**
+		 * @return the cell of a leaf, null if the region is split
+		 */
+		public GridCell getCell() {
+			Object current = content;
+			return current instanceof GridCell ? (GridCell) current : null;
+		}
+
+		/**
+		 * @return the children of a split region, null for a leaf
+		 */
+		public Region[] getChildren() {
+			Object current = content;
+			return current instanceof Region[] ? (Region[]) current : null;
+		}
+
+		/**
+		 * @return the index of the child containing the location, the middle coordinates belong to the upper children
+		 */
+		public int getChildIndex(double latitude, double longitude) {
+			return (latitude >= midLatitude ? 2 : 0) + (longitude >= midLongitude ? 1 : 0);
+		}
+
+		/**
+		 * @return whether the regions overlap or share a border or a corner
+		 */
+		public boolean touches(Region other) {
+			return minLatitude <= other.maxLatitude && maxLatitude >= other.minLatitude
+					&& minLongitude <= other.maxLongitude && maxLongitude >= other.minLongitude;
+		}
+	}
+
+	@Override
+	public boolean validCoordinate(double latitude, double longitude) {
+		if (latitude < -90 || latitude > 90 || longitude < -180 || longitude > 180 ||
+				latitude < minLatitude || latitude > maxLatitude || longitude < minLongitude || longitude > maxLongitude)
+			return false;
+		return true;
+	}
+
+	/**
+	 * @return the leaf containing the location, which must be valid
+	 */
+	private Region locate(double latitude, double longitude) {
+		Region region = root;
+		Region[] children;
+		while ((children = region.getChildren()) != null) {
+			region = children[region.getChildIndex(latitude, longitude)];
+		}
+		return region;
+	}
+
+	@Override
+	public boolean insertItem(String item, double latitude, double longitude) {
+		if (!validCoordinate(latitude, longitude))
+			return false;
+		Region leaf = locate(latitude, longitude);
+		GridCell cell = leaf.getCell();
+		int before = cell.getNumItems();
+		long next = version + 1;
+		cell.addItem(item, latitude, longitude, next);
+		if (cell.getNumItems() > before) {
+			for (Region region = leaf; region != null; region = region.parent) {
+				region.numItems++;
+			}
+			if (leaf.numItems > maxItems && leaf.depth < maxDepth) {
+				split(leaf, next);
+			}
+			// published once the change is visible
+			version = next;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean removeItem(String item, double latitude, double longitude) {
+		if (!validCoordinate(latitude, longitude))
+			return false;
+		Region leaf = locate(latitude, longitude);
+		long next = version + 1;
+		if (!leaf.getCell().removeItem(item, next))
+			return false;
+		for (Region region = leaf; region != null; region = region.parent) {
+			region.numItems--;
+		}
+		// merge upwards while a parent of leaves holds few enough items for one region
+		for (Region region = leaf.parent; region != null && region.numItems <= maxItems / 2 && hasLeafChildren(region);
+				region = region.parent) {
+			merge(region, next);
+		}
+		version = next;
+		return true;
+	}
+
+	/**
+	 * Move the items of a leaf to four new children, splitting them again if they all fall in
+	 * one. The children are complete before they replace the cell.
+	 */
+	private void split(Region leaf, long version) {
+		String id = leaf.id;
+		Region[] children = new Region[] {
+				new Region(leaf, id + "0", leaf.minLatitude, leaf.midLatitude, leaf.minLongitude, leaf.midLongitude, version),
+				new Region(leaf, id + "1", leaf.minLatitude, leaf.midLatitude, leaf.midLongitude, leaf.maxLongitude, version),
+				new Region(leaf, id + "2", leaf.midLatitude, leaf.maxLatitude, leaf.minLongitude, leaf.midLongitude, version),
+				new Region(leaf, id + "3", leaf.midLatitude, leaf.maxLatitude, leaf.midLongitude, leaf.maxLongitude, version) };
+		GridCell.Snapshot cell = leaf.getCell().getSnapshot();
+		for (int n = 0; n < cell.getNumItems(); n++) {
+			Region child = children[leaf.getChildIndex(cell.getLatitude(n), cell.getLongitude(n))];
+			child.getCell().addItem(cell.getItem(n), cell.getLatitude(n), cell.getLongitude(n), version);
+			child.numItems++;
+		}
+		for (Region child : children) {
+			if (child.numItems > maxItems && child.depth < maxDepth) {
+				split(child, version);
+			}
+		}
+		leaf.content = children;
+		numRegions += 3;
+	}
+
+	/**
+	 * Move the items of the four leaf children of a region back to the region.
+	 */
+	private void merge(Region region, long version) {
+		GridCell cell = new GridCell(region.id, version);
+		for (Region child : region.getChildren()) {
+			GridCell.Snapshot items = child.getCell().getSnapshot();
+			for (int n = 0; n < items.getNumItems(); n++) {
+				cell.addItem(items.getItem(n), items.getLatitude(n), items.getLongitude(n), version);
+			}
+		}
+		region.content = cell;
+		numRegions -= 3;
+	}
+
+	private static boolean hasLeafChildren(Region region) {
+		if (region.isLeaf())
+			return false;
+		for (Region child : region.getChildren()) {
+			if (!child.isLeaf())
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public long getVersion() {
+		return version;
+	}
+
+	@Override
+	public void startAfter(long start) {
+		if (start <= version)
+			return;
+		root.content = new GridCell(root.id, start);
+		version = start;
+	}
+
+	@Override
+	public int getNumRegions() {
+		return numRegions;
+	}
+
+	/**
+	 * @return the id of the leaf containing the location, "r" followed by the index of the
+	 * child at every level, null if the location is not valid
+	 */
+	@Override
+	public String getRegionId(double latitude, double longitude) {
+		if (!validCoordinate(latitude, longitude))
+			return null;
+		return locate(latitude, longitude).id;
+	}
+
+	@Override
+	public long getRegionKey(double latitude, double longitude) {
+		if (!validCoordinate(latitude, longitude))
+			return -1;
+		return locate(latitude, longitude).key;
+	}
+
+	/**
+	 * @return the cells of the leaf containing the location and the leaves touching it, none if the location is not valid
+	 */
+	private ArrayList<GridCell> getNeighborCells(double latitude, double longitude) {
+		ArrayList<GridCell> cells = new ArrayList<GridCell>();
+		if (validCoordinate(latitude, longitude)) {
+			collect(root, locate(latitude, longitude), cells);
+		}
+		return cells;
+	}
+
+	private static void collect(Region region, Region leaf, ArrayList<GridCell> cells) {
+		if (!region.touches(leaf))
+			return;
+		Object content = region.content;
+		if (content instanceof GridCell) {
+			cells.add((GridCell) content);
+			return;
+		}
+		for (Region child : (Region[]) content) {
+			collect(child, leaf, cells);
+		}
+	}
+
+	@Override
+	public LinkedList<String> getNeighborItems(double latitude, double longitude) {
+		LinkedList<String> items = new LinkedList<String>();
+		for (GridCell cell : getNeighborCells(latitude, longitude)) {
+			items.addAll(cell.getSnapshot().getAllItems());
+		}
+		return items;
+	}
+
+	@Override
+	public long getNeighborVersion(double latitude, double longitude) {
+		if (!validCoordinate(latitude, longitude))
+			return 0;
+		// asked on every heartbeat, so the cells are not collected
+		return maxVersion(root, locate(latitude, longitude));
+	}
+
+	private static long maxVersion(Region region, Region leaf) {
+		if (!region.touches(leaf))
+			return 0;
+		Object content = region.content;
+		if (content instanceof GridCell)
+			return ((GridCell) content).getVersion();
+		long result = 0;
+		for (Region child : (Region[]) content) {
+			result = Math.max(result, maxVersion(child, leaf));
+		}
+		return result;
+	}
+
+	@Override
+	public GridDelta getNeighborChanges(double latitude, double longitude, long since) {
+		long current = version;
+		return GridDelta.merge(getNeighborCells(latitude, longitude), since, current);
+	}
+
+	/**
+	 * Find the items closest to a location, searching the regions in the order of their lower
+	 * bound distance to the location, and skipping empty regions and those beyond the reach.
+	 */
+	@Override
+	public LinkedList<String> getNearestItems(double latitude, double longitude, int count, double radius) {
+		if (!validCoordinate(latitude, longitude) || count <= 0) {
+			return new LinkedList<String>();
+		}
+		NearestItems found = new NearestItems(latitude, longitude, count, radius);
+		PriorityQueue<Candidate> candidates = new PriorityQueue<Candidate>();
+		candidates.add(new Candidate(root, 0));
+		while (!candidates.isEmpty()) {
+			Candidate next = candidates.poll();
+			if (next.bound > found.getReach()) {
+				break;
+			}
+			Object content = next.region.content;
+			if (content instanceof GridCell) {
+				found.search((GridCell) content);
+				continue;
+			}
+			for (Region child : (Region[]) content) {
+				if (child.numItems == 0) {
+					continue;
+				}
+				double bound = GreatCircle.getLowerBound(latitude, longitude, child.minLatitude, child.maxLatitude,
+						child.minLongitude, child.maxLongitude);
+				if (bound <= found.getReach()) {
+					candidates.add(new Candidate(child, bound));
+				}
+			}
+		}
+		return found.getItems();
+	}
+
+	/**
+	 * A region to search, the closest first.
+	 */
+	private static class Candidate implements Comparable<Candidate> {
+		private final Region region;
+		private final double bound;
+
+		public Candidate(Region region, double bound) {
+			this.region = region;
+			this.bound = bound;
+		}
+
+		@Override
+		public int compareTo(Candidate other) {
+			return Double.compare(bound, other.bound);
+		}
+	}
+
+	public String getAllItemsString() {
+		StringBuilder result = new StringBuilder();
+		appendItems(root, result);
+		return result.toString();
+	}
+
+	private static void appendItems(Region region, StringBuilder result) {
+		Object content = region.content;
+		if (content instanceof GridCell) {
+			GridCell cell = (GridCell) content;
+			result.append(cell.getId()).append(": ").append(cell.getSnapshot().getAllItems()).append("; ");
+			return;
+		}
+		for (Region child : (Region[]) content) {
+			appendItems(child, result);
+		}
+	}
+}
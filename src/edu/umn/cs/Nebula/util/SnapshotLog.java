@@ -0,0 +1,209 @@
+package edu.umn.cs.Nebula.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A state saved on local disk as a checkpoint followed by a journal of the records appended
+ * since. The checkpoint is written to a temporary file and renamed over the previous one, so it
+ * is replaced at once; the journal is a memory-mapped file of fixed capacity, so appending a
+ * record is a copy to memory and the operating system writes it out.
+ *
+ * Every record is framed as [length][generation][crc][bytes]. A checkpoint starts a new
+ * generation, and the journal keeps the records of the current generation only: reading stops
+ * at the first record that is torn, corrupted or of another generation, so a crash at any point
+ * leaves the last checkpoint and the records appended after it that reached the disk.
+ * The log is thread-safe.
+ */
+public class SnapshotLog {
+	private static final int magic = 0x4e53504c; // "NSPL"
+	private static final int headerSize = 16;
+
+	private final File checkpointFile;
+	private final File journalFile;
+	private final int capacity;
+
+	private long generation = 0;
+	private RandomAccessFile journal;
+	private MappedByteBuffer buffer;
+
+	/**
+	 * @param dir		directory of the files, created if needed
+	 * @param name		prefix of the files
+	 * @param capacity	size of the journal in bytes
+	 */
+	public SnapshotLog(File dir, String name, int capacity) {
+		this.checkpointFile = new File(dir, name + ".checkpoint");
+		this.journalFile = new File(dir, name + ".journal");
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Read the saved records, in order, and open the journal for appending after them.
+	 *
+	 * @param checkpointRecords	receives the records of the checkpoint
+	 * @param journalRecords	receives the records appended since
+	 */
+	public synchronized void load(List<byte[]> checkpointRecords, List<byte[]> journalRecords) throws IOException {
+		generation = 0;
+		if (checkpointFile.exists()) {
+			ByteBuffer checkpoint = ByteBuffer.wrap(Files.readAllBytes(checkpointFile.toPath()));
+			if (checkpoint.remaining() >= 12 && checkpoint.getInt() == magic) {
+				generation = checkpoint.getLong();
+				read(checkpoint, checkpointRecords);
+			}
+		}
+		open();
+		read(buffer, journalRecords);
+	}
+
+	/**
+	 * Replace the saved state with the given records and empty the journal.
+	 */
+	public synchronized void checkpoint(Collection<byte[]> records) throws IOException {
+		long next = generation + 1;
+		int size = 12;
+		for (byte[] record : records) {
+			size += headerSize + record.length;
+		}
+		ByteBuffer out = ByteBuffer.allocate(size);
+		out.putInt(magic);
+		out.putLong(next);
+		for (byte[] record : records) {
+			out.putInt(record.length);
+			out.putLong(next);
+			out.putInt(crc(next, record));
+			out.put(record);
+		}
+		out.flip();
+
+		File tmp = new File(checkpointFile.getPath() + ".tmp");
+		RandomAccessFile file = new RandomAccessFile(tmp, "rw");
+		try {
+			file.setLength(0);
+			FileChannel channel = file.getChannel();
+			while (out.hasRemaining()) {
+				channel.write(out);
+			}
+			channel.force(true);
+		} finally {
+			file.close();
+		}
+		Files.move(tmp.toPath(), checkpointFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+		// the records of the journal are now in the checkpoint and of an older generation
+		generation = next;
+		if (buffer == null) {
+			open();
+		}
+		buffer.clear();
+		buffer.putInt(0, 0);
+	}
+
+	/**
+	 * Append a record to the journal. It is on disk once the operating system writes it out,
+	 * or after {@link #force()}.
+	 *
+	 * @return false if the journal is full, take a checkpoint then
+	 */
+	public synchronized boolean append(byte[] record) throws IOException {
+		if (buffer == null) {
+			open();
+		}
+		// keep room for the empty header that ends the journal
+		if (buffer.remaining() < headerSize + record.length + 4) {
+			return false;
+		}
+		int start = buffer.position();
+		buffer.putInt(0);
+		buffer.putLong(generation);
+		buffer.putInt(crc(generation, record));
+		buffer.put(record);
+		buffer.putInt(buffer.position(), 0);
+		// the length last, so that a torn record reads as the end of the journal
+		buffer.putInt(start, record.length);
+		return true;
+	}
+
+	/**
+	 * Write the journal out to disk.
+	 */
+	public synchronized void force() {
+		if (buffer != null) {
+			buffer.force();
+		}
+	}
+
+	public synchronized int getJournalSize() {
+		return buffer == null ? 0 : buffer.position();
+	}
+
+	public int getJournalCapacity() {
+		return capacity;
+	}
+
+	public synchronized void close() throws IOException {
+		if (journal != null) {
+			force();
+			journal.close();
+			journal = null;
+			buffer = null;
+		}
+	}
+
+	private void open() throws IOException {
+		if (journal != null) {
+			return;
+		}
+		File dir = journalFile.getAbsoluteFile().getParentFile();
+		if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		journal = new RandomAccessFile(journalFile, "rw");
+		if (journal.length() != capacity) {
+			journal.setLength(capacity);
+		}
+		buffer = journal.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+	}
+
+	/**
+	 * Read the records of the current generation, leaving the buffer after the last one.
+	 */
+	private void read(ByteBuffer in, List<byte[]> records) {
+		while (in.remaining() >= headerSize) {
+			int start = in.position();
+			int length = in.getInt();
+			long recordGeneration = in.getLong();
+			int crc = in.getInt();
+			if (length <= 0 || length > in.remaining() || recordGeneration != generation) {
+				in.position(start);
+				return;
+			}
+			byte[] record = new byte[length];
+			in.get(record);
+			if (crc(recordGeneration, record) != crc) {
+				in.position(start);
+				return;
+			}
+			records.add(record);
+		}
+	}
+
+	private static int crc(long generation, byte[] record) {
+		CRC32 crc = new CRC32();
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			crc.update((int) (generation >>> shift));
+		}
+		crc.update(record, 0, record.length);
+		return (int) crc.getValue();
+	}
+}
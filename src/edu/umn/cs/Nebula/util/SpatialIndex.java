@@ -0,0 +1,89 @@
+package edu.umn.cs.Nebula.util;
+
+import java.util.LinkedList;
+
+/**
+ * Index of items by geographic location. The index is divided in regions, and the neighborhood
+ * of a location is the region containing it and the regions around it. Every change increments
+ * the version of the index, and the changes to a neighborhood since a version can be computed
+ * as a {@link GridDelta}.
+ * Implementations take one writer at a time, serialized by the caller, and any number of
+ * readers at the same time without locks. The version is published after the change it stands
+ * for: a reader that reads it before the neighborhood sees at least the changes up to it.
+ */
+public interface SpatialIndex {
+
+	boolean validCoordinate(double latitude, double longitude);
+
+	/**
+	 * Add an item at a location.
+	 *
+	 * @return false if the location is not valid
+	 */
+	boolean insertItem(String item, double latitude, double longitude);
+
+	/**
+	 * Remove an item from the location it was inserted at.
+	 *
+	 * @return false if the item is not there
+	 */
+	boolean removeItem(String item, double latitude, double longitude);
+
+	/**
+	 * @return the version of the last change to the index
+	 */
+	long getVersion();
+
+	/**
+	 * Hand out versions after the given one only, and log no change up to it, so that a version
+	 * handed out before a restart is never taken for a later one. Only on an empty index.
+	 */
+	void startAfter(long start);
+
+	/**
+	 * @return the number of regions the index is divided in
+	 */
+	int getNumRegions();
+
+	/**
+	 * All the locations of a region have the same neighborhood, until the neighbor version of
+	 * the region changes.
+	 *
+	 * @return the id of the region containing the location, null if the location is not valid
+	 */
+	String getRegionId(double latitude, double longitude);
+
+	/**
+	 * The region of {@link #getRegionId(double, double)} as a number, found without allocating.
+	 *
+	 * @return a number unique to the region containing the location, -1 if the location is not valid
+	 */
+	long getRegionKey(double latitude, double longitude);
+
+	/**
+	 * @return the items in the neighborhood of the location, empty if the location is not valid
+	 */
+	LinkedList<String> getNeighborItems(double latitude, double longitude);
+
+	/**
+	 * @return the version of the last change in the neighborhood of the location
+	 */
+	long getNeighborVersion(double latitude, double longitude);
+
+	/**
+	 * Compute the changes in the neighborhood of the location made after the given version.
+	 *
+	 * @param since	the version the caller has seen
+	 * @return the changes up to the current version, or null if they are no longer logged
+	 */
+	GridDelta getNeighborChanges(double latitude, double longitude, long since);
+
+	/**
+	 * Find the items closest to a location by great-circle distance.
+	 *
+	 * @param count		most items returned
+	 * @param radius	longest distance of an item returned, in kilometers
+	 * @return the items, closest first, empty if the location is not valid
+	 */
+	LinkedList<String> getNearestItems(double latitude, double longitude, int count, double radius);
+}
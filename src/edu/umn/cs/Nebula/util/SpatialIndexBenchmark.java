@@ -0,0 +1,137 @@
+package edu.umn.cs.Nebula.util;
+
+import java.util.Random;
+
+/**
+ * Compare the location indexes on nodes crowded in cities, as volunteer nodes are: most items
+ * are spread around a few dozen large cities, the largest drawing the most by a Zipf law, and
+ * the rest at random on the earth. Every index inserts all the items, answers neighborhood,
+ * nearest and radius queries at the locations of random items, and removes all the items.
+ * Every measure is repeated over a few rounds on new indexes, the first rounds stand for the
+ * JIT warm-up.
+ *
+ * Usage: SpatialIndexBenchmark [items=1000000] [queries=2000] [rounds=5] [k=12] [maxItems=64]
+ */
+public class SpatialIndexBenchmark {
+	// latitude and longitude of large cities, the largest first
+	private static final double[][] cities = {
+			{ 35.68, 139.69 }, { 28.61, 77.21 }, { 31.23, 121.47 }, { -23.55, -46.63 }, { 19.43, -99.13 },
+			{ 30.04, 31.24 }, { 19.08, 72.88 }, { 39.90, 116.41 }, { 23.81, 90.41 }, { 34.69, 135.50 },
+			{ 40.71, -74.01 }, { 24.86, 67.01 }, { -34.60, -58.38 }, { 22.57, 88.36 }, { 41.01, 28.98 },
+			{ 6.52, 3.38 }, { 14.60, 120.98 }, { -22.91, -43.17 }, { 55.76, 37.62 }, { 34.05, -118.24 },
+			{ 48.86, 2.35 }, { 51.51, -0.13 }, { -6.21, 106.85 }, { 37.57, 126.98 }, { 13.76, 100.50 },
+			{ 41.88, -87.63 }, { 4.71, -74.07 }, { -12.05, -77.04 }, { 35.69, 51.39 }, { 1.35, 103.82 },
+			{ 52.52, 13.40 }, { 43.65, -79.38 }, { -33.87, 151.21 }, { 44.98, -93.27 }, { 59.33, 18.07 },
+			{ -1.29, 36.82 }, { 25.20, 55.27 }, { 64.15, -21.94 }, { -33.92, 18.42 }, { 61.22, -149.90 } };
+	private static final double citySpread = 0.3; // standard deviation around a city, in degrees
+	private static final double ruralShare = 0.1;
+
+	/**
+	 * Counts the items of the neighborhoods.
+	 */
+	private static class Result {
+		long sink;
+		long neighbors;
+	}
+
+	public static void main(String[] args) {
+		int numItems = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int numQueries = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		int k = args.length > 3 ? Integer.parseInt(args[3]) : 12;
+		int maxItems = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+
+		Random random = new Random(42);
+		double[] weights = new double[cities.length];
+		double total = 0;
+		for (int c = 0; c < cities.length; c++) {
+			total += 1.0 / (c + 1);
+			weights[c] = total;
+		}
+		String[] items = new String[numItems];
+		double[] latitudes = new double[numItems];
+		double[] longitudes = new double[numItems];
+		for (int i = 0; i < numItems; i++) {
+			items[i] = "node-" + i;
+			if (random.nextDouble() < ruralShare) {
+				// uniform on the sphere
+				latitudes[i] = Math.toDegrees(Math.asin(random.nextDouble() * 2 - 1));
+				longitudes[i] = random.nextDouble() * 360 - 180;
+				continue;
+			}
+			double pick = random.nextDouble() * total;
+			int c = 0;
+			while (weights[c] < pick) {
+				c++;
+			}
+			latitudes[i] = Math.max(-90, Math.min(90, cities[c][0] + random.nextGaussian() * citySpread));
+			longitudes[i] = Math.max(-180, Math.min(180, cities[c][1] + random.nextGaussian() * citySpread));
+		}
+		// query at the locations of random items, so crowded areas are queried the most
+		int[] queries = new int[numQueries];
+		for (int q = 0; q < numQueries; q++) {
+			queries[q] = random.nextInt(numItems);
+		}
+
+		Result result = new Result();
+		for (int round = 1; round <= rounds; round++) {
+			run("grid k=" + k, new Grid(k, -90, 90, -180, 180), round, items, latitudes, longitudes, queries, result);
+			run("quadtree maxItems=" + maxItems, new QuadTree(-90, 90, -180, 180, maxItems, 16), round, items, latitudes,
+					longitudes, queries, result);
+		}
+		// keep the results alive
+		if (result.sink == 42) {
+			System.out.println(result.sink);
+		}
+	}
+
+	private static void run(String name, SpatialIndex index, int round, String[] items, double[] latitudes,
+			double[] longitudes, int[] queries, Result result) {
+		int numItems = items.length;
+		int numQueries = queries.length;
+
+		long start = System.nanoTime();
+		for (int i = 0; i < numItems; i++) {
+			index.insertItem(items[i], latitudes[i], longitudes[i]);
+		}
+		long insert = System.nanoTime() - start;
+		int regions = index.getNumRegions();
+
+		result.neighbors = 0;
+		start = System.nanoTime();
+		for (int q : queries) {
+			result.neighbors += index.getNeighborItems(latitudes[q], longitudes[q]).size();
+		}
+		long neighbors = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int q : queries) {
+			result.sink += index.getNeighborVersion(latitudes[q], longitudes[q]);
+		}
+		long versions = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int q : queries) {
+			result.sink += index.getNearestItems(latitudes[q], longitudes[q], 10, Double.POSITIVE_INFINITY).size();
+		}
+		long nearest = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int q : queries) {
+			result.sink += index.getNearestItems(latitudes[q], longitudes[q], Integer.MAX_VALUE, 10).size();
+		}
+		long within = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < numItems; i++) {
+			index.removeItem(items[i], latitudes[i], longitudes[i]);
+		}
+		long remove = System.nanoTime() - start;
+
+		System.out.println(String.format("round %d, %s: %d items, %d regions: insert %.0f ns, remove %.0f ns,"
+				+ " neighbors %.1f us (%.0f items), neighbor version %.1f us, 10 nearest %.1f us, within 10 km %.1f us",
+				round, name, numItems, regions, insert / (double) numItems, remove / (double) numItems,
+				neighbors / 1e3 / numQueries, result.neighbors / (double) numQueries, versions / 1e3 / numQueries,
+				nearest / 1e3 / numQueries, within / 1e3 / numQueries));
+	}
+}